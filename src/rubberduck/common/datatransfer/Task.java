@@ -5,9 +5,11 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.List;
 
 import rubberduck.common.formatter.Formatter;
-import rubberduck.storage.DatabaseManager;
+import rubberduck.storage.TaskIndexes;
+import rubberduck.storage.TaskStore;
 
 //@author A0111794E
 /**
@@ -190,6 +192,16 @@ public class Task implements Serializable, Comparable<Task> {
         this.lastUpdate = Calendar.getInstance();
     }
 
+    /**
+     * Set the task last updateTime. This should only be used when restoring a
+     * stored task.
+     *
+     * @param lastUpdate last update time of the task
+     */
+    public void setLastUpdate(Calendar lastUpdate) {
+        this.lastUpdate = lastUpdate;
+    }
+
     /**
      * Check if the dateList is empty.
      *
@@ -394,17 +406,18 @@ public class Task implements Serializable, Comparable<Task> {
      * Method used to check whether a task has any potential conflicting
      * schedule in current database.
      *
-     * @param dbManager DatabaseManager object to interact with
+     * @param dbManager TaskStore object to interact with
      * @return true if there is a conflict else false
      * @throws IOException occurs when dbManager encounters a problem with file
      */
-    public boolean checkConflictWithDB(DatabaseManager<Task> dbManager,
+    public boolean checkConflictWithDB(TaskStore<Task> dbManager,
                                        long thisTaskId) throws IOException {
         if (isFloatingTask() || isDeadline()) {
             return false;
         }
 
-        ArrayList<Long> validIDList = dbManager.getValidIdList();
+        List<Long> validIDList =
+            TaskIndexes.getValidIdsInConflict(dbManager, this);
         for (Long i : validIDList) {
             Task storedTask = dbManager.getInstance(i);
             if (i != thisTaskId && !storedTask.getIsDone()) {
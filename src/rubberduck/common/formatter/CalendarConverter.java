@@ -16,12 +16,12 @@ import java.util.Locale;
 //@author A0119416H
 /**
  * A simple XStream converter that converts Calendar objects to a human readable
- * format.
+ * format. Records are converted by concurrent readers, so a new DateFormat is
+ * created for each conversion as SimpleDateFormat is not thread-safe.
  */
 public class CalendarConverter implements Converter {
 
-    private static final SimpleDateFormat DATE_FORMAT =
-        new SimpleDateFormat("dd-MM-yyyy HH:mm:ss", Locale.US);
+    private static final String DATE_FORMAT = "dd-MM-yyyy HH:mm:ss";
 
     /**
      * Tells the caller that it can convert anything as long it extends
@@ -44,7 +44,7 @@ public class CalendarConverter implements Converter {
     public void marshal(Object value, HierarchicalStreamWriter writer,
                         MarshallingContext context) {
         Calendar calendar = (Calendar) value;
-        writer.setValue(DATE_FORMAT.format(calendar.getTime()));
+        writer.setValue(createDateFormat().format(calendar.getTime()));
     }
 
     /**
@@ -60,10 +60,14 @@ public class CalendarConverter implements Converter {
                             UnmarshallingContext context) {
         GregorianCalendar calendar = new GregorianCalendar();
         try {
-            calendar.setTime(DATE_FORMAT.parse(reader.getValue()));
+            calendar.setTime(createDateFormat().parse(reader.getValue()));
         } catch (ParseException e) {
             throw new ConversionException(e.getMessage(), e);
         }
         return calendar;
     }
+
+    private static SimpleDateFormat createDateFormat() {
+        return new SimpleDateFormat(DATE_FORMAT, Locale.US);
+    }
 }
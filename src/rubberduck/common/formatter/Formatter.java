@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.Locale;
@@ -12,7 +11,7 @@ import java.util.Locale;
 import rubberduck.common.datatransfer.DatePair;
 import rubberduck.common.datatransfer.Task;
 import rubberduck.common.formatter.ColorFormatter.Color;
-import rubberduck.storage.DatabaseManager;
+import rubberduck.storage.TaskArchive;
 
 //@author A0111736M
 /**
@@ -130,15 +129,16 @@ public class Formatter {
     /**
      * Format the list of tasks into a String output and return.
      *
-     * @param dataTable ArrayList containing all the instanceId in data table
-     * @param db        DatabaseManager instance
+     * @param dataTable ArrayList containing all the instanceId in data table,
+     *                  which may include archived IDs
+     * @param archive   TaskArchive instance of the database
      * @return the formatted string of all tasks involved
      * @throws IOException occurs when DatabaseManager encounters an I/O error
      */
     public static String formatTaskList(ArrayList<Long> dataTable,
-                                        DatabaseManager<Task> db)
+                                        TaskArchive archive)
         throws IOException {
-        Collections.sort(dataTable, db.getInstanceIdComparator());
+        archive.sort(dataTable);
 
         StringBuilder taskData = new StringBuilder();
         HeaderType prevType = HeaderType.NONE;
@@ -147,7 +147,7 @@ public class Formatter {
                 taskData.append(System.lineSeparator());
             }
 
-            Task task = db.getInstance(dataTable.get(i));
+            Task task = archive.getTask(dataTable.get(i));
 
             HeaderType currentType = getHeaderType(task);
             if (currentType != prevType) {
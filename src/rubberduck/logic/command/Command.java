@@ -15,6 +15,13 @@ import java.util.logging.Logger;
 import rubberduck.common.datatransfer.Response;
 import rubberduck.common.datatransfer.Task;
 import rubberduck.storage.DatabaseManager;
+import rubberduck.storage.DatabaseManager.ReadMode;
+import rubberduck.storage.HeapTaskStore;
+import rubberduck.storage.MemoryTaskStore;
+import rubberduck.storage.TaskArchive;
+import rubberduck.storage.TaskIndexes;
+import rubberduck.storage.TaskRecordCodec;
+import rubberduck.storage.TaskStore;
 
 //@author A0111736M
 /**
@@ -118,24 +125,53 @@ public abstract class Command {
         "database.xml";
     private static final String CURRENT_DIRECTORY =
         System.getProperty("user.dir");
+    private static final String WINDOWS_OS_PREFIX =
+        "Windows";
+    private static final String ARCHIVE_DAYS_PROPERTY =
+        "rubberduck.archive.days";
+    private static final long MILLISECONDS_PER_DAY = 24 * 60 * 60 * 1000;
+    private static final String STORAGE_ENGINE_PROPERTY =
+        "rubberduck.storage.engine";
+    private static final String MEMORY_ENGINE =
+        "memory";
+    private static final String HEAP_ENGINE =
+        "heap";
+    private static final String LOG_ENGINE =
+        "log";
+    private static final String MAPPED_ENGINE =
+        "mmap";
 
     private static ArrayList<Long> displayedTasksList = new ArrayList<Long>();
     private static Command previousDisplayCommand;
-    private static DatabaseManager<Task> dbManager;
+    private static TaskStore<Task> dbManager;
+    private static TaskArchive taskArchive;
 
     /**
-     * Starts the local database. If local file not found, new database will be
-     * created.
+     * Starts the local database and its archive of old completed tasks. If
+     * local file not found, new database will be created. A database that has
+     * been started before is closed first.
      *
      * @return true if the database has been started successfully
      */
     protected static boolean startDatabase() {
         try {
+            closeDatabase();
             new File(DATABASE_DIRECTORY).mkdirs();
-            dbManager = new DatabaseManager<Task>(CURRENT_DIRECTORY
-                                                  + File.separator
-                                                  + DATABASE_DIRECTORY
-                                                  + DATABASE_NAME);
+            String filePath = CURRENT_DIRECTORY + File.separator
+                              + DATABASE_DIRECTORY + DATABASE_NAME;
+            dbManager = openTaskStore(filePath);
+            TaskIndexes.addTo(dbManager);
+            TaskStore<Task> archiveDbManager =
+                openTaskStore(TaskArchive.getArchiveFilePath(filePath));
+            TaskIndexes.addTo(archiveDbManager);
+            try {
+                taskArchive = new TaskArchive(dbManager, archiveDbManager,
+                                              getArchiveAge());
+            } catch (IOException e) {
+                archiveDbManager.closeFile();
+                throw e;
+            }
+            taskArchive.start();
             return true;
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, MESSAGE_DATABASE_IOEXCEPTION, e);
@@ -143,6 +179,90 @@ public abstract class Command {
         }
     }
 
+    /**
+     * Close the database and its archive if they have been started, so that
+     * their files and background threads are released before the database
+     * file is opened again.
+     *
+     * @throws IOException occurs when the database cannot be closed
+     */
+    private static void closeDatabase() throws IOException {
+        try {
+            if (taskArchive != null) {
+                taskArchive.close();
+            }
+        } finally {
+            taskArchive = null;
+            if (dbManager != null) {
+                TaskStore<Task> previousDbManager = dbManager;
+                dbManager = null;
+                previousDbManager.closeFile();
+            }
+        }
+    }
+
+    /**
+     * Open a store of tasks with the engine set by the
+     * rubberduck.storage.engine system property: "memory" keeps tasks in
+     * memory only, "heap" keeps them in memory backed by a snapshot and a
+     * log, "log" reads the database file with positional reads and "mmap"
+     * maps it into memory. The default is chosen by getDatabaseReadMode().
+     *
+     * @param filePath the path of the database file
+     * @return the opened store
+     * @throws IOException occurs when the database file cannot be opened
+     */
+    private static TaskStore<Task> openTaskStore(String filePath)
+        throws IOException {
+        String engine = System.getProperty(STORAGE_ENGINE_PROPERTY, "");
+        ReadMode readMode;
+        if (engine.equals(MEMORY_ENGINE)) {
+            return new MemoryTaskStore<Task>(new TaskRecordCodec());
+        } else if (engine.equals(HEAP_ENGINE)) {
+            return new HeapTaskStore<Task>(filePath, new TaskRecordCodec());
+        } else if (engine.equals(LOG_ENGINE)) {
+            readMode = ReadMode.RANDOM_ACCESS;
+        } else if (engine.equals(MAPPED_ENGINE)) {
+            readMode = ReadMode.MEMORY_MAPPED;
+        } else {
+            readMode = getDatabaseReadMode();
+        }
+        return new DatabaseManager<Task>(filePath, new TaskRecordCodec(),
+                                         readMode);
+    }
+
+    /**
+     * Choose how the database file is read. Memory mapping is used unless
+     * running on Windows, where a mapped file cannot be replaced.
+     *
+     * @return the ReadMode to start the database with
+     */
+    private static ReadMode getDatabaseReadMode() {
+        if (System.getProperty("os.name").startsWith(WINDOWS_OS_PREFIX)) {
+            return ReadMode.RANDOM_ACCESS;
+        } else {
+            return ReadMode.MEMORY_MAPPED;
+        }
+    }
+
+    /**
+     * Get the time after which completed tasks are archived, which is set in
+     * days by the rubberduck.archive.days system property.
+     *
+     * @return the time in milliseconds
+     */
+    private static long getArchiveAge() {
+        String days = System.getProperty(ARCHIVE_DAYS_PROPERTY);
+        if (days == null) {
+            return TaskArchive.DEFAULT_MAX_AGE;
+        }
+        try {
+            return Long.parseLong(days) * MILLISECONDS_PER_DAY;
+        } catch (NumberFormatException e) {
+            return TaskArchive.DEFAULT_MAX_AGE;
+        }
+    }
+
     /**
      * Getter method for displayedTaskLists.
      *
@@ -179,15 +299,45 @@ public abstract class Command {
      * Getter method for dbManager. Will call startDatabase() if dbManager has
      * not been initialized yet.
      *
-     * @return DatabaseManager<Task> instance
+     * @return TaskStore<Task> instance
      */
-    protected static DatabaseManager<Task> getDbManager() {
+    protected static TaskStore<Task> getDbManager() {
         if (dbManager == null) {
             Command.startDatabase();
         }
         return dbManager;
     }
 
+    /**
+     * Getter method for taskArchive. Will call startDatabase() if it has not
+     * been initialized yet.
+     *
+     * @return TaskArchive instance of the database
+     */
+    protected static TaskArchive getTaskArchive() {
+        if (taskArchive == null) {
+            Command.startDatabase();
+        }
+        return taskArchive;
+    }
+
+    /**
+     * Get the ID in the database of a displayed task that is about to be
+     * changed. An archived task, including one archived since it was
+     * displayed, is restored to the database first.
+     *
+     * @param displayedId the displayed ID of the task, which must be valid
+     * @return the ID of the task in the database
+     * @throws IOException occurs when dbManager encounters a problem with file
+     */
+    protected static long getDatabaseIdToChange(int displayedId)
+        throws IOException {
+        long databaseId = getTaskArchive().getIdToChange(
+            displayedTasksList.get(displayedId - 1));
+        displayedTasksList.set(displayedId - 1, databaseId);
+        return databaseId;
+    }
+
     //@author A0119504L
     /**
      * Check whether given task ID is being displayed.
@@ -76,7 +76,7 @@ public class ConfirmCommand extends Command {
             return new Response(errorMessage, false);
         }
 
-        long databaseId = getDisplayedTasksList().get(taskId - 1);
+        long databaseId = getDatabaseIdToChange(taskId);
 
         Task task = getDbManager().getInstance(databaseId);
         String description = Formatter.limitDescription(task.getDescription());
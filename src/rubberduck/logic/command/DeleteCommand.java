@@ -57,7 +57,7 @@ public class DeleteCommand extends Command {
             return new Response(errorMessage, false);
         }
 
-        long databaseId = getDisplayedTasksList().get(taskId - 1);
+        long databaseId = getDatabaseIdToChange(taskId);
         Task oldTask = getDbManager().getInstance(databaseId);
         String oldDesc = Formatter.limitDescription(oldTask.getDescription());
         getDbManager().modify(databaseId, null,
@@ -27,6 +27,7 @@ public class ExitCommand extends Command {
     @Override
     public Response execute() throws IOException {
         LOGGER.info(MESSAGE_CLOSING_DB);
+        getTaskArchive().close();
         getDbManager().closeFile();
         LOGGER.info(MESSAGE_EXIT);
         System.exit(0);
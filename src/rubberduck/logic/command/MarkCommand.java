@@ -78,7 +78,7 @@ public class MarkCommand extends Command {
      */
     private boolean isCompletedTask(int displayedId) throws IOException {
         long databaseId = getDisplayedTasksList().get(displayedId - 1);
-        Task oldTask = getDbManager().getInstance(databaseId);
+        Task oldTask = getTaskArchive().getTask(databaseId);
         return oldTask.getIsDone();
     }
 
@@ -90,7 +90,7 @@ public class MarkCommand extends Command {
      * @throws IOException occurs when dbManager encounters a problem with file
      */
     private Response markTaskCompleted(int displayedId) throws IOException {
-        long databaseId = getDisplayedTasksList().get(displayedId - 1);
+        long databaseId = getDatabaseIdToChange(displayedId);
         Task oldTask = getDbManager().getInstance(databaseId);
         assert !oldTask.getIsDone() : "Should be incomplete task.";
         oldTask.setIsDone(true);
@@ -117,7 +117,7 @@ public class MarkCommand extends Command {
      * @throws IOException occurs when dbManager encounters a problem with file
      */
     private Response markTaskIncomplete(int displayedId) throws IOException {
-        long databaseId = getDisplayedTasksList().get(displayedId - 1);
+        long databaseId = getDatabaseIdToChange(displayedId);
         Task oldTask = getDbManager().getInstance(databaseId);
         assert oldTask.getIsDone();
         oldTask.setIsDone(false);
@@ -1,12 +1,19 @@
 package rubberduck.logic.command;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.StringTokenizer;
 
 import rubberduck.common.datatransfer.Response;
+import rubberduck.common.datatransfer.Task;
 import rubberduck.common.formatter.ColorFormatter;
 import rubberduck.common.formatter.ColorFormatter.Color;
 import rubberduck.common.formatter.Formatter;
+import rubberduck.storage.Criterion;
+import rubberduck.storage.Query;
+import rubberduck.storage.TaskIndexes;
+import rubberduck.storage.TaskStore;
 
 //@author A0111794E
 /**
@@ -47,7 +54,8 @@ public class SearchCommand extends Command {
 
     /**
      * Search for task based on description and return a Response containing
-     * formatted string of tasks back to parent.
+     * formatted string of tasks back to parent. Both the database and its
+     * archive are searched.
      *
      * @return Response object containing formatted tasks
      * @throws IOException that might be thrown from dbManager
@@ -57,34 +65,9 @@ public class SearchCommand extends Command {
         setPreviousDisplayCommand(this);
         getDisplayedTasksList().clear();
 
-        for (Long databaseId : getDbManager().getValidIdList()) {
-            boolean isFound = false;
-            String taskDescription =
-                getDbManager().getInstance(databaseId).getDescription();
-            taskDescription = taskDescription.toLowerCase();
-            StringTokenizer taskDescriptions =
-                new StringTokenizer(taskDescription);
-            StringTokenizer keywords =
-                new StringTokenizer(keyword.toLowerCase());
-
-            if (keyword.length() > EMPTY_KEYWORDS_LENGTH &&
-                keyword.charAt(FIRST_CHAR) == '\"' &&
-                keyword.charAt(keyword.length() - CHAR_LENGTH_OFFSET) == '\"') {
-
-                String modifiedKeyword = keyword.substring(SECOND_CHAR,
-                                                           keyword.length() -
-                                                           CHAR_LENGTH_OFFSET);
-                isFound = searchExactKeyword(modifiedKeyword, taskDescriptions);
-
-            } else if (keywords.countTokens() == ONE_WORD) {
-                isFound = searchSingleKeyword(keyword, taskDescription);
-            } else {
-                isFound = searchMultipleKeyword(keywords, taskDescriptions);
-            }
-            if (isFound) {
-                getDisplayedTasksList().add(databaseId);
-            }
-        }
+        getDisplayedTasksList().addAll(search(getDbManager()));
+        getDisplayedTasksList().addAll(getTaskArchive().toArchivedIds(
+            search(getTaskArchive().getArchiveDbManager())));
 
         Color headerColor = getDisplayedTasksList().isEmpty() ? Color.RED
                                                               : Color.GREEN;
@@ -95,50 +78,85 @@ public class SearchCommand extends Command {
                           keyword), headerColor));
 
         String taskData = Formatter.formatTaskList(getDisplayedTasksList(),
-                                                   getDbManager());
+                                                   getTaskArchive());
         return new Response("", viewCount.toString(), taskData);
     }
 
+    /**
+     * Search a database for tasks whose description matches the keyword.
+     *
+     * @param db the database of tasks
+     * @return IDs of the tasks found in the database
+     * @throws IOException that might be thrown from dbManager
+     */
+    private List<Long> search(TaskStore<Task> db) throws IOException {
+        StringTokenizer keywords = new StringTokenizer(keyword.toLowerCase());
+
+        if (keyword.length() > EMPTY_KEYWORDS_LENGTH &&
+            keyword.charAt(FIRST_CHAR) == '\"' &&
+            keyword.charAt(keyword.length() - CHAR_LENGTH_OFFSET) == '\"') {
+
+            String modifiedKeyword = keyword.substring(SECOND_CHAR,
+                                                       keyword.length() -
+                                                       CHAR_LENGTH_OFFSET);
+            return searchExactKeyword(db, modifiedKeyword);
+
+        } else if (keywords.countTokens() == ONE_WORD) {
+            return searchSingleKeyword(db, keyword);
+        } else {
+            return searchMultipleKeyword(db, keywords);
+        }
+    }
+
     /**
      * Complementing searchMultipleKeyword.
      * <p/>
      * When search are being called, if keyword used in search contains only a
      * single word, this method will be called.
      * <p/>
-     * This will actually check if the description itself contains the word and
-     * return the value immediately
+     * This will actually check if the description itself contains the word,
+     * which is part of one of the words of the description. The words
+     * containing it are found in the description index, and descriptions of
+     * those tasks are only read if the keyword has spaces around it.
      * <p/>
      * To eliminate the getting unwanted result due to searching with
      * meaningless keywords
      *
+     * @param db the database of tasks
      * @param keyword
-     * @param taskDescription
-     * @return if the description of the task contains the keyword.
+     * @return IDs of the tasks whose description contains the keyword
+     * @throws IOException that might be thrown from dbManager
      */
-    private boolean searchSingleKeyword(String keyword,
-                                        String taskDescription) {
-        return taskDescription.toLowerCase().contains(keyword.toLowerCase());
+    private List<Long> searchSingleKeyword(TaskStore<Task> db,
+                                           final String keyword)
+        throws IOException {
+        Query<Task> query = new Query<Task>()
+            .where(TaskIndexes.withWordContaining(keyword.trim()));
+        if (!keyword.trim().equals(keyword)) {
+            query.where(new Criterion<Task>() {
+                @Override
+                public boolean matches(Task task) {
+                    return task.getDescription().toLowerCase()
+                        .contains(keyword.toLowerCase());
+                }
+            });
+        }
+        return db.query(query);
     }
 
     /**
      * This method allows user to search for exact keyword, thus if " " are
      * used, only description that consist of exact same words will be shown.
      *
+     * @param db the database of tasks
      * @param keyword
-     * @param taskDescriptions tokenized taskDescription
-     * @return if the description of the task contains the keyword.
+     * @return IDs of the tasks whose description has the keyword as a word
+     * @throws IOException that might be thrown from dbManager
      */
-    private boolean searchExactKeyword(String keyword,
-                                       StringTokenizer taskDescriptions) {
-
-        while (taskDescriptions.hasMoreElements()) {
-
-            String nextToken = taskDescriptions.nextToken();
-            if (nextToken.equalsIgnoreCase(keyword)) {
-                return true;
-            }
-        }
-        return false;
+    private List<Long> searchExactKeyword(TaskStore<Task> db,
+                                          String keyword) throws IOException {
+        return db.query(new Query<Task>()
+                            .where(TaskIndexes.withWord(keyword)));
     }
 
     /**
@@ -148,34 +166,24 @@ public class SearchCommand extends Command {
      * than a word, this method will be called.
      * <p/>
      * This will actually check if the description itself contains exactly all
-     * the keyword as entered by the user
+     * the keyword as entered by the user, one after another
      * <p/>
      * To eliminate the getting unwanted result due to searching with
      * meaningless keywords
      *
-     * @param keyword
-     * @param taskDescription
-     * @return if the description of the task contains the keyword.
+     * @param db the database of tasks
+     * @param keywords tokenized keyword
+     * @return IDs of the tasks whose description contains the keywords
+     * @throws IOException that might be thrown from dbManager
      */
-    private boolean searchMultipleKeyword(StringTokenizer keywords,
-                                          StringTokenizer taskDescriptions) {
-        String firstKeyword = keywords.nextToken();
-        while (taskDescriptions.hasMoreElements()) {
-            if (taskDescriptions.nextToken().equals(firstKeyword)) {
-                if (keywords.countTokens() <= taskDescriptions.countTokens()) {
-                    // check remaining keyword
-                    while (keywords.hasMoreElements()) {
-                        if (!keywords.nextToken()
-                            .equals(taskDescriptions.nextToken())) {
-                            return false;
-                        }
-                    }
-                    return true;
-                } else {
-                    return false;
-                }
-            }
+    private List<Long> searchMultipleKeyword(TaskStore<Task> db,
+                                             StringTokenizer keywords)
+        throws IOException {
+        List<String> words = new ArrayList<String>();
+        while (keywords.hasMoreTokens()) {
+            words.add(keywords.nextToken());
         }
-        return false;
+        return db.query(new Query<Task>()
+                            .where(TaskIndexes.withPhrase(words)));
     }
 }
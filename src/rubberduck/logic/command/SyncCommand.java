@@ -105,38 +105,55 @@ public class SyncCommand extends Command {
     }
 
     /**
-     * Synchronize with Google based on the SyncType the user specifies.
+     * Synchronize with Google with archiving suspended, so that tasks are not
+     * moved between the databases while synchronization changes them.
+     * Archived tasks are only restored if synchronization changes them.
      *
      * @return Response object after synchronization
      * @throws IOException occurs then GooManager encounters an I/O error
      */
     private Response startSync() throws IOException {
+        getTaskArchive().hold();
+        try {
+            return syncAllTasks();
+        } finally {
+            getTaskArchive().release();
+        }
+    }
+
+    /**
+     * Synchronize with Google based on the SyncType the user specifies.
+     *
+     * @return Response object after synchronization
+     * @throws IOException occurs then GooManager encounters an I/O error
+     */
+    private Response syncAllTasks() throws IOException {
         assert type != null : "Type must be initialized before syncing.";
         try {
             GooManager.initialize();
             switch (type) {
                 case PUSH:
-                    GooManager.pushAll(getDbManager());
+                    GooManager.pushAll(getTaskArchive());
                     return new Response(ColorFormatter.format(
                         MESSAGE_PUSH_SUCCESS, Color.GREEN), true);
 
                 case PULL:
-                    GooManager.pullAll(getDbManager());
+                    GooManager.pullAll(getTaskArchive());
                     return new Response(ColorFormatter.format(
                         MESSAGE_PULL_SUCCESS, Color.GREEN), true);
 
                 case FORCE_PUSH:
-                    GooManager.forcePushAll(getDbManager());
+                    GooManager.forcePushAll(getTaskArchive());
                     return new Response(ColorFormatter.format(
                         MESSAGE_FORCEPUSH_SUCCESS, Color.GREEN), true);
 
                 case FORCE_PULL:
-                    GooManager.forcePullAll(getDbManager());
+                    GooManager.forcePullAll(getTaskArchive());
                     return new Response(ColorFormatter.format(
                         MESSAGE_FORCEPULL_SUCCESS, Color.GREEN), true);
 
                 case TWO_WAY:
-                    GooManager.twoWaySync(getDbManager());
+                    GooManager.twoWaySync(getTaskArchive());
                     return new Response(ColorFormatter.format(
                         MESSAGE_TWOWAY_SUCCESS, Color.GREEN), true);
 
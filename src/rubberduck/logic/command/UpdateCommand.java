@@ -95,7 +95,7 @@ public class UpdateCommand extends Command {
             return new Response(errorMessage, false);
         }
 
-        long databaseId = getDisplayedTasksList().get(taskId - 1);
+        long databaseId = getDatabaseIdToChange(taskId);
 
         Task task = getDbManager().getInstance(databaseId);
         String oldDesc = Formatter.limitDescription(task.getDescription());
@@ -13,6 +13,10 @@ import rubberduck.common.datatransfer.Task;
 import rubberduck.common.formatter.ColorFormatter;
 import rubberduck.common.formatter.ColorFormatter.Color;
 import rubberduck.common.formatter.Formatter;
+import rubberduck.storage.Criterion;
+import rubberduck.storage.Query;
+import rubberduck.storage.TaskIndexes;
+import rubberduck.storage.TaskIndexes.Kind;
 
 //@author A0111794E
 /**
@@ -161,13 +165,13 @@ public class ViewCommand extends Command {
 
         getDisplayedTasksList().clear();
 
-        for (int i = 0; i < getDbManager().getValidIdList().size(); i++) {
-            Long databaseId = getDbManager().getValidIdList().get(i);
-            Task task = getDbManager().getInstance(databaseId);
-            if (completed == task.getIsDone() && viewSelection.
-                contains(getTaskType(task))) {
-                getDisplayedTasksList().add(databaseId);
-            }
+        Query<Task> query = new Query<Task>()
+            .where(TaskIndexes.isDone(completed))
+            .where(TaskIndexes.ofKinds(getSelectedKinds()));
+        getDisplayedTasksList().addAll(getDbManager().query(query));
+        if (completed) {
+            getDisplayedTasksList().addAll(getTaskArchive().toArchivedIds(
+                getTaskArchive().getArchiveDbManager().query(query)));
         }
 
         Color headerColor = getDisplayedTasksList().isEmpty() ? Color.GREEN
@@ -192,7 +196,7 @@ public class ViewCommand extends Command {
 
         setPreviousDisplayCommand(this);
         String taskData = Formatter.formatTaskList(getDisplayedTasksList(),
-                                                   getDbManager());
+                                                   getTaskArchive());
         return new Response("", viewCount.toString() + " "
                                 + viewSelectionToString(), taskData);
     }
@@ -208,13 +212,18 @@ public class ViewCommand extends Command {
 
         getDisplayedTasksList().clear();
 
-        for (int i = 0; i < getDbManager().getValidIdList().size(); i++) {
-            Long databaseId = getDbManager().getValidIdList().get(i);
-            Task task = getDbManager().getInstance(databaseId);
-            if (taskOverdueValidity(task)) {
-                getDisplayedTasksList().add(databaseId);
-            }
-        }
+        ArrayList<Kind> kinds = getSelectedKinds();
+        kinds.remove(Kind.FLOATING);
+        Query<Task> query = new Query<Task>()
+            .where(TaskIndexes.isDone(false))
+            .where(TaskIndexes.ofKinds(kinds))
+            .where(new Criterion<Task>() {
+                @Override
+                public boolean matches(Task task) {
+                    return taskOverdueValidity(task);
+                }
+            });
+        getDisplayedTasksList().addAll(getDbManager().query(query));
         Color headerColor = getDisplayedTasksList().isEmpty() ? Color.GREEN
                                                               : Color.YELLOW;
         StringBuilder viewCount = new StringBuilder();
@@ -224,7 +233,7 @@ public class ViewCommand extends Command {
 
         setPreviousDisplayCommand(this);
         String taskData = Formatter.formatTaskList(getDisplayedTasksList(),
-                                                   getDbManager());
+                                                   getTaskArchive());
         return new Response("" + taskFilterAlert(), viewCount.toString() + " "
                                                     + viewSelectionToString(),
                             taskData);
@@ -256,14 +265,16 @@ public class ViewCommand extends Command {
         assert viewRange != null;
 
         getDisplayedTasksList().clear();
-        for (Long databaseId : getDbManager().getValidIdList()) {
-            Task task = getDbManager().getInstance(databaseId);
-            if (completed == task.getIsDone() && task.hasDate() &&
-                viewSelection.contains(getTaskType(task))) {
-                if (task.isWithinPeriod(viewRange)) {
-                    getDisplayedTasksList().add(databaseId);
-                }
-            }
+        ArrayList<Kind> kinds = getSelectedKinds();
+        kinds.remove(Kind.FLOATING);
+        Query<Task> query = new Query<Task>()
+            .where(TaskIndexes.isDone(completed))
+            .where(TaskIndexes.ofKinds(kinds))
+            .where(TaskIndexes.withinPeriod(viewRange));
+        getDisplayedTasksList().addAll(getDbManager().query(query));
+        if (completed) {
+            getDisplayedTasksList().addAll(getTaskArchive().toArchivedIds(
+                getTaskArchive().getArchiveDbManager().query(query)));
         }
 
         String range = "";
@@ -298,7 +309,7 @@ public class ViewCommand extends Command {
 
         setPreviousDisplayCommand(this);
         String taskData = Formatter.formatTaskList(getDisplayedTasksList(),
-                                                   getDbManager());
+                                                   getTaskArchive());
         String header = viewCount.toString() + " " + viewSelectionToString();
         return new Response("" + taskFilterAlert(), header, taskData);
     }
@@ -328,6 +339,36 @@ public class ViewCommand extends Command {
         }
     }
 
+    //@author A0119416H
+    /**
+     * Get the kinds of tasks in the view selection, to look them up in the
+     * task indexes.
+     *
+     * @return a new list of the selected kinds
+     */
+    private ArrayList<Kind> getSelectedKinds() {
+        ArrayList<Kind> kinds = new ArrayList<Kind>();
+        for (ViewFilter filter : viewSelection) {
+            switch (filter) {
+                case FLOATING:
+                    kinds.add(Kind.FLOATING);
+                    break;
+
+                case DEADLINE:
+                    kinds.add(Kind.DEADLINE);
+                    break;
+
+                case SCHEDULE:
+                    kinds.add(Kind.SCHEDULE);
+                    break;
+
+                default:
+                    throw new UnsupportedOperationException();
+            }
+        }
+        return kinds;
+    }
+
     //@author A0111794E
     /**
      * Retrieve the viewType based on the task provided.
@@ -0,0 +1,110 @@
+package rubberduck.storage;
+
+//@author A0119416H
+/**
+ * A ring buffer of the newest actions of a journal, which are most likely to
+ * be undone or redone. Each action is kept as its description and an array of
+ * ID pairs, previous ID first, with 0 for a missing ID.
+ * <p/>
+ * Actions are added at the end, and the oldest ones are removed from the
+ * start when the buffer is full. It is not synchronized, as the journal is
+ * only used under the lock of its database.
+ */
+class ActionRing {
+
+    private long[][] idPairs;
+    private String[] descriptions;
+    private int start = 0;
+    private int size = 0;
+
+    /**
+     * Create an empty buffer.
+     *
+     * @param capacity the number of actions the buffer holds
+     */
+    public ActionRing(int capacity) {
+        assert capacity > 0;
+        idPairs = new long[capacity][];
+        descriptions = new String[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == idPairs.length;
+    }
+
+    /**
+     * Add an action after the newest one. The buffer must not be full.
+     *
+     * @param ids         the ID pairs of the action
+     * @param description the description of the action
+     */
+    public void addLast(long[] ids, String description) {
+        assert !isFull();
+        int index = getIndex(size);
+        idPairs[index] = ids;
+        descriptions[index] = description;
+        size++;
+    }
+
+    /**
+     * Remove the oldest action. Its ID pairs and description should be read
+     * before.
+     */
+    public void removeFirst() {
+        assert size > 0;
+        idPairs[start] = null;
+        descriptions[start] = null;
+        start = (start + 1) % idPairs.length;
+        size--;
+    }
+
+    /**
+     * Remove the newest actions, keeping the given number of actions.
+     *
+     * @param newSize the number of actions kept
+     */
+    public void truncate(int newSize) {
+        assert newSize >= 0 && newSize <= size;
+        while (size > newSize) {
+            size--;
+            int index = getIndex(size);
+            idPairs[index] = null;
+            descriptions[index] = null;
+        }
+    }
+
+    public void clear() {
+        truncate(0);
+        start = 0;
+    }
+
+    /**
+     * Get the ID pairs of an action.
+     *
+     * @param position the position of the action, with 0 for the oldest
+     * @return the ID pairs
+     */
+    public long[] getIdPairs(int position) {
+        assert position >= 0 && position < size;
+        return idPairs[getIndex(position)];
+    }
+
+    /**
+     * Get the description of an action.
+     *
+     * @param position the position of the action, with 0 for the oldest
+     * @return the description
+     */
+    public String getDescription(int position) {
+        assert position >= 0 && position < size;
+        return descriptions[getIndex(position)];
+    }
+
+    private int getIndex(int position) {
+        return (start + position) % idPairs.length;
+    }
+}
@@ -0,0 +1,144 @@
+package rubberduck.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+//@author A0119416H
+/**
+ * A LineReader with a large read-ahead buffer over a file channel. Reading the
+ * file forward costs one positional read per buffer instead of one system call
+ * per byte. It never moves the position of the channel, so it can be used
+ * alongside other readers and writers of the same channel.
+ */
+class BufferedLineReader implements LineReader {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_LINE_CAPACITY = 128;
+
+    private FileChannel fileChannel;
+    private ByteBuffer buffer;
+    private long bufferOffset = 0;
+    private long position = 0;
+
+    /**
+     * Create a reader with the default read-ahead buffer size.
+     *
+     * @param fileChannel an opened channel of the file
+     */
+    public BufferedLineReader(FileChannel fileChannel) {
+        this(fileChannel, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create a reader with the given read-ahead buffer size.
+     *
+     * @param fileChannel an opened channel of the file
+     * @param bufferSize  number of bytes read ahead at once
+     */
+    public BufferedLineReader(FileChannel fileChannel, int bufferSize) {
+        this.fileChannel = fileChannel;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.buffer.limit(0);
+    }
+
+    @Override
+    public void seek(long offset) {
+        position = offset;
+    }
+
+    @Override
+    public long getFilePointer() {
+        return position;
+    }
+
+    /**
+     * Drop the read-ahead data, so that bytes written since are read again
+     * from the file.
+     */
+    public void invalidate() {
+        buffer.limit(0);
+    }
+
+    /**
+     * Read the byte at the current position and move forward.
+     *
+     * @return the byte read as an unsigned value, or -1 at the end of the file
+     * @throws IOException
+     */
+    public int read() throws IOException {
+        if (!ensureBuffered()) {
+            return -1;
+        }
+        int b = buffer.get((int) (position - bufferOffset)) & 0xff;
+        position++;
+        return b;
+    }
+
+    /**
+     * Read bytes from the current position into the given array, filling it
+     * unless the end of the file is reached.
+     *
+     * @param bytes the array to be filled
+     * @return the number of bytes read
+     * @throws IOException
+     */
+    public int read(byte[] bytes) throws IOException {
+        int length = 0;
+        while (length < bytes.length && ensureBuffered()) {
+            int bufferPosition = (int) (position - bufferOffset);
+            int count = Math.min(bytes.length - length,
+                                 buffer.limit() - bufferPosition);
+            buffer.position(bufferPosition);
+            buffer.get(bytes, length, count);
+            length += count;
+            position += count;
+        }
+        return length;
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        int b = read();
+        if (b == -1) {
+            return null;
+        }
+        StringBuilder line = new StringBuilder(INITIAL_LINE_CAPACITY);
+        while (b != -1 && b != '\n') {
+            if (b == '\r') {
+                if (ensureBuffered()
+                    && buffer.get((int) (position - bufferOffset)) == '\n') {
+                    position++;
+                }
+                break;
+            }
+            line.append((char) b);
+            b = read();
+        }
+        return line.toString();
+    }
+
+    /**
+     * Make sure the byte at the current position is in the buffer, reading
+     * ahead from the file if needed.
+     *
+     * @return false if the current position is at the end of the file
+     * @throws IOException
+     */
+    private boolean ensureBuffered() throws IOException {
+        if (position >= bufferOffset
+            && position < bufferOffset + buffer.limit()) {
+            return true;
+        }
+        buffer.clear();
+        bufferOffset = position;
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, bufferOffset + buffer.position())
+                == -1) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer.hasRemaining();
+    }
+}
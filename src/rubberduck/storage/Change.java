@@ -0,0 +1,37 @@
+package rubberduck.storage;
+
+import java.io.Serializable;
+
+//@author A0119416H
+/**
+ * A single modification in a batch passed to DatabaseManager.modifyAll(). It
+ * means the same as the arguments of DatabaseManager.modify().
+ *
+ * @param <T> The data type stored in the database.
+ */
+public class Change<T extends Serializable & Comparable<T>> {
+
+    private Long previousId;
+    private T newInstance;
+
+    /**
+     * Create a modification.
+     *
+     * @param previousId  the ID of instance to be removed, or null if no
+     *                    removal is needed.
+     * @param newInstance the new instance to be put into the database, or null
+     *                    if no inserting is needed.
+     */
+    public Change(Long previousId, T newInstance) {
+        this.previousId = previousId;
+        this.newInstance = newInstance;
+    }
+
+    public Long getPreviousId() {
+        return previousId;
+    }
+
+    public T getNewInstance() {
+        return newInstance;
+    }
+}
@@ -0,0 +1,38 @@
+package rubberduck.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+//@author A0119416H
+/**
+ * A RecordReader doing positional reads on a file channel, one system call per
+ * read in most cases.
+ */
+class ChannelRecordReader implements RecordReader {
+
+    private FileChannel fileChannel;
+
+    /**
+     * Create a reader over the given channel.
+     *
+     * @param fileChannel an opened channel of the database file
+     */
+    public ChannelRecordReader(FileChannel fileChannel) {
+        this.fileChannel = fileChannel;
+    }
+
+    @Override
+    public int read(long offset, byte[] bytes, int start, int length)
+        throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, start, length);
+        while (buffer.hasRemaining()) {
+            int count = fileChannel.read(buffer,
+                                         offset + buffer.position() - start);
+            if (count == -1) {
+                break;
+            }
+        }
+        return buffer.position() - start;
+    }
+}
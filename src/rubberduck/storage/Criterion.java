@@ -0,0 +1,88 @@
+package rubberduck.storage;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.List;
+
+//@author A0119416H
+/**
+ * A condition on the instances of a store, which a Query combines with
+ * others. A criterion that can be looked up in an index gives the IDs it may
+ * match, so that only those are decoded. One whose index gives exactly the
+ * IDs it matches needs no decoding at all. Others are checked against the
+ * decoded instances left over by the other criteria.
+ * <p/>
+ * A criterion whose index can also tell cheaply how many IDs it gives and
+ * whether a given ID is among them lets a query start from the most
+ * selective index and check the candidates of the others one by one.
+ *
+ * @param <T> The data type stored in the store.
+ */
+public abstract class Criterion<T extends Serializable & Comparable<T>> {
+
+    /**
+     * Get the IDs of valid instances that may match, from an index of the
+     * store.
+     *
+     * @param store the store being queried
+     * @return a new list of the IDs in increasing order, which includes every
+     *         valid instance that matches, or null if no index can be used
+     * @throws IOException
+     */
+    public List<Long> getCandidateIds(TaskStore<T> store) throws IOException {
+        return null;
+    }
+
+    /**
+     * Check whether getCandidateIds() gives only IDs of instances that match,
+     * so that they need not be checked with matches().
+     *
+     * @return true if the candidates are exact
+     */
+    public boolean isExact() {
+        return false;
+    }
+
+    /**
+     * Estimate how many IDs getCandidateIds() gives without getting them.
+     *
+     * @param store the store being queried
+     * @return the estimate, or Integer.MAX_VALUE if it is not known
+     * @throws IOException
+     */
+    public int estimateCandidateCount(TaskStore<T> store) throws IOException {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Check whether isCandidate() can be used.
+     *
+     * @return true if single IDs can be checked in the index
+     */
+    public boolean canCheckCandidate() {
+        return false;
+    }
+
+    /**
+     * Check whether the ID of a valid instance is among those
+     * getCandidateIds() gives, without getting them all.
+     *
+     * @param store      the store being queried
+     * @param instanceId the ID of the instance
+     * @return true if it is a candidate
+     * @throws IOException
+     * @throws UnsupportedOperationException if canCheckCandidate() is false
+     */
+    public boolean isCandidate(TaskStore<T> store, long instanceId)
+        throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Check whether a decoded instance matches.
+     *
+     * @param instance the instance
+     * @return true if it matches
+     */
+    public abstract boolean matches(T instance);
+}
@@ -1,33 +1,73 @@
 package rubberduck.storage;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import rubberduck.common.formatter.CalendarConverter;
-import com.thoughtworks.xstream.XStream;
+import rubberduck.storage.RecordFormat.RecordHeader;
 
 //@author A0119416H
 /**
- * A synchronized database backend to read/write instances to a file using XML
+ * A thread-safe database backend to read/write instances to a file.
  * <p/>
- * All instances are stored on the disk and fetched on spot.
+ * All instances are stored on the disk and fetched on spot. Each record is
+ * encoded by a pluggable RecordCodec and framed with its state, length and
+ * checksum as described in RecordFormat, so a record is read with a single
+ * positional read. Files written by older versions, which store records as
+ * lines of text, are migrated once when opened.
  * <p/>
  * A written instance cannot be modified, modifying must be done by removing the
- * old instance (by marking as invalid) and insert the new one.
+ * old instance (by marking as invalid) and insert the new one. Records that no
+ * ID refers to any more are reclaimed by compaction, which runs on a
+ * background thread and keeps the IDs of all instances.
+ * <p/>
+ * Records are appended to the database file until it grows beyond the
+ * segment length, when it is sealed as a segment listed in a manifest and a
+ * new database file is started. Each segment is compacted on its own once
+ * enough of its records are garbage, and a segment with no record left that
+ * an ID refers to is deleted outright, so the cost of compaction follows the
+ * amount of garbage rather than the size of the database.
+ * <p/>
+ * Any number of threads may read at once under the read lock, using
+ * positional reads that share no file pointer. Modifications are serialized
+ * under the write lock, and all writes of a modification are passed to the
+ * file before the lock is released, so readers never see a half-written
+ * record. Asynchronous modifications are made in memory at once and written
+ * by a writer thread, which commits whatever has accumulated in one go.
  *
  * @param <T> The data type, which has to be a Java Bean class.
  */
 public class DatabaseManager<T extends Serializable & Comparable<T>> implements
-        Iterable<T> {
+        TaskStore<T>, Iterable<T> {
 
     private class InstanceIdComparator implements Comparator<Long> {
         @Override
@@ -41,261 +81,2261 @@ public class DatabaseManager<T extends Serializable & Comparable<T>> implements
         }
     }
 
-    public Comparator<Long> getInstanceIdComparator() {
-        return new InstanceIdComparator();
+    public Comparator<Long> getInstanceIdComparator() {
+        return new InstanceIdComparator();
+    }
+
+    /**
+     * Reads the payloads of records through a large read-ahead buffer, so
+     * records read in the order of the file cost one read per buffer. Only
+     * records longer than the buffer are read on their own. It must only be
+     * used under the lock, as compaction replaces the file.
+     */
+    private class PayloadScanner {
+        private byte[] buffer = new byte[SCAN_BUFFER_LENGTH];
+        private long bufferOffset = 0;
+        private int bufferLength = 0;
+
+        /**
+         * Check whether the whole record at the given offset is read ahead.
+         *
+         * @param offset the start of the record
+         * @return true if the record is in the buffer
+         */
+        public boolean isBuffered(long offset) {
+            if (offset < bufferOffset
+                || offset + RecordFormat.RECORD_HEADER_LENGTH
+                   > bufferOffset + bufferLength) {
+                return false;
+            }
+            RecordHeader header = parseHeader(offset);
+            return header != null && offset + header.getRecordLength()
+                                     <= bufferOffset + bufferLength;
+        }
+
+        /**
+         * Read the payload of the record at the given offset and check it
+         * against its checksum. The buffer is filled from the offset if the
+         * record is not read ahead.
+         *
+         * @param offset the start of the record
+         * @return the payload of the record
+         * @throws IOException if the record is corrupted
+         */
+        public byte[] readPayload(long offset) throws IOException {
+            if (!isBuffered(offset)) {
+                bufferOffset = offset;
+                bufferLength = readBytes(offset, buffer, 0, buffer.length);
+                if (!isBuffered(offset)) {
+                    return DatabaseManager.this.readPayload(offset);
+                }
+            }
+            RecordHeader header = parseHeader(offset);
+            int start = (int) (offset - bufferOffset)
+                        + RecordFormat.RECORD_HEADER_LENGTH;
+            byte[] payload = Arrays.copyOfRange(buffer, start,
+                                                start + header.getLength());
+            if (!header.isChecksumValid(payload)) {
+                throw new IOException(String.format(MESSAGE_CORRUPTED_RECORD,
+                                                    offset));
+            }
+            return payload;
+        }
+
+        private RecordHeader parseHeader(long offset) {
+            int start = (int) (offset - bufferOffset);
+            return RecordFormat.parseRecordHeader(Arrays.copyOfRange(
+                buffer, start, start + RecordFormat.RECORD_HEADER_LENGTH));
+        }
+    }
+
+    /**
+     * Iterates over valid instances in batches. Each batch is read under the
+     * read lock from a single buffer of records following the last ID
+     * visited, so the lock is not held between batches. Compaction keeps IDs,
+     * so a batch read after a compaction carries on from the same ID.
+     */
+    private class InstanceIterator implements ScanIterator<T> {
+        private RecordFilter filter;
+        private long lastScannedId = 0;
+        private boolean isFinished = false;
+        private ArrayList<Long> batchIds = new ArrayList<Long>();
+        private ArrayList<T> batchInstances = new ArrayList<T>();
+        private int position = 0;
+        private Long id = null;
+
+        public InstanceIterator(RecordFilter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (position == batchIds.size() && !isFinished) {
+                try {
+                    readBatch();
+                } catch (IOException e) {
+                    throw new UnsupportedOperationException("IOException: "
+                            + e.getMessage());
+                }
+            }
+            return position < batchIds.size();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            id = batchIds.get(position);
+            return batchInstances.get(position++);
+        }
+
+        @Override
+        public long getId() {
+            if (id == null) {
+                throw new IllegalStateException("No instance returned yet.");
+            }
+            return id;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Cannot remove instance.");
+        }
+
+        private void readBatch() throws IOException {
+            batchIds.clear();
+            batchInstances.clear();
+            position = 0;
+            lock.readLock().lock();
+            try {
+                PayloadScanner scanner = new PayloadScanner();
+                boolean isBatchStarted = false;
+                while (lastScannedId < instances.getMaxId()) {
+                    long nextId = lastScannedId + 1;
+                    if (instances.getState(nextId)
+                        == RecordFormat.STATE_VALID) {
+                        long offset = instances.getOffset(nextId);
+                        if (isBatchStarted && !scanner.isBuffered(offset)) {
+                            return;
+                        }
+                        byte[] payload = scanner.readPayload(offset);
+                        isBatchStarted = true;
+                        if (filter == null || filter.accept(payload)) {
+                            batchIds.add(nextId);
+                            batchInstances.add(codec.decode(payload));
+                        }
+                    }
+                    lastScannedId = nextId;
+                }
+                isFinished = true;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns an iterator over valid instances in the database. Note that
+     * IOException happened while reading instances will be thrown as
+     * UnsupportedOperationException.
+     *
+     * @return an Iterator over valid instances in the database.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new InstanceIterator(null);
+    }
+
+    /**
+     * Scan valid instances in the order of their IDs, which is mostly the
+     * order of their records in the file. Records are read sequentially
+     * through a large buffer, and the filter is applied to the raw payload of
+     * each record before it is decoded. As with iterator(), IOException
+     * happened while reading instances will be thrown as
+     * UnsupportedOperationException.
+     * <p/>
+     * The read lock is only held while a buffer of records is read, so the
+     * database may be modified during a scan. Instances added or made valid
+     * then are only visited if their IDs have not been passed yet.
+     *
+     * @param filter the filter of records to be decoded, or null to decode all
+     * @return an iterator over valid instances accepted by the filter
+     */
+    public ScanIterator<T> scan(RecordFilter filter) {
+        return new InstanceIterator(filter);
+    }
+
+    /**
+     * How records are read from the file. RANDOM_ACCESS does positional reads
+     * on the file channel, one system call per record. MEMORY_MAPPED maps the
+     * file and copies records straight from memory. A mapped file cannot
+     * be replaced on Windows, so MEMORY_MAPPED should not be used there.
+     */
+    public enum ReadMode {
+        RANDOM_ACCESS, MEMORY_MAPPED
+    }
+
+    /**
+     * When written data is forced to the disk. NONE never forces, leaving it
+     * to the OS. OS_BUFFERED forces only when the file is closed or replaced.
+     * FSYNC forces every modification, and a batch made by modifyAll() is
+     * forced once.
+     */
+    public enum Durability {
+        NONE, OS_BUFFERED, FSYNC
+    }
+
+    /**
+     * How records of a new file are stored. DEFLATE compresses records with a
+     * dictionary of the element names of Task records in XML, leaving short
+     * records raw. The mode is recorded in the header of the file, so an
+     * existing file is always read and written in the mode it was created
+     * with.
+     */
+    public enum Compression {
+        NONE, DEFLATE
+    }
+
+    /**
+     * Compacts one segment of the database in the background, either a sealed
+     * segment or the database file itself. Records are copied from a snapshot
+     * through a separate reader, so the database can be read and modified
+     * meanwhile. States changed after the snapshot are applied under the lock
+     * of the database, and then the copy replaces the segment atomically.
+     * Once done, compaction moves on to the next segment with enough garbage.
+     */
+    private abstract class Compaction implements Runnable {
+
+        /**
+         * The offset and state of each ID when the snapshot was taken, with
+         * STATE_NONE for IDs outside the compacted segment. As offsets in a
+         * segment mostly increase with IDs, walking the IDs in order reads the
+         * segment in order.
+         */
+        protected long[] snapshotOffsets;
+        protected byte[] snapshotStates;
+
+        protected long[] copiedOffsets;
+        protected long copiedRecordCount = 0;
+        protected File tempFile = null;
+
+        /**
+         * Take a snapshot of the instances in a segment. Must be called with
+         * the lock of the database held.
+         *
+         * @param number the number of the compacted segment
+         * @throws IOException
+         */
+        protected Compaction(int number) throws IOException {
+            writer.flush();
+            snapshotOffsets = instances.copyOffsets();
+            snapshotStates = instances.copyStates();
+            for (int id = 1; id < snapshotStates.length; id++) {
+                if (Segment.getNumber(snapshotOffsets[id]) != number) {
+                    snapshotStates[id] = InstanceTable.STATE_NONE;
+                }
+            }
+            copiedOffsets = new long[snapshotOffsets.length];
+        }
+
+        @Override
+        public void run() {
+            boolean isReplaced = false;
+            try {
+                copyRecords();
+                lock.writeLock().lock();
+                try {
+                    if (!isCompactionCancelled) {
+                        replace();
+                        isReplaced = true;
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, MESSAGE_COMPACTION_FAILED, e);
+            } finally {
+                if (tempFile != null) {
+                    tempFile.delete();
+                }
+                lock.writeLock().lock();
+                try {
+                    compactionThread = null;
+                    compactionFinished.signalAll();
+                    if (isReplaced) {
+                        startCompactionIfNeeded();
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, MESSAGE_COMPACTION_FAILED, e);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+
+        /**
+         * Get the file of the compacted segment.
+         *
+         * @return the file
+         */
+        protected abstract File getSourceFile();
+
+        /**
+         * Bring the copy up to date and let it replace the compacted segment.
+         * Must be called with the lock of the database held.
+         *
+         * @throws IOException
+         */
+        protected abstract void replace() throws IOException;
+
+        /**
+         * Copy the records in the snapshot to a temporary file, without
+         * holding the lock of the database.
+         *
+         * @throws IOException
+         */
+        private void copyRecords() throws IOException {
+            File databaseFile = new File(filePath).getAbsoluteFile();
+            tempFile = File.createTempFile("DBMNGR", ".tmp",
+                                           databaseFile.getParentFile());
+            tempFile.deleteOnExit();
+            RandomAccessFile sourceFile =
+                new RandomAccessFile(getSourceFile(), "r");
+            OutputStream output =
+                new BufferedOutputStream(new FileOutputStream(tempFile));
+            try {
+                BufferedLineReader reader =
+                    new BufferedLineReader(sourceFile.getChannel());
+                byte[] headerBytes = new byte[RecordFormat.RECORD_HEADER_LENGTH];
+                output.write(RecordFormat.createFileHeader(fileFlags));
+                long newOffset = RecordFormat.FILE_HEADER_LENGTH;
+                for (int id = 1; id < snapshotStates.length; id++) {
+                    if (isCompactionCancelled) {
+                        return;
+                    }
+                    if (snapshotStates[id] == InstanceTable.STATE_NONE) {
+                        continue;
+                    }
+                    reader.seek(Segment.getLocalOffset(snapshotOffsets[id]));
+                    RecordHeader header = null;
+                    if (reader.read(headerBytes) == headerBytes.length) {
+                        header = RecordFormat.parseRecordHeader(headerBytes);
+                    }
+                    byte[] payload = null;
+                    if (header != null) {
+                        payload = new byte[header.getLength()];
+                    }
+                    if (header == null || reader.read(payload) != payload.length
+                        || !header.isChecksumValid(payload)) {
+                        throw new IOException(String.format(
+                            MESSAGE_CORRUPTED_RECORD, snapshotOffsets[id]));
+                    }
+                    headerBytes[0] = snapshotStates[id];
+                    output.write(headerBytes);
+                    output.write(payload);
+                    copiedOffsets[id] = newOffset;
+                    copiedRecordCount++;
+                    newOffset += header.getRecordLength();
+                }
+            } finally {
+                output.close();
+                sourceFile.close();
+            }
+        }
+
+        /**
+         * Point the copied IDs to their records in the copy. States changed
+         * since the snapshot are written to the copy as well, and copied
+         * records no ID refers to any more are marked as invalid.
+         *
+         * @param newOffsets the offsets of all IDs, indexed by ID
+         * @param newChannel the channel of the copy
+         * @param newNumber  the number of the segment the copy becomes
+         * @throws IOException
+         */
+        protected void translateOffsets(long[] newOffsets,
+                                        FileChannel newChannel, int newNumber)
+            throws IOException {
+            for (int id = 1; id < newOffsets.length; id++) {
+                if (id >= snapshotStates.length
+                    || snapshotStates[id] == InstanceTable.STATE_NONE) {
+                    continue;
+                }
+                byte state = instances.getState(id);
+                if (state == InstanceTable.STATE_NONE) {
+                    writeStateTo(newChannel, copiedOffsets[id],
+                                 RecordFormat.STATE_INVALID);
+                } else {
+                    newOffsets[id] = Segment.toOffset(newNumber,
+                                                      copiedOffsets[id]);
+                    if (state != snapshotStates[id]) {
+                        writeStateTo(newChannel, copiedOffsets[id], state);
+                    }
+                }
+            }
+        }
+
+        private void writeStateTo(FileChannel channel, long offset, byte state)
+            throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(new byte[] {state});
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset);
+            }
+        }
+    }
+
+    /**
+     * Compacts the database file, which takes all appends. Records appended
+     * after the snapshot are copied after the compacted records, and then the
+     * copy replaces the database file.
+     */
+    private class ActiveCompaction extends Compaction {
+        private long snapshotEofOffset;
+        private long snapshotRecordCount;
+
+        public ActiveCompaction() throws IOException {
+            super(Segment.ACTIVE_NUMBER);
+            snapshotEofOffset = writer.getEndOffset();
+            snapshotRecordCount = activeRecordCount;
+        }
+
+        @Override
+        protected File getSourceFile() {
+            return new File(filePath).getAbsoluteFile();
+        }
+
+        @Override
+        protected void replace() throws IOException {
+            writer.flush();
+            long eofOffset = writer.getEndOffset();
+            long[] newOffsets = instances.copyOffsets();
+            RandomAccessFile newFile = new RandomAccessFile(tempFile, "rw");
+            try {
+                FileChannel newChannel = newFile.getChannel();
+                long tailOffset = newChannel.size();
+                newChannel.position(tailOffset);
+                long position = snapshotEofOffset;
+                while (position < eofOffset) {
+                    position += randomAccessFile.getChannel().transferTo(
+                        position, eofOffset - position, newChannel);
+                }
+
+                for (int id = 1; id < newOffsets.length; id++) {
+                    if (instances.getState(id) != InstanceTable.STATE_NONE
+                        && Segment.getNumber(newOffsets[id])
+                           == Segment.ACTIVE_NUMBER
+                        && newOffsets[id] >= snapshotEofOffset) {
+                        newOffsets[id] += tailOffset - snapshotEofOffset;
+                    }
+                }
+                translateOffsets(newOffsets, newChannel,
+                                 Segment.ACTIVE_NUMBER);
+                newChannel.force(true);
+            } finally {
+                newFile.close();
+            }
+
+            closeRandomAccessFile();
+            invalidateIndexFile();
+            try {
+                Files.move(tempFile.toPath(), getSourceFile().toPath(),
+                           StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                openFile();
+            }
+            instances.setOffsets(newOffsets);
+            activeRecordCount += copiedRecordCount - snapshotRecordCount;
+        }
+    }
+
+    /**
+     * Compacts a sealed segment. The copy becomes a new segment which takes
+     * the place of the old one in the manifest, and the old one is deleted.
+     */
+    private class SegmentCompaction extends Compaction {
+        private Segment segment;
+
+        public SegmentCompaction(Segment segment) throws IOException {
+            super(segment.getNumber());
+            this.segment = segment;
+        }
+
+        @Override
+        protected File getSourceFile() {
+            return segment.getFile();
+        }
+
+        @Override
+        protected void replace() throws IOException {
+            writer.flush();
+            int newNumber = manifest.getNextNumber();
+            long[] newOffsets = instances.copyOffsets();
+            RandomAccessFile newFile = new RandomAccessFile(tempFile, "rw");
+            try {
+                translateOffsets(newOffsets, newFile.getChannel(), newNumber);
+                newFile.getChannel().force(true);
+            } finally {
+                newFile.close();
+            }
+
+            invalidateIndexFile();
+            File segmentFile = Segment.getSegmentFile(filePath, newNumber);
+            Files.move(tempFile.toPath(), segmentFile.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            Segment newSegment = new Segment(segmentFile, newNumber,
+                                             copiedRecordCount, readMode);
+            SegmentManifest newManifest = manifest.copy();
+            newManifest.replace(segment.getNumber(), newNumber,
+                                copiedRecordCount);
+            try {
+                newManifest.save(SegmentManifest.getManifestFile(filePath));
+            } catch (IOException e) {
+                newSegment.close();
+                throw e;
+            }
+            manifest = newManifest;
+            segments.put(newNumber, newSegment);
+            instances.setOffsets(newOffsets);
+            deleteSegment(segment);
+        }
+    }
+
+    /**
+     * Commits the writes of asynchronous modifications. Whatever has
+     * accumulated while the previous batch was being committed is passed to
+     * the file under the write lock, then forced to the disk under the read
+     * lock, so that readers are not blocked by the force.
+     */
+    private class AsyncWriter implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                LinkedHashMap<CompletableFuture<Long>, Long> batch;
+                IOException failure = null;
+                lock.writeLock().lock();
+                try {
+                    while (uncommittedFutures.isEmpty()) {
+                        if (isAsyncWriterStopped) {
+                            asyncWriterThread = null;
+                            return;
+                        }
+                        writesPending.awaitUninterruptibly();
+                    }
+                    batch = uncommittedFutures;
+                    uncommittedFutures =
+                        new LinkedHashMap<CompletableFuture<Long>, Long>();
+                    try {
+                        writer.flush();
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                    lock.readLock().lock();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                try {
+                    if (failure == null) {
+                        writer.commit();
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    lock.readLock().unlock();
+                }
+                completeFutures(batch, failure);
+            }
+        }
+    }
+
+    /**
+     * Flags marking the records in files written by older versions, where
+     * each record is a flag line followed by lines of text.
+     */
+    private static String LEGACY_VALID_FLAG = "#DBMNGR_VALID";
+    private static String LEGACY_INVALID_FLAG = "#DBMNGR_INVAL";
+    private static String LEGACY_DELETED_FLAG = "#DBMNGR_DELED";
+
+    /**
+     * Records are read together with the bytes following their header in a
+     * single read of this size. Only longer records need a second read.
+     */
+    private static final int READ_AHEAD_LENGTH = 512;
+
+    /**
+     * Scans read records in the order of the file through a buffer of this
+     * size.
+     */
+    private static final int SCAN_BUFFER_LENGTH = 256 * 1024;
+
+    private static final Logger LOGGER =
+        Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    private static final String MESSAGE_COMPACTION_FAILED =
+        "Compaction of the database file failed.";
+    private static final String MESSAGE_CORRUPTED_RECORD =
+        "Corrupted record at offset %d.";
+    private static final String MESSAGE_CORRUPTED_SEGMENT =
+        "Corrupted record at offset %d of segment %d.";
+    private static final String MESSAGE_RECOVERED =
+        "Recovered database file %s. %s";
+    private static final String MESSAGE_INDEX_EXISTS =
+        "Index %s already exists.";
+    private static final String MESSAGE_INDEX_NOT_FOUND =
+        "Index %s does not exist.";
+    private static final String MESSAGE_INDEX_WRONG_TYPE =
+        "Index %s is not %s index.";
+
+    /**
+     * Guards all state below. Compaction takes the write lock only to replace
+     * the file, and signals compactionFinished when it stops.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Condition compactionFinished =
+        lock.writeLock().newCondition();
+
+    /**
+     * All writes go through writer, which also records the end of the file
+     * that is needed to insert new instances.
+     */
+    private RandomAccessFile randomAccessFile = null;
+    private String filePath;
+    private GroupCommitWriter writer = null;
+    private Durability durability = Durability.FSYNC;
+
+    /**
+     * Whether the sidecar offset index describes the file. It stays valid while
+     * instances are only appended, and is deleted before any state in the
+     * file is changed in place.
+     */
+    private boolean isIndexFileValid = false;
+
+    /**
+     * What was repaired when the file was opened.
+     */
+    private RecoveryReport recoveryReport = new RecoveryReport();
+
+    private ReadMode readMode;
+    private RecordReader recordReader = null;
+
+    /**
+     * The sealed segments listed in manifest, by number. The database file is
+     * sealed once it grows beyond segmentLength.
+     */
+    private static final long DEFAULT_SEGMENT_LENGTH = 4 * 1024 * 1024;
+    private static final String SEGMENT_FILE_SUFFIX = ".seg";
+    private long segmentLength = DEFAULT_SEGMENT_LENGTH;
+    private SegmentManifest manifest = null;
+    private HashMap<Integer, Segment> segments =
+        new HashMap<Integer, Segment>();
+
+    /**
+     * Store the offset and state of every instance, indexed by ID.
+     */
+    private InstanceTable instances = null;
+
+    /**
+     * The journal keeps the newest journalMemoryDepth actions in memory, and
+     * at most MAX_JOURNAL_ACTIONS older actions to undo in a file of at most
+     * MAX_JOURNAL_LENGTH bytes.
+     */
+    private static final int MAX_JOURNAL_ACTIONS = 1000;
+    private static final long MAX_JOURNAL_LENGTH = 1024 * 1024;
+    private int journalMemoryDepth = JournalController.DEFAULT_MEMORY_DEPTH;
+    private JournalController<T> journal = null;
+
+    /**
+     * Records in the file that no ID refers to are garbage. Compaction of a
+     * segment starts once garbage makes up compactionThreshold of its records,
+     * and there are at least MIN_COMPACTION_GARBAGE of them. The number of
+     * records in the database file is activeRecordCount, and that in a sealed
+     * segment is kept by the segment.
+     */
+    private static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+    private static final int MIN_COMPACTION_GARBAGE = 16;
+    private static final String COMPACTION_THREAD_NAME =
+        "DatabaseManager compaction";
+    private double compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    private long activeRecordCount;
+    private Thread compactionThread = null;
+    private volatile boolean isCompactionCancelled = false;
+
+    /**
+     * The results of asynchronous modifications whose writes have not been
+     * committed, with the IDs they complete with, and the writer thread
+     * committing them, which is started by the first one.
+     */
+    private static final String ASYNC_WRITER_THREAD_NAME =
+        "DatabaseManager writer";
+    private LinkedHashMap<CompletableFuture<Long>, Long> uncommittedFutures =
+        new LinkedHashMap<CompletableFuture<Long>, Long>();
+    private Thread asyncWriterThread = null;
+    private boolean isAsyncWriterStopped = false;
+    private final Condition writesPending = lock.writeLock().newCondition();
+
+    /**
+     * Secondary and interval indexes by name, which are kept in memory and
+     * built again whenever the file is scanned.
+     */
+    private HashMap<String, InstanceIndex<T>> indexes =
+        new HashMap<String, InstanceIndex<T>>();
+
+    /**
+     * Decoded instances are cached since a written instance never changes.
+     */
+    private static final int DEFAULT_CACHE_CAPACITY = 1024;
+    private InstanceCache<T> instanceCache;
+
+    /**
+     * Records are encoded by codec, which compresses the encoding of
+     * instanceCodec if fileFlags says so. Legacy XML records are only read by
+     * legacyCodec while migrating the file, so it is created on first use.
+     */
+    private RecordCodec<T> codec;
+    private RecordCodec<T> instanceCodec;
+    private byte fileFlags;
+    private XmlRecordCodec<T> legacyCodec = null;
+
+    /**
+     * Construct a backend database with the given file path. Instances are
+     * stored as XML.
+     *
+     * @param filePath path to the database file. If exists it must be readable
+     *            and writable.
+     * @throws FileNotFoundException if the file cannot be opened (non-writable)
+     * @throws IOException
+     */
+    public DatabaseManager(String filePath) throws IOException {
+        this(filePath, new XmlRecordCodec<T>());
+    }
+
+    /**
+     * Construct a backend database with the given file path and record codec.
+     *
+     * @param filePath path to the database file. If exists it must be readable
+     *            and writable.
+     * @param codec the codec used to encode and decode records
+     * @throws FileNotFoundException if the file cannot be opened (non-writable)
+     * @throws IOException
+     */
+    public DatabaseManager(String filePath, RecordCodec<T> codec)
+        throws IOException {
+        this(filePath, codec, ReadMode.RANDOM_ACCESS);
+    }
+
+    /**
+     * Construct a backend database with the given file path, record codec and
+     * read mode.
+     *
+     * @param filePath path to the database file. If exists it must be readable
+     *            and writable.
+     * @param codec the codec used to encode and decode records
+     * @param readMode how records are read from the file
+     * @throws FileNotFoundException if the file cannot be opened (non-writable)
+     * @throws IOException
+     */
+    public DatabaseManager(String filePath, RecordCodec<T> codec,
+                           ReadMode readMode) throws IOException {
+        this(filePath, codec, readMode, Compression.NONE);
+    }
+
+    /**
+     * Construct a backend database with the given file path, record codec,
+     * read mode and compression of a new file.
+     *
+     * @param filePath path to the database file. If exists it must be readable
+     *            and writable.
+     * @param codec the codec used to encode and decode records
+     * @param readMode how records are read from the file
+     * @param compression how records are stored if the file is new, or is
+     *            migrated from an older version
+     * @throws FileNotFoundException if the file cannot be opened (non-writable)
+     * @throws IOException
+     */
+    public DatabaseManager(String filePath, RecordCodec<T> codec,
+                           ReadMode readMode, Compression compression)
+        throws IOException {
+        this.filePath = filePath;
+        this.instanceCodec = codec;
+        this.instanceCache =
+            new InstanceCache<T>(codec, DEFAULT_CACHE_CAPACITY);
+        this.readMode = readMode;
+        setFileFlags(compression == Compression.DEFLATE
+                     ? RecordFormat.FLAG_DEFLATED : 0);
+        openSegments();
+        openFile();
+        if (isLegacyFile()) {
+            migrateFile();
+        } else {
+            byte[] header = new byte[RecordFormat.FILE_HEADER_LENGTH];
+            recordReader.read(0, header, 0, header.length);
+            setFileFlags(RecordFormat.getFileFlags(header));
+        }
+        scanFile();
+        if (!recoveryReport.isClean()) {
+            LOGGER.warning(String.format(MESSAGE_RECOVERED, filePath,
+                                         recoveryReport));
+        }
+        startCompactionIfNeeded();
+    }
+
+    /**
+     * Open the journal file. Recorded actions are kept only if the journal was
+     * closed together with the file, when the IDs they refer to are those
+     * given by the sidecar offset index.
+     *
+     * @param indexFile the loaded sidecar offset index, or null if there is
+     *                  none
+     * @throws IOException
+     */
+    private void openJournal(OffsetIndexFile indexFile) throws IOException {
+        if (journal != null) {
+            journal.discard();
+        }
+        long stamp = JournalFile.NO_STAMP;
+        if (indexFile != null
+            && indexFile.getEofOffset() == randomAccessFile.length()) {
+            stamp = indexFile.getEofOffset();
+        }
+        journal = new JournalController<T>(this, new JournalFile(
+            JournalFile.getJournalFile(filePath), stamp, MAX_JOURNAL_ACTIONS,
+            MAX_JOURNAL_LENGTH), journalMemoryDepth);
+    }
+
+    /**
+     * Set the flags written in the header of new files, and the codec of
+     * records according to them.
+     *
+     * @param flags the flags of the file header
+     */
+    private void setFileFlags(byte flags) {
+        fileFlags = flags;
+        if ((flags & RecordFormat.FLAG_DEFLATED) != 0) {
+            codec = new DeflatingRecordCodec<T>(
+                instanceCodec, DeflatingRecordCodec.DEFAULT_THRESHOLD);
+        } else {
+            codec = instanceCodec;
+        }
+    }
+
+    /**
+     * Load the manifest and open the sealed segments it lists. If sealing the
+     * database file was interrupted after the manifest listed the new segment,
+     * the database file is moved into place as that segment. Segment files
+     * the manifest does not list are deleted.
+     *
+     * @throws IOException if a listed segment cannot be opened
+     */
+    private void openSegments() throws IOException {
+        manifest = SegmentManifest.load(
+            SegmentManifest.getManifestFile(filePath));
+        File databaseFile = new File(filePath).getAbsoluteFile();
+        for (int i = 0; i < manifest.size(); i++) {
+            int number = manifest.getNumber(i);
+            File segmentFile = Segment.getSegmentFile(filePath, number);
+            if (!segmentFile.isFile() && i == manifest.size() - 1
+                && databaseFile.isFile()) {
+                Files.move(databaseFile.toPath(), segmentFile.toPath(),
+                           StandardCopyOption.ATOMIC_MOVE);
+            }
+            segments.put(number, new Segment(segmentFile, number,
+                                             manifest.getRecordCount(i),
+                                             readMode));
+        }
+
+        String prefix = databaseFile.getName() + ".";
+        File[] files = databaseFile.getParentFile().listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (!name.startsWith(prefix)
+                || !name.endsWith(SEGMENT_FILE_SUFFIX)) {
+                continue;
+            }
+            String number = name.substring(
+                prefix.length(), name.length() - SEGMENT_FILE_SUFFIX.length());
+            if (number.matches("[0-9]{1,9}")
+                && !manifest.getNumbers().contains(Integer.valueOf(number))) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    /**
+     * Close a sealed segment and delete its file.
+     *
+     * @param segment the segment, which the manifest no longer lists
+     * @throws IOException
+     */
+    private void deleteSegment(Segment segment) throws IOException {
+        segments.remove(segment.getNumber());
+        segment.close();
+        Files.deleteIfExists(segment.getFile().toPath());
+    }
+
+    /**
+     * Get the number of records in all sealed segments.
+     *
+     * @return the number of records
+     */
+    private long getSealedRecordCount() {
+        long count = 0;
+        for (int i = 0; i < manifest.size(); i++) {
+            count += manifest.getRecordCount(i);
+        }
+        return count;
+    }
+
+    /**
+     * Attempt to open the file for r/w. A new file gets the file header.
+     *
+     * @throws FileNotFoundException if the file cannot be opened (non-writable)
+     * @throws IOException if the file cannot be mapped
+     */
+    private void openFile() throws IOException {
+        randomAccessFile = new RandomAccessFile(new File(filePath), "rw");
+        if (randomAccessFile.length() == 0) {
+            randomAccessFile.write(RecordFormat.createFileHeader(fileFlags));
+        }
+        if (writer == null) {
+            writer = new GroupCommitWriter(randomAccessFile.getChannel(),
+                                           durability,
+                                           randomAccessFile.length());
+        } else {
+            writer.setFileChannel(randomAccessFile.getChannel(),
+                                  randomAccessFile.length());
+        }
+        openRecordReader();
+    }
+
+    /**
+     * Create the reader over the opened file according to the read mode. This
+     * must be called again after the file is truncated, as a mapping over the
+     * truncated part cannot be read.
+     *
+     * @throws IOException if the file cannot be mapped
+     */
+    private void openRecordReader() throws IOException {
+        if (readMode == ReadMode.MEMORY_MAPPED) {
+            recordReader =
+                new MappedRecordReader(randomAccessFile.getChannel());
+        } else {
+            recordReader =
+                new ChannelRecordReader(randomAccessFile.getChannel());
+        }
+    }
+
+    /**
+     * Force pending writes, then close the file and drop the reader over it.
+     *
+     * @throws IOException
+     */
+    private void closeRandomAccessFile() throws IOException {
+        writer.checkpoint();
+        recordReader = null;
+        randomAccessFile.close();
+    }
+
+    /**
+     * Attempt to scan the file to get the offsets for existing valid instances.
+     * Sealed segments are scanned in the order of the manifest before the
+     * database file. If the sidecar offset index is usable, it is loaded
+     * instead and only the part of the file written after it is scanned.
+     *
+     * @throws IOException
+     */
+    private void scanFile() throws IOException {
+        instanceCache.clear();
+        instances = new InstanceTable();
+        for (InstanceIndex<T> index : indexes.values()) {
+            index.clear();
+        }
+        activeRecordCount = 0;
+        OffsetIndexFile indexFile = loadIndexFile();
+        openJournal(indexFile);
+        if (indexFile == null) {
+            isIndexFileValid = false;
+            for (int i = 0; i < manifest.size(); i++) {
+                scanSegment(segments.get(manifest.getNumber(i)));
+            }
+            scanFileFrom(RecordFormat.FILE_HEADER_LENGTH);
+        } else {
+            for (int i = 0; i < indexFile.size(); i++) {
+                instances.add(indexFile.getOffset(i), indexFile.getState(i));
+            }
+            activeRecordCount = indexFile.size() + indexFile.getGarbageCount()
+                                - getSealedRecordCount();
+            isIndexFileValid = true;
+            scanFileFrom(indexFile.getEofOffset());
+        }
+        buildIndexes(indexes.values());
+    }
+
+    /**
+     * Index all tracked instances, reading the file sequentially and decoding
+     * each instance once for all indexes.
+     *
+     * @param newIndexes empty indexes
+     * @throws IOException
+     */
+    private void buildIndexes(Collection<InstanceIndex<T>> newIndexes)
+        throws IOException {
+        if (newIndexes.isEmpty()) {
+            return;
+        }
+        PayloadScanner scanner = new PayloadScanner();
+        for (long id = 1; id <= instances.getMaxId(); id++) {
+            byte state = instances.getState(id);
+            if (state != InstanceTable.STATE_NONE) {
+                T instance = codec.decode(
+                    scanner.readPayload(instances.getOffset(id)));
+                for (InstanceIndex<T> index : newIndexes) {
+                    index.add(id, instance, state == RecordFormat.STATE_VALID);
+                }
+            }
+        }
+    }
+
+    /**
+     * Load the sidecar offset index and check that it still describes the
+     * file. A stale index is deleted.
+     *
+     * @return the loaded index, or null if it is missing, corrupted or stale
+     * @throws IOException
+     */
+    private OffsetIndexFile loadIndexFile() throws IOException {
+        File file = OffsetIndexFile.getIndexFile(filePath);
+        OffsetIndexFile indexFile = OffsetIndexFile.load(file);
+        if (indexFile == null) {
+            return null;
+        }
+        long eofOffset = indexFile.getEofOffset();
+        boolean isStale = eofOffset < RecordFormat.FILE_HEADER_LENGTH
+                          || eofOffset > randomAccessFile.length()
+                          || indexFile.size() + indexFile.getGarbageCount()
+                             < getSealedRecordCount();
+        if (!isStale && eofOffset < randomAccessFile.length()) {
+            isStale = readRecordHeader(eofOffset) == null;
+        }
+        if (!isStale && indexFile.size() > 0) {
+            isStale = !hasStateAtOffset(indexFile, 0)
+                      || !hasStateAtOffset(indexFile, indexFile.size() - 1);
+        }
+        if (isStale) {
+            Files.deleteIfExists(file.toPath());
+            return null;
+        }
+        return indexFile;
+    }
+
+    private boolean hasStateAtOffset(OffsetIndexFile indexFile, int position)
+        throws IOException {
+        RecordHeader header = readRecordHeader(indexFile.getOffset(position));
+        return header != null
+               && header.getState() == indexFile.getState(position);
+    }
+
+    /**
+     * Delete the sidecar offset index before the file is changed in place.
+     *
+     * @throws IOException
+     */
+    private void invalidateIndexFile() throws IOException {
+        if (isIndexFileValid) {
+            Files.deleteIfExists(OffsetIndexFile.getIndexFile(filePath).toPath());
+            isIndexFileValid = false;
+        }
+    }
+
+    /**
+     * Scan the file from the given offset to the end, assigning IDs to the
+     * valid and deleted instances found. Invalid instances get no ID, so they
+     * are garbage. The checksum of every record is checked as the file is
+     * read sequentially.
+     * <p/>
+     * The length in a record header is not covered by the checksum, so after
+     * a record that is incomplete or does not match its checksum, the scan
+     * goes on at the next offset where a whole record matching its checksum
+     * starts, and the bytes skipped are left out as garbage. If no such record
+     * follows, the length is trusted to skip a corrupted record, unless the
+     * record reaches the end of the file. It is then the result of a write
+     * that never finished, and is cut off. Both repairs are recorded in the
+     * recovery report.
+     *
+     * @param startOffset the offset to start scanning from, which must be the
+     *            start of a record
+     * @throws IOException
+     */
+    private void scanFileFrom(long startOffset) throws IOException {
+        BufferedLineReader reader =
+            new BufferedLineReader(randomAccessFile.getChannel());
+        byte[] headerBytes = new byte[RecordFormat.RECORD_HEADER_LENGTH];
+        long fileLength = randomAccessFile.length();
+        long offset = startOffset;
+        while (offset < fileLength) {
+            RecordHeader header =
+                readRecordHeader(reader, headerBytes, offset, fileLength);
+            if (header != null && hasValidPayload(reader, header)) {
+                if (header.getState() != RecordFormat.STATE_INVALID) {
+                    instances.add(offset, header.getState());
+                }
+                activeRecordCount++;
+                offset += header.getRecordLength();
+                continue;
+            }
+            long nextOffset = offset + 1;
+            while (nextOffset < fileLength
+                   && !isWholeRecord(reader, headerBytes, nextOffset,
+                                     fileLength)) {
+                nextOffset++;
+            }
+            if (nextOffset == fileLength) {
+                if (header == null
+                    || offset + header.getRecordLength() == fileLength) {
+                    truncateTornRecord(offset);
+                    break;
+                }
+                nextOffset = offset + header.getRecordLength();
+            }
+            recoveryReport.addCorruptedOffset(offset);
+            activeRecordCount++;
+            offset = nextOffset;
+        }
+        writer.reset(offset);
+    }
+
+    /**
+     * Read the header of a record which fits in the file. The reader is left
+     * at the start of the payload.
+     *
+     * @param reader      the reader of the file
+     * @param headerBytes a buffer for the header
+     * @param offset      the offset the record may start at
+     * @param fileLength  the length of the file
+     * @return the header, or null if there is no such header at the offset
+     * @throws IOException
+     */
+    private static RecordHeader readRecordHeader(BufferedLineReader reader,
+                                                 byte[] headerBytes,
+                                                 long offset, long fileLength)
+        throws IOException {
+        reader.seek(offset);
+        if (reader.read(headerBytes) != headerBytes.length) {
+            return null;
+        }
+        RecordHeader header = RecordFormat.parseRecordHeader(headerBytes);
+        if (header == null || offset + header.getRecordLength() > fileLength) {
+            return null;
+        }
+        return header;
+    }
+
+    private static boolean isWholeRecord(BufferedLineReader reader,
+                                         byte[] headerBytes, long offset,
+                                         long fileLength) throws IOException {
+        RecordHeader header =
+            readRecordHeader(reader, headerBytes, offset, fileLength);
+        return header != null && hasValidPayload(reader, header);
+    }
+
+    /**
+     * Scan a sealed segment, assigning IDs to the valid and deleted instances
+     * found. A sealed segment was forced to the disk before the manifest
+     * listed it, so any incomplete record in it is an error. A record that
+     * does not match its checksum is left out as garbage and recorded in the
+     * recovery report.
+     *
+     * @param segment the segment
+     * @throws IOException if the segment is corrupted
+     */
+    private void scanSegment(Segment segment) throws IOException {
+        BufferedLineReader reader =
+            new BufferedLineReader(segment.getChannel());
+        byte[] headerBytes = new byte[RecordFormat.RECORD_HEADER_LENGTH];
+        long fileLength = segment.getChannel().size();
+        long offset = RecordFormat.FILE_HEADER_LENGTH;
+        while (offset < fileLength) {
+            reader.seek(offset);
+            RecordHeader header = null;
+            if (reader.read(headerBytes) == headerBytes.length) {
+                header = RecordFormat.parseRecordHeader(headerBytes);
+            }
+            if (header == null
+                || offset + header.getRecordLength() > fileLength) {
+                throw new IOException(String.format(
+                    MESSAGE_CORRUPTED_SEGMENT, offset, segment.getNumber()));
+            }
+            long globalOffset = Segment.toOffset(segment.getNumber(), offset);
+            if (!hasValidPayload(reader, header)) {
+                recoveryReport.addCorruptedOffset(globalOffset);
+            } else if (header.getState() != RecordFormat.STATE_INVALID) {
+                instances.add(globalOffset, header.getState());
+            }
+            offset += header.getRecordLength();
+        }
+    }
+
+    private static boolean hasValidPayload(BufferedLineReader reader,
+                                           RecordHeader header)
+        throws IOException {
+        byte[] payload = new byte[header.getLength()];
+        return reader.read(payload) == payload.length
+               && header.isChecksumValid(payload);
+    }
+
+    /**
+     * Cut off an incomplete record at the end of the file, which no whole
+     * record follows.
+     *
+     * @param offset the start of the incomplete record
+     * @throws IOException
+     */
+    private void truncateTornRecord(long offset) throws IOException {
+        recoveryReport.setTruncated(offset,
+                                    randomAccessFile.length() - offset);
+        randomAccessFile.setLength(offset);
+        randomAccessFile.getChannel().force(true);
+        openRecordReader();
+    }
+
+    /**
+     * Check whether the file was written by an older version, which stores
+     * records as lines of text.
+     *
+     * @return true if the file does not start with the file header
+     * @throws IOException
+     */
+    private boolean isLegacyFile() throws IOException {
+        byte[] header = new byte[RecordFormat.FILE_HEADER_LENGTH];
+        recordReader.read(0, header, 0, header.length);
+        return !RecordFormat.isFileHeader(header);
+    }
+
+    /**
+     * Rewrite a file written by an older version with every valid and deleted
+     * instance re-encoded by the current codec and framed as a record, then
+     * reopen it. Invalid instances are discarded, as they get no ID anyway.
+     * Records that cannot be decoded, such as one cut short by a write that
+     * never finished, are discarded too and counted in the recovery report.
+     *
+     * @throws IOException
+     */
+    private void migrateFile() throws IOException {
+        File databaseFile = new File(filePath).getAbsoluteFile();
+        File tempFile = File.createTempFile("DBMNGR", ".tmp",
+                                            databaseFile.getParentFile());
+        tempFile.deleteOnExit();
+        OutputStream output =
+            new BufferedOutputStream(new FileOutputStream(tempFile));
+        try {
+            output.write(RecordFormat.createFileHeader(fileFlags));
+            BufferedLineReader reader =
+                new BufferedLineReader(randomAccessFile.getChannel());
+            String line = reader.readLine();
+            while (line != null) {
+                byte state = getLegacyState(line);
+                StringBuilder recordString = new StringBuilder();
+                while ((line = reader.readLine()) != null
+                       && getLegacyState(line) == 0) {
+                    recordString.append(line);
+                    recordString.append(System.getProperty("line.separator"));
+                }
+                if (state == RecordFormat.STATE_VALID
+                    || state == RecordFormat.STATE_DELETED) {
+                    T instance;
+                    try {
+                        instance = decodeLegacyRecord(recordString.toString());
+                    } catch (IOException e) {
+                        recoveryReport.addDiscardedLegacyRecord();
+                        continue;
+                    }
+                    output.write(RecordFormat.createRecord(
+                        state, codec.encode(instance)));
+                }
+            }
+        } finally {
+            output.close();
+        }
+        closeRandomAccessFile();
+        Files.deleteIfExists(OffsetIndexFile.getIndexFile(filePath).toPath());
+        Files.move(tempFile.toPath(), databaseFile.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING);
+        openFile();
+    }
+
+    /**
+     * Get the state marked by a line of a file written by an older version.
+     *
+     * @param line a line of the file
+     * @return the state of the record starting at the line, or 0 if the line
+     *         does not start a record
+     */
+    private static byte getLegacyState(String line) {
+        if (line.equals(LEGACY_VALID_FLAG)) {
+            return RecordFormat.STATE_VALID;
+        } else if (line.equals(LEGACY_INVALID_FLAG)) {
+            return RecordFormat.STATE_INVALID;
+        } else if (line.equals(LEGACY_DELETED_FLAG)) {
+            return RecordFormat.STATE_DELETED;
+        }
+        return 0;
+    }
+
+    /**
+     * Decode a record of a file written by an older version, which is either
+     * XML or a line of Base64.
+     *
+     * @param recordString the lines of the record
+     * @return the decoded instance
+     * @throws IOException if the record is malformed
+     */
+    private T decodeLegacyRecord(String recordString) throws IOException {
+        recordString = recordString.trim();
+        if (recordString.startsWith("<")) {
+            if (legacyCodec == null) {
+                legacyCodec = new XmlRecordCodec<T>();
+            }
+            return legacyCodec.fromXml(recordString);
+        }
+        try {
+            return instanceCodec.decode(
+                Base64.getDecoder().decode(recordString));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed record: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Write the changes and close the file. Writes of asynchronous
+     * modifications are committed first. A running compaction is abandoned,
+     * and the sidecar offset index and the journal are written for the next
+     * time the file is opened.
+     *
+     * @throws IOException
+     */
+    public void closeFile() throws IOException {
+        lock.writeLock().lock();
+        try {
+            stopAsyncWriter();
+            stopCompaction();
+            commitPendingWrites();
+            closeRandomAccessFile();
+            writeIndexFile();
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+            segments.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Discard all invalid instances, so that they cannot be restored by undo
+     * any more. The space they take is reclaimed by compaction in the
+     * background in the segments with enough garbage. IDs of the remaining
+     * instances do not change.
+     * <p/>
+     * Deleted instances being removed are marked as invalid in the file, which
+     * also discards the offset index file, and the marks are committed before
+     * the journal is cleared, so that a crash never brings them back.
+     *
+     * @param removeDeleted whether instances marked as deleted should really be removed
+     * @throws IOException
+     */
+    public void rewriteFile(boolean removeDeleted)
+        throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (removeDeleted) {
+                for (Long instanceId
+                    : instances.getIds(RecordFormat.STATE_DELETED)) {
+                    setState(instanceId, RecordFormat.STATE_INVALID);
+                }
+                writer.commit();
+            }
+            forgetInstances(RecordFormat.STATE_INVALID);
+            journal.clear();
+            startCompactionIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stop tracking all instances in the given state.
+     *
+     * @param state the state of the instances to be forgotten
+     */
+    private void forgetInstances(byte state) {
+        if (!indexes.isEmpty()) {
+            for (Long instanceId : instances.getIds(state)) {
+                for (InstanceIndex<T> index : indexes.values()) {
+                    index.remove(instanceId);
+                }
+            }
+        }
+        instances.clearState(state);
+    }
+
+    /**
+     * Delete all instances and reset the database.
+     *
+     * @throws IOException
+     */
+    public void resetDatabase() throws IOException {
+        lock.writeLock().lock();
+        try {
+            stopCompaction();
+            commitPendingWrites();
+            invalidateIndexFile();
+            if (manifest.size() > 0) {
+                SegmentManifest newManifest = new SegmentManifest();
+                newManifest.save(SegmentManifest.getManifestFile(filePath));
+                manifest = newManifest;
+            }
+            for (Segment segment : new ArrayList<Segment>(segments.values())) {
+                deleteSegment(segment);
+            }
+            writer.reset(RecordFormat.FILE_HEADER_LENGTH);
+            randomAccessFile.setLength(RecordFormat.FILE_HEADER_LENGTH);
+            openRecordReader();
+            scanFile();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Set the share of garbage records in the file above which the file is
+     * compacted in the background.
+     *
+     * @param threshold the share of garbage records, between 0 and 1
+     * @throws IOException
+     */
+    public void setCompactionThreshold(double threshold)
+        throws IOException {
+        lock.writeLock().lock();
+        try {
+            assert threshold >= 0 && threshold <= 1;
+            compactionThreshold = threshold;
+            startCompactionIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Set the number of newest actions the journal keeps in memory. Older
+     * actions are kept in the journal file.
+     *
+     * @param depth the number of actions, at least 1
+     * @throws IOException
+     */
+    public void setJournalMemoryDepth(int depth) throws IOException {
+        lock.writeLock().lock();
+        try {
+            assert depth > 0;
+            journalMemoryDepth = depth;
+            journal.setMemoryDepth(depth);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Block until the running compaction, if any, has finished. Must not be
+     * called by a thread holding only the read lock.
+     *
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void waitForCompaction() throws InterruptedIOException {
+        lock.writeLock().lock();
+        try {
+            while (compactionThread != null) {
+                compactionFinished.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Delete the sealed segments without any record an ID refers to, then
+     * start compacting the segment with the largest share of garbage in the
+     * background, if there is enough garbage in it and no compaction is
+     * running.
+     *
+     * @throws IOException
+     */
+    private void startCompactionIfNeeded() throws IOException {
+        if (compactionThread != null) {
+            return;
+        }
+        HashMap<Integer, Long> liveCounts = countLiveRecords();
+        Segment compactedSegment = null;
+        double maxGarbageShare = 0;
+        for (int number : manifest.getNumbers()) {
+            Segment segment = segments.get(number);
+            Long liveCount = liveCounts.get(number);
+            if (liveCount == null) {
+                dropSegment(segment);
+            } else if (isCompactionNeeded(segment.getRecordCount(),
+                                          liveCount)) {
+                double garbageShare = 1 - (double) liveCount
+                                          / segment.getRecordCount();
+                if (garbageShare > maxGarbageShare) {
+                    maxGarbageShare = garbageShare;
+                    compactedSegment = segment;
+                }
+            }
+        }
+        Long activeLiveCount = liveCounts.get(Segment.ACTIVE_NUMBER);
+        Compaction compaction;
+        if (compactedSegment != null) {
+            compaction = new SegmentCompaction(compactedSegment);
+        } else if (isCompactionNeeded(
+                activeRecordCount,
+                activeLiveCount == null ? 0 : activeLiveCount)) {
+            compaction = new ActiveCompaction();
+        } else {
+            return;
+        }
+        isCompactionCancelled = false;
+        compactionThread = new Thread(compaction, COMPACTION_THREAD_NAME);
+        compactionThread.setDaemon(true);
+        compactionThread.start();
+    }
+
+    private boolean isCompactionNeeded(long recordCount, long liveCount) {
+        long garbageCount = recordCount - liveCount;
+        return garbageCount >= MIN_COMPACTION_GARBAGE
+               && garbageCount >= compactionThreshold * recordCount;
+    }
+
+    /**
+     * Count the records IDs refer to in each segment.
+     *
+     * @return the number of records by segment number, without the segments
+     *         no ID refers to
+     */
+    private HashMap<Integer, Long> countLiveRecords() {
+        HashMap<Integer, Long> liveCounts = new HashMap<Integer, Long>();
+        int number = Segment.ACTIVE_NUMBER;
+        long count = 0;
+        for (long id = 1; id <= instances.getMaxId(); id++) {
+            if (instances.getState(id) == InstanceTable.STATE_NONE) {
+                continue;
+            }
+            int idNumber = Segment.getNumber(instances.getOffset(id));
+            if (idNumber != number) {
+                addCount(liveCounts, number, count);
+                number = idNumber;
+                count = 0;
+            }
+            count++;
+        }
+        addCount(liveCounts, number, count);
+        return liveCounts;
+    }
+
+    private static void addCount(HashMap<Integer, Long> counts, int number,
+                                 long count) {
+        if (count > 0) {
+            Long oldCount = counts.get(number);
+            counts.put(number, count + (oldCount == null ? 0 : oldCount));
+        }
+    }
+
+    /**
+     * Remove a sealed segment that no ID refers to from the manifest and
+     * delete it.
+     *
+     * @param segment the segment
+     * @throws IOException
+     */
+    private void dropSegment(Segment segment) throws IOException {
+        writer.flush();
+        invalidateIndexFile();
+        SegmentManifest newManifest = manifest.copy();
+        newManifest.remove(segment.getNumber());
+        newManifest.save(SegmentManifest.getManifestFile(filePath));
+        manifest = newManifest;
+        deleteSegment(segment);
+    }
+
+    /**
+     * Seal the database file as a new segment if it has grown beyond the
+     * segment length, and start a new database file. Writes of asynchronous
+     * modifications are committed first. The file is not sealed while a
+     * compaction is running.
+     *
+     * @throws IOException
+     */
+    private void sealFileIfNeeded() throws IOException {
+        if (writer.getEndOffset() < segmentLength || compactionThread != null) {
+            return;
+        }
+        commitPendingWrites();
+        invalidateIndexFile();
+        int number = manifest.getNextNumber();
+        SegmentManifest newManifest = manifest.copy();
+        newManifest.add(number, activeRecordCount);
+        newManifest.save(SegmentManifest.getManifestFile(filePath));
+        manifest = newManifest;
+
+        File segmentFile = Segment.getSegmentFile(filePath, number);
+        closeRandomAccessFile();
+        try {
+            Files.move(new File(filePath).getAbsoluteFile().toPath(),
+                       segmentFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            openFile();
+        }
+        segments.put(number, new Segment(segmentFile, number,
+                                         activeRecordCount, readMode));
+        long[] offsets = instances.copyOffsets();
+        for (int id = 1; id < offsets.length; id++) {
+            if (instances.getState(id) != InstanceTable.STATE_NONE
+                && Segment.getNumber(offsets[id]) == Segment.ACTIVE_NUMBER) {
+                offsets[id] = Segment.toOffset(number, offsets[id]);
+            }
+        }
+        instances.setOffsets(offsets);
+        activeRecordCount = 0;
+    }
+
+    /**
+     * Set the length beyond which the database file is sealed as a segment.
+     *
+     * @param length the length in bytes
+     */
+    public void setSegmentLength(long length) {
+        lock.writeLock().lock();
+        try {
+            assert length > RecordFormat.FILE_HEADER_LENGTH;
+            segmentLength = length;
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
-    private class InstanceIterator implements Iterator<T> {
-        private Iterator<Long> offsetIterator = validInstancesMap.keySet()
-                .iterator();
+    /**
+     * Abandon the running compaction, if any, and wait for it to stop. Must be
+     * called before the file is truncated or closed.
+     *
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    private void stopCompaction() throws InterruptedIOException {
+        isCompactionCancelled = true;
+        waitForCompaction();
+    }
 
-        @Override
-        public boolean hasNext() {
-            return offsetIterator.hasNext();
+    private void startAsyncWriterIfNeeded() {
+        if (asyncWriterThread != null) {
+            return;
         }
+        isAsyncWriterStopped = false;
+        asyncWriterThread =
+            new Thread(new AsyncWriter(), ASYNC_WRITER_THREAD_NAME);
+        asyncWriterThread.setDaemon(true);
+        asyncWriterThread.start();
+    }
 
-        @Override
-        public T next() {
-            try {
-                return getInstance(offsetIterator.next());
-            } catch (IOException e) {
-                throw new UnsupportedOperationException("IOException: "
-                        + e.getMessage());
-            }
+    /**
+     * Let the writer thread stop once it has nothing left to commit.
+     */
+    private void stopAsyncWriter() {
+        isAsyncWriterStopped = true;
+        writesPending.signal();
+    }
+
+    /**
+     * Commit the writes of all asynchronous modifications at once, instead of
+     * leaving them to the writer thread. Must be called before the file is
+     * truncated or closed.
+     *
+     * @throws IOException
+     */
+    private void commitPendingWrites() throws IOException {
+        LinkedHashMap<CompletableFuture<Long>, Long> batch = uncommittedFutures;
+        uncommittedFutures = new LinkedHashMap<CompletableFuture<Long>, Long>();
+        try {
+            writer.checkpoint();
+        } catch (IOException e) {
+            completeFutures(batch, e);
+            throw e;
         }
+        completeFutures(batch, null);
+    }
 
-        @Override
-        public void remove() {
-            throw new UnsupportedOperationException("Cannot remove instance.");
+    /**
+     * Complete the results of committed asynchronous modifications. A failed
+     * commit is reported as an ExecutionException caused by the IOException.
+     *
+     * @param futures the results with the IDs they complete with
+     * @param failure the exception thrown while committing, or null
+     */
+    private static void completeFutures(
+        Map<CompletableFuture<Long>, Long> futures, IOException failure) {
+        for (Map.Entry<CompletableFuture<Long>, Long> entry
+            : futures.entrySet()) {
+            if (failure == null) {
+                entry.getKey().complete(entry.getValue());
+            } else {
+                entry.getKey().completeExceptionally(failure);
+            }
         }
     }
 
     /**
-     * Returns an iterator over valid instances in the database. Note that
-     * IOException happened while reading instances will be thrown as
-     * UnsupportedOperationException.
+     * Write the sidecar offset index describing the current file, and close
+     * the journal. Instances are listed in the order of their IDs, and their
+     * positions become their IDs when the file is opened again. Invalid
+     * instances are counted as garbage, as they get no ID then, unless the
+     * journal may restore them.
      *
-     * @return an Iterator over valid instances in the database.
+     * @throws IOException
      */
-    @Override
-    public Iterator<T> iterator() {
-        return new InstanceIterator();
+    private void writeIndexFile() throws IOException {
+        Set<Long> referencedIds = journal.getReferencedIds();
+        long[] offsets = new long[instances.count(RecordFormat.STATE_VALID)
+                                  + instances.count(RecordFormat.STATE_DELETED)
+                                  + referencedIds.size()];
+        byte[] states = new byte[offsets.length];
+        long[] newIds = new long[(int) instances.getMaxId() + 1];
+        int position = 0;
+        int keptInvalidCount = 0;
+        for (long id = 1; id <= instances.getMaxId(); id++) {
+            byte state = instances.getState(id);
+            boolean isKeptInvalid = state == RecordFormat.STATE_INVALID
+                                    && referencedIds.contains(id);
+            if (state == RecordFormat.STATE_VALID
+                || state == RecordFormat.STATE_DELETED || isKeptInvalid) {
+                if (isKeptInvalid) {
+                    keptInvalidCount++;
+                }
+                offsets[position] = instances.getOffset(id);
+                states[position] = state;
+                position++;
+                newIds[(int) id] = position;
+            }
+        }
+        long garbageCount =
+            getSealedRecordCount() + activeRecordCount - position;
+        new OffsetIndexFile(writer.getEndOffset(), garbageCount,
+                            Arrays.copyOf(offsets, position),
+                            Arrays.copyOf(states, position))
+            .save(OffsetIndexFile.getIndexFile(filePath));
+        isIndexFileValid = true;
+        journal.close(newIds, writer.getEndOffset());
     }
 
     /**
-     * Flags to be used to mark the entity.
+     * Read bytes of the file, or of a sealed segment if the offset points
+     * into one. A writer passes its pending writes to the file first so that
+     * they can be read back. Readers copy records appended by
+     * asynchronous modifications from the pending appends of writer, which is
+     * not changed while they hold the read lock.
+     *
+     * @param offset the offset from the beginning of the file
+     * @param bytes  the array to be filled
+     * @param start  the index in the array where the first byte goes
+     * @param length the number of bytes to be read
+     * @return the number of bytes read
+     * @throws IOException
      */
-    private static String VALID_FLAG = "#DBMNGR_VALID";
-    private static String INVALID_FLAG = "#DBMNGR_INVAL";
-    private static String DELETED_FLAG = "#DBMNGR_DELED";
+    private int readBytes(long offset, byte[] bytes, int start, int length)
+        throws IOException {
+        if (lock.isWriteLockedByCurrentThread()) {
+            writer.flush();
+        }
+        int number = Segment.getNumber(offset);
+        if (number != Segment.ACTIVE_NUMBER) {
+            Segment segment = segments.get(number);
+            if (segment == null) {
+                return 0;
+            }
+            return segment.read(Segment.getLocalOffset(offset), bytes, start,
+                                length);
+        }
+        long flushedOffset = writer.getFlushedOffset();
+        int count = 0;
+        if (offset < flushedOffset) {
+            int fileLength = (int) Math.min(length, flushedOffset - offset);
+            count = recordReader.read(offset, bytes, start, fileLength);
+            if (count < fileLength) {
+                return count;
+            }
+        }
+        if (count < length) {
+            count += writer.readAppended(offset + count, bytes, start + count,
+                                         length - count);
+        }
+        return count;
+    }
 
     /**
-     * eofOffset records the end of the file, which is needed to insert new
-     * instances.
+     * Read the header of the record at the given offset.
+     *
+     * @param offset the start of the record
+     * @return the header, or null if there is no record header at the offset
+     * @throws IOException
      */
-    private RandomAccessFile randomAccessFile = null;
-    private String filePath;
-    private long eofOffset;
+    private RecordHeader readRecordHeader(long offset) throws IOException {
+        byte[] headerBytes = new byte[RecordFormat.RECORD_HEADER_LENGTH];
+        if (readBytes(offset, headerBytes, 0, headerBytes.length)
+            < headerBytes.length) {
+            return null;
+        }
+        return RecordFormat.parseRecordHeader(headerBytes);
+    }
 
     /**
-     * Store the IDs of both valid and invalid instances and their offset.
+     * Read the state of the record at the given offset. The states kept in
+     * memory are checked against it when assertions are enabled.
+     *
+     * @param offset the start of the record
+     * @return the state of the record
+     * @throws IOException if there is no record at the offset
      */
-    private HashMap<Long, Long> validInstancesMap = null;
-    private HashMap<Long, Long> invalidInstancesMap = null;
-    private HashMap<Long, Long> deletedInstancesMap = null;
-    private long currentId;
+    private byte readState(long offset) throws IOException {
+        RecordHeader header = readRecordHeader(offset);
+        if (header == null) {
+            throw new IOException(String.format(MESSAGE_CORRUPTED_RECORD,
+                                                offset));
+        }
+        return header.getState();
+    }
 
-    private JournalController<T> journal;
+    /**
+     * Read the payload of the record at the given offset and check it against
+     * its checksum. The header and the start of the payload are read together.
+     *
+     * @param offset the start of the record
+     * @return the payload of the record
+     * @throws IOException if the record is corrupted
+     */
+    private byte[] readPayload(long offset) throws IOException {
+        byte[] bytes = new byte[READ_AHEAD_LENGTH];
+        int count = readBytes(offset, bytes, 0, bytes.length);
+        RecordHeader header = null;
+        if (count >= RecordFormat.RECORD_HEADER_LENGTH) {
+            header = RecordFormat.parseRecordHeader(bytes);
+        }
+        if (header == null) {
+            throw new IOException(String.format(MESSAGE_CORRUPTED_RECORD,
+                                                offset));
+        }
+        byte[] payload = new byte[header.getLength()];
+        int readLength = Math.min(payload.length,
+                                  count - RecordFormat.RECORD_HEADER_LENGTH);
+        System.arraycopy(bytes, RecordFormat.RECORD_HEADER_LENGTH, payload, 0,
+                         readLength);
+        if (readLength < payload.length) {
+            readLength += readBytes(
+                offset + RecordFormat.RECORD_HEADER_LENGTH + readLength,
+                payload, readLength, payload.length - readLength);
+        }
+        if (!header.isChecksumValid(payload) || readLength < payload.length) {
+            throw new IOException(String.format(MESSAGE_CORRUPTED_RECORD,
+                                                offset));
+        }
+        return payload;
+    }
 
-    private static XStream xstream = new XStream();
+    private long appendRecord(byte[] payload) {
+        return writer.append(RecordFormat.createRecord(RecordFormat.STATE_VALID,
+                                                       payload));
+    }
 
     /**
-     * Construct a backend database with the given file path.
+     * Change the state of an instance, both in the file and in memory.
      *
-     * @param filePath path to the database file. If exists it must be readable
-     *            and writable.
-     * @throws FileNotFoundException if the file cannot be opened (non-writable)
+     * @param instanceId the ID of the instance
+     * @param state      the new state
      * @throws IOException
      */
-    public DatabaseManager(String filePath) throws IOException {
-        xstream.registerConverter(new CalendarConverter());
-        this.filePath = filePath;
-        openFile();
-        scanFile();
+    private void setState(long instanceId, byte state) throws IOException {
+        long offset = instances.getOffset(instanceId);
+        assert readState(offset) == instances.getState(instanceId);
+        invalidateIndexFile();
+        int number = Segment.getNumber(offset);
+        if (number == Segment.ACTIVE_NUMBER) {
+            writer.patch(offset, new byte[] {state});
+        } else {
+            writer.patch(segments.get(number).getChannel(),
+                         Segment.getLocalOffset(offset), new byte[] {state});
+        }
+        for (InstanceIndex<T> index : indexes.values()) {
+            if (state == RecordFormat.STATE_VALID) {
+                index.markAsValid(instanceId);
+            } else if (instances.getState(instanceId)
+                       == RecordFormat.STATE_VALID) {
+                index.markAsNotValid(instanceId);
+            }
+        }
+        instances.setState(instanceId, state);
     }
 
-    private long createNewId() {
-        currentId++;
-        return currentId;
+    /**
+     * Get the IDs of all valid instances in increasing order. The list is
+     * kept between calls until a valid instance is removed, so it is cheap to
+     * call repeatedly.
+     *
+     * @return an unmodifiable list of all valid IDs, which does not change
+     *         with later modifications
+     */
+    public List<Long> getValidIdList() {
+        lock.readLock().lock();
+        try {
+            return instances.getValidIds();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
-    private void resetId() {
-        currentId = 0;
+    /**
+     * Get an ArrayList of IDs of all invalid instances.
+     *
+     * @return the list of all invalid IDs
+     */
+    public ArrayList<Long> getInvalidIdList() {
+        lock.readLock().lock();
+        try {
+            return instances.getIds(RecordFormat.STATE_INVALID);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
-    private void resetJournal() {
-        journal = new JournalController<T>(this);
+    /**
+     * Get an ArrayList of IDs of all deleted instances.
+     *
+     * @return the list of all deleted IDs
+     */
+    public ArrayList<Long> getDeletedIdList() {
+        lock.readLock().lock();
+        try {
+            return instances.getIds(RecordFormat.STATE_DELETED);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
-     * Attempt to open the file for r/w
+     * Add a secondary index over the instances, which is kept up to date by
+     * every modification. All instances are decoded once to build it.
      *
-     * @throws FileNotFoundException if the file cannot be opened (non-writable)
+     * @param name      the name of the index, which must not be in use
+     * @param extractor extracts the key of each instance
+     * @throws IOException
+     * @throws IllegalArgumentException if an index with the name exists
      */
-    private void openFile() throws FileNotFoundException {
-        randomAccessFile = new RandomAccessFile(new File(filePath), "rws");
+    public void addIndex(String name, IndexKeyExtractor<T, ?> extractor)
+        throws IOException {
+        lock.writeLock().lock();
+        try {
+            putIndex(name, createIndex(extractor));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static <T, K> SecondaryIndex<T, K> createIndex(
+        IndexKeyExtractor<T, K> extractor) {
+        return new SecondaryIndex<T, K>(extractor);
     }
 
     /**
-     * Attempt to scan the file to get the offsets for existing valid instances.
+     * Add an interval index over the instances, which finds the valid
+     * instances with an interval overlapping a given one. Like a secondary
+     * index, it is kept up to date by every modification, and all instances
+     * are decoded once to build it.
      *
+     * @param name      the name of the index, which must not be in use
+     * @param extractor extracts the intervals of each instance
      * @throws IOException
+     * @throws IllegalArgumentException if an index with the name exists
      */
-    private void scanFile() throws IOException {
-        resetId();
-        resetJournal();
-        validInstancesMap = new HashMap<Long, Long>();
-        invalidInstancesMap = new HashMap<Long, Long>();
-        deletedInstancesMap = new HashMap<Long, Long>();
-        randomAccessFile.seek(0);
-        long offset = randomAccessFile.getFilePointer();
-        String line;
-        while ((line = randomAccessFile.readLine()) != null) {
-            if (line.equals(VALID_FLAG)) {
-                validInstancesMap.put(createNewId(), offset);
-            } else if (line.equals(DELETED_FLAG)) {
-                deletedInstancesMap.put(createNewId(), offset);
-            }
-            offset = randomAccessFile.getFilePointer();
+    public void addIntervalIndex(String name, IntervalExtractor<T> extractor)
+        throws IOException {
+        lock.writeLock().lock();
+        try {
+            putIndex(name, new IntervalIndex<T>(extractor));
+        } finally {
+            lock.writeLock().unlock();
         }
-        eofOffset = offset;
     }
 
     /**
-     * Write the changes and close the file.
+     * Add a text index over the instances, an inverted index which finds the
+     * valid instances by the words of their text. Like a secondary index, it
+     * is kept up to date by every modification, and all instances are decoded
+     * once to build it.
      *
+     * @param name      the name of the index, which must not be in use
+     * @param extractor extracts the text of each instance
      * @throws IOException
+     * @throws IllegalArgumentException if an index with the name exists
      */
-    public void closeFile() throws IOException {
-        writeChangesAndClose(false);
+    public void addTextIndex(String name,
+                             IndexKeyExtractor<T, String> extractor)
+        throws IOException {
+        lock.writeLock().lock();
+        try {
+            putIndex(name, new TokenIndex<T>(extractor));
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
-     * Write all the changes and remove invalid instances. Then reopen the file.
-     * Note that IDs of instances will change after the operation.
+     * Add a sort index over the instances, which keeps the sort key of every
+     * instance to sort IDs without reading instances. Like a secondary index,
+     * it is kept up to date by every modification, and all instances are
+     * decoded once to build it.
      *
-     * @param removeDeleted whether instances marked as deleted should really be removed
+     * @param name      the name of the index, which must not be in use
+     * @param extractor extracts the sort key of each instance
      * @throws IOException
+     * @throws IllegalArgumentException if an index with the name exists
      */
-    public void rewriteFile(boolean removeDeleted) throws IOException {
-        writeChangesAndClose(removeDeleted);
-        openFile();
-        scanFile();
+    public void addSortIndex(String name, SortKeyExtractor<T> extractor)
+        throws IOException {
+        lock.writeLock().lock();
+        try {
+            putIndex(name, new SortKeyIndex<T>(extractor));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void putIndex(String name, InstanceIndex<T> index)
+        throws IOException {
+        if (indexes.containsKey(name)) {
+            throw new IllegalArgumentException(String.format(
+                MESSAGE_INDEX_EXISTS, name));
+        }
+        buildIndexes(Collections.singletonList(index));
+        indexes.put(name, index);
     }
 
     /**
-     * Delete all instances and reset the database.
+     * Check whether an index with the given name exists.
      *
-     * @throws IOException
+     * @param name the name of the index
+     * @return true if the index exists
      */
-    public void resetDatabase() throws IOException {
-        randomAccessFile.setLength(0);
-        rewriteFile(true);
+    public boolean hasIndex(String name) {
+        lock.readLock().lock();
+        try {
+            return indexes.containsKey(name);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
-     * Rewrite the file with all valid instances and close the file. All invalid
-     * instances are discarded.
+     * Get the IDs of valid instances with the given key in a secondary index,
+     * without reading any instance.
      *
-     * @param removeDeleted whether instances marked as deleted should really be removed
-     * @throws IOException
+     * @param name the name of the index
+     * @param key  the key, as returned by the extractor of the index
+     * @return a new list of the IDs in increasing order
+     * @throws IllegalArgumentException if there is no index with the name
      */
-    private void writeChangesAndClose(boolean removeDeleted) throws IOException {
-        File tempFile = File.createTempFile("DBMNGR", ".tmp");
-        tempFile.deleteOnExit();
-        BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(
-                tempFile));
-        randomAccessFile.seek(0);
-        String line;
-        boolean willCopy = false;
-        while ((line = randomAccessFile.readLine()) != null) {
-            if (line.equals(VALID_FLAG)) {
-                willCopy = true;
-            } else if (line.equals(INVALID_FLAG)) {
-                willCopy = false;
-            } else if (line.equals(DELETED_FLAG)) {
-                willCopy = !removeDeleted;
-            }
-            if (willCopy) {
-                bufferedWriter.write(line);
-                bufferedWriter.write(System.getProperty("line.separator"));
-            }
-        }
-        bufferedWriter.close();
-        randomAccessFile.close();
-        tempFile.renameTo(new File(filePath));
+    public ArrayList<Long> getValidIdsByKey(String name, Object key) {
+        lock.readLock().lock();
+        try {
+            SecondaryIndex<T, ?> index = (SecondaryIndex<T, ?>)
+                getIndex(name, SecondaryIndex.class, "a key");
+            return index.getValidIds(key);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
-    private String getStringAtOffset(long offset) throws IOException {
-        randomAccessFile.seek(offset);
-        String line = randomAccessFile.readLine();
-        if (line.equals(VALID_FLAG) || line.equals(DELETED_FLAG)) {
-            StringBuilder xmlString = new StringBuilder();
-            while ((line = randomAccessFile.readLine()) != null
-                    && !(line.equals(VALID_FLAG) || line.equals(INVALID_FLAG) || line.equals(DELETED_FLAG))) {
-                xmlString.append(System.getProperty("line.separator"));
-                xmlString.append(line);
-            }
-            return xmlString.toString();
-        } else {
-            return null;
+    /**
+     * Count the valid instances with the given key in a secondary index,
+     * without reading any instance.
+     *
+     * @param name the name of the index
+     * @param key  the key, as returned by the extractor of the index
+     * @return the number of valid instances
+     * @throws IllegalArgumentException if there is no index with the name
+     */
+    public int countValidIdsByKey(String name, Object key) {
+        lock.readLock().lock();
+        try {
+            SecondaryIndex<T, ?> index = (SecondaryIndex<T, ?>)
+                getIndex(name, SecondaryIndex.class, "a key");
+            return index.countValidIds(key);
+        } finally {
+            lock.readLock().unlock();
         }
     }
 
-    private void writeStringAtEnd(String string) throws IOException {
-        randomAccessFile.seek(eofOffset);
-        randomAccessFile.writeBytes(VALID_FLAG
-                + System.getProperty("line.separator"));
-        randomAccessFile.writeBytes(string);
-        randomAccessFile.writeBytes(System.getProperty("line.separator"));
-        eofOffset = randomAccessFile.getFilePointer();
+    /**
+     * Get the key of a tracked instance in a secondary index, without reading
+     * the instance.
+     *
+     * @param name       the name of the index
+     * @param instanceId the ID of the instance
+     * @return the key, or null if the instance is not tracked
+     * @throws IllegalArgumentException if there is no index with the name
+     */
+    public Object getKey(String name, long instanceId) {
+        lock.readLock().lock();
+        try {
+            SecondaryIndex<T, ?> index = (SecondaryIndex<T, ?>)
+                getIndex(name, SecondaryIndex.class, "a key");
+            return index.getKey(instanceId);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
-    private T xmlToInstance(String xmlString) {
-        @SuppressWarnings("unchecked")
-        T instance = (T) xstream.fromXML(xmlString);
-        return instance;
+    /**
+     * Get the IDs of valid instances with an interval overlapping the given
+     * closed interval in an interval index, without reading any instance.
+     *
+     * @param name  the name of the index
+     * @param start the start of the interval
+     * @param end   the end of the interval
+     * @return a new list of the IDs in increasing order
+     * @throws IllegalArgumentException if there is no interval index with the
+     *                                  name
+     */
+    public ArrayList<Long> getValidIdsOverlapping(String name, long start,
+                                                  long end) {
+        lock.readLock().lock();
+        try {
+            IntervalIndex<T> index = (IntervalIndex<T>)
+                getIndex(name, IntervalIndex.class, "an interval");
+            return index.getValidIdsOverlapping(start, end);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
-    private String instanceToXml(T instance) throws IOException {
-        return xstream.toXML(instance);
+    /**
+     * Get the IDs of valid instances whose text has the given word in a text
+     * index, without reading any instance. Words are the whitespace separated
+     * tokens of the text, and are compared in lower case.
+     *
+     * @param name  the name of the index
+     * @param token the word
+     * @return a new list of the IDs in increasing order
+     * @throws IllegalArgumentException if there is no text index with the name
+     */
+    public ArrayList<Long> getValidIdsWithToken(String name, String token) {
+        lock.readLock().lock();
+        try {
+            return getTextIndex(name).getValidIdsWithToken(token);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
-     * Get an ArrayList of IDs of all valid instances.
+     * Get the IDs of valid instances whose text has a word containing the
+     * given part in a text index, without reading any instance.
      *
-     * @return the list of all valid IDs
+     * @param name the name of the index
+     * @param part the part of a word
+     * @return a new list of the IDs in increasing order
+     * @throws IllegalArgumentException if there is no text index with the name
      */
-    public ArrayList<Long> getValidIdList() {
-        return new ArrayList<Long>(validInstancesMap.keySet());
+    public ArrayList<Long> getValidIdsWithTokenContaining(String name,
+                                                          String part) {
+        lock.readLock().lock();
+        try {
+            return getTextIndex(name).getValidIdsWithTokenContaining(part);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
-     * Get an ArrayList of IDs of all invalid instances.
+     * Get the IDs of valid instances whose text has the given words one after
+     * another in a text index, without reading any instance.
      *
-     * @return the list of all invalid IDs
+     * @param name   the name of the index
+     * @param tokens the words of the phrase
+     * @return a new list of the IDs in increasing order, which is empty if
+     *         there are no words
+     * @throws IllegalArgumentException if there is no text index with the name
      */
-    public ArrayList<Long> getInvalidIdList() {
-        return new ArrayList<Long>(invalidInstancesMap.keySet());
+    public ArrayList<Long> getValidIdsWithPhrase(String name,
+                                                 List<String> tokens) {
+        lock.readLock().lock();
+        try {
+            return getTextIndex(name).getValidIdsWithPhrase(tokens);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
-     * Get an ArrayList of IDs of all invalid instances.
+     * Sort IDs by the keys of their instances in a sort index, without reading
+     * any instance. The sort is stable.
      *
-     * @return the list of all invalid IDs
+     * @param name the name of the index
+     * @param ids  the IDs to be sorted, which must all be tracked
+     * @throws IllegalArgumentException  if there is no sort index with the name
+     * @throws IndexOutOfBoundsException if an ID is not tracked
      */
-    public ArrayList<Long> getDeletedIdList() {
-        return new ArrayList<Long>(deletedInstancesMap.keySet());
+    public void sortIds(String name, List<Long> ids) {
+        lock.readLock().lock();
+        try {
+            SortKeyIndex<T> index = (SortKeyIndex<T>)
+                getIndex(name, SortKeyIndex.class, "a sort");
+            for (Long instanceId : ids) {
+                if (instances.getState(instanceId)
+                    == InstanceTable.STATE_NONE) {
+                    throw new IndexOutOfBoundsException(
+                        "Instance does not exist.");
+                }
+            }
+            index.sort(ids);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find the valid instances matching all criteria of a query. Only the
+     * candidates left after looking up the indexes are read.
+     * The lock is not held over the whole query, as criteria may add the
+     * indexes they need.
+     *
+     * @param query the query
+     * @return a new list of the IDs in increasing order
+     * @throws IOException
+     */
+    public ArrayList<Long> query(Query<T> query) throws IOException {
+        return query.execute(this);
+    }
+
+    private TokenIndex<T> getTextIndex(String name) {
+        return (TokenIndex<T>) getIndex(name, TokenIndex.class, "a text");
+    }
+
+    private InstanceIndex<T> getIndex(String name, Class<?> type,
+                                      String typeName) {
+        InstanceIndex<T> index = indexes.get(name);
+        if (index == null) {
+            throw new IllegalArgumentException(String.format(
+                MESSAGE_INDEX_NOT_FOUND, name));
+        } else if (!type.isInstance(index)) {
+            throw new IllegalArgumentException(String.format(
+                MESSAGE_INDEX_WRONG_TYPE, name, typeName));
+        }
+        return index;
     }
 
     /**
@@ -306,9 +2346,12 @@ public class DatabaseManager<T extends Serializable & Comparable<T>> implements
      * @throws IOException
      */
     private long putInstance(T instance) throws IOException {
-        long instanceId = createNewId();
-        validInstancesMap.put(instanceId, eofOffset);
-        writeStringAtEnd(instanceToXml(instance));
+        long offset = appendRecord(codec.encode(instance));
+        activeRecordCount++;
+        long instanceId = instances.add(offset, RecordFormat.STATE_VALID);
+        for (InstanceIndex<T> index : indexes.values()) {
+            index.add(instanceId, instance, true);
+        }
         return instanceId;
     }
 
@@ -322,17 +2365,51 @@ public class DatabaseManager<T extends Serializable & Comparable<T>> implements
      * @throws IndexOutOfBoundsException if the instance is invalid or does not exist.
      */
     public T getInstance(long instanceId) throws IOException {
-        if (isValidId(instanceId)) {
-            return xmlToInstance(getStringAtOffset(validInstancesMap.get(instanceId)));
-        } else if (isDeletedId(instanceId)) {
-            return xmlToInstance(getStringAtOffset(deletedInstancesMap.get(instanceId)));
-        } else if (isInvalidId(instanceId)) {
-            throw new IndexOutOfBoundsException("Instance is invalid.");
-        } else {
-            throw new IndexOutOfBoundsException("Instance doe not exist.");
+        lock.readLock().lock();
+        try {
+            if (isInvalidId(instanceId)) {
+                throw new IndexOutOfBoundsException("Instance is invalid.");
+            } else if (!contains(instanceId)) {
+                throw new IndexOutOfBoundsException("Instance doe not exist.");
+            }
+            T instance = instanceCache.get(instanceId);
+            if (instance == null) {
+                long offset = instances.getOffset(instanceId);
+                instance = instanceCache.put(instanceId,
+                                             codec.decode(readPayload(offset)));
+            }
+            return instance;
+        } finally {
+            lock.readLock().unlock();
         }
     }
 
+    /**
+     * Set the maximum number of decoded instances kept in memory.
+     *
+     * @param capacity maximum number of cached instances, 0 disables caching
+     */
+    public void setCacheCapacity(int capacity) {
+        instanceCache.setCapacity(capacity);
+    }
+
+    public long getCacheHitCount() {
+        return instanceCache.getHitCount();
+    }
+
+    public long getCacheMissCount() {
+        return instanceCache.getMissCount();
+    }
+
+    /**
+     * Get what was repaired when the file was opened.
+     *
+     * @return the recovery report
+     */
+    public RecoveryReport getRecoveryReport() {
+        return recoveryReport;
+    }
+
     /**
      * Mark the instance with the given ID as invalid.
      *
@@ -341,20 +2418,17 @@ public class DatabaseManager<T extends Serializable & Comparable<T>> implements
      *             not valid)
      * @throws IOException
      */
-    protected void markAsInvalid(long instanceId) throws IOException {
-        if (!isValidId(instanceId)) {
-            throw new IndexOutOfBoundsException();
-        }
-        long offset = validInstancesMap.get(instanceId);
-        randomAccessFile.seek(offset);
-        String line = randomAccessFile.readLine();
-        if (line.equals(VALID_FLAG)) {
-            randomAccessFile.seek(offset);
-            randomAccessFile.writeBytes(INVALID_FLAG);
-            validInstancesMap.remove(instanceId);
-            invalidInstancesMap.put(instanceId, offset);
-        } else {
-            throw new AssertionError();
+    protected void markAsInvalid(long instanceId)
+        throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!isValidId(instanceId)) {
+                throw new IndexOutOfBoundsException();
+            }
+            setState(instanceId, RecordFormat.STATE_INVALID);
+            instanceCache.remove(instanceId);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
@@ -366,28 +2440,16 @@ public class DatabaseManager<T extends Serializable & Comparable<T>> implements
      *             already valid)
      * @throws IOException
      */
-    protected void markAsValid(long instanceId) throws IOException {
-        long offset;
-        if (isInvalidId(instanceId)) {
-            offset = invalidInstancesMap.get(instanceId);
-        } else if (isDeletedId(instanceId)) {
-            offset = deletedInstancesMap.get(instanceId);
-        } else {
-            throw new IndexOutOfBoundsException();
-        }
-        randomAccessFile.seek(offset);
-        String line = randomAccessFile.readLine();
-        if (line.equals(INVALID_FLAG) || line.equals(DELETED_FLAG)) {
-            randomAccessFile.seek(offset);
-            randomAccessFile.writeBytes(VALID_FLAG);
-            if (isInvalidId(instanceId)) {
-                invalidInstancesMap.remove(instanceId);
-            } else {
-                deletedInstancesMap.remove(instanceId);
+    protected void markAsValid(long instanceId)
+        throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!isInvalidId(instanceId) && !isDeletedId(instanceId)) {
+                throw new IndexOutOfBoundsException();
             }
-            validInstancesMap.put(instanceId, offset);
-        } else {
-            throw new AssertionError();
+            setState(instanceId, RecordFormat.STATE_VALID);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
@@ -399,20 +2461,17 @@ public class DatabaseManager<T extends Serializable & Comparable<T>> implements
      *             not valid)
      * @throws IOException
      */
-    protected void markAsDeleted(long instanceId) throws IOException {
-        if (!isValidId(instanceId)) {
-            throw new IndexOutOfBoundsException();
-        }
-        long offset = validInstancesMap.get(instanceId);
-        randomAccessFile.seek(offset);
-        String line = randomAccessFile.readLine();
-        if (line.equals(VALID_FLAG)) {
-            randomAccessFile.seek(offset);
-            randomAccessFile.writeBytes(DELETED_FLAG);
-            validInstancesMap.remove(instanceId);
-            deletedInstancesMap.put(instanceId, offset);
-        } else {
-            throw new AssertionError();
+    protected void markAsDeleted(long instanceId)
+        throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!isValidId(instanceId)) {
+                throw new IndexOutOfBoundsException();
+            }
+            setState(instanceId, RecordFormat.STATE_DELETED);
+            instanceCache.remove(instanceId);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
@@ -424,7 +2483,12 @@ public class DatabaseManager<T extends Serializable & Comparable<T>> implements
      * @return if the ID exists
      */
     public boolean contains(long instanceId) {
-        return (isValidId(instanceId) || isInvalidId(instanceId) || isDeletedId(instanceId));
+        lock.readLock().lock();
+        try {
+            return instances.getState(instanceId) != InstanceTable.STATE_NONE;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -434,7 +2498,12 @@ public class DatabaseManager<T extends Serializable & Comparable<T>> implements
      * @return if the ID represents a valid instance.
      */
     public boolean isValidId(long instanceId) {
-        return validInstancesMap.containsKey(instanceId);
+        lock.readLock().lock();
+        try {
+            return instances.getState(instanceId) == RecordFormat.STATE_VALID;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -444,7 +2513,13 @@ public class DatabaseManager<T extends Serializable & Comparable<T>> implements
      * @return if the ID represents an invalid instance.
      */
     public boolean isInvalidId(long instanceId) {
-        return invalidInstancesMap.containsKey(instanceId);
+        lock.readLock().lock();
+        try {
+            return instances.getState(instanceId)
+                   == RecordFormat.STATE_INVALID;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -454,7 +2529,13 @@ public class DatabaseManager<T extends Serializable & Comparable<T>> implements
      * @return if the ID represents a deleted instance.
      */
     public boolean isDeletedId(long instanceId) {
-        return deletedInstancesMap.containsKey(instanceId);
+        lock.readLock().lock();
+        try {
+            return instances.getState(instanceId)
+                   == RecordFormat.STATE_DELETED;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -471,7 +2552,154 @@ public class DatabaseManager<T extends Serializable & Comparable<T>> implements
      * @throws IOException
      */
     public Long modify(Long previousId, T newInstance, String description)
-            throws IOException {
+        throws IOException {
+        lock.writeLock().lock();
+        try {
+            sealFileIfNeeded();
+            Long newId = applyChange(previousId, newInstance);
+            journal.recordAction(previousId, newId, description);
+            writer.commit();
+            return newId;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Make modification to the database without waiting for it to be written
+     * to the file. The modification is made in memory at once, so it is seen
+     * by all following reads and can be undone like any other. The writes are
+     * committed by a writer thread, together with those of other asynchronous
+     * modifications made meanwhile.
+     *
+     * @param previousId the ID of instance to be removed, or null if no removal
+     *            is needed.
+     * @param newInstance the new instance to be put into the database, or null
+     *            if no inserting is needed.
+     * @param description the description of the action, which will be returned
+     *            when undo/redo.
+     * @return a CompletableFuture of the ID of the new instance, or of null if
+     *         no new instance is created, which is completed by the writer
+     *         thread once the writes have been committed.
+     * @throws IOException if the new instance cannot be encoded
+     */
+    public CompletableFuture<Long> modifyAsync(Long previousId, T newInstance,
+                                               String description)
+        throws IOException {
+        lock.writeLock().lock();
+        try {
+            sealFileIfNeeded();
+            Long newId = applyChange(previousId, newInstance);
+            journal.recordAction(previousId, newId, description);
+            CompletableFuture<Long> future = new CompletableFuture<Long>();
+            uncommittedFutures.put(future, newId);
+            startAsyncWriterIfNeeded();
+            writesPending.signal();
+            return future;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Make a batch of modifications to the database. The new instances are
+     * appended with a single write, and the batch is recorded as one action
+     * which is undone and redone as a whole.
+     *
+     * @param changes the modifications to be made in order, each as the
+     *            arguments of modify()
+     * @param description the description of the batch, which will be
+     *            returned when undo/redo.
+     * @return the IDs of the new instances in the order of the changes, with
+     *         null for changes that create no instance.
+     * @throws IOException
+     * @throws IndexOutOfBoundsException if an instance to be removed is not
+     *             valid or is removed twice. Nothing is modified then.
+     */
+    public ArrayList<Long> modifyAll(List<Change<T>> changes,
+                                     String description) throws IOException {
+        lock.writeLock().lock();
+        try {
+            ArrayList<Long> previousIds = new ArrayList<Long>(changes.size());
+            HashSet<Long> removedIds = new HashSet<Long>();
+            for (Change<T> change : changes) {
+                Long previousId = change.getPreviousId();
+                if (previousId != null && (!isValidId(previousId)
+                                           || !removedIds.add(previousId))) {
+                    throw new IndexOutOfBoundsException();
+                }
+                previousIds.add(previousId);
+            }
+
+            sealFileIfNeeded();
+            ArrayList<Long> newIds = new ArrayList<Long>(changes.size());
+            for (Change<T> change : changes) {
+                newIds.add(applyChange(change.getPreviousId(),
+                                       change.getNewInstance()));
+            }
+            journal.recordActions(previousIds, newIds, description);
+            writer.commit();
+            return newIds;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add instances without recording an action, so that undo never removes
+     * them. This moves instances in from another database.
+     *
+     * @param newInstances the instances to be added
+     * @return the IDs of the new instances in the same order
+     * @throws IOException
+     */
+    public ArrayList<Long> insertUnrecorded(List<T> newInstances)
+        throws IOException {
+        lock.writeLock().lock();
+        try {
+            sealFileIfNeeded();
+            ArrayList<Long> newIds = new ArrayList<Long>(newInstances.size());
+            for (T instance : newInstances) {
+                newIds.add(putInstance(instance));
+            }
+            writer.commit();
+            return newIds;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Mark valid instances as invalid without recording an action. Instances
+     * that are no longer valid, or that undo or redo may change, are left
+     * alone. This moves instances out to another database.
+     *
+     * @param instanceIds the IDs of the instances to be removed
+     * @return the IDs of the instances removed
+     * @throws IOException
+     */
+    public Set<Long> removeUnrecorded(Collection<Long> instanceIds)
+        throws IOException {
+        lock.writeLock().lock();
+        try {
+            Set<Long> referencedIds = journal.getReferencedIds();
+            HashSet<Long> removedIds = new HashSet<Long>();
+            for (Long instanceId : instanceIds) {
+                if (isValidId(instanceId)
+                    && !referencedIds.contains(instanceId)) {
+                    markAsInvalid(instanceId);
+                    removedIds.add(instanceId);
+                }
+            }
+            writer.commit();
+            return removedIds;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Long applyChange(Long previousId, T newInstance)
+        throws IOException {
         Long newId = null;
         if (newInstance != null) {
             newId = putInstance(newInstance);
@@ -483,10 +2711,24 @@ public class DatabaseManager<T extends Serializable & Comparable<T>> implements
                 markAsDeleted(previousId);
             }
         }
-        journal.recordAction(previousId, newId, description);
         return newId;
     }
 
+    /**
+     * Set when written data is forced to the disk.
+     *
+     * @param durability the new durability level
+     */
+    public void setDurability(Durability durability) {
+        lock.writeLock().lock();
+        try {
+            this.durability = durability;
+            writer.setDurability(durability);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
     /**
      * Undo the last action.
      *
@@ -494,8 +2736,16 @@ public class DatabaseManager<T extends Serializable & Comparable<T>> implements
      * @throws IOException
      * @throws UnsupportedOperationException if there is nothing to undo.
      */
-    public String undo() throws IOException, UnsupportedOperationException {
-        return journal.undo();
+    public String undo()
+        throws IOException, UnsupportedOperationException {
+        lock.writeLock().lock();
+        try {
+            String description = journal.undo();
+            writer.commit();
+            return description;
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
@@ -505,12 +2755,25 @@ public class DatabaseManager<T extends Serializable & Comparable<T>> implements
      * @throws IOException
      * @throws UnsupportedOperationException if there is nothing to redo.
      */
-    public String redo() throws IOException, UnsupportedOperationException {
-        return journal.redo();
+    public String redo()
+        throws IOException, UnsupportedOperationException {
+        lock.writeLock().lock();
+        try {
+            String description = journal.redo();
+            writer.commit();
+            return description;
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     public JournalController<T> getJournal() {
-        return journal;
+        lock.readLock().lock();
+        try {
+            return journal;
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
 }
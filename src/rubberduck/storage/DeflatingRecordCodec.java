@@ -0,0 +1,153 @@
+package rubberduck.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+//@author A0119416H
+/**
+ * A record codec that compresses the records of another codec with Deflater.
+ * <p/>
+ * The first byte of a record tells whether the rest is stored raw or deflated.
+ * Records shorter than the threshold, or that do not get shorter, are stored
+ * raw. Deflated records are compressed with a preset dictionary holding the
+ * element names and layout of Task records written by XmlRecordCodec, so that
+ * even a single record compresses well. Records already written depend on the
+ * dictionary, so it must never change.
+ *
+ * @param <T> The data type stored in the database.
+ */
+class DeflatingRecordCodec<T extends Serializable> implements RecordCodec<T> {
+
+    public static final int DEFAULT_THRESHOLD = 128;
+
+    private static final byte MODE_RAW = 0;
+    private static final byte MODE_DEFLATED = 1;
+    private static final int BUFFER_LENGTH = 1024;
+
+    /**
+     * Deflate looks back at most 32 KB, and finds the last bytes of the
+     * dictionary with the shortest distances, so the most common strings are
+     * put at its end.
+     */
+    private static final byte[] DICTIONARY = (
+        "<rubberduck.common.datatransfer.DatePair>\n"
+        + "      <endDate>31-12-2014 23:59:59</endDate>\n"
+        + "    </rubberduck.common.datatransfer.DatePair>\n"
+        + "<rubberduck.common.datatransfer.Task>\n"
+        + "  <description></description>\n"
+        + "  <dateList/>\n"
+        + "  <dateList>\n"
+        + "    <rubberduck.common.datatransfer.DatePair>\n"
+        + "      <startDate>01-01-2014 00:00:00</startDate>\n"
+        + "      <endDate>01-01-2014 00:00:00</endDate>\n"
+        + "    </rubberduck.common.datatransfer.DatePair>\n"
+        + "  </dateList>\n"
+        + "  <isDone>true</isDone>\n"
+        + "  <isDone>false</isDone>\n"
+        + "  <uuid></uuid>\n"
+        + "  <lastUpdate>01-01-2014 00:00:00</lastUpdate>\n"
+        + "</rubberduck.common.datatransfer.Task>"
+    ).getBytes(Charset.forName("UTF-8"));
+
+    private RecordCodec<T> codec;
+    private int threshold;
+
+    /**
+     * Create a codec compressing the records of the given codec.
+     *
+     * @param codec     the codec encoding the instances
+     * @param threshold records shorter than this number of bytes are stored
+     *                  raw
+     */
+    public DeflatingRecordCodec(RecordCodec<T> codec, int threshold) {
+        this.codec = codec;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public byte[] encode(T instance) throws IOException {
+        byte[] record = codec.encode(instance);
+        if (record.length >= threshold) {
+            byte[] deflated = deflate(record);
+            if (deflated.length < record.length) {
+                return prepend(MODE_DEFLATED, deflated);
+            }
+        }
+        return prepend(MODE_RAW, record);
+    }
+
+    @Override
+    public T decode(byte[] record) throws IOException {
+        if (record.length == 0) {
+            throw new IOException("Empty record");
+        }
+        byte[] data = Arrays.copyOfRange(record, 1, record.length);
+        if (record[0] == MODE_RAW) {
+            return codec.decode(data);
+        } else if (record[0] == MODE_DEFLATED) {
+            return codec.decode(inflate(data));
+        }
+        throw new IOException("Unknown record mode " + record[0]);
+    }
+
+    @Override
+    public T copy(T instance) throws IOException {
+        return codec.copy(instance);
+    }
+
+    private static byte[] prepend(byte mode, byte[] data) {
+        byte[] record = new byte[data.length + 1];
+        record[0] = mode;
+        System.arraycopy(data, 0, record, 1, data.length);
+        return record;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream output =
+                new ByteArrayOutputStream(data.length);
+            byte[] buffer = new byte[BUFFER_LENGTH];
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(data);
+            ByteArrayOutputStream output =
+                new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[BUFFER_LENGTH];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput()
+                                    || inflater.needsDictionary())) {
+                    throw new IOException("Truncated deflated record");
+                }
+                output.write(buffer, 0, length);
+            }
+            return output.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed deflated record: "
+                                  + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -720,27 +720,74 @@ public class GooManager {
         }
     }
 
+    /**
+     * Get the ID by which a local task with the given UUID can be changed,
+     * restoring it from the archive if it is archived.
+     *
+     * @param archive the TaskArchive that stores tasks in both tiers
+     * @param uuid the UUID of the local task
+     * @return the ID in the current database, or null if there is no such task
+     * @throws IOException if thrown by TaskArchive.
+     */
+    private static Long getIdToChange(TaskArchive archive, String uuid) throws IOException {
+        Long localId = archive.getValidId(uuid);
+        if (localId != null) {
+            localId = archive.getIdToChange(localId);
+        }
+        return localId;
+    }
+
+    /**
+     * Add a change that saves the UUID given to a pushed task. An archived task
+     * is only restored to the current database if its UUID has changed.
+     *
+     * @param archive the TaskArchive that stores tasks in both tiers
+     * @param changes the changes to add to
+     * @param databaseId the ID of the task, which may be an archived ID
+     * @param previousUuid the UUID of the task before it was pushed
+     * @param localTask the pushed task
+     * @throws IOException if thrown by TaskArchive.
+     */
+    private static void addPushedTask(TaskArchive archive, ArrayList<Change<rubberduck.common.datatransfer.Task>> changes,
+                                      Long databaseId, String previousUuid, rubberduck.common.datatransfer.Task localTask) throws IOException {
+        if (TaskArchive.isArchivedId(databaseId)) {
+            if (localTask.getUuid().equals(previousUuid)) {
+                return;
+            }
+            databaseId = archive.getIdToChange(databaseId);
+        }
+        changes.add(new Change<rubberduck.common.datatransfer.Task>(databaseId, localTask));
+    }
+
     /**
      * Push all local tasks to remote server and overwrite if exists.
      *
-     * @param dbManager the DatabaseManager instance that stores tasks
+     * @param archive the TaskArchive that stores tasks in both tiers
      * @throws IOException if thrown by DatabaseManager.
      * @throws NetworkException if network failure happens.
      */
-    public static void pushAll(DatabaseManager<rubberduck.common.datatransfer.Task> dbManager) throws IOException {
+    public static void pushAll(TaskArchive archive) throws IOException {
         assert initialized;
         LOGGER.info(LOG_MESSAGE_PUSHING);
-        for (Long databaseId : dbManager.getValidIdList()) {
-            rubberduck.common.datatransfer.Task localTask = dbManager.getInstance(databaseId);
-            if (!(localTask.getDateList().size() > 1)) {
-                pushTask(localTask);
-                dbManager.modify(databaseId, localTask, null);
+        TaskStore<rubberduck.common.datatransfer.Task> dbManager = archive.getDbManager();
+        ArrayList<Change<rubberduck.common.datatransfer.Task>> changes =
+            new ArrayList<Change<rubberduck.common.datatransfer.Task>>();
+        try {
+            for (Long databaseId : archive.getValidIds()) {
+                rubberduck.common.datatransfer.Task localTask = archive.getTask(databaseId);
+                if (!(localTask.getDateList().size() > 1)) {
+                    String previousUuid = localTask.getUuid();
+                    pushTask(localTask);
+                    addPushedTask(archive, changes, databaseId, previousUuid, localTask);
+                }
             }
-        }
-        for (Long databaseId : dbManager.getDeletedIdList()) {
-            if (isPushed(dbManager.getInstance(databaseId))) {
-                deleteTask(dbManager.getInstance(databaseId));
+            for (Long databaseId : dbManager.getDeletedIdList()) {
+                if (isPushed(dbManager.getInstance(databaseId))) {
+                    deleteTask(dbManager.getInstance(databaseId));
+                }
             }
+        } finally {
+            dbManager.modifyAll(changes, null);
         }
         dbManager.rewriteFile(true);
     }
@@ -748,36 +795,39 @@ public class GooManager {
     /**
      * Pull all tasks from remote server and overwrite if exists.
      *
-     * @param dbManager the DatabaseManager instance that stores tasks
+     * @param archive the TaskArchive that stores tasks in both tiers
      * @throws IOException if thrown by DatabaseManager.
      * @throws NetworkException if network failure happens.
      */
-    public static void pullAll(DatabaseManager<rubberduck.common.datatransfer.Task> dbManager) throws IOException {
+    public static void pullAll(TaskArchive archive) throws IOException {
         assert initialized;
         LOGGER.info(LOG_MESSAGE_PULLING);
-        HashMap<String, Long> uuidMap = new HashMap<String, Long>();
-        for (Long databaseId : dbManager.getValidIdList()) {
-            uuidMap.put(dbManager.getInstance(databaseId).getUuid(), databaseId);
-        }
-        for (Task remoteTask : getRemoteTaskList(false)) {
-            String localUuid = constructLocalTaskUuid(remoteTask.getId());
-            if (remoteTask.getDeleted() != null && remoteTask.getDeleted()) {
-                if (uuidMap.containsKey(localUuid)) {
-                    dbManager.markAsInvalid(uuidMap.get(localUuid));
+        TaskStore<rubberduck.common.datatransfer.Task> dbManager = archive.getDbManager();
+        ArrayList<Change<rubberduck.common.datatransfer.Task>> changes =
+            new ArrayList<Change<rubberduck.common.datatransfer.Task>>();
+        try {
+            for (Task remoteTask : getRemoteTaskList(false)) {
+                Long localId = getIdToChange(archive, constructLocalTaskUuid(remoteTask.getId()));
+                if (remoteTask.getDeleted() != null && remoteTask.getDeleted()) {
+                    if (localId != null) {
+                        changes.add(new Change<rubberduck.common.datatransfer.Task>(localId, null));
+                    }
+                } else {
+                    changes.add(new Change<rubberduck.common.datatransfer.Task>(localId, constructLocalTask(remoteTask)));
                 }
-            } else {
-                dbManager.modify(uuidMap.get(localUuid), constructLocalTask(remoteTask), null);
             }
-        }
-        for (Event remoteEvent : getRemoteEventList(false)) {
-            String localUuid = constructLocalEventUuid(remoteEvent.getId());
-            if (remoteEvent.getStatus().equals("cancelled")) {
-                if (uuidMap.containsKey(localUuid)) {
-                    dbManager.markAsInvalid(uuidMap.get(localUuid));
+            for (Event remoteEvent : getRemoteEventList(false)) {
+                Long localId = getIdToChange(archive, constructLocalEventUuid(remoteEvent.getId()));
+                if (remoteEvent.getStatus().equals("cancelled")) {
+                    if (localId != null) {
+                        changes.add(new Change<rubberduck.common.datatransfer.Task>(localId, null));
+                    }
+                } else {
+                    changes.add(new Change<rubberduck.common.datatransfer.Task>(localId, constructLocalEvent(remoteEvent)));
                 }
-            } else {
-                dbManager.modify(uuidMap.get(localUuid), constructLocalEvent(remoteEvent), null);
             }
+        } finally {
+            dbManager.modifyAll(changes, null);
         }
         dbManager.rewriteFile(true);
     }
@@ -785,43 +835,43 @@ public class GooManager {
     /**
      * Overwrite the whole remote database with local one.
      *
-     * @param dbManager the DatabaseManager instance that stores tasks
+     * @param archive the TaskArchive that stores tasks in both tiers
      * @throws IOException if thrown by DatabaseManager.
      * @throws NetworkException if network failure happens.
      */
-    public static void forcePushAll(DatabaseManager<rubberduck.common.datatransfer.Task> dbManager) throws IOException {
+    public static void forcePushAll(TaskArchive archive) throws IOException {
         assert initialized;
         clearRemoteEvents();
         clearRemoteTasks();
-        pushAll(dbManager);
+        pushAll(archive);
     }
 
     /**
      * Overwrite the whole local database with remote one.
      *
-     * @param dbManager the DatabaseManager instance that stores tasks
+     * @param archive the TaskArchive that stores tasks in both tiers
      * @throws IOException if thrown by DatabaseManager.
      * @throws NetworkException if network failure happens.
      */
-    public static void forcePullAll(DatabaseManager<rubberduck.common.datatransfer.Task> dbManager) throws IOException {
+    public static void forcePullAll(TaskArchive archive) throws IOException {
         assert initialized;
-        dbManager.resetDatabase();
-        pullAll(dbManager);
+        archive.resetDatabases();
+        pullAll(archive);
     }
 
     /**
      * Perform a two-way synchronization and update both databases with latest modified tasks.
      *
-     * @param dbManager the DatabaseManager instance that stores tasks
+     * @param archive the TaskArchive that stores tasks in both tiers
      * @throws IOException if thrown by DatabaseManager.
      * @throws NetworkException if network failure happens.
      */
-    public static void twoWaySync(DatabaseManager<rubberduck.common.datatransfer.Task> dbManager) throws IOException {
+    public static void twoWaySync(TaskArchive archive) throws IOException {
         assert initialized;
         LOGGER.info(LOG_MESSAGE_TWO_WAY);
+        TaskStore<rubberduck.common.datatransfer.Task> dbManager = archive.getDbManager();
 
         lastSyncTime = getLastSyncTime();
-        HashMap<String, Long> localUuidMap = new HashMap<String, Long>();
 
         HashMap<String, Task> remoteModifiedTasks = new HashMap<String, Task>();
         for (Task remoteTask : getRemoteTaskList(true)) {
@@ -832,127 +882,131 @@ public class GooManager {
             remoteModifiedEvents.put(remoteEvent.getId(), remoteEvent);
         }
 
-        /*
-         * Update remote database with locally modified tasks.
-         */
-        for (Long databaseId : dbManager.getValidIdList()) {
-            rubberduck.common.datatransfer.Task localTask = dbManager.getInstance(databaseId);
-            if (isPushed(localTask)) {
-                localUuidMap.put(localTask.getUuid(), databaseId);
+        ArrayList<Change<rubberduck.common.datatransfer.Task>> changes =
+            new ArrayList<Change<rubberduck.common.datatransfer.Task>>();
+        try {
+            /*
+             * Update remote database with locally modified tasks.
+             */
+            for (Long databaseId : archive.getValidIds()) {
+                rubberduck.common.datatransfer.Task localTask = archive.getTask(databaseId);
+                if (lastSyncTime == null || localTask.getLastUpdate().getTime().after(lastSyncTime)) {
+                    if (!(localTask.getDateList().size() > 1)) {
+                        boolean shouldPush = false;
+                        if (!isPushed(localTask)) {
+                            shouldPush = true;
+                        } else {
+                            java.util.Calendar localUpdateTime = localTask.getLastUpdate();
+                            if (localTask.isDeadline() || localTask.isFloatingTask()) {
+                                String remoteUuid = constructRemoteTaskId(localTask.getUuid());
+                                if (remoteModifiedTasks.containsKey(remoteUuid)) {
+                                    Task remoteTask = remoteModifiedTasks.get(remoteUuid);
+                                    if ((remoteTask.getDeleted() != null && remoteTask.getDeleted()) ||
+                                            dateTimeToCalendar(remoteTask.getUpdated()).after(localUpdateTime)) {
+                                        shouldPush = true;
+                                        remoteModifiedTasks.remove(remoteUuid);
+                                    }
+                                } else {
+                                    shouldPush = true;
+                                }
+                            } else {
+                                String remoteUuid = constructRemoteEventId(localTask.getUuid());
+                                if (remoteModifiedEvents.containsKey(remoteUuid)) {
+                                    Event remoteEvent = remoteModifiedEvents.get(remoteUuid);
+                                    if (remoteEvent.getStatus().equals("cancelled") ||
+                                            dateTimeToCalendar(remoteEvent.getUpdated()).after(localUpdateTime)) {
+                                        shouldPush = true;
+                                        remoteModifiedEvents.remove(remoteUuid);
+                                    }
+                                } else {
+                                    shouldPush = true;
+                                }
+                            }
+                        }
+                        if (shouldPush) {
+                            String previousUuid = localTask.getUuid();
+                            pushTask(localTask);
+                            addPushedTask(archive, changes, databaseId, previousUuid, localTask);
+                        }
+                    }
+                }
             }
-            if (lastSyncTime == null || localTask.getLastUpdate().getTime().after(lastSyncTime)) {
+
+            /*
+             * Delete locally deleted tasks on remote server if they are not modified remotely.
+             */
+            for (Long databaseId : dbManager.getDeletedIdList()) {
+                rubberduck.common.datatransfer.Task localTask = dbManager.getInstance(databaseId);
                 if (!(localTask.getDateList().size() > 1)) {
-                    boolean shouldPush = false;
+                    boolean shouldDelete = false;
                     if (!isPushed(localTask)) {
-                        shouldPush = true;
+                        shouldDelete = false;
                     } else {
-                        java.util.Calendar localUpdateTime = localTask.getLastUpdate();
                         if (localTask.isDeadline() || localTask.isFloatingTask()) {
                             String remoteUuid = constructRemoteTaskId(localTask.getUuid());
                             if (remoteModifiedTasks.containsKey(remoteUuid)) {
-                                Task remoteTask = remoteModifiedTasks.get(remoteUuid);
-                                if ((remoteTask.getDeleted() != null && remoteTask.getDeleted()) ||
-                                        dateTimeToCalendar(remoteTask.getUpdated()).after(localUpdateTime)) {
-                                    shouldPush = true;
+                                shouldDelete = false;
+                                if (remoteModifiedTasks.get(remoteUuid).getDeleted() != null && remoteModifiedTasks.get(remoteUuid).getDeleted()) {
                                     remoteModifiedTasks.remove(remoteUuid);
                                 }
                             } else {
-                                shouldPush = true;
+                                shouldDelete = true;
                             }
                         } else {
                             String remoteUuid = constructRemoteEventId(localTask.getUuid());
                             if (remoteModifiedEvents.containsKey(remoteUuid)) {
-                                Event remoteEvent = remoteModifiedEvents.get(remoteUuid);
-                                if (remoteEvent.getStatus().equals("cancelled") ||
-                                        dateTimeToCalendar(remoteEvent.getUpdated()).after(localUpdateTime)) {
-                                    shouldPush = true;
+                                shouldDelete = false;
+                                if (remoteModifiedEvents.get(remoteUuid).getStatus().equals("cancelled")) {
                                     remoteModifiedEvents.remove(remoteUuid);
                                 }
                             } else {
-                                shouldPush = true;
+                                shouldDelete = true;
                             }
                         }
                     }
-                    if (shouldPush) {
-                        pushTask(localTask);
-                        dbManager.modify(databaseId, localTask, null);
+                    if (shouldDelete) {
+                        deleteTask(localTask);
                     }
                 }
             }
-        }
 
-        /*
-         * Delete locally deleted tasks on remote server if they are not modified remotely.
-         */
-        for (Long databaseId : dbManager.getDeletedIdList()) {
-            rubberduck.common.datatransfer.Task localTask = dbManager.getInstance(databaseId);
-            if (!(localTask.getDateList().size() > 1)) {
-                boolean shouldDelete = false;
-                if (!isPushed(localTask)) {
-                    shouldDelete = false;
-                } else {
-                    if (localTask.isDeadline() || localTask.isFloatingTask()) {
-                        String remoteUuid = constructRemoteTaskId(localTask.getUuid());
-                        if (remoteModifiedTasks.containsKey(remoteUuid)) {
-                            shouldDelete = false;
-                            if (remoteModifiedTasks.get(remoteUuid).getDeleted() != null && remoteModifiedTasks.get(remoteUuid).getDeleted()) {
-                                remoteModifiedTasks.remove(remoteUuid);
-                            }
-                        } else {
-                            shouldDelete = true;
-                        }
+            /*
+             * Update local database with modified or deleted Tasks in remote database.
+             */
+            for (Task remoteTask : remoteModifiedTasks.values()) {
+                Long localId = getIdToChange(archive, constructLocalTaskUuid(remoteTask.getId()));
+                if (localId != null) {
+                    if (remoteTask.getDeleted() != null && remoteTask.getDeleted()) {
+                        changes.add(new Change<rubberduck.common.datatransfer.Task>(localId, null));
                     } else {
-                        String remoteUuid = constructRemoteEventId(localTask.getUuid());
-                        if (remoteModifiedEvents.containsKey(remoteUuid)) {
-                            shouldDelete = false;
-                            if (remoteModifiedEvents.get(remoteUuid).getStatus().equals("cancelled")) {
-                                remoteModifiedEvents.remove(remoteUuid);
-                            }
-                        } else {
-                            shouldDelete = true;
-                        }
+                        changes.add(new Change<rubberduck.common.datatransfer.Task>(localId, constructLocalTask(remoteTask)));
                     }
-                }
-                if (shouldDelete) {
-                    deleteTask(localTask);
-                }
-            }
-        }
-
-        /*
-         * Update local database with modified or deleted Tasks in remote database.
-         */
-        for (Task remoteTask : remoteModifiedTasks.values()) {
-            String localUuid = constructLocalTaskUuid(remoteTask.getId());
-            if (localUuidMap.containsKey(localUuid)) {
-                if (remoteTask.getDeleted() != null && remoteTask.getDeleted()) {
-                    dbManager.modify(localUuidMap.get(localUuid), null, null);
                 } else {
-                    dbManager.modify(localUuidMap.get(localUuid), constructLocalTask(remoteTask), null);
-                }
-            } else {
-                if (remoteTask.getDeleted() == null || !remoteTask.getDeleted()) {
-                    dbManager.modify(null, constructLocalTask(remoteTask), null);
+                    if (remoteTask.getDeleted() == null || !remoteTask.getDeleted()) {
+                        changes.add(new Change<rubberduck.common.datatransfer.Task>(null, constructLocalTask(remoteTask)));
+                    }
                 }
             }
-        }
 
-        /*
-         * Update local database with modified or deleted Events in remote database.
-         */
-        for (Event remoteEvent : remoteModifiedEvents.values()) {
-            String localUuid = constructLocalEventUuid(remoteEvent.getId());
-            if (localUuidMap.containsKey(localUuid)) {
-                if (remoteEvent.getStatus().equals("cancelled")) {
-                    dbManager.modify(localUuidMap.get(localUuid), null, null);
+            /*
+             * Update local database with modified or deleted Events in remote database.
+             */
+            for (Event remoteEvent : remoteModifiedEvents.values()) {
+                Long localId = getIdToChange(archive, constructLocalEventUuid(remoteEvent.getId()));
+                if (localId != null) {
+                    if (remoteEvent.getStatus().equals("cancelled")) {
+                        changes.add(new Change<rubberduck.common.datatransfer.Task>(localId, null));
+                    } else {
+                        changes.add(new Change<rubberduck.common.datatransfer.Task>(localId, constructLocalEvent(remoteEvent)));
+                    }
                 } else {
-                    dbManager.modify(localUuidMap.get(localUuid), constructLocalEvent(remoteEvent), null);
-                }
-            } else {
-                if (!remoteEvent.getStatus().equals("cancelled")) {
-                    dbManager.modify(null, constructLocalEvent(remoteEvent), null);
+                    if (!remoteEvent.getStatus().equals("cancelled")) {
+                        changes.add(new Change<rubberduck.common.datatransfer.Task>(null, constructLocalEvent(remoteEvent)));
+                    }
                 }
             }
+        } finally {
+            dbManager.modifyAll(changes, null);
         }
 
         dbManager.rewriteFile(true);
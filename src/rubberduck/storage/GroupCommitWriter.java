@@ -0,0 +1,273 @@
+package rubberduck.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import rubberduck.storage.DatabaseManager.Durability;
+
+//@author A0119416H
+/**
+ * Collects the appends and in-place flag writes of a modification and writes
+ * them to the file together, followed by at most one force().
+ * <p/>
+ * Appends are gathered in a buffer and written with a single write at the end
+ * of the file. Flag writes that fall into the buffer are applied to the buffer
+ * directly. Flag writes may also go to the files of sealed segments, which
+ * are forced together with the file. Pending appends can be read back
+ * before they are written.
+ */
+class GroupCommitWriter {
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private FileChannel fileChannel;
+    private Durability durability;
+
+    /**
+     * flushedOffset is the end of the data already written to the file.
+     * Pending appends start from there.
+     */
+    private long flushedOffset;
+    private byte[] appendBuffer = new byte[INITIAL_BUFFER_SIZE];
+    private int appendLength = 0;
+    private ArrayList<Long> patchOffsets = new ArrayList<Long>();
+    private ArrayList<byte[]> patchBytes = new ArrayList<byte[]>();
+
+    /**
+     * The channel of each pending flag write, or null for the file, and the
+     * other channels written since they were last forced.
+     */
+    private ArrayList<FileChannel> patchChannels =
+        new ArrayList<FileChannel>();
+    private ArrayList<FileChannel> unforcedChannels =
+        new ArrayList<FileChannel>();
+
+    private boolean hasUnforcedWrites = false;
+
+    /**
+     * Create a writer appending to the given offset of the file.
+     *
+     * @param fileChannel an opened channel of the database file
+     * @param durability  when the written data should be forced to the disk
+     * @param endOffset   the offset where the next append goes
+     */
+    public GroupCommitWriter(FileChannel fileChannel, Durability durability,
+                             long endOffset) {
+        this.fileChannel = fileChannel;
+        this.durability = durability;
+        this.flushedOffset = endOffset;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    /**
+     * Get the end of the file, including pending appends.
+     *
+     * @return the offset where the next append goes
+     */
+    public long getEndOffset() {
+        return flushedOffset + appendLength;
+    }
+
+    /**
+     * Get the end of the data already written to the file. Bytes after it are
+     * pending appends.
+     *
+     * @return the offset where pending appends start
+     */
+    public long getFlushedOffset() {
+        return flushedOffset;
+    }
+
+    /**
+     * Copy pending appends that have not been written to the file yet.
+     *
+     * @param offset the offset in the file, not before getFlushedOffset()
+     * @param bytes  the array to be filled
+     * @param start  the index in the array where the first byte goes
+     * @param length the number of bytes to be copied
+     * @return the number of bytes copied, which is less than length if the
+     *         pending appends end earlier
+     */
+    public int readAppended(long offset, byte[] bytes, int start, int length) {
+        assert offset >= flushedOffset;
+        int count =
+            (int) Math.max(0, Math.min(length, getEndOffset() - offset));
+        System.arraycopy(appendBuffer, (int) (offset - flushedOffset), bytes,
+                         start, count);
+        return count;
+    }
+
+    /**
+     * Discard pending writes and continue appending from the given offset. Used
+     * after the file has been truncated.
+     *
+     * @param endOffset the offset where the next append goes
+     */
+    public void reset(long endOffset) {
+        flushedOffset = endOffset;
+        appendLength = 0;
+        patchOffsets.clear();
+        patchBytes.clear();
+        patchChannels.clear();
+    }
+
+    /**
+     * Continue writing to another channel, after the file has been replaced.
+     * Pending writes must have been flushed.
+     *
+     * @param fileChannel an opened channel of the new database file
+     * @param endOffset   the offset where the next append goes
+     */
+    public void setFileChannel(FileChannel fileChannel, long endOffset) {
+        assert !hasPendingWrites();
+        this.fileChannel = fileChannel;
+        this.hasUnforcedWrites = false;
+        reset(endOffset);
+    }
+
+    /**
+     * Queue bytes to be appended to the end of the file.
+     *
+     * @param bytes the bytes to be appended
+     * @return the offset where the bytes will be written
+     */
+    public long append(byte[] bytes) {
+        long offset = getEndOffset();
+        if (appendLength + bytes.length > appendBuffer.length) {
+            appendBuffer = Arrays.copyOf(appendBuffer,
+                Math.max(appendBuffer.length * 2, appendLength + bytes.length));
+        }
+        System.arraycopy(bytes, 0, appendBuffer, appendLength, bytes.length);
+        appendLength += bytes.length;
+        return offset;
+    }
+
+    /**
+     * Queue bytes to overwrite the file at the given offset.
+     *
+     * @param offset the offset to be written
+     * @param bytes  the bytes to be written
+     */
+    public void patch(long offset, byte[] bytes) {
+        if (offset >= flushedOffset) {
+            assert offset + bytes.length <= getEndOffset();
+            System.arraycopy(bytes, 0, appendBuffer,
+                             (int) (offset - flushedOffset), bytes.length);
+        } else {
+            patch(null, offset, bytes);
+        }
+    }
+
+    /**
+     * Queue bytes to overwrite another file, such as a sealed segment, at the
+     * given offset. The channel must stay open until the writes are flushed.
+     *
+     * @param channel the channel of the file, or null for the database file
+     * @param offset  the offset to be written
+     * @param bytes   the bytes to be written
+     */
+    public void patch(FileChannel channel, long offset, byte[] bytes) {
+        patchOffsets.add(offset);
+        patchBytes.add(bytes);
+        patchChannels.add(channel);
+    }
+
+    /**
+     * Check whether there are writes not yet passed to the file.
+     *
+     * @return true if there are pending writes
+     */
+    public boolean hasPendingWrites() {
+        return appendLength > 0 || !patchOffsets.isEmpty();
+    }
+
+    /**
+     * Pass all pending writes to the file without forcing them to the disk,
+     * so that they can be read back from the file.
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if (!hasPendingWrites()) {
+            return;
+        }
+        if (appendLength > 0) {
+            writeFully(fileChannel,
+                       ByteBuffer.wrap(appendBuffer, 0, appendLength),
+                       flushedOffset);
+            flushedOffset += appendLength;
+            appendLength = 0;
+        }
+        for (int i = 0; i < patchOffsets.size(); i++) {
+            FileChannel channel = patchChannels.get(i);
+            if (channel == null) {
+                channel = fileChannel;
+            } else if (!unforcedChannels.contains(channel)) {
+                unforcedChannels.add(channel);
+            }
+            writeFully(channel, ByteBuffer.wrap(patchBytes.get(i)),
+                       patchOffsets.get(i));
+        }
+        patchOffsets.clear();
+        patchBytes.clear();
+        patchChannels.clear();
+        hasUnforcedWrites = true;
+    }
+
+    /**
+     * Commit a modification. Pending writes are passed to the file and, with
+     * FSYNC durability, forced to the disk.
+     *
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        flush();
+        if (durability == Durability.FSYNC) {
+            force();
+        }
+    }
+
+    /**
+     * Pass pending writes to the file and force them to the disk unless the
+     * durability is NONE. Used before the file is closed or replaced.
+     *
+     * @throws IOException
+     */
+    public void checkpoint() throws IOException {
+        flush();
+        if (durability != Durability.NONE) {
+            force();
+        }
+    }
+
+    /**
+     * Force written data to the disk. Channels of sealed segments that have
+     * been closed since they were written are skipped, as they were either
+     * forced or deleted before being closed.
+     */
+    private void force() throws IOException {
+        if (hasUnforcedWrites) {
+            fileChannel.force(false);
+            for (FileChannel channel : unforcedChannels) {
+                if (channel.isOpen()) {
+                    channel.force(false);
+                }
+            }
+            unforcedChannels.clear();
+            hasUnforcedWrites = false;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer,
+                                   long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            offset += channel.write(buffer, offset);
+        }
+    }
+}
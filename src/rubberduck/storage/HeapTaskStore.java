@@ -0,0 +1,549 @@
+package rubberduck.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import rubberduck.storage.DatabaseManager.Durability;
+
+//@author A0119416H
+/**
+ * A store keeping the whole table of instances in memory, like
+ * MemoryTaskStore, and making it durable with a snapshot file and a
+ * write-ahead log next to it. Reads never touch the disk.
+ * <p/>
+ * Every modification, undo and redo is checked, then appended to the log as
+ * an entry framed by its length and a CRC32 checksum, and only then made in
+ * memory, so a change that fails to be logged is never seen.
+ * The table is written to a new snapshot, which replaces the old one in a
+ * single rename, after a number of log entries, after a modification made
+ * long enough after the last snapshot, and when the store is closed. The
+ * log is emptied after each snapshot. When the store is opened, the snapshot
+ * is loaded and the log is replayed on top of it. An incomplete or corrupted
+ * entry at the end of the log, left behind by a crash, is cut off.
+ * <p/>
+ * Both files carry the generation of the snapshot, which is increased by each
+ * snapshot, so a log left behind by a crash just after a snapshot replaced
+ * the old one is never replayed on top of the new one.
+ *
+ * @param <T> The data type stored in the store.
+ */
+public class HeapTaskStore<T extends Serializable & Comparable<T>>
+    extends MemoryTaskStore<T> {
+
+    public static final int DEFAULT_SNAPSHOT_ENTRIES = 1000;
+    public static final long DEFAULT_SNAPSHOT_INTERVAL = 10 * 60 * 1000;
+
+    private static final String SNAPSHOT_FILE_SUFFIX = ".snapshot";
+    private static final String LOG_FILE_SUFFIX = ".wal";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static final int SNAPSHOT_MAGIC_NUMBER = 0x52444853;
+    private static final int LOG_MAGIC_NUMBER = 0x5244574c;
+    private static final byte FORMAT_VERSION = 1;
+    private static final int LOG_HEADER_LENGTH = 13;
+    private static final int ENTRY_HEADER_LENGTH = 8;
+
+    private static final byte ENTRY_MODIFY = 1;
+    private static final byte ENTRY_MODIFY_ALL = 2;
+    private static final byte ENTRY_INSERT_UNRECORDED = 3;
+    private static final byte ENTRY_REMOVE_UNRECORDED = 4;
+    private static final byte ENTRY_UNDO = 5;
+    private static final byte ENTRY_REDO = 6;
+    private static final byte ENTRY_REWRITE = 7;
+
+    private static final Logger LOGGER =
+        Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    private static final String MESSAGE_RECOVERED =
+        "Recovered log of %s. %s";
+
+    /**
+     * A log entry being written, starting with its type.
+     */
+    private static class LogEntry extends DataOutputStream {
+        public LogEntry(byte type) throws IOException {
+            super(new ByteArrayOutputStream());
+            writeByte(type);
+        }
+
+        public byte[] toByteArray() {
+            return ((ByteArrayOutputStream) out).toByteArray();
+        }
+    }
+
+    private RecordCodec<T> codec;
+    private File snapshotFile;
+    private RandomAccessFile log;
+    private long generation = 0;
+    private int logEntryCount = 0;
+    private long lastSnapshotTime = System.currentTimeMillis();
+    private int snapshotEntries = DEFAULT_SNAPSHOT_ENTRIES;
+    private long snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+    private Durability durability = Durability.FSYNC;
+    private RecoveryReport recoveryReport = new RecoveryReport();
+
+    /**
+     * Open the store kept in the files with the given path, which are
+     * created if missing.
+     *
+     * @param filePath the path the names of the snapshot and log files start
+     *                 with
+     * @param codec    the codec used to encode and decode instances
+     * @throws IOException
+     */
+    public HeapTaskStore(String filePath, RecordCodec<T> codec)
+        throws IOException {
+        super(codec);
+        this.codec = codec;
+        this.snapshotFile = new File(filePath + SNAPSHOT_FILE_SUFFIX);
+        if (snapshotFile.isFile()) {
+            readSnapshot();
+        }
+        this.log = new RandomAccessFile(filePath + LOG_FILE_SUFFIX, "rw");
+        if (isLogOfSnapshot()) {
+            replayLog();
+        } else {
+            resetLog();
+        }
+        if (!recoveryReport.isClean()) {
+            LOGGER.warning(String.format(MESSAGE_RECOVERED, filePath,
+                                         recoveryReport));
+        }
+    }
+
+    /**
+     * Set the number of log entries after which a snapshot is written.
+     *
+     * @param entries the number of entries
+     */
+    public synchronized void setSnapshotEntries(int entries) {
+        snapshotEntries = entries;
+    }
+
+    /**
+     * Set the time after the last snapshot from which the next modification
+     * writes a snapshot.
+     *
+     * @param interval the time in milliseconds
+     */
+    public synchronized void setSnapshotInterval(long interval) {
+        snapshotInterval = interval;
+    }
+
+    /**
+     * Set when written data is forced to the disk, as in DatabaseManager. Each
+     * log entry is forced with FSYNC, and snapshots are forced unless it is
+     * NONE.
+     *
+     * @param durability the new durability level
+     */
+    public synchronized void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    public synchronized int getLogEntryCount() {
+        return logEntryCount;
+    }
+
+    /**
+     * Get what was cut off the end of the log when the store was opened.
+     *
+     * @return the report, with offsets in the log file
+     */
+    public RecoveryReport getRecoveryReport() {
+        return recoveryReport;
+    }
+
+    @Override
+    public synchronized Long modify(Long previousId, T newInstance,
+                                    String description) throws IOException {
+        List<Change<T>> changes =
+            Collections.singletonList(new Change<T>(previousId, newInstance));
+        return logChanges(ENTRY_MODIFY, changes, description).get(0);
+    }
+
+    @Override
+    public synchronized ArrayList<Long> modifyAll(List<Change<T>> changes,
+                                                  String description)
+        throws IOException {
+        return logChanges(ENTRY_MODIFY_ALL, changes, description);
+    }
+
+    @Override
+    public synchronized ArrayList<Long> insertUnrecorded(List<T> newInstances)
+        throws IOException {
+        LogEntry entry = new LogEntry(ENTRY_INSERT_UNRECORDED);
+        entry.writeInt(newInstances.size());
+        ArrayList<byte[]> newRecords =
+            new ArrayList<byte[]>(newInstances.size());
+        for (T instance : newInstances) {
+            byte[] record = codec.encode(instance);
+            writeRecord(entry, record);
+            newRecords.add(record);
+        }
+        appendEntry(entry);
+        ArrayList<Long> newIds = insertRecords(newInstances, newRecords);
+        snapshotIfDue();
+        return newIds;
+    }
+
+    @Override
+    public synchronized Set<Long> removeUnrecorded(
+        Collection<Long> instanceIds) throws IOException {
+        Set<Long> removedIds = getRemovableIds(instanceIds);
+        if (!removedIds.isEmpty()) {
+            LogEntry entry = new LogEntry(ENTRY_REMOVE_UNRECORDED);
+            entry.writeInt(removedIds.size());
+            for (Long removedId : removedIds) {
+                entry.writeLong(removedId);
+            }
+            appendEntry(entry);
+            removeIds(removedIds);
+            snapshotIfDue();
+        }
+        return removedIds;
+    }
+
+    @Override
+    public synchronized String undo()
+        throws IOException, UnsupportedOperationException {
+        if (getUndoStackSize() > 0) {
+            appendEntry(new LogEntry(ENTRY_UNDO));
+        }
+        String description = super.undo();
+        snapshotIfDue();
+        return description;
+    }
+
+    @Override
+    public synchronized String redo()
+        throws IOException, UnsupportedOperationException {
+        if (getRedoStackSize() > 0) {
+            appendEntry(new LogEntry(ENTRY_REDO));
+        }
+        String description = super.redo();
+        snapshotIfDue();
+        return description;
+    }
+
+    @Override
+    public synchronized void rewriteFile(boolean removeDeleted)
+        throws IOException {
+        LogEntry entry = new LogEntry(ENTRY_REWRITE);
+        entry.writeBoolean(removeDeleted);
+        appendEntry(entry);
+        super.rewriteFile(removeDeleted);
+        snapshotIfDue();
+    }
+
+    @Override
+    public synchronized void resetDatabase() throws IOException {
+        super.resetDatabase();
+        writeSnapshot();
+    }
+
+    /**
+     * Write a snapshot if the log is not empty, and close the log.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void closeFile() throws IOException {
+        if (logEntryCount > 0) {
+            writeSnapshot();
+        }
+        log.close();
+    }
+
+    /**
+     * Write the table to a new snapshot, which replaces the old one, and
+     * empty the log.
+     *
+     * @throws IOException
+     */
+    public synchronized void writeSnapshot() throws IOException {
+        File tempFile = new File(snapshotFile.getPath() + TEMP_FILE_SUFFIX);
+        FileOutputStream fileStream = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(fileStream));
+            output.writeInt(SNAPSHOT_MAGIC_NUMBER);
+            output.writeByte(FORMAT_VERSION);
+            output.writeLong(generation + 1);
+            writeTo(output);
+            output.flush();
+            if (durability != Durability.NONE) {
+                fileStream.getChannel().force(true);
+            }
+        } finally {
+            fileStream.close();
+        }
+        Files.move(tempFile.toPath(), snapshotFile.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        generation++;
+        resetLog();
+        lastSnapshotTime = System.currentTimeMillis();
+    }
+
+    private void readSnapshot() throws IOException {
+        DataInputStream input = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(snapshotFile)));
+        try {
+            if (input.readInt() != SNAPSHOT_MAGIC_NUMBER
+                || input.readByte() != FORMAT_VERSION) {
+                throw new IOException("Not a snapshot: " + snapshotFile);
+            }
+            generation = input.readLong();
+            readFrom(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Check whether the log holds entries made after the loaded snapshot.
+     *
+     * @return true if the log has a header with the generation of the
+     *         snapshot
+     * @throws IOException
+     */
+    private boolean isLogOfSnapshot() throws IOException {
+        if (log.length() < LOG_HEADER_LENGTH) {
+            return false;
+        }
+        log.seek(0);
+        return log.readInt() == LOG_MAGIC_NUMBER
+               && log.readByte() == FORMAT_VERSION
+               && log.readLong() == generation;
+    }
+
+    private void resetLog() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_LENGTH);
+        header.putInt(LOG_MAGIC_NUMBER);
+        header.put(FORMAT_VERSION);
+        header.putLong(generation);
+        log.setLength(0);
+        log.seek(0);
+        log.write(header.array());
+        if (durability != Durability.NONE) {
+            log.getChannel().force(true);
+        }
+        logEntryCount = 0;
+    }
+
+    /**
+     * Apply all entries of the log in order. The log is cut at the first
+     * entry that is incomplete or does not match its checksum, which can only
+     * be the last one written before a crash.
+     *
+     * @throws IOException
+     */
+    private void replayLog() throws IOException {
+        long offset = LOG_HEADER_LENGTH;
+        long length = log.length();
+        while (offset < length) {
+            byte[] payload = readEntry(offset, length);
+            if (payload == null) {
+                recoveryReport.setTruncated(offset, length - offset);
+                log.setLength(offset);
+                break;
+            }
+            applyEntry(new DataInputStream(new ByteArrayInputStream(payload)));
+            offset += ENTRY_HEADER_LENGTH + payload.length;
+            logEntryCount++;
+        }
+        log.seek(offset);
+    }
+
+    /**
+     * Read the payload of a log entry.
+     *
+     * @param offset the start of the entry
+     * @param length the length of the log
+     * @return the payload, or null if the entry is incomplete or corrupted
+     * @throws IOException
+     */
+    private byte[] readEntry(long offset, long length) throws IOException {
+        if (offset + ENTRY_HEADER_LENGTH > length) {
+            return null;
+        }
+        log.seek(offset);
+        int payloadLength = log.readInt();
+        int checksum = log.readInt();
+        if (payloadLength < 0
+            || offset + ENTRY_HEADER_LENGTH + payloadLength > length) {
+            return null;
+        }
+        byte[] payload = new byte[payloadLength];
+        log.readFully(payload);
+        if (checksum(payload) != checksum) {
+            return null;
+        }
+        return payload;
+    }
+
+    private void applyEntry(DataInputStream entry) throws IOException {
+        byte type = entry.readByte();
+        if (type == ENTRY_MODIFY || type == ENTRY_MODIFY_ALL) {
+            int count = type == ENTRY_MODIFY ? 1 : entry.readInt();
+            ArrayList<Change<T>> changes = new ArrayList<Change<T>>(count);
+            ArrayList<byte[]> newRecords = new ArrayList<byte[]>(count);
+            for (int i = 0; i < count; i++) {
+                Long previousId = readId(entry);
+                byte[] record = entry.readBoolean() ? readRecord(entry) : null;
+                changes.add(new Change<T>(previousId, record == null
+                                                      ? null
+                                                      : codec.decode(record)));
+                newRecords.add(record);
+            }
+            checkChanges(changes);
+            applyChanges(changes, newRecords, readDescription(entry));
+        } else if (type == ENTRY_INSERT_UNRECORDED) {
+            int count = entry.readInt();
+            ArrayList<T> newInstances = new ArrayList<T>(count);
+            ArrayList<byte[]> newRecords = new ArrayList<byte[]>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] record = readRecord(entry);
+                newInstances.add(codec.decode(record));
+                newRecords.add(record);
+            }
+            insertRecords(newInstances, newRecords);
+        } else if (type == ENTRY_REMOVE_UNRECORDED) {
+            int count = entry.readInt();
+            ArrayList<Long> ids = new ArrayList<Long>(count);
+            for (int i = 0; i < count; i++) {
+                ids.add(entry.readLong());
+            }
+            super.removeUnrecorded(ids);
+        } else if (type == ENTRY_UNDO) {
+            super.undo();
+        } else if (type == ENTRY_REDO) {
+            super.redo();
+        } else if (type == ENTRY_REWRITE) {
+            super.rewriteFile(entry.readBoolean());
+        } else {
+            throw new IOException("Unknown log entry " + type);
+        }
+    }
+
+    /**
+     * Check a batch of modifications, log it and make it in memory.
+     *
+     * @param type        the type of the log entry
+     * @param changes     the modifications
+     * @param description the description of the action, which may be null
+     * @return the IDs of the new instances as in modifyAll()
+     * @throws IOException
+     */
+    private ArrayList<Long> logChanges(byte type, List<Change<T>> changes,
+                                       String description)
+        throws IOException {
+        checkChanges(changes);
+        ArrayList<byte[]> newRecords = encodeChanges(changes);
+        LogEntry entry = new LogEntry(type);
+        if (type == ENTRY_MODIFY_ALL) {
+            entry.writeInt(changes.size());
+        }
+        for (int i = 0; i < changes.size(); i++) {
+            writeChange(entry, changes.get(i).getPreviousId(),
+                        newRecords.get(i));
+        }
+        writeDescription(entry, description);
+        appendEntry(entry);
+        ArrayList<Long> newIds =
+            applyChanges(changes, newRecords, description);
+        snapshotIfDue();
+        return newIds;
+    }
+
+    /**
+     * Write a change as the ID of the removed instance, or 0, followed by the
+     * record of the new instance, if any.
+     */
+    private static void writeChange(DataOutputStream entry, Long previousId,
+                                    byte[] newRecord) throws IOException {
+        entry.writeLong(previousId == null ? 0 : previousId);
+        entry.writeBoolean(newRecord != null);
+        if (newRecord != null) {
+            writeRecord(entry, newRecord);
+        }
+    }
+
+    private static void writeRecord(DataOutputStream entry, byte[] record)
+        throws IOException {
+        entry.writeInt(record.length);
+        entry.write(record);
+    }
+
+    private static Long readId(DataInputStream entry) throws IOException {
+        long id = entry.readLong();
+        return id == 0 ? null : id;
+    }
+
+    private static byte[] readRecord(DataInputStream entry)
+        throws IOException {
+        byte[] record = new byte[entry.readInt()];
+        entry.readFully(record);
+        return record;
+    }
+
+    /**
+     * Append an entry to the log.
+     *
+     * @param entry the entry
+     * @throws IOException
+     */
+    private void appendEntry(LogEntry entry) throws IOException {
+        byte[] payload = entry.toByteArray();
+        ByteBuffer buffer =
+            ByteBuffer.allocate(ENTRY_HEADER_LENGTH + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt(checksum(payload));
+        buffer.put(payload);
+        log.write(buffer.array());
+        if (durability == Durability.FSYNC) {
+            log.getChannel().force(false);
+        }
+        logEntryCount++;
+    }
+
+    /**
+     * Write a snapshot if enough entries or time have passed since the last
+     * one.
+     *
+     * @throws IOException
+     */
+    private void snapshotIfDue() throws IOException {
+        if (logEntryCount >= snapshotEntries || System.currentTimeMillis()
+                                                - lastSnapshotTime
+                                                >= snapshotInterval) {
+            writeSnapshot();
+        }
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
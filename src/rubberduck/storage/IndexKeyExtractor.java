@@ -0,0 +1,21 @@
+package rubberduck.storage;
+
+//@author A0119416H
+/**
+ * Extracts the key of an instance for a secondary index of DatabaseManager.
+ * Keys are compared with equals() and hashCode(), and null is a valid key.
+ *
+ * @param <T> The data type stored in the database.
+ * @param <K> The type of keys of the index.
+ */
+public interface IndexKeyExtractor<T, K> {
+
+    /**
+     * Get the key of an instance. It must only depend on the content of the
+     * instance, as a written instance never changes.
+     *
+     * @param instance the instance
+     * @return the key of the instance
+     */
+    public K getKey(T instance);
+}
@@ -0,0 +1,137 @@
+package rubberduck.storage;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//@author A0119416H
+/**
+ * A size-bounded LRU cache of decoded instances, keyed by instance ID.
+ * <p/>
+ * Instances handed out by DatabaseManager may be modified freely by the
+ * caller, so the cache never returns the object it holds. A private copy is
+ * made by RecordCodec.copy() on every hit instead. TaskRecordCodec copies
+ * the fields of a Task directly, which takes less than half the time of
+ * decoding its binary record. The cache is shared by concurrent readers of
+ * the database, so it is synchronized. Copies are made outside the lock, as
+ * held instances are never modified.
+ *
+ * @param <T> The data type stored in the database.
+ */
+class InstanceCache<T extends Serializable> {
+
+    private class LruMap extends LinkedHashMap<Long, T> {
+        private static final long serialVersionUID = 1L;
+
+        public LruMap() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, T> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private LruMap cacheMap = new LruMap();
+    private RecordCodec<T> codec;
+    private int capacity;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    /**
+     * Create a cache holding at most the given number of instances.
+     *
+     * @param codec    the codec of the instances, which copies them
+     * @param capacity maximum number of instances held, 0 disables caching
+     */
+    public InstanceCache(RecordCodec<T> codec, int capacity) {
+        this.codec = codec;
+        setCapacity(capacity);
+    }
+
+    /**
+     * Change the maximum number of instances held. Excessive entries are
+     * evicted on the next insertion.
+     *
+     * @param capacity maximum number of instances held, 0 disables caching
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity cannot be negative.");
+        }
+        this.capacity = capacity;
+        if (capacity == 0) {
+            cacheMap.clear();
+        }
+    }
+
+    /**
+     * Get a private copy of the cached instance with the given ID.
+     *
+     * @param instanceId the ID of the instance
+     * @return a copy of the cached instance, or null if it is not cached
+     * @throws IOException if the cached instance cannot be copied
+     */
+    public T get(long instanceId) throws IOException {
+        T instance;
+        synchronized (this) {
+            instance = cacheMap.get(instanceId);
+            if (instance == null) {
+                missCount++;
+                return null;
+            }
+            hitCount++;
+        }
+        return codec.copy(instance);
+    }
+
+    /**
+     * Put a freshly decoded instance into the cache. The cache keeps the given
+     * object, so the caller must hand out the returned copy instead.
+     *
+     * @param instanceId the ID of the instance
+     * @param instance the decoded instance
+     * @return a private copy of the instance, or the instance itself if
+     *         caching is disabled
+     * @throws IOException if the instance cannot be copied
+     */
+    public T put(long instanceId, T instance) throws IOException {
+        synchronized (this) {
+            if (capacity == 0) {
+                return instance;
+            }
+            cacheMap.put(instanceId, instance);
+        }
+        return codec.copy(instance);
+    }
+
+    /**
+     * Drop the instance with the given ID from the cache, if any.
+     *
+     * @param instanceId the ID of the instance
+     */
+    public synchronized void remove(long instanceId) {
+        cacheMap.remove(instanceId);
+    }
+
+    /**
+     * Drop all cached instances. The hit/miss counters are kept.
+     */
+    public synchronized void clear() {
+        cacheMap.clear();
+    }
+
+    public synchronized int size() {
+        return cacheMap.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+}
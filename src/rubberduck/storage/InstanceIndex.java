@@ -0,0 +1,43 @@
+package rubberduck.storage;
+
+//@author A0119416H
+/**
+ * An index over the instances of a database, which DatabaseManager keeps up
+ * to date as instances are added and change state.
+ *
+ * @param <T> The data type stored in the database.
+ */
+interface InstanceIndex<T> {
+
+    /**
+     * Index a tracked instance.
+     *
+     * @param instanceId the ID of the instance
+     * @param instance   the instance
+     * @param isValid    whether the instance is valid
+     */
+    public void add(long instanceId, T instance, boolean isValid);
+
+    /**
+     * Update the index after an instance has become valid.
+     *
+     * @param instanceId the ID of the instance
+     */
+    public void markAsValid(long instanceId);
+
+    /**
+     * Update the index after an instance is no longer valid.
+     *
+     * @param instanceId the ID of the instance
+     */
+    public void markAsNotValid(long instanceId);
+
+    /**
+     * Forget an instance that is no longer tracked.
+     *
+     * @param instanceId the ID of the instance
+     */
+    public void remove(long instanceId);
+
+    public void clear();
+}
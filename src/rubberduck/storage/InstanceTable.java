@@ -0,0 +1,251 @@
+package rubberduck.storage;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+//@author A0119416H
+/**
+ * The offset and state of every instance in the database file, indexed by ID.
+ * <p/>
+ * IDs are handed out in sequence starting from 1, so offsets and states are
+ * kept in two parallel primitive arrays instead of maps of boxed values. A
+ * state transition only changes one byte. IDs that are no longer tracked keep
+ * their slot with STATE_NONE. Offsets are global offsets with the segment
+ * number in their high bits, so they do not increase with IDs: older IDs may
+ * be in sealed segments, numbered from 1, while newer IDs are in the active
+ * segment 0. Even within a segment, offsets only mostly increase with IDs.
+ * <p/>
+ * The table is guarded by the lock of DatabaseManager. Only getValidIds(),
+ * which builds its list lazily, may be called by several readers at once.
+ */
+class InstanceTable {
+
+    public static final byte STATE_NONE = 0;
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int STATE_COUNT = 4;
+
+    /**
+     * An unmodifiable list over the first elements of an array of IDs. The
+     * array is never changed below the size of any list over it, so a list
+     * stays the same after it is handed out.
+     */
+    private static class IdList extends AbstractList<Long> implements
+            RandomAccess {
+        private long[] ids;
+        private int size;
+
+        public IdList(long[] ids, int size) {
+            this.ids = ids;
+            this.size = size;
+        }
+
+        @Override
+        public Long get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index);
+            }
+            return ids[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    private long[] offsets = new long[INITIAL_CAPACITY];
+    private byte[] states = new byte[INITIAL_CAPACITY];
+    private int maxId = 0;
+    private int[] stateCounts = new int[STATE_COUNT];
+
+    /**
+     * IDs of valid instances in increasing order, kept until a valid instance
+     * other than the newest one changes state. New valid instances are
+     * appended to it.
+     */
+    private long[] validIds = null;
+    private int validIdCount = 0;
+    private IdList validIdList = null;
+
+    /**
+     * Assign the next ID to a record.
+     *
+     * @param offset the offset of the record
+     * @param state  the state of the record
+     * @return the assigned ID
+     */
+    public long add(long offset, byte state) {
+        if (maxId + 1 == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            states = Arrays.copyOf(states, states.length * 2);
+        }
+        maxId++;
+        offsets[maxId] = offset;
+        states[maxId] = state;
+        stateCounts[state]++;
+        if (state == RecordFormat.STATE_VALID && validIds != null) {
+            appendValidId(maxId);
+        }
+        return maxId;
+    }
+
+    /**
+     * Get the largest ID handed out.
+     *
+     * @return the largest ID, or 0 if no ID has been handed out
+     */
+    public long getMaxId() {
+        return maxId;
+    }
+
+    /**
+     * Get the state of an ID.
+     *
+     * @param id the ID
+     * @return the state of the record with the ID, or STATE_NONE if the ID is
+     *         not tracked
+     */
+    public byte getState(long id) {
+        if (id < 1 || id > maxId) {
+            return STATE_NONE;
+        }
+        return states[(int) id];
+    }
+
+    public long getOffset(long id) {
+        assert getState(id) != STATE_NONE;
+        return offsets[(int) id];
+    }
+
+    /**
+     * Change the state of a tracked ID. Setting STATE_NONE stops tracking it.
+     *
+     * @param id    the ID
+     * @param state the new state
+     */
+    public void setState(long id, byte state) {
+        byte oldState = getState(id);
+        assert oldState != STATE_NONE;
+        if (oldState == RecordFormat.STATE_VALID
+            || state == RecordFormat.STATE_VALID) {
+            validIds = null;
+            validIdList = null;
+        }
+        stateCounts[oldState]--;
+        stateCounts[state]++;
+        states[(int) id] = state;
+    }
+
+    /**
+     * Stop tracking every ID in the given state.
+     *
+     * @param state the state to be cleared
+     * @return the number of IDs no longer tracked
+     */
+    public int clearState(byte state) {
+        int count = stateCounts[state];
+        if (count == 0) {
+            return 0;
+        }
+        for (int id = 1; id <= maxId; id++) {
+            if (states[id] == state) {
+                states[id] = STATE_NONE;
+            }
+        }
+        stateCounts[STATE_NONE] += count;
+        stateCounts[state] = 0;
+        if (state == RecordFormat.STATE_VALID) {
+            validIds = null;
+            validIdList = null;
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of IDs in the given state.
+     *
+     * @param state the state
+     * @return the number of IDs
+     */
+    public int count(byte state) {
+        return stateCounts[state];
+    }
+
+    /**
+     * Get the IDs of valid instances in increasing order.
+     *
+     * @return an unmodifiable list, which does not change after it is returned
+     */
+    public synchronized List<Long> getValidIds() {
+        if (validIdList == null) {
+            if (validIds == null) {
+                validIds = new long[Math.max(
+                    INITIAL_CAPACITY, stateCounts[RecordFormat.STATE_VALID])];
+                validIdCount = 0;
+                for (int id = 1; id <= maxId; id++) {
+                    if (states[id] == RecordFormat.STATE_VALID) {
+                        validIds[validIdCount++] = id;
+                    }
+                }
+            }
+            validIdList = new IdList(validIds, validIdCount);
+        }
+        return validIdList;
+    }
+
+    /**
+     * Get the IDs in the given state in increasing order.
+     *
+     * @param state the state
+     * @return a new list of the IDs
+     */
+    public ArrayList<Long> getIds(byte state) {
+        ArrayList<Long> ids = new ArrayList<Long>(stateCounts[state]);
+        for (int id = 1; id <= maxId; id++) {
+            if (states[id] == state) {
+                ids.add((long) id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Copy the states of all IDs, indexed by ID.
+     *
+     * @return a copy of the states, of length getMaxId() + 1
+     */
+    public byte[] copyStates() {
+        return Arrays.copyOf(states, maxId + 1);
+    }
+
+    /**
+     * Copy the offsets of all IDs, indexed by ID.
+     *
+     * @return a copy of the offsets, of length getMaxId() + 1
+     */
+    public long[] copyOffsets() {
+        return Arrays.copyOf(offsets, maxId + 1);
+    }
+
+    /**
+     * Replace the offsets of all IDs, after the records have been moved.
+     *
+     * @param newOffsets the new offsets indexed by ID, of length getMaxId() + 1
+     */
+    public void setOffsets(long[] newOffsets) {
+        assert newOffsets.length == maxId + 1;
+        System.arraycopy(newOffsets, 0, offsets, 0, newOffsets.length);
+    }
+
+    private void appendValidId(long id) {
+        if (validIdCount == validIds.length) {
+            validIds = Arrays.copyOf(validIds, validIds.length * 2);
+        }
+        validIds[validIdCount++] = id;
+        validIdList = null;
+    }
+}
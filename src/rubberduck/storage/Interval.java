@@ -0,0 +1,36 @@
+package rubberduck.storage;
+
+//@author A0119416H
+/**
+ * A closed interval of longs, such as a period of time in milliseconds. Use
+ * Long.MIN_VALUE and Long.MAX_VALUE for an interval without a start or an end.
+ */
+public class Interval {
+
+    private long start;
+    private long end;
+
+    /**
+     * Create an interval.
+     *
+     * @param start the start of the interval
+     * @param end   the end of the interval, which must not be before start
+     * @throws IllegalArgumentException if end is before start
+     */
+    public Interval(long start, long end) {
+        if (end < start) {
+            throw new IllegalArgumentException(
+                "The end of an interval is before its start.");
+        }
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+}
@@ -0,0 +1,23 @@
+package rubberduck.storage;
+
+import java.util.List;
+
+//@author A0119416H
+/**
+ * Extracts the intervals of an instance for an interval index of
+ * DatabaseManager.
+ *
+ * @param <T> The data type stored in the database.
+ */
+public interface IntervalExtractor<T> {
+
+    /**
+     * Get the intervals of an instance. They must only depend on the content
+     * of the instance, as a written instance never changes.
+     *
+     * @param instance the instance
+     * @return the intervals of the instance, which may be empty if the
+     *         instance is not to be indexed
+     */
+    public List<Interval> getIntervals(T instance);
+}
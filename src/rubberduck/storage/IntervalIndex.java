@@ -0,0 +1,90 @@
+package rubberduck.storage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+//@author A0119416H
+/**
+ * An index of the intervals of valid instances, which finds the instances
+ * with an interval overlapping a given one.
+ * <p/>
+ * As in SecondaryIndex, the intervals of every tracked instance are
+ * remembered whatever its state, but only those of valid instances are in the
+ * interval tree.
+ *
+ * @param <T> The data type stored in the database.
+ */
+class IntervalIndex<T> implements InstanceIndex<T> {
+
+    private IntervalExtractor<T> extractor;
+    private HashMap<Long, List<Interval>> instanceIntervals =
+        new HashMap<Long, List<Interval>>();
+    private IntervalTree validIntervals = new IntervalTree();
+
+    public IntervalIndex(IntervalExtractor<T> extractor) {
+        this.extractor = extractor;
+    }
+
+    @Override
+    public void add(long instanceId, T instance, boolean isValid) {
+        List<Interval> intervals = extractor.getIntervals(instance);
+        if (intervals.isEmpty()) {
+            return;
+        }
+        intervals = new ArrayList<Interval>(intervals);
+        instanceIntervals.put(instanceId, intervals);
+        if (isValid) {
+            markAsValid(instanceId);
+        }
+    }
+
+    @Override
+    public void markAsValid(long instanceId) {
+        List<Interval> intervals = instanceIntervals.get(instanceId);
+        if (intervals != null) {
+            for (Interval interval : intervals) {
+                validIntervals.insert(interval.getStart(), interval.getEnd(),
+                                      instanceId);
+            }
+        }
+    }
+
+    @Override
+    public void markAsNotValid(long instanceId) {
+        List<Interval> intervals = instanceIntervals.get(instanceId);
+        if (intervals != null) {
+            for (Interval interval : intervals) {
+                validIntervals.delete(interval.getStart(), interval.getEnd(),
+                                      instanceId);
+            }
+        }
+    }
+
+    @Override
+    public void remove(long instanceId) {
+        markAsNotValid(instanceId);
+        instanceIntervals.remove(instanceId);
+    }
+
+    @Override
+    public void clear() {
+        instanceIntervals.clear();
+        validIntervals.clear();
+    }
+
+    /**
+     * Get the IDs of valid instances with an interval overlapping the given
+     * closed interval.
+     *
+     * @param start the start of the interval
+     * @param end   the end of the interval
+     * @return a new list of the IDs in increasing order
+     */
+    public ArrayList<Long> getValidIdsOverlapping(long start, long end) {
+        TreeSet<Long> ids = new TreeSet<Long>();
+        validIntervals.findOverlapping(start, end, ids);
+        return new ArrayList<Long>(ids);
+    }
+}
@@ -0,0 +1,194 @@
+package rubberduck.storage;
+
+import java.util.Collection;
+import java.util.Random;
+
+//@author A0119416H
+/**
+ * An augmented interval tree of closed intervals, each tagged with the ID of
+ * an instance.
+ * <p/>
+ * Intervals are kept in a treap ordered by start, end and ID. Every node
+ * holds the largest end in its subtree, so subtrees that cannot overlap a
+ * query are skipped, and the intervals overlapping a query are found in
+ * O(log n + k) expected time.
+ */
+class IntervalTree {
+
+    private static class Node {
+        private long start;
+        private long end;
+        private long id;
+        private int priority;
+        private long maxEnd;
+        private Node left = null;
+        private Node right = null;
+
+        public Node(long start, long end, long id, int priority) {
+            this.start = start;
+            this.end = end;
+            this.id = id;
+            this.priority = priority;
+            this.maxEnd = end;
+        }
+
+        public void update() {
+            maxEnd = end;
+            if (left != null && left.maxEnd > maxEnd) {
+                maxEnd = left.maxEnd;
+            }
+            if (right != null && right.maxEnd > maxEnd) {
+                maxEnd = right.maxEnd;
+            }
+        }
+
+        public int compareTo(long start, long end, long id) {
+            if (this.start != start) {
+                return this.start < start ? -1 : 1;
+            } else if (this.end != end) {
+                return this.end < end ? -1 : 1;
+            } else if (this.id != id) {
+                return this.id < id ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+
+    private Node root = null;
+    private int size = 0;
+    private Random random = new Random();
+
+    /**
+     * Add an interval.
+     *
+     * @param start the start of the interval
+     * @param end   the end of the interval, not before start
+     * @param id    the ID of the instance the interval belongs to
+     */
+    public void insert(long start, long end, long id) {
+        assert start <= end;
+        root = insert(root, new Node(start, end, id, random.nextInt()));
+        size++;
+    }
+
+    /**
+     * Remove an interval added before.
+     *
+     * @param start the start of the interval
+     * @param end   the end of the interval
+     * @param id    the ID of the instance the interval belongs to
+     */
+    public void delete(long start, long end, long id) {
+        root = delete(root, start, end, id);
+    }
+
+    public void clear() {
+        root = null;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Find the intervals overlapping the given closed interval.
+     *
+     * @param start the start of the query
+     * @param end   the end of the query
+     * @param ids   the collection the IDs of the overlapping intervals are
+     *              added to
+     */
+    public void findOverlapping(long start, long end, Collection<Long> ids) {
+        findOverlapping(root, start, end, ids);
+    }
+
+    private Node insert(Node node, Node newNode) {
+        if (node == null) {
+            return newNode;
+        }
+        if (node.compareTo(newNode.start, newNode.end, newNode.id) > 0) {
+            node.left = insert(node.left, newNode);
+            if (node.left.priority > node.priority) {
+                node = rotateRight(node);
+            }
+        } else {
+            node.right = insert(node.right, newNode);
+            if (node.right.priority > node.priority) {
+                node = rotateLeft(node);
+            }
+        }
+        node.update();
+        return node;
+    }
+
+    private Node delete(Node node, long start, long end, long id) {
+        if (node == null) {
+            return null;
+        }
+        int comparison = node.compareTo(start, end, id);
+        if (comparison > 0) {
+            node.left = delete(node.left, start, end, id);
+        } else if (comparison < 0) {
+            node.right = delete(node.right, start, end, id);
+        } else {
+            size--;
+            return merge(node.left, node.right);
+        }
+        node.update();
+        return node;
+    }
+
+    /**
+     * Merge two treaps where every node of left comes before every node of
+     * right.
+     */
+    private Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        } else if (right == null) {
+            return left;
+        } else if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            left.update();
+            return left;
+        } else {
+            right.left = merge(left, right.left);
+            right.update();
+            return right;
+        }
+    }
+
+    private void findOverlapping(Node node, long start, long end,
+                                 Collection<Long> ids) {
+        if (node == null || node.maxEnd < start) {
+            return;
+        }
+        findOverlapping(node.left, start, end, ids);
+        if (node.start > end) {
+            return;
+        }
+        if (node.end >= start) {
+            ids.add(node.id);
+        }
+        findOverlapping(node.right, start, end, ids);
+    }
+
+    private Node rotateRight(Node node) {
+        Node left = node.left;
+        node.left = left.right;
+        node.update();
+        left.right = node;
+        left.update();
+        return left;
+    }
+
+    private Node rotateLeft(Node node) {
+        Node right = node.right;
+        node.right = right.left;
+        node.update();
+        right.left = node;
+        right.update();
+        return right;
+    }
+}
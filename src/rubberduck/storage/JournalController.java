@@ -1,32 +1,53 @@
 package rubberduck.storage;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
-import java.util.Stack;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
 
 //@author A0119416H
 /**
  * This class records all the actions done and controls undo/redo operations.
+ * <p/>
+ * The newest actions are kept in memory in a ring buffer of fixed depth, and
+ * older ones spill to a JournalFile, so memory use does not grow with the
+ * number of actions. Actions can still be undone after the database is
+ * closed and opened again. As IDs change when the database is opened again,
+ * they are translated when the journal is closed.
+ * <p/>
+ * The whole journal is a sequence of actions, oldest first, where the actions
+ * before the cursor can be undone and the ones after it can be redone. The
+ * file holds the start of the sequence and the ring buffer the rest, and the
+ * cursor is in the file only if the ring buffer holds no action to undo.
  */
 public class JournalController<T extends Serializable & Comparable<T>> {
 
-    private class IDPair {
-        private Long previousId;
-        private Long newId;
+    public static final int DEFAULT_MEMORY_DEPTH = 64;
+
+    private static final long NO_ID = 0;
+
+    /**
+     * An action is undone and redone as a whole, even if it made more than one
+     * modification. Its ID pairs are stored one after another, previous ID
+     * first, with NO_ID for a missing ID.
+     */
+    private static class Action {
+        private long[] idPairs;
         private String description;
 
-        public IDPair(Long previousId, Long newId, String description) {
-            this.previousId = previousId;
-            this.newId = newId;
+        public Action(long[] idPairs, String description) {
+            this.idPairs = idPairs;
             this.description = description;
         }
 
-        public Long getPreviousId() {
-            return previousId;
-        }
-
-        public Long getNewId() {
-            return newId;
+        public long[] getIdPairs() {
+            return idPairs;
         }
 
         public String getDescription() {
@@ -34,18 +55,28 @@ public class JournalController<T extends Serializable & Comparable<T>> {
         }
     }
 
-    private Stack<IDPair> undoStack = new Stack<IDPair>();
-    private Stack<IDPair> redoStack = new Stack<IDPair>();
-
     private DatabaseManager<T> dbManager;
+    private JournalFile journalFile;
+    private ActionRing ring;
+
+    /**
+     * The number of actions in ring that can be undone, which are the oldest
+     * ones.
+     */
+    private int ringUndoCount = 0;
 
     /**
      * Initialize the JournalController with the given dbManager.
      *
-     * @param dbManager an initialized instance of DatabaseManager
+     * @param dbManager   an initialized instance of DatabaseManager
+     * @param journalFile the opened file keeping older actions
+     * @param memoryDepth the number of newest actions kept in memory
      */
-    public JournalController(DatabaseManager<T> dbManager) {
+    JournalController(DatabaseManager<T> dbManager, JournalFile journalFile,
+                      int memoryDepth) {
         this.dbManager = dbManager;
+        this.journalFile = journalFile;
+        this.ring = new ActionRing(memoryDepth);
     }
 
     /**
@@ -56,31 +87,63 @@ public class JournalController<T extends Serializable & Comparable<T>> {
      * @param newId the ID of the new instance, can be null if the action is
      *            delete
      * @param description the description of the recorded action
+     * @throws IOException if older actions cannot be spilled to the journal
      */
-    public void recordAction(Long previousId, Long newId, String description) {
-        redoStack.clear();
-        undoStack.add(new IDPair(previousId, newId, description));
+    public void recordAction(Long previousId, Long newId, String description)
+        throws IOException {
+        push(new long[] {encodeId(previousId), encodeId(newId)}, description);
     }
 
     /**
-     * Undo the last action
+     * Record an action made of several modifications, which is undone and
+     * redone as a whole.
+     *
+     * @param previousIds the IDs of the old instances in the order of the
+     *            modifications, with null for additions
+     * @param newIds the IDs of the new instances in the same order, with null
+     *            for deletions
+     * @param description the description of the recorded action
+     * @throws IOException if older actions cannot be spilled to the journal
+     */
+    public void recordActions(List<Long> previousIds, List<Long> newIds,
+                              String description) throws IOException {
+        assert previousIds.size() == newIds.size();
+        long[] idPairs = new long[previousIds.size() * 2];
+        for (int i = 0; i < previousIds.size(); i++) {
+            idPairs[i * 2] = encodeId(previousIds.get(i));
+            idPairs[i * 2 + 1] = encodeId(newIds.get(i));
+        }
+        push(idPairs, description);
+    }
+
+    /**
+     * Undo the last action. The modifications of the action are reverted in
+     * the reverse order.
      *
      * @return the description of the undone action
      * @throws IOException if file IO failed in dbManager
      * @throws UnsupportedOperationException if there is no action to undo
      */
     public String undo() throws IOException, UnsupportedOperationException {
-        if (undoStack.size() == 0) {
+        Action lastAction;
+        if (ringUndoCount > 0) {
+            ringUndoCount--;
+            lastAction = new Action(ring.getIdPairs(ringUndoCount),
+                                    ring.getDescription(ringUndoCount));
+        } else if (journalFile.getUndoCount() > 0) {
+            lastAction = decode(journalFile.undo());
+        } else {
             throw new UnsupportedOperationException("Nothing to undo.");
         }
-        IDPair lastAction = undoStack.pop();
-        if (lastAction.getNewId() != null) {
-            dbManager.markAsInvalid(lastAction.getNewId());
-        }
-        if (lastAction.getPreviousId() != null) {
-            dbManager.markAsValid(lastAction.getPreviousId());
+        long[] idPairs = lastAction.getIdPairs();
+        for (int i = idPairs.length - 2; i >= 0; i -= 2) {
+            if (idPairs[i + 1] != NO_ID) {
+                dbManager.markAsInvalid(idPairs[i + 1]);
+            }
+            if (idPairs[i] != NO_ID) {
+                dbManager.markAsValid(idPairs[i]);
+            }
         }
-        redoStack.push(lastAction);
         return lastAction.getDescription();
     }
 
@@ -92,30 +155,221 @@ public class JournalController<T extends Serializable & Comparable<T>> {
      * @throws UnsupportedOperationException if there is no action to redo
      */
     public String redo() throws IOException, UnsupportedOperationException {
-        if (redoStack.size() == 0) {
+        Action lastAction;
+        if (journalFile.getRedoCount() > 0) {
+            lastAction = decode(journalFile.redo());
+        } else if (ringUndoCount < ring.size()) {
+            lastAction = new Action(ring.getIdPairs(ringUndoCount),
+                                    ring.getDescription(ringUndoCount));
+            ringUndoCount++;
+        } else {
             throw new UnsupportedOperationException("Nothing to redo.");
         }
-        IDPair lastAction = redoStack.pop();
-        if (lastAction.getPreviousId() != null) {
-            if (lastAction.getNewId() == null) {
-                dbManager.markAsDeleted(lastAction.getPreviousId());
-            } else {
-                dbManager.markAsInvalid(lastAction.getPreviousId());
+        long[] idPairs = lastAction.getIdPairs();
+        for (int i = 0; i < idPairs.length; i += 2) {
+            if (idPairs[i] != NO_ID) {
+                if (idPairs[i + 1] == NO_ID) {
+                    dbManager.markAsDeleted(idPairs[i]);
+                } else {
+                    dbManager.markAsInvalid(idPairs[i]);
+                }
+            }
+            if (idPairs[i + 1] != NO_ID) {
+                dbManager.markAsValid(idPairs[i + 1]);
             }
         }
-        if (lastAction.getNewId() != null) {
-            dbManager.markAsValid(lastAction.getNewId());
-        }
-        undoStack.push(lastAction);
         return lastAction.getDescription();
     }
 
     public int getUndoStackSize() {
-        return undoStack.size();
+        return journalFile.getUndoCount() + ringUndoCount;
     }
 
     public int getRedoStackSize() {
-        return redoStack.size();
+        return journalFile.getRedoCount() + ring.size() - ringUndoCount;
+    }
+
+    /**
+     * Change the number of newest actions kept in memory. All actions are
+     * moved to the journal file.
+     *
+     * @param memoryDepth the number of newest actions kept in memory
+     * @throws IOException if the journal cannot be written
+     */
+    void setMemoryDepth(int memoryDepth) throws IOException {
+        flush();
+        ring = new ActionRing(memoryDepth);
+    }
+
+    /**
+     * Forget all recorded actions.
+     *
+     * @throws IOException if the journal cannot be written
+     */
+    void clear() throws IOException {
+        journalFile.clear();
+        ring.clear();
+        ringUndoCount = 0;
+    }
+
+    /**
+     * Get the IDs of all instances that undo or redo may change.
+     *
+     * @return the IDs in increasing order
+     * @throws IOException if the journal cannot be read
+     */
+    TreeSet<Long> getReferencedIds() throws IOException {
+        TreeSet<Long> ids = new TreeSet<Long>();
+        for (Action action : getActions()) {
+            for (long id : action.getIdPairs()) {
+                if (id != NO_ID) {
+                    ids.add(id);
+                }
+            }
+        }
+        return ids;
     }
 
+    /**
+     * Translate the recorded IDs to the IDs instances get when the database
+     * is opened again, and write all actions to the journal file before
+     * closing it. If an instance gets no new ID, all actions are forgotten
+     * instead.
+     *
+     * @param newIds the new ID of each instance indexed by its current ID, or
+     *               NO_ID if it gets none
+     * @param stamp  the stamp of the closed database file
+     * @throws IOException if the journal cannot be written
+     */
+    void close(long[] newIds, long stamp) throws IOException {
+        int undoCount = getUndoStackSize();
+        List<Action> actions = getActions();
+        List<byte[]> entries = new ArrayList<byte[]>(actions.size());
+        try {
+            for (Action action : actions) {
+                long[] idPairs = action.getIdPairs().clone();
+                for (int i = 0; i < idPairs.length; i++) {
+                    idPairs[i] = translateId(idPairs[i], newIds);
+                }
+                entries.add(encode(new Action(idPairs,
+                                              action.getDescription())));
+            }
+            journalFile.rewrite(entries, undoCount);
+        } catch (IllegalArgumentException e) {
+            journalFile.clear();
+        }
+        ring.clear();
+        ringUndoCount = 0;
+        journalFile.close(stamp);
+    }
+
+    /**
+     * Close the journal so that its actions are forgotten.
+     *
+     * @throws IOException
+     */
+    void discard() throws IOException {
+        journalFile.discard();
+    }
+
+    /**
+     * Add an action after the cursor, dropping the actions that could be
+     * redone. The oldest action in memory spills to the journal file if the
+     * ring buffer is full.
+     */
+    private void push(long[] idPairs, String description) throws IOException {
+        if (journalFile.getRedoCount() > 0) {
+            journalFile.clearRedo();
+            ring.clear();
+        } else {
+            ring.truncate(ringUndoCount);
+        }
+        if (ring.isFull()) {
+            journalFile.push(encode(new Action(ring.getIdPairs(0),
+                                               ring.getDescription(0))));
+            ring.removeFirst();
+        }
+        ring.addLast(idPairs, description);
+        ringUndoCount = ring.size();
+    }
+
+    /**
+     * Move all actions in memory to the journal file.
+     */
+    private void flush() throws IOException {
+        int undoCount = getUndoStackSize();
+        List<Action> actions = getActions();
+        List<byte[]> entries = new ArrayList<byte[]>(actions.size());
+        for (Action action : actions) {
+            entries.add(encode(action));
+        }
+        journalFile.rewrite(entries, undoCount);
+        ring.clear();
+        ringUndoCount = 0;
+    }
+
+    /**
+     * Get all actions, oldest first.
+     */
+    private List<Action> getActions() throws IOException {
+        List<Action> actions = new ArrayList<Action>();
+        for (byte[] entry : journalFile.readAll()) {
+            actions.add(decode(entry));
+        }
+        for (int i = 0; i < ring.size(); i++) {
+            actions.add(new Action(ring.getIdPairs(i),
+                                   ring.getDescription(i)));
+        }
+        return actions;
+    }
+
+    private static long translateId(long id, long[] newIds) {
+        if (id == NO_ID) {
+            return NO_ID;
+        }
+        if (id >= newIds.length || newIds[(int) id] == NO_ID) {
+            throw new IllegalArgumentException("Instance has no new ID.");
+        }
+        return newIds[(int) id];
+    }
+
+    private static byte[] encode(Action action) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(action.getIdPairs().length / 2);
+        for (long id : action.getIdPairs()) {
+            output.writeLong(id);
+        }
+        if (action.getDescription() == null) {
+            output.writeInt(-1);
+        } else {
+            byte[] description =
+                action.getDescription().getBytes(StandardCharsets.UTF_8);
+            output.writeInt(description.length);
+            output.write(description);
+        }
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    private static Action decode(byte[] entry) throws IOException {
+        DataInputStream input =
+            new DataInputStream(new ByteArrayInputStream(entry));
+        long[] idPairs = new long[input.readInt() * 2];
+        for (int i = 0; i < idPairs.length; i++) {
+            idPairs[i] = input.readLong();
+        }
+        String description = null;
+        int descriptionLength = input.readInt();
+        if (descriptionLength >= 0) {
+            byte[] bytes = new byte[descriptionLength];
+            input.readFully(bytes);
+            description = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return new Action(idPairs, description);
+    }
+
+    private static long encodeId(Long id) {
+        return id == null ? NO_ID : id;
+    }
 }
@@ -0,0 +1,346 @@
+package rubberduck.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+//@author A0119416H
+/**
+ * The undo and redo stacks of a JournalController kept in a sidecar file next
+ * to the database file, so that only the entries being undone or redone are
+ * ever read into memory. The newest actions of a running session are kept in
+ * memory by the controller, and only spill to the file as they get older.
+ * <p/>
+ * Entries are stored one after another, oldest first. Entries before the
+ * cursor form the undo stack, with its top just before the cursor, and
+ * entries after it form the redo stack, with its top just after the cursor.
+ * Undo and redo only move the cursor. Each entry is framed by its length on
+ * both sides, so it can be read backwards from the cursor as well as
+ * forwards.
+ * <p/>
+ * The header at the start of the file holds the cursor and the sizes of both
+ * stacks, and a stamp telling which state of the database file the entries
+ * refer to. The stamp is only set when the database is closed, so a journal
+ * left behind by a crash is never trusted.
+ */
+class JournalFile {
+
+    public static final long NO_STAMP = -1;
+
+    private static final int MAGIC_NUMBER = 0x52444a4c;
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 45;
+    private static final int HEADER_CONTENT_LENGTH = 37;
+    private static final int LENGTH_FIELD_LENGTH = 4;
+    private static final String MESSAGE_CORRUPTED_ENTRY =
+        "Corrupted journal entry.";
+
+    private RandomAccessFile file;
+    private int maxEntryCount;
+    private long maxLength;
+
+    private long stamp = NO_STAMP;
+    private int undoCount = 0;
+    private int redoCount = 0;
+    private long cursorOffset = HEADER_LENGTH;
+    private long endOffset = HEADER_LENGTH;
+
+    /**
+     * Open a journal file, keeping its entries only if it was closed with the
+     * expected stamp. The stamp is cleared at once, so the entries are lost
+     * if the database is not closed properly this time.
+     *
+     * @param journalFile   the journal file, which is created if missing
+     * @param expectedStamp the stamp of the current database file, or
+     *                      NO_STAMP to discard all entries
+     * @param maxEntryCount the number of entries kept in the undo stack, above
+     *                      which the oldest ones are dropped
+     * @param maxLength     the length of the file, above which the oldest
+     *                      entries are dropped
+     * @throws IOException
+     */
+    public JournalFile(File journalFile, long expectedStamp, int maxEntryCount,
+                       long maxLength) throws IOException {
+        this.file = new RandomAccessFile(journalFile, "rw");
+        this.maxEntryCount = maxEntryCount;
+        this.maxLength = maxLength;
+        if (expectedStamp == NO_STAMP || !readHeader()
+            || stamp != expectedStamp || endOffset != file.length()) {
+            undoCount = 0;
+            redoCount = 0;
+            cursorOffset = HEADER_LENGTH;
+            endOffset = HEADER_LENGTH;
+            file.setLength(HEADER_LENGTH);
+        }
+        stamp = NO_STAMP;
+        writeHeader();
+        file.getChannel().force(true);
+    }
+
+    /**
+     * Get the journal file of a database file.
+     *
+     * @param databaseFilePath path to the database file
+     * @return the journal file next to the database file
+     */
+    public static File getJournalFile(String databaseFilePath) {
+        return new File(databaseFilePath + ".journal");
+    }
+
+    public int getUndoCount() {
+        return undoCount;
+    }
+
+    public int getRedoCount() {
+        return redoCount;
+    }
+
+    /**
+     * Push an entry onto the undo stack and clear the redo stack. The oldest
+     * entries are dropped if the journal grows beyond its limits.
+     *
+     * @param entry the entry
+     * @throws IOException
+     */
+    public void push(byte[] entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(entry.length
+                                                + 2 * LENGTH_FIELD_LENGTH);
+        buffer.putInt(entry.length);
+        buffer.put(entry);
+        buffer.putInt(entry.length);
+        file.seek(cursorOffset);
+        file.write(buffer.array());
+        cursorOffset = file.getFilePointer();
+        endOffset = cursorOffset;
+        file.setLength(endOffset);
+        undoCount++;
+        redoCount = 0;
+        if (undoCount > maxEntryCount || endOffset > maxLength) {
+            trim();
+        }
+        writeHeader();
+    }
+
+    /**
+     * Move the top of the undo stack to the redo stack.
+     *
+     * @return the moved entry, or null if the undo stack is empty
+     * @throws IOException
+     */
+    public byte[] undo() throws IOException {
+        if (undoCount == 0) {
+            return null;
+        }
+        int length = readLength(cursorOffset - LENGTH_FIELD_LENGTH);
+        long entryOffset = cursorOffset - length - 2 * LENGTH_FIELD_LENGTH;
+        byte[] entry = readEntry(entryOffset, length);
+        cursorOffset = entryOffset;
+        undoCount--;
+        redoCount++;
+        writeHeader();
+        return entry;
+    }
+
+    /**
+     * Move the top of the redo stack to the undo stack.
+     *
+     * @return the moved entry, or null if the redo stack is empty
+     * @throws IOException
+     */
+    public byte[] redo() throws IOException {
+        if (redoCount == 0) {
+            return null;
+        }
+        int length = readLength(cursorOffset);
+        byte[] entry = readEntry(cursorOffset, length);
+        cursorOffset += length + 2 * LENGTH_FIELD_LENGTH;
+        undoCount++;
+        redoCount--;
+        writeHeader();
+        return entry;
+    }
+
+    /**
+     * Drop all entries of the redo stack.
+     *
+     * @throws IOException
+     */
+    public void clearRedo() throws IOException {
+        endOffset = cursorOffset;
+        file.setLength(endOffset);
+        redoCount = 0;
+        writeHeader();
+    }
+
+    /**
+     * Read all entries, oldest first. The first getUndoCount() of them are in
+     * the undo stack.
+     *
+     * @return the entries
+     * @throws IOException
+     */
+    public List<byte[]> readAll() throws IOException {
+        List<byte[]> entries = new ArrayList<byte[]>(undoCount + redoCount);
+        long offset = HEADER_LENGTH;
+        while (offset < endOffset) {
+            int length = readLength(offset);
+            entries.add(readEntry(offset, length));
+            offset += length + 2 * LENGTH_FIELD_LENGTH;
+        }
+        return entries;
+    }
+
+    /**
+     * Replace all entries.
+     *
+     * @param entries   the new entries, oldest first
+     * @param undoCount the number of entries in the undo stack
+     * @throws IOException
+     */
+    public void rewrite(List<byte[]> entries, int undoCount)
+        throws IOException {
+        clear();
+        for (byte[] entry : entries) {
+            push(entry);
+        }
+        for (int i = undoCount; i < entries.size(); i++) {
+            undo();
+        }
+    }
+
+    /**
+     * Drop all entries.
+     *
+     * @throws IOException
+     */
+    public void clear() throws IOException {
+        undoCount = 0;
+        redoCount = 0;
+        cursorOffset = HEADER_LENGTH;
+        endOffset = HEADER_LENGTH;
+        file.setLength(HEADER_LENGTH);
+        writeHeader();
+    }
+
+    /**
+     * Stamp the journal with the state of the database file its entries refer
+     * to, and close it.
+     *
+     * @param newStamp the stamp
+     * @throws IOException
+     */
+    public void close(long newStamp) throws IOException {
+        try {
+            stamp = newStamp;
+            writeHeader();
+            file.getChannel().force(true);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Close the journal without stamping it, so that its entries are dropped
+     * when it is opened again.
+     *
+     * @throws IOException
+     */
+    public void discard() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Drop the oldest entries of the undo stack, keeping at most half of the
+     * limits so that trimming does not happen on every push. The newest entry
+     * is always kept.
+     */
+    private void trim() throws IOException {
+        long keptOffset = cursorOffset;
+        int keptCount = 0;
+        while (keptCount < undoCount) {
+            int length = readLength(keptOffset - LENGTH_FIELD_LENGTH);
+            long entryOffset = keptOffset - length - 2 * LENGTH_FIELD_LENGTH;
+            if (length < 0 || entryOffset < HEADER_LENGTH) {
+                throw new IOException(MESSAGE_CORRUPTED_ENTRY);
+            }
+            if (keptCount > 0 && (keptCount + 1 > maxEntryCount / 2
+                                  || endOffset - entryOffset > maxLength / 2)) {
+                break;
+            }
+            keptOffset = entryOffset;
+            keptCount++;
+        }
+        byte[] kept = new byte[(int) (endOffset - keptOffset)];
+        file.seek(keptOffset);
+        file.readFully(kept);
+        file.seek(HEADER_LENGTH);
+        file.write(kept);
+        long shift = keptOffset - HEADER_LENGTH;
+        cursorOffset -= shift;
+        endOffset -= shift;
+        file.setLength(endOffset);
+        undoCount = keptCount;
+    }
+
+    private int readLength(long offset) throws IOException {
+        file.seek(offset);
+        return file.readInt();
+    }
+
+    private byte[] readEntry(long offset, int length) throws IOException {
+        if (length < 0 || offset < HEADER_LENGTH
+            || offset + length + 2 * LENGTH_FIELD_LENGTH > endOffset) {
+            throw new IOException(MESSAGE_CORRUPTED_ENTRY);
+        }
+        byte[] entry = new byte[length];
+        file.seek(offset + LENGTH_FIELD_LENGTH);
+        file.readFully(entry);
+        return entry;
+    }
+
+    private boolean readHeader() throws IOException {
+        if (file.length() < HEADER_LENGTH) {
+            return false;
+        }
+        byte[] bytes = new byte[HEADER_LENGTH];
+        file.seek(0);
+        file.readFully(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt() != MAGIC_NUMBER
+            || buffer.get() != FORMAT_VERSION) {
+            return false;
+        }
+        stamp = buffer.getLong();
+        undoCount = buffer.getInt();
+        redoCount = buffer.getInt();
+        cursorOffset = buffer.getLong();
+        endOffset = buffer.getLong();
+        return buffer.getLong() == checksum(bytes)
+               && undoCount >= 0 && redoCount >= 0
+               && cursorOffset >= HEADER_LENGTH && cursorOffset <= endOffset;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+        buffer.putInt(MAGIC_NUMBER);
+        buffer.put(FORMAT_VERSION);
+        buffer.putLong(stamp);
+        buffer.putInt(undoCount);
+        buffer.putInt(redoCount);
+        buffer.putLong(cursorOffset);
+        buffer.putLong(endOffset);
+        buffer.putLong(checksum(buffer.array()));
+        file.seek(0);
+        file.write(buffer.array());
+    }
+
+    private static long checksum(byte[] header) {
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, HEADER_CONTENT_LENGTH);
+        return crc.getValue();
+    }
+}
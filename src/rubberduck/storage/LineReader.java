@@ -0,0 +1,36 @@
+package rubberduck.storage;
+
+import java.io.IOException;
+
+//@author A0119416H
+/**
+ * A positioned line reader over the database file. It follows the semantics of
+ * RandomAccessFile.readLine(), so each byte is read as a single character.
+ */
+interface LineReader {
+
+    /**
+     * Move the reader to the given offset of the file.
+     *
+     * @param offset the offset from the beginning of the file
+     * @throws IOException
+     */
+    public void seek(long offset) throws IOException;
+
+    /**
+     * Read the next line of text from the current offset.
+     *
+     * @return the next line without the line terminator, or null if the end of
+     *         the file is reached
+     * @throws IOException
+     */
+    public String readLine() throws IOException;
+
+    /**
+     * Get the current offset of the reader.
+     *
+     * @return the offset from the beginning of the file
+     * @throws IOException
+     */
+    public long getFilePointer() throws IOException;
+}
@@ -0,0 +1,65 @@
+package rubberduck.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+//@author A0119416H
+/**
+ * A RecordReader that copies records straight from a memory mapping of the
+ * file, so no system call is needed once the pages are resident.
+ * <p/>
+ * The mapping only covers the file as it was when mapped. When a read goes
+ * beyond it, the file is mapped again to cover what has been appended since.
+ * In-place writes through other handles are visible through the mapping.
+ * Reads may run concurrently, each through its own view of the mapping.
+ */
+class MappedRecordReader implements RecordReader {
+
+    private FileChannel fileChannel;
+    private volatile MappedByteBuffer mappedBuffer;
+
+    /**
+     * Map the whole file of the given channel for reading.
+     *
+     * @param fileChannel an opened channel of the database file
+     * @throws IOException if the file cannot be mapped
+     */
+    public MappedRecordReader(FileChannel fileChannel) throws IOException {
+        this.fileChannel = fileChannel;
+        remap();
+    }
+
+    /**
+     * Map the file again so that the mapping covers the current file size.
+     *
+     * @throws IOException if the file cannot be mapped or is over 2GB
+     */
+    public synchronized void remap() throws IOException {
+        long fileSize = fileChannel.size();
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IOException("File is too large to be mapped.");
+        }
+        mappedBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                       fileSize);
+    }
+
+    @Override
+    public int read(long offset, byte[] bytes, int start, int length)
+        throws IOException {
+        if (offset < 0 || offset > Integer.MAX_VALUE) {
+            throw new IOException("Offset out of range: " + offset);
+        }
+        ByteBuffer view = mappedBuffer.duplicate();
+        if (offset + length > view.limit()
+            && view.limit() < fileChannel.size()) {
+            remap();
+            view = mappedBuffer.duplicate();
+        }
+        int count = (int) Math.max(0, Math.min(length, view.limit() - offset));
+        view.position((int) offset);
+        view.get(bytes, start, count);
+        return count;
+    }
+}
@@ -0,0 +1,647 @@
+package rubberduck.storage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+//@author A0119416H
+/**
+ * A store keeping instances in memory only, which is lost when the program
+ * ends. It serves tests and benchmarks that should not pay for file I/O, and
+ * behaves like DatabaseManager in every other respect: IDs are handed out in
+ * the same order, and the same actions can be undone and redone.
+ * <p/>
+ * Instances are kept encoded by a RecordCodec, so the instances handed out
+ * are copies, as if they had been read from a file. The newest MAX_ACTIONS
+ * actions can be undone. All methods are synchronized.
+ *
+ * @param <T> The data type stored in the store.
+ */
+public class MemoryTaskStore<T extends Serializable & Comparable<T>>
+    implements TaskStore<T> {
+
+    public static final int MAX_ACTIONS = 1000;
+
+    private static final long NO_ID = 0;
+
+    private static final String MESSAGE_INDEX_EXISTS =
+        "Index %s already exists.";
+    private static final String MESSAGE_INDEX_NOT_FOUND =
+        "Index %s does not exist.";
+    private static final String MESSAGE_INDEX_WRONG_TYPE =
+        "Index %s is not %s index.";
+
+    private RecordCodec<T> codec;
+
+    /**
+     * The encoded instances, indexed by the offsets in the instance table,
+     * with null for instances no longer tracked.
+     */
+    private ArrayList<byte[]> records = new ArrayList<byte[]>();
+    private InstanceTable instances = new InstanceTable();
+    private HashMap<String, InstanceIndex<T>> indexes =
+        new HashMap<String, InstanceIndex<T>>();
+
+    /**
+     * The recorded actions, each as in JournalController, and the number of
+     * them that can be undone, which are the oldest ones.
+     */
+    private ActionRing actions = new ActionRing(MAX_ACTIONS);
+    private int undoCount = 0;
+
+    /**
+     * Create an empty store keeping instances as XML.
+     */
+    public MemoryTaskStore() {
+        this(new XmlRecordCodec<T>());
+    }
+
+    /**
+     * Create an empty store.
+     *
+     * @param codec the codec used to encode and decode instances
+     */
+    public MemoryTaskStore(RecordCodec<T> codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public synchronized Long modify(Long previousId, T newInstance,
+                                    String description) throws IOException {
+        List<Change<T>> changes =
+            Collections.singletonList(new Change<T>(previousId, newInstance));
+        checkChanges(changes);
+        return applyChanges(changes, encodeChanges(changes), description)
+            .get(0);
+    }
+
+    @Override
+    public synchronized ArrayList<Long> modifyAll(List<Change<T>> changes,
+                                                  String description)
+        throws IOException {
+        checkChanges(changes);
+        return applyChanges(changes, encodeChanges(changes), description);
+    }
+
+    @Override
+    public synchronized ArrayList<Long> insertUnrecorded(List<T> newInstances)
+        throws IOException {
+        ArrayList<byte[]> newRecords =
+            new ArrayList<byte[]>(newInstances.size());
+        for (T instance : newInstances) {
+            newRecords.add(codec.encode(instance));
+        }
+        return insertRecords(newInstances, newRecords);
+    }
+
+    @Override
+    public synchronized Set<Long> removeUnrecorded(
+        Collection<Long> instanceIds) throws IOException {
+        Set<Long> removedIds = getRemovableIds(instanceIds);
+        removeIds(removedIds);
+        return removedIds;
+    }
+
+    @Override
+    public synchronized T getInstance(long instanceId) throws IOException {
+        byte state = instances.getState(instanceId);
+        if (state == RecordFormat.STATE_INVALID) {
+            throw new IndexOutOfBoundsException("Instance is invalid.");
+        } else if (state == InstanceTable.STATE_NONE) {
+            throw new IndexOutOfBoundsException("Instance does not exist.");
+        }
+        return codec.decode(getRecord(instanceId));
+    }
+
+    @Override
+    public synchronized List<Long> getValidIdList() {
+        return instances.getValidIds();
+    }
+
+    @Override
+    public synchronized ArrayList<Long> getDeletedIdList() {
+        return instances.getIds(RecordFormat.STATE_DELETED);
+    }
+
+    @Override
+    public synchronized String undo()
+        throws IOException, UnsupportedOperationException {
+        if (undoCount == 0) {
+            throw new UnsupportedOperationException("Nothing to undo.");
+        }
+        undoCount--;
+        long[] idPairs = actions.getIdPairs(undoCount);
+        for (int i = idPairs.length - 2; i >= 0; i -= 2) {
+            if (idPairs[i + 1] != NO_ID) {
+                setState(idPairs[i + 1], RecordFormat.STATE_INVALID);
+            }
+            if (idPairs[i] != NO_ID) {
+                setState(idPairs[i], RecordFormat.STATE_VALID);
+            }
+        }
+        return actions.getDescription(undoCount);
+    }
+
+    @Override
+    public synchronized String redo()
+        throws IOException, UnsupportedOperationException {
+        if (undoCount == actions.size()) {
+            throw new UnsupportedOperationException("Nothing to redo.");
+        }
+        long[] idPairs = actions.getIdPairs(undoCount);
+        for (int i = 0; i < idPairs.length; i += 2) {
+            if (idPairs[i] != NO_ID) {
+                setState(idPairs[i], idPairs[i + 1] == NO_ID
+                                     ? RecordFormat.STATE_DELETED
+                                     : RecordFormat.STATE_INVALID);
+            }
+            if (idPairs[i + 1] != NO_ID) {
+                setState(idPairs[i + 1], RecordFormat.STATE_VALID);
+            }
+        }
+        return actions.getDescription(undoCount++);
+    }
+
+    public synchronized int getUndoStackSize() {
+        return undoCount;
+    }
+
+    public synchronized int getRedoStackSize() {
+        return actions.size() - undoCount;
+    }
+
+    @Override
+    public synchronized void rewriteFile(boolean removeDeleted)
+        throws IOException {
+        forgetInstances(RecordFormat.STATE_INVALID);
+        if (removeDeleted) {
+            forgetInstances(RecordFormat.STATE_DELETED);
+        }
+        actions.clear();
+        undoCount = 0;
+    }
+
+    @Override
+    public synchronized void resetDatabase() throws IOException {
+        records.clear();
+        instances = new InstanceTable();
+        for (InstanceIndex<T> index : indexes.values()) {
+            index.clear();
+        }
+        actions.clear();
+        undoCount = 0;
+    }
+
+    /**
+     * Nothing is kept after the program ends, so there is nothing to write.
+     */
+    @Override
+    public void closeFile() throws IOException {
+    }
+
+    @Override
+    public synchronized void addIndex(String name,
+                                      IndexKeyExtractor<T, ?> extractor)
+        throws IOException {
+        putIndex(name, createIndex(extractor));
+    }
+
+    private static <T, K> SecondaryIndex<T, K> createIndex(
+        IndexKeyExtractor<T, K> extractor) {
+        return new SecondaryIndex<T, K>(extractor);
+    }
+
+    @Override
+    public synchronized void addIntervalIndex(String name,
+                                              IntervalExtractor<T> extractor)
+        throws IOException {
+        putIndex(name, new IntervalIndex<T>(extractor));
+    }
+
+    @Override
+    public synchronized void addTextIndex(
+        String name, IndexKeyExtractor<T, String> extractor)
+        throws IOException {
+        putIndex(name, new TokenIndex<T>(extractor));
+    }
+
+    @Override
+    public synchronized void addSortIndex(String name,
+                                          SortKeyExtractor<T> extractor)
+        throws IOException {
+        putIndex(name, new SortKeyIndex<T>(extractor));
+    }
+
+    private void putIndex(String name, InstanceIndex<T> index)
+        throws IOException {
+        if (indexes.containsKey(name)) {
+            throw new IllegalArgumentException(String.format(
+                MESSAGE_INDEX_EXISTS, name));
+        }
+        for (long id = 1; id <= instances.getMaxId(); id++) {
+            byte state = instances.getState(id);
+            if (state != InstanceTable.STATE_NONE) {
+                index.add(id, codec.decode(getRecord(id)),
+                          state == RecordFormat.STATE_VALID);
+            }
+        }
+        indexes.put(name, index);
+    }
+
+    @Override
+    public synchronized boolean hasIndex(String name) {
+        return indexes.containsKey(name);
+    }
+
+    @Override
+    public synchronized ArrayList<Long> getValidIdsByKey(String name,
+                                                         Object key) {
+        SecondaryIndex<T, ?> index = (SecondaryIndex<T, ?>)
+            getIndex(name, SecondaryIndex.class, "a key");
+        return index.getValidIds(key);
+    }
+
+    @Override
+    public synchronized int countValidIdsByKey(String name, Object key) {
+        SecondaryIndex<T, ?> index = (SecondaryIndex<T, ?>)
+            getIndex(name, SecondaryIndex.class, "a key");
+        return index.countValidIds(key);
+    }
+
+    @Override
+    public synchronized Object getKey(String name, long instanceId) {
+        SecondaryIndex<T, ?> index = (SecondaryIndex<T, ?>)
+            getIndex(name, SecondaryIndex.class, "a key");
+        return index.getKey(instanceId);
+    }
+
+    @Override
+    public synchronized ArrayList<Long> getValidIdsOverlapping(String name,
+                                                               long start,
+                                                               long end) {
+        IntervalIndex<T> index = (IntervalIndex<T>)
+            getIndex(name, IntervalIndex.class, "an interval");
+        return index.getValidIdsOverlapping(start, end);
+    }
+
+    @Override
+    public synchronized ArrayList<Long> getValidIdsWithToken(String name,
+                                                             String token) {
+        return getTextIndex(name).getValidIdsWithToken(token);
+    }
+
+    @Override
+    public synchronized ArrayList<Long> getValidIdsWithTokenContaining(
+        String name, String part) {
+        return getTextIndex(name).getValidIdsWithTokenContaining(part);
+    }
+
+    @Override
+    public synchronized ArrayList<Long> getValidIdsWithPhrase(
+        String name, List<String> tokens) {
+        return getTextIndex(name).getValidIdsWithPhrase(tokens);
+    }
+
+    @Override
+    public synchronized void sortIds(String name, List<Long> ids) {
+        SortKeyIndex<T> index = (SortKeyIndex<T>)
+            getIndex(name, SortKeyIndex.class, "a sort");
+        for (Long instanceId : ids) {
+            if (instances.getState(instanceId) == InstanceTable.STATE_NONE) {
+                throw new IndexOutOfBoundsException("Instance does not exist.");
+            }
+        }
+        index.sort(ids);
+    }
+
+    @Override
+    public ArrayList<Long> query(Query<T> query) throws IOException {
+        return query.execute(this);
+    }
+
+    private TokenIndex<T> getTextIndex(String name) {
+        return (TokenIndex<T>) getIndex(name, TokenIndex.class, "a text");
+    }
+
+    private InstanceIndex<T> getIndex(String name, Class<?> type,
+                                      String typeName) {
+        InstanceIndex<T> index = indexes.get(name);
+        if (index == null) {
+            throw new IllegalArgumentException(String.format(
+                MESSAGE_INDEX_NOT_FOUND, name));
+        } else if (!type.isInstance(index)) {
+            throw new IllegalArgumentException(String.format(
+                MESSAGE_INDEX_WRONG_TYPE, name, typeName));
+        }
+        return index;
+    }
+
+    /**
+     * Check that the instances a batch of modifications removes are valid and
+     * removed only once.
+     *
+     * @param changes the modifications
+     * @throws IndexOutOfBoundsException if they are not
+     */
+    synchronized void checkChanges(List<Change<T>> changes) {
+        HashSet<Long> removedIds = new HashSet<Long>();
+        for (Change<T> change : changes) {
+            Long previousId = change.getPreviousId();
+            if (previousId != null && (!isValidId(previousId)
+                                       || !removedIds.add(previousId))) {
+                throw new IndexOutOfBoundsException();
+            }
+        }
+    }
+
+    /**
+     * Encode the new instances of a batch of modifications.
+     *
+     * @param changes the modifications
+     * @return the records in the order of the changes, with null for changes
+     *         that create no instance
+     * @throws IOException
+     */
+    ArrayList<byte[]> encodeChanges(List<Change<T>> changes)
+        throws IOException {
+        ArrayList<byte[]> newRecords = new ArrayList<byte[]>(changes.size());
+        for (Change<T> change : changes) {
+            T newInstance = change.getNewInstance();
+            newRecords.add(newInstance == null ? null
+                                               : codec.encode(newInstance));
+        }
+        return newRecords;
+    }
+
+    /**
+     * Make a batch of modifications checked by checkChanges() and record
+     * them as one action.
+     *
+     * @param changes     the modifications
+     * @param newRecords  the new instances encoded by encodeChanges()
+     * @param description the description of the action
+     * @return the IDs of the new instances as in modifyAll()
+     */
+    synchronized ArrayList<Long> applyChanges(List<Change<T>> changes,
+                                              List<byte[]> newRecords,
+                                              String description) {
+        ArrayList<Long> newIds = new ArrayList<Long>(changes.size());
+        long[] idPairs = new long[changes.size() * 2];
+        for (int i = 0; i < changes.size(); i++) {
+            Change<T> change = changes.get(i);
+            Long newId = applyChange(change.getPreviousId(),
+                                     change.getNewInstance(),
+                                     newRecords.get(i));
+            newIds.add(newId);
+            idPairs[i * 2] = encodeId(change.getPreviousId());
+            idPairs[i * 2 + 1] = encodeId(newId);
+        }
+        push(idPairs, description);
+        return newIds;
+    }
+
+    /**
+     * Add encoded instances without recording an action.
+     *
+     * @param newInstances the instances
+     * @param newRecords   the records of the instances in the same order
+     * @return the IDs of the new instances in the same order
+     */
+    synchronized ArrayList<Long> insertRecords(List<T> newInstances,
+                                               List<byte[]> newRecords) {
+        ArrayList<Long> newIds = new ArrayList<Long>(newInstances.size());
+        for (int i = 0; i < newInstances.size(); i++) {
+            newIds.add(putRecord(newInstances.get(i), newRecords.get(i)));
+        }
+        return newIds;
+    }
+
+    /**
+     * Get the instances removeUnrecorded() would remove.
+     *
+     * @param instanceIds the IDs of the instances to be removed
+     * @return the IDs of those that are valid and that no action refers to
+     */
+    synchronized Set<Long> getRemovableIds(Collection<Long> instanceIds) {
+        HashSet<Long> referencedIds = new HashSet<Long>();
+        for (int i = 0; i < actions.size(); i++) {
+            for (long id : actions.getIdPairs(i)) {
+                referencedIds.add(id);
+            }
+        }
+        HashSet<Long> removableIds = new HashSet<Long>();
+        for (Long instanceId : instanceIds) {
+            if (isValidId(instanceId) && !referencedIds.contains(instanceId)) {
+                removableIds.add(instanceId);
+            }
+        }
+        return removableIds;
+    }
+
+    /**
+     * Mark instances found by getRemovableIds() as invalid without recording
+     * an action.
+     *
+     * @param instanceIds the IDs of the instances
+     */
+    synchronized void removeIds(Collection<Long> instanceIds) {
+        for (Long instanceId : instanceIds) {
+            setState(instanceId, RecordFormat.STATE_INVALID);
+        }
+    }
+
+    private boolean isValidId(long instanceId) {
+        return instances.getState(instanceId) == RecordFormat.STATE_VALID;
+    }
+
+    /**
+     * Get the encoded instance with the given ID.
+     *
+     * @param instanceId the ID of a tracked instance
+     * @return the record, which must not be changed
+     */
+    private byte[] getRecord(long instanceId) {
+        return records.get((int) instances.getOffset(instanceId));
+    }
+
+    private long putRecord(T instance, byte[] record) {
+        records.add(record);
+        long instanceId = instances.add(records.size() - 1,
+                                        RecordFormat.STATE_VALID);
+        for (InstanceIndex<T> index : indexes.values()) {
+            index.add(instanceId, instance, true);
+        }
+        return instanceId;
+    }
+
+    private Long applyChange(Long previousId, T newInstance,
+                             byte[] newRecord) {
+        Long newId = null;
+        if (newInstance != null) {
+            newId = putRecord(newInstance, newRecord);
+        }
+        if (previousId != null) {
+            setState(previousId, newInstance != null
+                                 ? RecordFormat.STATE_INVALID
+                                 : RecordFormat.STATE_DELETED);
+        }
+        return newId;
+    }
+
+    /**
+     * Change the state of an instance and update the indexes, as
+     * DatabaseManager does.
+     *
+     * @param instanceId the ID of the instance
+     * @param state      the new state
+     */
+    private void setState(long instanceId, byte state) {
+        for (InstanceIndex<T> index : indexes.values()) {
+            if (state == RecordFormat.STATE_VALID) {
+                index.markAsValid(instanceId);
+            } else if (isValidId(instanceId)) {
+                index.markAsNotValid(instanceId);
+            }
+        }
+        instances.setState(instanceId, state);
+    }
+
+    /**
+     * Stop tracking all instances in the given state and drop their records.
+     *
+     * @param state the state of the instances to be forgotten
+     */
+    private void forgetInstances(byte state) {
+        for (Long instanceId : instances.getIds(state)) {
+            for (InstanceIndex<T> index : indexes.values()) {
+                index.remove(instanceId);
+            }
+            records.set((int) instances.getOffset(instanceId), null);
+        }
+        instances.clearState(state);
+    }
+
+    /**
+     * Add an action after the actions that can be undone, dropping those that
+     * could be redone. The oldest action is forgotten if there are
+     * MAX_ACTIONS.
+     */
+    private void push(long[] idPairs, String description) {
+        actions.truncate(undoCount);
+        if (actions.isFull()) {
+            actions.removeFirst();
+        }
+        actions.addLast(idPairs, description);
+        undoCount = actions.size();
+    }
+
+    /**
+     * Write the instances with their IDs and states, and the recorded
+     * actions. Indexes are not written, as they are rebuilt when added.
+     *
+     * @param output the stream to write to
+     * @throws IOException
+     */
+    synchronized void writeTo(DataOutputStream output) throws IOException {
+        output.writeLong(instances.getMaxId());
+        for (long id = 1; id <= instances.getMaxId(); id++) {
+            byte state = instances.getState(id);
+            output.writeByte(state);
+            if (state != InstanceTable.STATE_NONE) {
+                byte[] record = getRecord(id);
+                output.writeInt(record.length);
+                output.write(record);
+            }
+        }
+        output.writeInt(actions.size());
+        output.writeInt(undoCount);
+        for (int i = 0; i < actions.size(); i++) {
+            writeDescription(output, actions.getDescription(i));
+            long[] idPairs = actions.getIdPairs(i);
+            output.writeInt(idPairs.length);
+            for (long id : idPairs) {
+                output.writeLong(id);
+            }
+        }
+    }
+
+    /**
+     * Replace the contents of the store with those written by writeTo(). It
+     * must be called before any index is added.
+     *
+     * @param input the stream to read from
+     * @throws IOException if the stream ends early or is malformed
+     */
+    synchronized void readFrom(DataInputStream input) throws IOException {
+        assert indexes.isEmpty();
+        records.clear();
+        instances = new InstanceTable();
+        long maxId = input.readLong();
+        for (long id = 1; id <= maxId; id++) {
+            byte state = input.readByte();
+            if (state == InstanceTable.STATE_NONE) {
+                records.add(null);
+            } else if (RecordFormat.isState(state)) {
+                byte[] record = new byte[input.readInt()];
+                input.readFully(record);
+                records.add(record);
+            } else {
+                throw new IOException("Unknown state " + state);
+            }
+            instances.add(records.size() - 1, state);
+        }
+        actions.clear();
+        int actionCount = input.readInt();
+        int newUndoCount = input.readInt();
+        if (actionCount > MAX_ACTIONS || newUndoCount > actionCount) {
+            throw new IOException("Malformed actions");
+        }
+        for (int i = 0; i < actionCount; i++) {
+            String description = readDescription(input);
+            long[] idPairs = new long[input.readInt()];
+            for (int j = 0; j < idPairs.length; j++) {
+                idPairs[j] = input.readLong();
+            }
+            actions.addLast(idPairs, description);
+        }
+        undoCount = newUndoCount;
+    }
+
+    /**
+     * Write the description of an action, which may be null.
+     *
+     * @param output      the stream to write to
+     * @param description the description
+     * @throws IOException
+     */
+    static void writeDescription(DataOutputStream output, String description)
+        throws IOException {
+        output.writeBoolean(description != null);
+        if (description != null) {
+            output.writeUTF(description);
+        }
+    }
+
+    /**
+     * Read a description written by writeDescription().
+     *
+     * @param input the stream to read from
+     * @return the description, which may be null
+     * @throws IOException
+     */
+    static String readDescription(DataInputStream input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
+    private static long encodeId(Long id) {
+        return id == null ? NO_ID : id;
+    }
+}
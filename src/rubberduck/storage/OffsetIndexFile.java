@@ -0,0 +1,174 @@
+package rubberduck.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+//@author A0119416H
+/**
+ * A sidecar file next to the database file that records the offset and state
+ * of every valid and deleted instance, and of the invalid instances the
+ * journal may restore, so that opening the database does not need to scan
+ * the whole file.
+ * <p/>
+ * Entries are stored in the order of IDs, and the position of an entry is the
+ * ID the instance gets when the file is opened, which the journal is
+ * translated to. Offsets of records in sealed segments carry the number of
+ * the segment as described in Segment. The index also records the end of the
+ * file it describes and the number of garbage records in it, and ends with a
+ * CRC32 checksum over everything before it.
+ */
+class OffsetIndexFile {
+
+    private static final int MAGIC_NUMBER = 0x52444958;
+    private static final byte FORMAT_VERSION = 3;
+    private static final int CHECKSUM_LENGTH = 8;
+
+    private long eofOffset;
+    private long garbageCount;
+    private long[] offsets;
+    private byte[] states;
+
+    /**
+     * Create an index describing a database file.
+     *
+     * @param eofOffset    the end of the described file
+     * @param garbageCount number of records in the file that are not listed
+     * @param offsets      offsets of listed instances in the order of IDs
+     * @param states       the state of each instance, as defined in
+     *                     RecordFormat
+     */
+    public OffsetIndexFile(long eofOffset, long garbageCount, long[] offsets,
+                           byte[] states) {
+        assert offsets.length == states.length;
+        this.eofOffset = eofOffset;
+        this.garbageCount = garbageCount;
+        this.offsets = offsets;
+        this.states = states;
+    }
+
+    public long getEofOffset() {
+        return eofOffset;
+    }
+
+    public long getGarbageCount() {
+        return garbageCount;
+    }
+
+    public int size() {
+        return offsets.length;
+    }
+
+    public long getOffset(int position) {
+        return offsets[position];
+    }
+
+    public byte getState(int position) {
+        return states[position];
+    }
+
+    /**
+     * Get the sidecar index file of a database file.
+     *
+     * @param databaseFilePath path to the database file
+     * @return the index file next to the database file
+     */
+    public static File getIndexFile(String databaseFilePath) {
+        return new File(databaseFilePath + ".idx");
+    }
+
+    /**
+     * Load an index file.
+     *
+     * @param indexFile the index file
+     * @return the loaded index, or null if the file does not exist or is
+     *         corrupted
+     */
+    public static OffsetIndexFile load(File indexFile) {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(indexFile.toPath());
+            if (bytes.length < CHECKSUM_LENGTH) {
+                return null;
+            }
+            int contentLength = bytes.length - CHECKSUM_LENGTH;
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, contentLength);
+            DataInputStream input = new DataInputStream(
+                new ByteArrayInputStream(bytes));
+            input.skipBytes(contentLength);
+            if (input.readLong() != crc.getValue()) {
+                return null;
+            }
+
+            input = new DataInputStream(new ByteArrayInputStream(
+                bytes, 0, contentLength));
+            if (input.readInt() != MAGIC_NUMBER
+                || input.readByte() != FORMAT_VERSION) {
+                return null;
+            }
+            long eofOffset = input.readLong();
+            long garbageCount = input.readLong();
+            int count = input.readInt();
+            long[] offsets = new long[count];
+            byte[] states = new byte[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = input.readLong();
+                states[i] = input.readByte();
+            }
+            return new OffsetIndexFile(eofOffset, garbageCount, offsets,
+                                       states);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write the index to the given file. The index is written to a temporary
+     * file first and moved into place, so a crash never leaves a half-written
+     * index behind.
+     *
+     * @param indexFile the index file
+     * @throws IOException
+     */
+    public void save(File indexFile) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(
+            offsets.length * (Long.SIZE / Byte.SIZE + 1) + 32);
+        DataOutputStream output = new DataOutputStream(byteStream);
+        output.writeInt(MAGIC_NUMBER);
+        output.writeByte(FORMAT_VERSION);
+        output.writeLong(eofOffset);
+        output.writeLong(garbageCount);
+        output.writeInt(offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            output.writeLong(offsets[i]);
+            output.writeByte(states[i]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(byteStream.toByteArray());
+        output.writeLong(crc.getValue());
+        output.close();
+
+        File absoluteFile = indexFile.getAbsoluteFile();
+        File tempFile = File.createTempFile("DBMNGR", ".tmp",
+                                            absoluteFile.getParentFile());
+        tempFile.deleteOnExit();
+        FileOutputStream fileStream = new FileOutputStream(tempFile);
+        try {
+            byteStream.writeTo(fileStream);
+        } finally {
+            fileStream.close();
+        }
+        Files.move(tempFile.toPath(), absoluteFile.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,192 @@
+package rubberduck.storage;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+//@author A0119416H
+/**
+ * A query for the valid instances of a store matching all of its criteria,
+ * run by TaskStore.query().
+ * <p/>
+ * The query is planned from the indexes the criteria can use. The candidate
+ * lists of criteria that can only be looked up as a whole are merged,
+ * starting from the smallest list, which stops as soon as nothing is left.
+ * Without such lists, the query starts from the criterion estimated to have
+ * the fewest candidates. The remaining criteria that can check single IDs in
+ * their index are then checked against each candidate, so that the lists of
+ * unselective criteria are never built. Only instances that survive are
+ * decoded, and only if some criterion could not be answered exactly by its
+ * index. Without any index, all valid instances are decoded and checked.
+ *
+ * @param <T> The data type stored in the store.
+ */
+public class Query<T extends Serializable & Comparable<T>> {
+
+    private static final Comparator<List<Long>> SIZE_COMPARATOR =
+        new Comparator<List<Long>>() {
+            @Override
+            public int compare(List<Long> ids1, List<Long> ids2) {
+                return Integer.compare(ids1.size(), ids2.size());
+            }
+        };
+
+    private ArrayList<Criterion<T>> criteria = new ArrayList<Criterion<T>>();
+
+    /**
+     * Add a criterion the instances found must match.
+     *
+     * @param criterion the criterion
+     * @return this query
+     */
+    public Query<T> where(Criterion<T> criterion) {
+        criteria.add(criterion);
+        return this;
+    }
+
+    /**
+     * Get the criteria of the query.
+     *
+     * @return an unmodifiable list of the criteria in the order added
+     */
+    public List<Criterion<T>> getCriteria() {
+        return Collections.unmodifiableList(criteria);
+    }
+
+    /**
+     * Find the valid instances of a store matching all criteria. The IDs are
+     * those of instances valid when the indexes were looked up. An instance
+     * that stops being valid while the query runs is left out only if it is
+     * decoded, which is when some criterion is not answered exactly by its
+     * index.
+     *
+     * @param store the store
+     * @return a new list of the IDs in increasing order
+     * @throws IOException
+     */
+    ArrayList<Long> execute(TaskStore<T> store) throws IOException {
+        ArrayList<List<Long>> candidateLists = new ArrayList<List<Long>>();
+        ArrayList<Criterion<T>> checkableCriteria =
+            new ArrayList<Criterion<T>>();
+        ArrayList<Criterion<T>> uncheckedCriteria =
+            new ArrayList<Criterion<T>>();
+        for (Criterion<T> criterion : criteria) {
+            if (criterion.canCheckCandidate()) {
+                checkableCriteria.add(criterion);
+                if (!criterion.isExact()) {
+                    uncheckedCriteria.add(criterion);
+                }
+                continue;
+            }
+            List<Long> candidateIds = criterion.getCandidateIds(store);
+            if (candidateIds != null) {
+                candidateLists.add(candidateIds);
+            }
+            if (candidateIds == null || !criterion.isExact()) {
+                uncheckedCriteria.add(criterion);
+            }
+        }
+
+        ArrayList<Long> ids;
+        if (!candidateLists.isEmpty()) {
+            Collections.sort(candidateLists, SIZE_COMPARATOR);
+            ids = new ArrayList<Long>(candidateLists.get(0));
+            for (int i = 1; i < candidateLists.size() && !ids.isEmpty(); i++) {
+                ids = intersect(ids, candidateLists.get(i));
+            }
+        } else if (!checkableCriteria.isEmpty()) {
+            Criterion<T> firstCriterion =
+                getMostSelective(store, checkableCriteria);
+            checkableCriteria.remove(firstCriterion);
+            ids = new ArrayList<Long>(firstCriterion.getCandidateIds(store));
+        } else {
+            ids = new ArrayList<Long>(store.getValidIdList());
+        }
+        for (Criterion<T> criterion : checkableCriteria) {
+            ids = retainCandidates(store, criterion, ids);
+        }
+        if (uncheckedCriteria.isEmpty() || ids.isEmpty()) {
+            return ids;
+        }
+
+        ArrayList<Long> matchingIds = new ArrayList<Long>();
+        for (Long id : ids) {
+            T instance;
+            try {
+                instance = store.getInstance(id);
+            } catch (IndexOutOfBoundsException e) {
+                continue;
+            }
+            if (matchesAll(uncheckedCriteria, instance)) {
+                matchingIds.add(id);
+            }
+        }
+        return matchingIds;
+    }
+
+    private static <T extends Serializable & Comparable<T>> Criterion<T>
+    getMostSelective(TaskStore<T> store, List<Criterion<T>> criteria)
+        throws IOException {
+        Criterion<T> mostSelective = null;
+        int leastCount = Integer.MAX_VALUE;
+        for (Criterion<T> criterion : criteria) {
+            int count = criterion.estimateCandidateCount(store);
+            if (mostSelective == null || count < leastCount) {
+                mostSelective = criterion;
+                leastCount = count;
+            }
+        }
+        return mostSelective;
+    }
+
+    private static <T extends Serializable & Comparable<T>> ArrayList<Long>
+    retainCandidates(TaskStore<T> store, Criterion<T> criterion,
+                     List<Long> ids) throws IOException {
+        ArrayList<Long> candidateIds = new ArrayList<Long>();
+        for (Long id : ids) {
+            if (criterion.isCandidate(store, id)) {
+                candidateIds.add(id);
+            }
+        }
+        return candidateIds;
+    }
+
+    /**
+     * Intersect two lists of IDs in increasing order by merging them.
+     *
+     * @param ids1 the first list
+     * @param ids2 the second list
+     * @return a new list of the IDs in both, in increasing order
+     */
+    private static ArrayList<Long> intersect(List<Long> ids1, List<Long> ids2) {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        int i = 0;
+        int j = 0;
+        while (i < ids1.size() && j < ids2.size()) {
+            int comparison = ids1.get(i).compareTo(ids2.get(j));
+            if (comparison < 0) {
+                i++;
+            } else if (comparison > 0) {
+                j++;
+            } else {
+                ids.add(ids1.get(i));
+                i++;
+                j++;
+            }
+        }
+        return ids;
+    }
+
+    private static <T extends Serializable & Comparable<T>> boolean matchesAll(
+        List<Criterion<T>> criteria, T instance) {
+        for (Criterion<T> criterion : criteria) {
+            if (!criterion.matches(instance)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,44 @@
+package rubberduck.storage;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+//@author A0119416H
+/**
+ * Converts instances to and from the raw bytes of a record in the database
+ * file. Records are decoded by concurrent readers, so implementations must be
+ * thread-safe.
+ *
+ * @param <T> The data type stored in the database.
+ */
+public interface RecordCodec<T extends Serializable> {
+
+    /**
+     * Encode an instance into the bytes of a record.
+     *
+     * @param instance the instance to be encoded
+     * @return the encoded record
+     * @throws IOException if the instance cannot be encoded
+     */
+    public byte[] encode(T instance) throws IOException;
+
+    /**
+     * Decode the bytes of a record back into an instance.
+     *
+     * @param record the encoded record
+     * @return the reconstructed instance
+     * @throws IOException if the record is malformed
+     */
+    public T decode(byte[] record) throws IOException;
+
+    /**
+     * Make a deep copy of an instance, which shares nothing mutable with it.
+     * It is used to hand out cached instances, so it should be much cheaper
+     * than decoding a record.
+     *
+     * @param instance the instance to be copied
+     * @return the copy
+     * @throws IOException if the instance cannot be copied
+     */
+    public T copy(T instance) throws IOException;
+}
@@ -0,0 +1,18 @@
+package rubberduck.storage;
+
+//@author A0119416H
+/**
+ * A predicate on the raw payload of a record, as encoded by the RecordCodec of
+ * the database. Scans apply it before decoding, so records it rejects are
+ * never decoded.
+ */
+public interface RecordFilter {
+
+    /**
+     * Check whether a record is wanted.
+     *
+     * @param payload the payload of the record, which must not be modified
+     * @return true if the record is to be decoded
+     */
+    public boolean accept(byte[] payload);
+}
@@ -0,0 +1,174 @@
+package rubberduck.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+//@author A0119416H
+/**
+ * The framing of records in the database file.
+ * <p/>
+ * The file starts with a header holding a magic number, the format version and
+ * a byte of flags, which tell how payloads are encoded. Each record then has a
+ * fixed header holding its state, the length of its payload and a CRC32
+ * checksum of the payload, followed by the payload encoded by a RecordCodec.
+ * The state is the only part of a record that is changed after it is written.
+ * It is a single byte, so changing it never tears a record.
+ */
+final class RecordFormat {
+
+    public static final byte STATE_VALID = 1;
+    public static final byte STATE_INVALID = 2;
+    public static final byte STATE_DELETED = 3;
+
+    /**
+     * Payloads are compressed by DeflatingRecordCodec.
+     */
+    public static final byte FLAG_DEFLATED = 1;
+
+    public static final int FILE_HEADER_LENGTH = 6;
+    public static final int RECORD_HEADER_LENGTH = 9;
+
+    private static final int MAGIC_NUMBER = 0x52444442;
+    private static final byte FORMAT_VERSION = 1;
+
+    /**
+     * The header of a single record.
+     */
+    static class RecordHeader {
+        private byte state;
+        private int length;
+        private int checksum;
+
+        private RecordHeader(byte state, int length, int checksum) {
+            this.state = state;
+            this.length = length;
+            this.checksum = checksum;
+        }
+
+        public byte getState() {
+            return state;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Get the length of the whole record, including the header.
+         *
+         * @return the length of the record in bytes
+         */
+        public long getRecordLength() {
+            return RECORD_HEADER_LENGTH + (long) length;
+        }
+
+        /**
+         * Check a payload against the checksum in the header.
+         *
+         * @param payload the payload read after the header
+         * @return true if the payload matches the checksum
+         */
+        public boolean isChecksumValid(byte[] payload) {
+            return payload.length == length && checksum(payload) == checksum;
+        }
+    }
+
+    private RecordFormat() {
+    }
+
+    private static final byte KNOWN_FLAGS = FLAG_DEFLATED;
+
+    /**
+     * Create the header written at the beginning of a database file.
+     *
+     * @param flags the flags telling how payloads are encoded
+     * @return the bytes of the file header
+     */
+    public static byte[] createFileHeader(byte flags) {
+        ByteBuffer buffer = ByteBuffer.allocate(FILE_HEADER_LENGTH);
+        buffer.putInt(MAGIC_NUMBER);
+        buffer.put(FORMAT_VERSION);
+        buffer.put(flags);
+        return buffer.array();
+    }
+
+    /**
+     * Get the flags of a file header.
+     *
+     * @param bytes the bytes of a file header
+     * @return the flags telling how payloads are encoded
+     * @throws IOException if the flags are not known to this version
+     */
+    public static byte getFileFlags(byte[] bytes) throws IOException {
+        byte flags = bytes[FILE_HEADER_LENGTH - 1];
+        if ((flags & ~KNOWN_FLAGS) != 0) {
+            throw new IOException("Unknown file flags " + flags);
+        }
+        return flags;
+    }
+
+    /**
+     * Check whether the given bytes are the header of a database file in this
+     * format.
+     *
+     * @param bytes the first bytes of a file
+     * @return true if the bytes hold a file header of this format
+     */
+    public static boolean isFileHeader(byte[] bytes) {
+        if (bytes.length < FILE_HEADER_LENGTH) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return buffer.getInt() == MAGIC_NUMBER
+               && buffer.get() == FORMAT_VERSION;
+    }
+
+    /**
+     * Frame a payload as a record.
+     *
+     * @param state   the state of the record
+     * @param payload the encoded instance
+     * @return the bytes of the record, header included
+     */
+    public static byte[] createRecord(byte state, byte[] payload) {
+        ByteBuffer buffer =
+            ByteBuffer.allocate(RECORD_HEADER_LENGTH + payload.length);
+        buffer.put(state);
+        buffer.putInt(payload.length);
+        buffer.putInt(checksum(payload));
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    /**
+     * Parse the header of a record.
+     *
+     * @param bytes the bytes at the start of the record
+     * @return the parsed header, or null if the bytes are not a record header
+     */
+    public static RecordHeader parseRecordHeader(byte[] bytes) {
+        if (bytes.length < RECORD_HEADER_LENGTH) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        byte state = buffer.get();
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (!isState(state) || length < 0) {
+            return null;
+        }
+        return new RecordHeader(state, length, checksum);
+    }
+
+    public static boolean isState(byte state) {
+        return state == STATE_VALID || state == STATE_INVALID
+               || state == STATE_DELETED;
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+}
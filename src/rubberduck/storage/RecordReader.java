@@ -0,0 +1,25 @@
+package rubberduck.storage;
+
+import java.io.IOException;
+
+//@author A0119416H
+/**
+ * A positional reader over the database file. Reading never moves a shared
+ * file pointer, so a record is fetched with a single read of known size.
+ */
+interface RecordReader {
+
+    /**
+     * Read bytes at the given offset of the file.
+     *
+     * @param offset the offset from the beginning of the file
+     * @param bytes  the array to be filled
+     * @param start  the index in the array where the first byte goes
+     * @param length the number of bytes to be read
+     * @return the number of bytes read, which is less than length only if the
+     *         end of the file is reached
+     * @throws IOException
+     */
+    public int read(long offset, byte[] bytes, int start, int length)
+        throws IOException;
+}
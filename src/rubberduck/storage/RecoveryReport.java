@@ -0,0 +1,92 @@
+package rubberduck.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+//@author A0119416H
+/**
+ * What the recovery pass repaired when a database file was opened: an
+ * incomplete record cut off the end of the file, and records whose payload
+ * does not match its checksum, which are left out as if they were invalid.
+ */
+public class RecoveryReport {
+
+    public static final long NO_OFFSET = -1;
+
+    private long truncatedOffset = NO_OFFSET;
+    private long truncatedLength = 0;
+    private ArrayList<Long> corruptedOffsets = new ArrayList<Long>();
+    private int discardedLegacyRecords = 0;
+
+    /**
+     * Get the offset the database file was cut at.
+     *
+     * @return the offset of the incomplete record, or NO_OFFSET if the file
+     *         was not truncated
+     */
+    public long getTruncatedOffset() {
+        return truncatedOffset;
+    }
+
+    /**
+     * Get the number of bytes cut off the end of the database file.
+     *
+     * @return the number of bytes
+     */
+    public long getTruncatedLength() {
+        return truncatedLength;
+    }
+
+    /**
+     * Get the offsets of records left out because of a checksum mismatch.
+     * Offsets in sealed segments carry the number of the segment as described
+     * in Segment.
+     *
+     * @return the offsets in the order they were found
+     */
+    public List<Long> getCorruptedOffsets() {
+        return Collections.unmodifiableList(corruptedOffsets);
+    }
+
+    /**
+     * Get the number of records of a file written by an older version that
+     * could not be decoded and were left out when it was migrated.
+     *
+     * @return the number of records
+     */
+    public int getDiscardedLegacyRecords() {
+        return discardedLegacyRecords;
+    }
+
+    /**
+     * Check whether the file was opened without any repair.
+     *
+     * @return true if nothing was cut off or left out
+     */
+    public boolean isClean() {
+        return truncatedOffset == NO_OFFSET && corruptedOffsets.isEmpty()
+               && discardedLegacyRecords == 0;
+    }
+
+    void setTruncated(long offset, long length) {
+        truncatedOffset = offset;
+        truncatedLength = length;
+    }
+
+    void addCorruptedOffset(long offset) {
+        corruptedOffsets.add(offset);
+    }
+
+    void addDiscardedLegacyRecord() {
+        discardedLegacyRecords++;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "Truncated %d bytes at offset %d, left out %d corrupted records "
+            + "and %d undecodable legacy records.", truncatedLength,
+            truncatedOffset, corruptedOffsets.size(), discardedLegacyRecords);
+    }
+}
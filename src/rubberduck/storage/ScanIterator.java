@@ -0,0 +1,21 @@
+package rubberduck.storage;
+
+import java.util.Iterator;
+
+//@author A0119416H
+/**
+ * An iterator over the valid instances of a database in the order of their
+ * records in the file, which also tells the ID of each instance.
+ *
+ * @param <T> The data type stored in the database.
+ */
+public interface ScanIterator<T> extends Iterator<T> {
+
+    /**
+     * Get the ID of the instance last returned by next().
+     *
+     * @return the ID of the instance
+     * @throws IllegalStateException if next() has not been called
+     */
+    public long getId();
+}
@@ -0,0 +1,194 @@
+package rubberduck.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+//@author A0119416H
+/**
+ * A secondary index mapping keys to the IDs of the valid instances having
+ * them.
+ * <p/>
+ * The key of every tracked instance is remembered, whatever its state, so an
+ * instance made valid again by undo is indexed without decoding it. Like
+ * InstanceTable, the keys are kept in an array indexed by ID, and the valid
+ * IDs of each key in a sorted primitive array. IDs are handed out in
+ * increasing order, so new valid IDs are appended to it.
+ *
+ * @param <T> The data type stored in the database.
+ * @param <K> The type of keys of the index.
+ */
+class SecondaryIndex<T, K> implements InstanceIndex<T> {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * A set of IDs kept in increasing order in a primitive array.
+     */
+    private static class IdSet {
+        private long[] ids = new long[4];
+        private int size = 0;
+
+        public void add(long id) {
+            if (size > 0 && ids[size - 1] >= id) {
+                int position = Arrays.binarySearch(ids, 0, size, id);
+                if (position >= 0) {
+                    return;
+                }
+                insertAt(-position - 1, id);
+            } else {
+                insertAt(size, id);
+            }
+        }
+
+        public void remove(long id) {
+            int position = Arrays.binarySearch(ids, 0, size, id);
+            if (position >= 0) {
+                System.arraycopy(ids, position + 1, ids, position,
+                                 size - position - 1);
+                size--;
+            }
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public ArrayList<Long> toList() {
+            ArrayList<Long> list = new ArrayList<Long>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(ids[i]);
+            }
+            return list;
+        }
+
+        private void insertAt(int position, long id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, position, ids, position + 1,
+                             size - position);
+            ids[position] = id;
+            size++;
+        }
+    }
+
+    private IndexKeyExtractor<T, K> extractor;
+
+    /**
+     * The key of each tracked instance, indexed by ID. Slots of IDs that are
+     * not tracked hold null, which may also be a key.
+     */
+    private Object[] instanceKeys = new Object[INITIAL_CAPACITY];
+    private HashMap<K, IdSet> validIds = new HashMap<K, IdSet>();
+
+    public SecondaryIndex(IndexKeyExtractor<T, K> extractor) {
+        this.extractor = extractor;
+    }
+
+    @Override
+    public void add(long instanceId, T instance, boolean isValid) {
+        if (instanceId >= instanceKeys.length) {
+            int capacity = instanceKeys.length;
+            while (instanceId >= capacity) {
+                capacity *= 2;
+            }
+            instanceKeys = Arrays.copyOf(instanceKeys, capacity);
+        }
+        K key = extractor.getKey(instance);
+        instanceKeys[(int) instanceId] = key;
+        if (isValid) {
+            addValidId(key, instanceId);
+        }
+    }
+
+    @Override
+    public void markAsValid(long instanceId) {
+        assert instanceId < instanceKeys.length;
+        addValidId(getKey(instanceId), instanceId);
+    }
+
+    @Override
+    public void markAsNotValid(long instanceId) {
+        if (instanceId >= instanceKeys.length) {
+            return;
+        }
+        K key = getKey(instanceId);
+        IdSet ids = validIds.get(key);
+        if (ids != null) {
+            ids.remove(instanceId);
+            if (ids.isEmpty()) {
+                validIds.remove(key);
+            }
+        }
+    }
+
+    @Override
+    public void remove(long instanceId) {
+        markAsNotValid(instanceId);
+        if (instanceId < instanceKeys.length) {
+            instanceKeys[(int) instanceId] = null;
+        }
+    }
+
+    @Override
+    public void clear() {
+        instanceKeys = new Object[INITIAL_CAPACITY];
+        validIds.clear();
+    }
+
+    /**
+     * Get the IDs of valid instances with the given key.
+     *
+     * @param key the key
+     * @return a new list of the IDs in increasing order
+     */
+    public ArrayList<Long> getValidIds(Object key) {
+        IdSet ids = validIds.get(key);
+        if (ids == null) {
+            return new ArrayList<Long>();
+        }
+        return ids.toList();
+    }
+
+    /**
+     * Count the valid instances with the given key.
+     *
+     * @param key the key
+     * @return the number of valid instances
+     */
+    public int countValidIds(Object key) {
+        IdSet ids = validIds.get(key);
+        if (ids == null) {
+            return 0;
+        }
+        return ids.size();
+    }
+
+    /**
+     * Get the key of a tracked instance.
+     *
+     * @param instanceId the ID of the instance
+     * @return the key, or null if the instance is not tracked
+     */
+    @SuppressWarnings("unchecked")
+    public K getKey(long instanceId) {
+        if (instanceId >= instanceKeys.length) {
+            return null;
+        }
+        return (K) instanceKeys[(int) instanceId];
+    }
+
+    private void addValidId(K key, long instanceId) {
+        IdSet ids = validIds.get(key);
+        if (ids == null) {
+            ids = new IdSet();
+            validIds.put(key, ids);
+        }
+        ids.add(instanceId);
+    }
+}
@@ -0,0 +1,126 @@
+package rubberduck.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import rubberduck.storage.DatabaseManager.ReadMode;
+
+//@author A0119416H
+/**
+ * A sealed segment of the database, which is a file of records that no record
+ * is appended to any more. Only the states of its records are changed in
+ * place.
+ * <p/>
+ * The offset of a record is global to the database: its top bits hold the
+ * number of the segment and the rest the offset within the segment file.
+ * Segment number 0 stands for the database file itself, which takes all
+ * appends, so offsets into it need no translation.
+ */
+class Segment {
+
+    public static final int ACTIVE_NUMBER = 0;
+
+    private static final int LOCAL_OFFSET_BITS = 40;
+    private static final long LOCAL_OFFSET_MASK = (1L << LOCAL_OFFSET_BITS) - 1;
+
+    private int number;
+    private long recordCount;
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private RecordReader recordReader;
+
+    /**
+     * Open a segment file.
+     *
+     * @param file        the segment file, which must exist
+     * @param number      the number of the segment
+     * @param recordCount the number of records in the segment
+     * @param readMode    how records are read from the file
+     * @throws IOException if the file cannot be opened
+     */
+    public Segment(File file, int number, long recordCount, ReadMode readMode)
+        throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("Missing segment file " + file + ".");
+        }
+        this.file = file;
+        this.number = number;
+        this.recordCount = recordCount;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        if (readMode == ReadMode.MEMORY_MAPPED) {
+            recordReader = new MappedRecordReader(getChannel());
+        } else {
+            recordReader = new ChannelRecordReader(getChannel());
+        }
+    }
+
+    /**
+     * Get the file of a segment of a database file.
+     *
+     * @param databaseFilePath path to the database file
+     * @param number           the number of the segment
+     * @return the segment file next to the database file
+     */
+    public static File getSegmentFile(String databaseFilePath, int number) {
+        return new File(databaseFilePath + "." + number + ".seg");
+    }
+
+    /**
+     * Get the global offset of a record.
+     *
+     * @param number      the number of the segment holding the record
+     * @param localOffset the offset of the record in the segment file
+     * @return the global offset
+     */
+    public static long toOffset(int number, long localOffset) {
+        assert localOffset <= LOCAL_OFFSET_MASK;
+        return ((long) number << LOCAL_OFFSET_BITS) | localOffset;
+    }
+
+    public static int getNumber(long offset) {
+        return (int) (offset >>> LOCAL_OFFSET_BITS);
+    }
+
+    public static long getLocalOffset(long offset) {
+        return offset & LOCAL_OFFSET_MASK;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public FileChannel getChannel() {
+        return randomAccessFile.getChannel();
+    }
+
+    /**
+     * Read bytes of the segment file.
+     *
+     * @param localOffset the offset in the segment file
+     * @param bytes       the array to be filled
+     * @param start       the index in the array where the first byte goes
+     * @param length      the number of bytes to be read
+     * @return the number of bytes read, which is less than length at the end
+     *         of the file
+     * @throws IOException
+     */
+    public int read(long localOffset, byte[] bytes, int start, int length)
+        throws IOException {
+        return recordReader.read(localOffset, bytes, start, length);
+    }
+
+    public void close() throws IOException {
+        recordReader = null;
+        randomAccessFile.close();
+    }
+}
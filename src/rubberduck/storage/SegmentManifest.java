@@ -0,0 +1,205 @@
+package rubberduck.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+//@author A0119416H
+/**
+ * A file next to the database file listing its sealed segments, oldest first,
+ * with the number of records in each. The records of the database are those
+ * of the listed segments in order, followed by those of the database file
+ * itself.
+ * <p/>
+ * Segments are only added to or removed from the database by saving a new
+ * manifest, which replaces the old one atomically, so a segment file the
+ * manifest does not list is left over from an unfinished change.
+ */
+class SegmentManifest {
+
+    private static final int MAGIC_NUMBER = 0x5244534d;
+    private static final byte FORMAT_VERSION = 1;
+    private static final int CHECKSUM_LENGTH = 8;
+
+    private ArrayList<Integer> numbers = new ArrayList<Integer>();
+    private ArrayList<Long> recordCounts = new ArrayList<Long>();
+
+    /**
+     * Copy the manifest, so that a change can be saved before it is made in
+     * memory.
+     *
+     * @return a new manifest listing the same segments
+     */
+    public SegmentManifest copy() {
+        SegmentManifest manifest = new SegmentManifest();
+        manifest.numbers.addAll(numbers);
+        manifest.recordCounts.addAll(recordCounts);
+        return manifest;
+    }
+
+    public int size() {
+        return numbers.size();
+    }
+
+    public int getNumber(int position) {
+        return numbers.get(position);
+    }
+
+    public long getRecordCount(int position) {
+        return recordCounts.get(position);
+    }
+
+    /**
+     * Get the number for a new segment, which is larger than those of all
+     * listed segments.
+     *
+     * @return the new segment number
+     */
+    public int getNextNumber() {
+        int nextNumber = Segment.ACTIVE_NUMBER + 1;
+        for (int number : numbers) {
+            nextNumber = Math.max(nextNumber, number + 1);
+        }
+        return nextNumber;
+    }
+
+    /**
+     * Add a segment after all listed segments.
+     *
+     * @param number      the number of the segment
+     * @param recordCount the number of records in the segment
+     */
+    public void add(int number, long recordCount) {
+        numbers.add(number);
+        recordCounts.add(recordCount);
+    }
+
+    /**
+     * Put a segment in place of another one.
+     *
+     * @param oldNumber   the number of the listed segment to be replaced
+     * @param number      the number of the new segment
+     * @param recordCount the number of records in the new segment
+     */
+    public void replace(int oldNumber, int number, long recordCount) {
+        int position = numbers.indexOf(oldNumber);
+        assert position >= 0;
+        numbers.set(position, number);
+        recordCounts.set(position, recordCount);
+    }
+
+    public void remove(int number) {
+        int position = numbers.indexOf(number);
+        assert position >= 0;
+        numbers.remove(position);
+        recordCounts.remove(position);
+    }
+
+    /**
+     * Get the manifest file of a database file.
+     *
+     * @param databaseFilePath path to the database file
+     * @return the manifest file next to the database file
+     */
+    public static File getManifestFile(String databaseFilePath) {
+        return new File(databaseFilePath + ".manifest");
+    }
+
+    /**
+     * Load a manifest file. Unlike a sidecar index, a manifest cannot be
+     * rebuilt, so a corrupted one is an error.
+     *
+     * @param manifestFile the manifest file
+     * @return the loaded manifest, which is empty if the file does not exist
+     * @throws IOException if the file cannot be read or is corrupted
+     */
+    public static SegmentManifest load(File manifestFile) throws IOException {
+        SegmentManifest manifest = new SegmentManifest();
+        if (!manifestFile.isFile()) {
+            return manifest;
+        }
+        byte[] bytes = Files.readAllBytes(manifestFile.toPath());
+        int contentLength = bytes.length - CHECKSUM_LENGTH;
+        if (contentLength < 0) {
+            throw new IOException("Corrupted segment manifest.");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, contentLength);
+        DataInputStream input = new DataInputStream(
+            new ByteArrayInputStream(bytes));
+        input.skipBytes(contentLength);
+        if (input.readLong() != crc.getValue()) {
+            throw new IOException("Corrupted segment manifest.");
+        }
+
+        input = new DataInputStream(new ByteArrayInputStream(
+            bytes, 0, contentLength));
+        if (input.readInt() != MAGIC_NUMBER
+            || input.readByte() != FORMAT_VERSION) {
+            throw new IOException("Unknown segment manifest format.");
+        }
+        int count = input.readInt();
+        for (int i = 0; i < count; i++) {
+            int number = input.readInt();
+            manifest.add(number, input.readLong());
+        }
+        return manifest;
+    }
+
+    /**
+     * Write the manifest to the given file. It is written to a temporary file
+     * and forced to the disk first, then moved into place atomically.
+     *
+     * @param manifestFile the manifest file
+     * @throws IOException
+     */
+    public void save(File manifestFile) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream(
+            numbers.size() * 12 + 32);
+        DataOutputStream output = new DataOutputStream(byteStream);
+        output.writeInt(MAGIC_NUMBER);
+        output.writeByte(FORMAT_VERSION);
+        output.writeInt(numbers.size());
+        for (int i = 0; i < numbers.size(); i++) {
+            output.writeInt(numbers.get(i));
+            output.writeLong(recordCounts.get(i));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(byteStream.toByteArray());
+        output.writeLong(crc.getValue());
+        output.close();
+
+        File absoluteFile = manifestFile.getAbsoluteFile();
+        File tempFile = File.createTempFile("DBMNGR", ".tmp",
+                                            absoluteFile.getParentFile());
+        tempFile.deleteOnExit();
+        FileOutputStream fileStream = new FileOutputStream(tempFile);
+        try {
+            byteStream.writeTo(fileStream);
+            fileStream.getFD().sync();
+        } finally {
+            fileStream.close();
+        }
+        Files.move(tempFile.toPath(), absoluteFile.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Get the numbers of all listed segments.
+     *
+     * @return a new list of the numbers, oldest segment first
+     */
+    public List<Integer> getNumbers() {
+        return new ArrayList<Integer>(numbers);
+    }
+}
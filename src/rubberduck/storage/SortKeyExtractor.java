@@ -0,0 +1,27 @@
+package rubberduck.storage;
+
+//@author A0119416H
+/**
+ * Extracts the sort key of an instance for a sort index of DatabaseManager.
+ * A sort key is a fixed number of longs, compared one after another.
+ *
+ * @param <T> The data type stored in the database.
+ */
+public interface SortKeyExtractor<T> {
+
+    /**
+     * Get the number of longs in every sort key.
+     *
+     * @return the length of sort keys
+     */
+    public int getKeyLength();
+
+    /**
+     * Get the sort key of an instance. It must only depend on the content of
+     * the instance, as a written instance never changes.
+     *
+     * @param instance the instance
+     * @param key      the array of getKeyLength() longs to store the key in
+     */
+    public void getKey(T instance, long[] key);
+}
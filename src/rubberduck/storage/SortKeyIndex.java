@@ -0,0 +1,90 @@
+package rubberduck.storage;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+//@author A0119416H
+/**
+ * The sort keys of all tracked instances, which sorts IDs without reading any
+ * instance.
+ * <p/>
+ * Like InstanceTable, the keys are kept in a primitive array indexed by ID,
+ * with the keyLength longs of an ID next to each other. The keys of an
+ * instance never change, so validity is not tracked.
+ *
+ * @param <T> The data type stored in the database.
+ */
+class SortKeyIndex<T> implements InstanceIndex<T> {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private SortKeyExtractor<T> extractor;
+    private int keyLength;
+    private long[] keys;
+
+    private Comparator<Long> comparator = new Comparator<Long>() {
+        @Override
+        public int compare(Long firstId, Long secondId) {
+            int first = (int) (long) firstId * keyLength;
+            int second = (int) (long) secondId * keyLength;
+            for (int i = 0; i < keyLength; i++) {
+                if (keys[first + i] != keys[second + i]) {
+                    return keys[first + i] < keys[second + i] ? -1 : 1;
+                }
+            }
+            return 0;
+        }
+    };
+
+    public SortKeyIndex(SortKeyExtractor<T> extractor) {
+        this.extractor = extractor;
+        this.keyLength = extractor.getKeyLength();
+        this.keys = new long[INITIAL_CAPACITY * keyLength];
+    }
+
+    @Override
+    public void add(long instanceId, T instance, boolean isValid) {
+        int capacity = keys.length / keyLength;
+        if (instanceId >= capacity) {
+            while (instanceId >= capacity) {
+                capacity *= 2;
+            }
+            keys = Arrays.copyOf(keys, capacity * keyLength);
+        }
+        long[] key = new long[keyLength];
+        extractor.getKey(instance, key);
+        System.arraycopy(key, 0, keys, (int) instanceId * keyLength,
+                         keyLength);
+    }
+
+    @Override
+    public void markAsValid(long instanceId) {
+    }
+
+    @Override
+    public void markAsNotValid(long instanceId) {
+    }
+
+    @Override
+    public void remove(long instanceId) {
+        Arrays.fill(keys, (int) instanceId * keyLength,
+                    (int) (instanceId + 1) * keyLength, 0);
+    }
+
+    @Override
+    public void clear() {
+        keys = new long[INITIAL_CAPACITY * keyLength];
+    }
+
+    /**
+     * Sort IDs of tracked instances by their keys. The sort is stable, so IDs
+     * with equal keys stay in the same order.
+     *
+     * @param ids the IDs to be sorted
+     */
+    public void sort(List<Long> ids) {
+        Collections.sort(ids, comparator);
+    }
+}
@@ -0,0 +1,557 @@
+package rubberduck.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import rubberduck.common.datatransfer.Task;
+import rubberduck.storage.TaskIndexes.Kind;
+
+//@author A0119416H
+/**
+ * A second database of tasks, the archive, holding tasks that have been
+ * completed for a long time, so that the database of current tasks stays
+ * small. A background thread moves such tasks to the archive from time to
+ * time.
+ * <p/>
+ * Tasks in the archive are referred to by archived IDs, which are their IDs in
+ * the archive with ARCHIVED_ID_FLAG set, so that they can be listed together
+ * with IDs of the current database. An archived task is restored to the
+ * current database before it is changed. Moving a task adds it to one
+ * database before removing it from the other, so a crash in between leaves
+ * it in both rather than losing it, and the copy in the archive is removed
+ * when the archive is opened again. Neither move is recorded for undo, and
+ * tasks that undo or redo may change are not archived.
+ * <p/>
+ * A task may be moved after its ID has been displayed. The IDs of moved tasks
+ * are therefore remembered for the session, and IDs given to this class are
+ * followed to wherever the task is now.
+ */
+public class TaskArchive {
+
+    public static final long DEFAULT_MAX_AGE = 30L * 24 * 60 * 60 * 1000;
+
+    private static final long ARCHIVED_ID_FLAG = 1L << 62;
+    private static final String ARCHIVE_FILE_SUFFIX = ".archive";
+    private static final long ARCHIVING_INTERVAL = 60 * 60 * 1000;
+    static final int ARCHIVING_BATCH_SIZE = 100;
+    private static final String ARCHIVER_THREAD_NAME = "Task archiver";
+
+    private static final Logger LOGGER =
+        Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
+    private static final String MESSAGE_ARCHIVING_FAILED =
+        "Archiving completed tasks failed.";
+    private static final String MESSAGE_RESTORE_FAILED =
+        "Archived task %d could not be restored.";
+    private static final String MESSAGE_DUPLICATES_REMOVED =
+        "%d archived tasks left by an unfinished move were removed.";
+
+    /**
+     * Moves old completed tasks to the archive once at start, then once per
+     * ARCHIVING_INTERVAL until stopped. It is stopped by a flag rather than
+     * by an interrupt, which would close the file channels of the databases.
+     */
+    private class Archiver implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    archiveOldTasks();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, MESSAGE_ARCHIVING_FAILED, e);
+                }
+                synchronized (TaskArchive.this) {
+                    if (isArchiverStopped) {
+                        return;
+                    }
+                    try {
+                        TaskArchive.this.wait(ARCHIVING_INTERVAL);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (isArchiverStopped) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private TaskStore<Task> dbManager;
+    private TaskStore<Task> archiveDbManager;
+    private long maxAge;
+    private Thread archiverThread = null;
+    private boolean isArchiverStopped = false;
+
+    /**
+     * Archiving is suspended while holdCount is positive. Tasks about to be
+     * changed are never archived in the same session, so that they are not
+     * moved away before the change is made.
+     */
+    private int holdCount = 0;
+    private HashSet<Long> changedIds = new HashSet<Long>();
+
+    /**
+     * The ID each moved task was given in the database it was moved to,
+     * keyed by its ID in the database it was moved from. Archived IDs are
+     * used for the archive, so the keys of both databases do not collide.
+     */
+    private HashMap<Long, Long> movedIds = new HashMap<Long, Long>();
+
+    /**
+     * Create an archive for a database of tasks.
+     *
+     * @param dbManager        the database of current tasks
+     * @param archiveDbManager the database of archived tasks
+     * @param maxAge           the time in milliseconds since the last update of
+     *                         a completed task after which it is archived
+     * @throws IOException if copies left by an unfinished move could not be
+     *                     removed
+     */
+    public TaskArchive(TaskStore<Task> dbManager,
+                       TaskStore<Task> archiveDbManager, long maxAge)
+        throws IOException {
+        this.dbManager = dbManager;
+        this.archiveDbManager = archiveDbManager;
+        this.maxAge = maxAge;
+        removeDuplicates();
+    }
+
+    /**
+     * Remove the archived copies of tasks that are also in the current
+     * database, which a crash during a move leaves behind. Neither copy has
+     * changed since, so the one in the current database is kept, and is
+     * archived again later if it is old enough.
+     *
+     * @throws IOException
+     */
+    private void removeDuplicates() throws IOException {
+        HashSet<String> currentKeys = new HashSet<String>();
+        for (Long id : TaskIndexes.getValidIds(dbManager, true,
+                                               EnumSet.allOf(Kind.class))) {
+            currentKeys.add(getDuplicateKey(dbManager.getInstance(id)));
+        }
+        if (currentKeys.isEmpty()) {
+            return;
+        }
+        ArrayList<Long> duplicateIds = new ArrayList<Long>();
+        for (Long archiveId : archiveDbManager.getValidIdList()) {
+            Task task = archiveDbManager.getInstance(archiveId);
+            if (currentKeys.contains(getDuplicateKey(task))) {
+                duplicateIds.add(archiveId);
+            }
+        }
+        if (!duplicateIds.isEmpty()) {
+            int count = archiveDbManager.removeUnrecorded(duplicateIds).size();
+            LOGGER.info(String.format(MESSAGE_DUPLICATES_REMOVED, count));
+        }
+    }
+
+    /**
+     * Get a key that is equal for both copies of a moved task. A task that
+     * has been synchronized is identified by its UUID. Other tasks have no
+     * UUID, so their description and last update time are used, which tell
+     * apart tasks that have not been copied.
+     *
+     * @param task the task
+     * @return the key
+     */
+    private static String getDuplicateKey(Task task) {
+        if (task.getUuid() != null && !task.getUuid().isEmpty()) {
+            return task.getUuid();
+        }
+        Calendar lastUpdate = task.getLastUpdate();
+        return (lastUpdate == null ? "" : lastUpdate.getTimeInMillis())
+               + "\n" + task.getDescription();
+    }
+
+    /**
+     * Get the path of the archive of a database file.
+     *
+     * @param filePath the path of the database file
+     * @return the path of the archive file
+     */
+    public static String getArchiveFilePath(String filePath) {
+        return filePath + ARCHIVE_FILE_SUFFIX;
+    }
+
+    /**
+     * Check whether an ID refers to a task in the archive.
+     *
+     * @param id an ID of the current database or an archived ID
+     * @return true if it is an archived ID
+     */
+    public static boolean isArchivedId(long id) {
+        return id >= 0 && (id & ARCHIVED_ID_FLAG) != 0;
+    }
+
+    public TaskStore<Task> getDbManager() {
+        return dbManager;
+    }
+
+    public TaskStore<Task> getArchiveDbManager() {
+        return archiveDbManager;
+    }
+
+    /**
+     * Convert IDs in the archive database to archived IDs.
+     *
+     * @param archiveIds IDs of tasks in the archive database
+     * @return a new list of the archived IDs in the same order
+     */
+    public ArrayList<Long> toArchivedIds(Collection<Long> archiveIds) {
+        ArrayList<Long> ids = new ArrayList<Long>(archiveIds.size());
+        for (Long archiveId : archiveIds) {
+            ids.add(archiveId | ARCHIVED_ID_FLAG);
+        }
+        return ids;
+    }
+
+    /**
+     * Get the IDs of all valid tasks in both databases.
+     *
+     * @return a new list of the IDs of the current database followed by the
+     *         archived IDs
+     */
+    public synchronized ArrayList<Long> getValidIds() {
+        ArrayList<Long> ids = new ArrayList<Long>(dbManager.getValidIdList());
+        ids.addAll(toArchivedIds(archiveDbManager.getValidIdList()));
+        return ids;
+    }
+
+    /**
+     * Get the ID of the valid task with the given UUID in either database.
+     *
+     * @param uuid the UUID
+     * @return an ID of the current database or an archived ID, or null if
+     *         there is no such task
+     * @throws IOException
+     */
+    public synchronized Long getValidId(String uuid) throws IOException {
+        Long id = TaskIndexes.getValidId(dbManager, uuid);
+        if (id == null) {
+            Long archiveId = TaskIndexes.getValidId(archiveDbManager, uuid);
+            if (archiveId != null) {
+                id = archiveId | ARCHIVED_ID_FLAG;
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Remove all tasks from both databases, as TaskStore.resetDatabase()
+     * does, and forget where tasks have been moved, as IDs start over.
+     *
+     * @throws IOException
+     */
+    public synchronized void resetDatabases() throws IOException {
+        dbManager.resetDatabase();
+        archiveDbManager.resetDatabase();
+        movedIds.clear();
+        changedIds.clear();
+    }
+
+    /**
+     * Get a task from the database it is in.
+     *
+     * @param id an ID of the current database or an archived ID
+     * @return the task
+     * @throws IOException
+     * @throws IndexOutOfBoundsException if the task is not valid
+     */
+    public synchronized Task getTask(long id) throws IOException {
+        id = locate(id);
+        if (isArchivedId(id)) {
+            return archiveDbManager.getInstance(id & ~ARCHIVED_ID_FLAG);
+        }
+        return dbManager.getInstance(id);
+    }
+
+    /**
+     * Get the ID a task has now, following it through the moves made since
+     * the given ID was obtained.
+     *
+     * @param id an ID of the current database or an archived ID
+     * @return the ID of the task in the database it is in now
+     */
+    private long locate(long id) {
+        Long movedId = movedIds.get(id);
+        while (movedId != null) {
+            id = movedId;
+            movedId = movedIds.get(id);
+        }
+        return id;
+    }
+
+    /**
+     * Sort IDs of tasks in the order of Task.compareTo(). IDs of tasks that
+     * have been moved are replaced by their IDs now. Tasks are only read if
+     * there are archived IDs among them.
+     *
+     * @param ids IDs of the current database and archived IDs
+     * @throws IOException
+     */
+    public synchronized void sort(List<Long> ids) throws IOException {
+        ArrayList<Long> currentIds = new ArrayList<Long>();
+        ArrayList<Long> archivedIds = new ArrayList<Long>();
+        for (int i = 0; i < ids.size(); i++) {
+            ids.set(i, locate(ids.get(i)));
+        }
+        for (Long id : ids) {
+            if (isArchivedId(id)) {
+                archivedIds.add(id);
+            } else {
+                currentIds.add(id);
+            }
+        }
+        TaskIndexes.sort(dbManager, currentIds);
+        if (archivedIds.isEmpty()) {
+            ids.clear();
+            ids.addAll(currentIds);
+            return;
+        }
+        final HashMap<Long, Task> tasks = new HashMap<Long, Task>();
+        for (Long id : ids) {
+            tasks.put(id, getTask(id));
+        }
+        Collections.sort(archivedIds, new Comparator<Long>() {
+            @Override
+            public int compare(Long id1, Long id2) {
+                return tasks.get(id1).compareTo(tasks.get(id2));
+            }
+        });
+
+        ids.clear();
+        int i = 0;
+        int j = 0;
+        while (i < currentIds.size() || j < archivedIds.size()) {
+            if (j == archivedIds.size()
+                || (i < currentIds.size()
+                    && tasks.get(currentIds.get(i)).compareTo(
+                        tasks.get(archivedIds.get(j))) <= 0)) {
+                ids.add(currentIds.get(i++));
+            } else {
+                ids.add(archivedIds.get(j++));
+            }
+        }
+    }
+
+    /**
+     * Move completed tasks last updated longer than the maximum age ago to
+     * the archive, unless archiving is suspended.
+     * <p/>
+     * Tasks are read without the lock on this archive and moved in batches
+     * of ARCHIVING_BATCH_SIZE, each under the lock, so that commands are
+     * not blocked for a whole pass. A task changed in the meantime has a new
+     * ID, and the copy of its old version is not kept by move().
+     *
+     * @return the number of tasks moved
+     * @throws IOException
+     */
+    public int archiveOldTasks() throws IOException {
+        synchronized (this) {
+            if (holdCount > 0) {
+                return 0;
+            }
+        }
+        long cutoff = System.currentTimeMillis() - maxAge;
+        int count = 0;
+        ArrayList<Long> ids = new ArrayList<Long>();
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        for (Long id : TaskIndexes.getValidIds(dbManager, true,
+                                               EnumSet.allOf(Kind.class))) {
+            Task task;
+            try {
+                task = dbManager.getInstance(id);
+            } catch (IndexOutOfBoundsException e) {
+                continue;
+            }
+            Calendar lastUpdate = task.getLastUpdate();
+            if (lastUpdate != null && lastUpdate.getTimeInMillis() < cutoff) {
+                ids.add(id);
+                tasks.add(task);
+            }
+            if (ids.size() == ARCHIVING_BATCH_SIZE) {
+                int batchCount = archiveBatch(ids, tasks);
+                if (batchCount < 0) {
+                    return count;
+                }
+                count += batchCount;
+                ids.clear();
+                tasks.clear();
+            }
+        }
+        return count + Math.max(archiveBatch(ids, tasks), 0);
+    }
+
+    /**
+     * Move a batch of tasks to the archive, except those about to be changed.
+     *
+     * @param ids   the IDs of the tasks in the current database
+     * @param tasks the tasks
+     * @return the number of tasks moved, or -1 if archiving has been
+     *         suspended or stopped
+     * @throws IOException
+     */
+    private synchronized int archiveBatch(List<Long> ids, List<Task> tasks)
+        throws IOException {
+        if (holdCount > 0 || isArchiverStopped) {
+            return -1;
+        }
+        ArrayList<Long> batchIds = new ArrayList<Long>();
+        ArrayList<Task> batchTasks = new ArrayList<Task>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (!changedIds.contains(ids.get(i))) {
+                batchIds.add(ids.get(i));
+                batchTasks.add(tasks.get(i));
+            }
+        }
+        if (batchIds.isEmpty()) {
+            return 0;
+        }
+        HashMap<Long, Long> newIds =
+            move(dbManager, archiveDbManager, batchIds, batchTasks);
+        for (Long id : newIds.keySet()) {
+            movedIds.put(id, newIds.get(id) | ARCHIVED_ID_FLAG);
+        }
+        return newIds.size();
+    }
+
+    /**
+     * Get the ID in the current database of a task that is about to be
+     * changed. An archived task is restored to the current database first.
+     * The task is not archived again in this session.
+     *
+     * @param id an ID of the current database or an archived ID
+     * @return the ID of the task in the current database
+     * @throws IOException               if the task could not be restored, in
+     *                                   which case it stays in the archive
+     * @throws IndexOutOfBoundsException if the task is not valid
+     */
+    public synchronized long getIdToChange(long id) throws IOException {
+        id = locate(id);
+        if (isArchivedId(id)) {
+            id = restore(id);
+        }
+        changedIds.add(id);
+        return id;
+    }
+
+    /**
+     * Restore an archived task to the current database.
+     *
+     * @param id an archived ID
+     * @return the ID of the task in the current database
+     * @throws IOException               if the task could not be moved, in
+     *                                   which case it stays in the archive
+     * @throws IndexOutOfBoundsException if the task is not valid
+     */
+    private long restore(long id) throws IOException {
+        long archiveId = id & ~ARCHIVED_ID_FLAG;
+        Task task = archiveDbManager.getInstance(archiveId);
+        HashMap<Long, Long> newIds =
+            move(archiveDbManager, dbManager,
+                 Collections.singletonList(archiveId),
+                 Collections.singletonList(task));
+        if (newIds.isEmpty()) {
+            throw new IOException(String.format(MESSAGE_RESTORE_FAILED,
+                                                archiveId));
+        }
+        long newId = newIds.get(archiveId);
+        movedIds.put(id, newId);
+        return newId;
+    }
+
+    /**
+     * Suspend archiving, for operations such as synchronization that change
+     * tasks of the current database by IDs they got earlier. Archived tasks
+     * stay in the archive, and are restored one by one with getIdToChange()
+     * when they are changed. Archiving resumes when release() has been called
+     * as many times as hold().
+     */
+    public synchronized void hold() {
+        holdCount++;
+    }
+
+    /**
+     * Resume archiving suspended by hold().
+     */
+    public synchronized void release() {
+        holdCount--;
+    }
+
+    /**
+     * Move tasks from one database to another.
+     *
+     * @param source the database the tasks are in
+     * @param target the database the tasks are moved to
+     * @param ids    the IDs of the tasks in source
+     * @param tasks  the tasks
+     * @return the IDs in target of the tasks moved, keyed by their IDs in
+     *         source
+     * @throws IOException
+     */
+    private static HashMap<Long, Long> move(TaskStore<Task> source,
+                                            TaskStore<Task> target,
+                                            List<Long> ids, List<Task> tasks)
+        throws IOException {
+        ArrayList<Long> newIds = target.insertUnrecorded(tasks);
+        Set<Long> removedIds = source.removeUnrecorded(ids);
+        HashMap<Long, Long> movedIds = new HashMap<Long, Long>();
+        ArrayList<Long> unmovedIds = new ArrayList<Long>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (removedIds.contains(ids.get(i))) {
+                movedIds.put(ids.get(i), newIds.get(i));
+            } else {
+                unmovedIds.add(newIds.get(i));
+            }
+        }
+        target.removeUnrecorded(unmovedIds);
+        return movedIds;
+    }
+
+    /**
+     * Start moving old completed tasks to the archive in the background.
+     */
+    public synchronized void start() {
+        if (archiverThread == null) {
+            archiverThread = new Thread(new Archiver(), ARCHIVER_THREAD_NAME);
+            archiverThread.setDaemon(true);
+            archiverThread.start();
+        }
+    }
+
+    /**
+     * Stop archiving in the background and close the archive database. The
+     * current database is left open.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        Thread thread;
+        synchronized (this) {
+            thread = archiverThread;
+            archiverThread = null;
+            isArchiverStopped = true;
+            notifyAll();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        archiveDbManager.closeFile();
+    }
+}
@@ -0,0 +1,749 @@
+package rubberduck.storage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.TreeSet;
+
+import rubberduck.common.datatransfer.DatePair;
+import rubberduck.common.datatransfer.Task;
+
+//@author A0119416H
+/**
+ * The indexes kept on a database of tasks: secondary indexes by completion
+ * status and kind of task, and by UUID, interval indexes of their dates, a
+ * text index of their descriptions and a sort index of their display order.
+ * They let commands and synchronization find and sort tasks without decoding
+ * every one of them.
+ * <p/>
+ * The dates of a task are mapped to intervals so that the tasks found for a
+ * period include every task DatePair.isWithinPeriod() accepts, but may include
+ * a few more, which callers check again with the decoded task.
+ * <p/>
+ * The criteria of tasks for queries are made here too, and use these indexes
+ * to find their candidates.
+ */
+public final class TaskIndexes {
+
+    public static final String STATUS_INDEX = "status";
+    public static final String UUID_INDEX = "uuid";
+    public static final String DATE_INDEX = "date";
+    public static final String SCHEDULE_INDEX = "schedule";
+    public static final String DESCRIPTION_INDEX = "description";
+    public static final String ORDER_INDEX = "order";
+
+    private static final int RANK_SCHEDULE = 0;
+    private static final int RANK_OTHER = 1;
+    private static final int RANK_FLOATING = 2;
+
+    /**
+     * The kinds of tasks. A task with a single deadline is a DEADLINE, and any
+     * other task with dates is a SCHEDULE.
+     */
+    public enum Kind {
+        FLOATING, DEADLINE, SCHEDULE
+    }
+
+    /**
+     * The key of the status index, which is the completion status together
+     * with the kind of a task.
+     */
+    public static class Status {
+        private boolean isDone;
+        private Kind kind;
+
+        public Status(boolean isDone, Kind kind) {
+            this.isDone = isDone;
+            this.kind = kind;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Status)) {
+                return false;
+            }
+            Status status = (Status) object;
+            return isDone == status.isDone && kind == status.kind;
+        }
+
+        @Override
+        public int hashCode() {
+            return kind.hashCode() * 2 + (isDone ? 1 : 0);
+        }
+
+        public boolean isDone() {
+            return isDone;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+    }
+
+    private static class StatusExtractor implements
+            IndexKeyExtractor<Task, Status> {
+        @Override
+        public Status getKey(Task task) {
+            return new Status(task.getIsDone(), getKind(task));
+        }
+    }
+
+    private static class UuidExtractor implements
+            IndexKeyExtractor<Task, String> {
+        @Override
+        public String getKey(Task task) {
+            return task.getUuid();
+        }
+    }
+
+    private static class DescriptionExtractor implements
+            IndexKeyExtractor<Task, String> {
+        @Override
+        public String getKey(Task task) {
+            return task.getDescription();
+        }
+    }
+
+    /**
+     * Extracts the sort key of a task, which orders tasks as Task.compareTo()
+     * does: schedules first, then other tasks with dates, then floating tasks,
+     * and tasks with dates by their earliest date.
+     */
+    private static class OrderExtractor implements SortKeyExtractor<Task> {
+        @Override
+        public int getKeyLength() {
+            return 2;
+        }
+
+        @Override
+        public void getKey(Task task, long[] key) {
+            if (task.isSchedule()) {
+                key[0] = RANK_SCHEDULE;
+            } else if (task.isFloatingTask()) {
+                key[0] = RANK_FLOATING;
+            } else {
+                key[0] = RANK_OTHER;
+            }
+            if (!task.isFloatingTask() && task.getEarliestDate() != null) {
+                key[1] = task.getEarliestDate().getTimeInMillis();
+            }
+        }
+    }
+
+    /**
+     * Extracts the intervals of all dates of a task.
+     */
+    private static class DateExtractor implements IntervalExtractor<Task> {
+        @Override
+        public List<Interval> getIntervals(Task task) {
+            List<Interval> intervals = new ArrayList<Interval>();
+            for (DatePair datePair : task.getDateList()) {
+                intervals.add(getInterval(datePair));
+            }
+            return intervals;
+        }
+    }
+
+    /**
+     * Extracts the intervals of the dates of uncompleted schedules, which are
+     * the tasks other tasks may conflict with. A deadline among the dates of
+     * a schedule conflicts with anything starting before it, so it covers all
+     * times.
+     */
+    private static class ScheduleExtractor implements
+            IntervalExtractor<Task> {
+        @Override
+        public List<Interval> getIntervals(Task task) {
+            List<Interval> intervals = new ArrayList<Interval>();
+            if (task.getIsDone() || getKind(task) != Kind.SCHEDULE) {
+                return intervals;
+            }
+            for (DatePair datePair : task.getDateList()) {
+                if (datePair.hasStartDate() || !datePair.hasEndDate()) {
+                    intervals.add(getInterval(datePair));
+                } else {
+                    intervals.add(new Interval(Long.MIN_VALUE,
+                                               Long.MAX_VALUE));
+                }
+            }
+            return intervals;
+        }
+    }
+
+    private static class DoneCriterion extends Criterion<Task> {
+        private boolean isDone;
+
+        public DoneCriterion(boolean isDone) {
+            this.isDone = isDone;
+        }
+
+        @Override
+        public List<Long> getCandidateIds(TaskStore<Task> store)
+            throws IOException {
+            return getValidIds(store, isDone, EnumSet.allOf(Kind.class));
+        }
+
+        @Override
+        public boolean isExact() {
+            return true;
+        }
+
+        @Override
+        public int estimateCandidateCount(TaskStore<Task> store)
+            throws IOException {
+            return countValidIds(store, isDone, EnumSet.allOf(Kind.class));
+        }
+
+        @Override
+        public boolean canCheckCandidate() {
+            return true;
+        }
+
+        @Override
+        public boolean isCandidate(TaskStore<Task> store, long instanceId)
+            throws IOException {
+            Status status = getStatus(store, instanceId);
+            return status != null && status.isDone() == isDone;
+        }
+
+        @Override
+        public boolean matches(Task task) {
+            return task.getIsDone() == isDone;
+        }
+    }
+
+    private static class KindCriterion extends Criterion<Task> {
+        private EnumSet<Kind> kinds = EnumSet.noneOf(Kind.class);
+
+        public KindCriterion(Collection<Kind> kinds) {
+            this.kinds.addAll(kinds);
+        }
+
+        @Override
+        public List<Long> getCandidateIds(TaskStore<Task> store)
+            throws IOException {
+            ArrayList<Long> ids = getValidIds(store, false, kinds);
+            ids.addAll(getValidIds(store, true, kinds));
+            Collections.sort(ids);
+            return ids;
+        }
+
+        @Override
+        public boolean isExact() {
+            return true;
+        }
+
+        @Override
+        public int estimateCandidateCount(TaskStore<Task> store)
+            throws IOException {
+            return countValidIds(store, false, kinds)
+                   + countValidIds(store, true, kinds);
+        }
+
+        @Override
+        public boolean canCheckCandidate() {
+            return true;
+        }
+
+        @Override
+        public boolean isCandidate(TaskStore<Task> store, long instanceId)
+            throws IOException {
+            Status status = getStatus(store, instanceId);
+            return status != null && kinds.contains(status.getKind());
+        }
+
+        @Override
+        public boolean matches(Task task) {
+            return kinds.contains(getKind(task));
+        }
+    }
+
+    /**
+     * Matches tasks with a date within a period. The date index gives a few
+     * more tasks than match, and cannot be used at all for a period without a
+     * start or an end date.
+     */
+    private static class PeriodCriterion extends Criterion<Task> {
+        private DatePair period;
+
+        public PeriodCriterion(DatePair period) {
+            this.period = period;
+        }
+
+        @Override
+        public List<Long> getCandidateIds(TaskStore<Task> store)
+            throws IOException {
+            if (!period.hasDateRange()) {
+                return null;
+            }
+            return getValidIdsWithinPeriod(store, period);
+        }
+
+        @Override
+        public boolean matches(Task task) {
+            return task.hasDate() && task.isWithinPeriod(period);
+        }
+    }
+
+    private static class WordCriterion extends Criterion<Task> {
+        private String word;
+
+        public WordCriterion(String word) {
+            this.word = word;
+        }
+
+        @Override
+        public List<Long> getCandidateIds(TaskStore<Task> store)
+            throws IOException {
+            return getValidIdsWithWord(store, word);
+        }
+
+        @Override
+        public boolean isExact() {
+            return true;
+        }
+
+        @Override
+        public boolean matches(Task task) {
+            return Arrays.asList(TokenIndex.tokenize(task.getDescription()))
+                .contains(word.toLowerCase());
+        }
+    }
+
+    private static class WordPartCriterion extends Criterion<Task> {
+        private String part;
+
+        public WordPartCriterion(String part) {
+            this.part = part;
+        }
+
+        @Override
+        public List<Long> getCandidateIds(TaskStore<Task> store)
+            throws IOException {
+            return getValidIdsWithWordContaining(store, part);
+        }
+
+        @Override
+        public boolean isExact() {
+            return true;
+        }
+
+        @Override
+        public boolean matches(Task task) {
+            for (String word : TokenIndex.tokenize(task.getDescription())) {
+                if (word.contains(part.toLowerCase())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class PhraseCriterion extends Criterion<Task> {
+        private List<String> words = new ArrayList<String>();
+
+        public PhraseCriterion(List<String> words) {
+            for (String word : words) {
+                this.words.add(word.toLowerCase());
+            }
+        }
+
+        @Override
+        public List<Long> getCandidateIds(TaskStore<Task> store)
+            throws IOException {
+            return getValidIdsWithPhrase(store, words);
+        }
+
+        @Override
+        public boolean isExact() {
+            return true;
+        }
+
+        @Override
+        public boolean matches(Task task) {
+            return !words.isEmpty() && Collections.indexOfSubList(
+                Arrays.asList(TokenIndex.tokenize(task.getDescription())),
+                words) >= 0;
+        }
+    }
+
+    private static class UuidCriterion extends Criterion<Task> {
+        private String uuid;
+
+        public UuidCriterion(String uuid) {
+            this.uuid = uuid;
+        }
+
+        @Override
+        public List<Long> getCandidateIds(TaskStore<Task> store)
+            throws IOException {
+            addTo(store);
+            return store.getValidIdsByKey(UUID_INDEX, uuid);
+        }
+
+        @Override
+        public boolean isExact() {
+            return true;
+        }
+
+        @Override
+        public int estimateCandidateCount(TaskStore<Task> store)
+            throws IOException {
+            addTo(store);
+            return store.countValidIdsByKey(UUID_INDEX, uuid);
+        }
+
+        @Override
+        public boolean canCheckCandidate() {
+            return true;
+        }
+
+        @Override
+        public boolean isCandidate(TaskStore<Task> store, long instanceId)
+            throws IOException {
+            addTo(store);
+            return uuid.equals(store.getKey(UUID_INDEX, instanceId));
+        }
+
+        @Override
+        public boolean matches(Task task) {
+            return uuid.equals(task.getUuid());
+        }
+    }
+
+    private TaskIndexes() {
+    }
+
+    /**
+     * Add the task indexes to a database, unless they have been added.
+     *
+     * @param dbManager the database of tasks
+     * @throws IOException
+     */
+    public static synchronized void addTo(TaskStore<Task> dbManager)
+        throws IOException {
+        if (!dbManager.hasIndex(STATUS_INDEX)) {
+            dbManager.addIndex(STATUS_INDEX, new StatusExtractor());
+        }
+        if (!dbManager.hasIndex(UUID_INDEX)) {
+            dbManager.addIndex(UUID_INDEX, new UuidExtractor());
+        }
+        if (!dbManager.hasIndex(DATE_INDEX)) {
+            dbManager.addIntervalIndex(DATE_INDEX, new DateExtractor());
+        }
+        if (!dbManager.hasIndex(SCHEDULE_INDEX)) {
+            dbManager.addIntervalIndex(SCHEDULE_INDEX,
+                                       new ScheduleExtractor());
+        }
+        if (!dbManager.hasIndex(DESCRIPTION_INDEX)) {
+            dbManager.addTextIndex(DESCRIPTION_INDEX,
+                                   new DescriptionExtractor());
+        }
+        if (!dbManager.hasIndex(ORDER_INDEX)) {
+            dbManager.addSortIndex(ORDER_INDEX, new OrderExtractor());
+        }
+    }
+
+    /**
+     * Get the kind of a task.
+     *
+     * @param task the task
+     * @return the kind of the task
+     */
+    public static Kind getKind(Task task) {
+        if (task.isFloatingTask()) {
+            return Kind.FLOATING;
+        } else if (task.isDeadline()) {
+            return Kind.DEADLINE;
+        } else {
+            return Kind.SCHEDULE;
+        }
+    }
+
+    /**
+     * Get the IDs of valid tasks with the given completion status and any of
+     * the given kinds.
+     *
+     * @param dbManager the database of tasks
+     * @param isDone    the completion status
+     * @param kinds     the kinds of tasks
+     * @return a new list of the IDs in increasing order
+     * @throws IOException
+     */
+    public static ArrayList<Long> getValidIds(TaskStore<Task> dbManager,
+                                              boolean isDone,
+                                              Collection<Kind> kinds)
+        throws IOException {
+        addTo(dbManager);
+        EnumSet<Kind> kindSet = EnumSet.noneOf(Kind.class);
+        kindSet.addAll(kinds);
+        ArrayList<Long> ids = new ArrayList<Long>();
+        for (Kind kind : kindSet) {
+            ids.addAll(dbManager.getValidIdsByKey(STATUS_INDEX,
+                                                  new Status(isDone, kind)));
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Count the valid tasks with the given completion status and any of the
+     * given kinds.
+     *
+     * @param dbManager the database of tasks
+     * @param isDone    the completion status
+     * @param kinds     the kinds of tasks
+     * @return the number of tasks
+     * @throws IOException
+     */
+    private static int countValidIds(TaskStore<Task> dbManager,
+                                     boolean isDone, Collection<Kind> kinds)
+        throws IOException {
+        addTo(dbManager);
+        EnumSet<Kind> kindSet = EnumSet.noneOf(Kind.class);
+        kindSet.addAll(kinds);
+        int count = 0;
+        for (Kind kind : kindSet) {
+            count += dbManager.countValidIdsByKey(STATUS_INDEX,
+                                                  new Status(isDone, kind));
+        }
+        return count;
+    }
+
+    /**
+     * Get the key of a task in the status index.
+     *
+     * @param dbManager  the database of tasks
+     * @param instanceId the ID of the task
+     * @return the key, or null if the task is not tracked
+     * @throws IOException
+     */
+    private static Status getStatus(TaskStore<Task> dbManager,
+                                    long instanceId) throws IOException {
+        addTo(dbManager);
+        return (Status) dbManager.getKey(STATUS_INDEX, instanceId);
+    }
+
+    /**
+     * Get the ID of the valid task with the given UUID.
+     *
+     * @param dbManager the database of tasks
+     * @param uuid      the UUID
+     * @return the ID of the task, the latest one if there are several, or null
+     *         if there is none
+     * @throws IOException
+     */
+    public static Long getValidId(TaskStore<Task> dbManager, String uuid)
+        throws IOException {
+        addTo(dbManager);
+        ArrayList<Long> ids = dbManager.getValidIdsByKey(UUID_INDEX, uuid);
+        if (ids.isEmpty()) {
+            return null;
+        }
+        return ids.get(ids.size() - 1);
+    }
+
+    /**
+     * Get the interval of a pair of dates. A deadline, which is within any
+     * period ending after it, extends to the end of time, and so does a
+     * start date alone. A missing date covers all times.
+     *
+     * @param datePair the pair of dates
+     * @return the interval in milliseconds
+     */
+    public static Interval getInterval(DatePair datePair) {
+        if (datePair.hasDateRange()) {
+            return new Interval(datePair.getStartDate().getTimeInMillis(),
+                                datePair.getEndDate().getTimeInMillis());
+        } else if (datePair.hasStartDate()) {
+            return new Interval(datePair.getStartDate().getTimeInMillis(),
+                                Long.MAX_VALUE);
+        } else if (datePair.hasEndDate()) {
+            return new Interval(datePair.getEndDate().getTimeInMillis(),
+                                Long.MAX_VALUE);
+        } else {
+            return new Interval(Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Get the IDs of valid tasks which may have a date within the given
+     * period. Tasks without dates are left out unless the period lacks a
+     * start or an end date, in which case all valid tasks are returned.
+     *
+     * @param dbManager the database of tasks
+     * @param period    the period
+     * @return a new list of the IDs in increasing order
+     * @throws IOException
+     */
+    public static ArrayList<Long> getValidIdsWithinPeriod(
+        TaskStore<Task> dbManager, DatePair period) throws IOException {
+        addTo(dbManager);
+        if (!period.hasDateRange()) {
+            return new ArrayList<Long>(dbManager.getValidIdList());
+        }
+        return dbManager.getValidIdsOverlapping(
+            DATE_INDEX, period.getStartDate().getTimeInMillis(),
+            period.getEndDate().getTimeInMillis());
+    }
+
+    /**
+     * Get the IDs of valid and uncompleted schedules which may conflict with
+     * the given task.
+     *
+     * @param dbManager the database of tasks
+     * @param task      the task
+     * @return a new list of the IDs in increasing order
+     * @throws IOException
+     */
+    public static ArrayList<Long> getValidIdsInConflict(
+        TaskStore<Task> dbManager, Task task) throws IOException {
+        addTo(dbManager);
+        TreeSet<Long> ids = new TreeSet<Long>();
+        for (DatePair datePair : task.getDateList()) {
+            Interval interval = getInterval(datePair);
+            ids.addAll(dbManager.getValidIdsOverlapping(
+                SCHEDULE_INDEX, interval.getStart(), interval.getEnd()));
+        }
+        return new ArrayList<Long>(ids);
+    }
+
+    /**
+     * Get the IDs of valid tasks whose description has the given word, in any
+     * case.
+     *
+     * @param dbManager the database of tasks
+     * @param word      the word
+     * @return a new list of the IDs in increasing order
+     * @throws IOException
+     */
+    public static ArrayList<Long> getValidIdsWithWord(
+        TaskStore<Task> dbManager, String word) throws IOException {
+        addTo(dbManager);
+        return dbManager.getValidIdsWithToken(DESCRIPTION_INDEX, word);
+    }
+
+    /**
+     * Get the IDs of valid tasks whose description has a word containing the
+     * given part, in any case.
+     *
+     * @param dbManager the database of tasks
+     * @param part      the part of a word
+     * @return a new list of the IDs in increasing order
+     * @throws IOException
+     */
+    public static ArrayList<Long> getValidIdsWithWordContaining(
+        TaskStore<Task> dbManager, String part) throws IOException {
+        addTo(dbManager);
+        return dbManager.getValidIdsWithTokenContaining(DESCRIPTION_INDEX,
+                                                        part);
+    }
+
+    /**
+     * Get the IDs of valid tasks whose description has the given words one
+     * after another, in any case.
+     *
+     * @param dbManager the database of tasks
+     * @param words     the words of the phrase
+     * @return a new list of the IDs in increasing order
+     * @throws IOException
+     */
+    public static ArrayList<Long> getValidIdsWithPhrase(
+        TaskStore<Task> dbManager, List<String> words)
+        throws IOException {
+        addTo(dbManager);
+        return dbManager.getValidIdsWithPhrase(DESCRIPTION_INDEX, words);
+    }
+
+    /**
+     * Make a criterion matching tasks with the given completion status.
+     *
+     * @param isDone the completion status
+     * @return the criterion
+     */
+    public static Criterion<Task> isDone(boolean isDone) {
+        return new DoneCriterion(isDone);
+    }
+
+    /**
+     * Make a criterion matching tasks of any of the given kinds.
+     *
+     * @param kinds the kinds of tasks
+     * @return the criterion
+     */
+    public static Criterion<Task> ofKinds(Collection<Kind> kinds) {
+        return new KindCriterion(kinds);
+    }
+
+    /**
+     * Make a criterion matching tasks with a date within the given period, as
+     * Task.isWithinPeriod() does. Tasks without dates never match.
+     *
+     * @param period the period
+     * @return the criterion
+     */
+    public static Criterion<Task> withinPeriod(DatePair period) {
+        return new PeriodCriterion(period);
+    }
+
+    /**
+     * Make a criterion matching tasks whose description has the given word,
+     * in any case.
+     *
+     * @param word the word
+     * @return the criterion
+     */
+    public static Criterion<Task> withWord(String word) {
+        return new WordCriterion(word);
+    }
+
+    /**
+     * Make a criterion matching tasks whose description has a word containing
+     * the given part, in any case.
+     *
+     * @param part the part of a word
+     * @return the criterion
+     */
+    public static Criterion<Task> withWordContaining(String part) {
+        return new WordPartCriterion(part);
+    }
+
+    /**
+     * Make a criterion matching tasks whose description has the given words
+     * one after another, in any case. Nothing matches a phrase without words.
+     *
+     * @param words the words of the phrase
+     * @return the criterion
+     */
+    public static Criterion<Task> withPhrase(List<String> words) {
+        return new PhraseCriterion(words);
+    }
+
+    /**
+     * Make a criterion matching tasks with the given UUID.
+     *
+     * @param uuid the UUID
+     * @return the criterion
+     */
+    public static Criterion<Task> withUuid(String uuid) {
+        return new UuidCriterion(uuid);
+    }
+
+    /**
+     * Sort IDs of tasks in the order of Task.compareTo(), without reading any
+     * task.
+     *
+     * @param dbManager the database of tasks
+     * @param ids       the IDs of tasks in the database
+     * @throws IOException
+     */
+    public static void sort(TaskStore<Task> dbManager, List<Long> ids)
+        throws IOException {
+        addTo(dbManager);
+        dbManager.sortIds(ORDER_INDEX, ids);
+    }
+}
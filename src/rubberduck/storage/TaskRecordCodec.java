@@ -0,0 +1,143 @@
+package rubberduck.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import rubberduck.common.datatransfer.DatePair;
+import rubberduck.common.datatransfer.Task;
+
+//@author A0119416H
+/**
+ * A compact binary record codec for Task and DatePair.
+ * <p/>
+ * Dates are stored as epoch milliseconds and strings as length-prefixed UTF-8,
+ * so neither XML parsing nor date format parsing is needed when decoding.
+ */
+public class TaskRecordCodec implements RecordCodec<Task> {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final byte FORMAT_VERSION = 1;
+    private static final int NULL_STRING = -1;
+    private static final long NULL_DATE = Long.MIN_VALUE;
+
+    @Override
+    public byte[] encode(Task task) throws IOException {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(byteStream);
+        output.writeByte(FORMAT_VERSION);
+        writeString(output, task.getDescription());
+        output.writeBoolean(task.getIsDone());
+        writeString(output, task.getUuid());
+        writeDate(output, task.getLastUpdate());
+        ArrayList<DatePair> dateList = task.getDateList();
+        output.writeInt(dateList.size());
+        for (DatePair datePair : dateList) {
+            writeDate(output, datePair.getStartDate());
+            writeDate(output, datePair.getEndDate());
+        }
+        output.close();
+        return byteStream.toByteArray();
+    }
+
+    @Override
+    public Task decode(byte[] record) throws IOException {
+        DataInputStream input =
+            new DataInputStream(new ByteArrayInputStream(record));
+        byte version = input.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown record version " + version);
+        }
+        Task task = new Task();
+        task.setDescription(readString(input));
+        task.setIsDone(input.readBoolean());
+        task.setUuid(readString(input));
+        Calendar lastUpdate = readDate(input);
+        int dateCount = input.readInt();
+        ArrayList<DatePair> dateList = new ArrayList<DatePair>(dateCount);
+        for (int i = 0; i < dateCount; i++) {
+            DatePair datePair = new DatePair();
+            datePair.setStartDate(readDate(input));
+            datePair.setEndDate(readDate(input));
+            dateList.add(datePair);
+        }
+        task.setDateList(dateList);
+        task.setLastUpdate(lastUpdate);
+        return task;
+    }
+
+    /**
+     * Copy a task field by field. Strings are immutable and shared, and only
+     * the dates are cloned.
+     *
+     * @param task the task to be copied
+     * @return the copy
+     */
+    @Override
+    public Task copy(Task task) {
+        Task copy = new Task();
+        copy.setDescription(task.getDescription());
+        copy.setIsDone(task.getIsDone());
+        copy.setUuid(task.getUuid());
+        ArrayList<DatePair> dateList =
+            new ArrayList<DatePair>(task.getDateList().size());
+        for (DatePair datePair : task.getDateList()) {
+            DatePair datePairCopy = new DatePair();
+            datePairCopy.setStartDate(copyDate(datePair.getStartDate()));
+            datePairCopy.setEndDate(copyDate(datePair.getEndDate()));
+            dateList.add(datePairCopy);
+        }
+        copy.setDateList(dateList);
+        copy.setLastUpdate(copyDate(task.getLastUpdate()));
+        return copy;
+    }
+
+    private static Calendar copyDate(Calendar date) {
+        return date == null ? null : (Calendar) date.clone();
+    }
+
+    private static void writeString(DataOutputStream output, String string)
+        throws IOException {
+        if (string == null) {
+            output.writeInt(NULL_STRING);
+        } else {
+            byte[] bytes = string.getBytes(CHARSET);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream input)
+        throws IOException {
+        int length = input.readInt();
+        if (length == NULL_STRING) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    private static void writeDate(DataOutputStream output, Calendar date)
+        throws IOException {
+        output.writeLong(date == null ? NULL_DATE : date.getTimeInMillis());
+    }
+
+    private static Calendar readDate(DataInputStream input)
+        throws IOException {
+        long millis = input.readLong();
+        if (millis == NULL_DATE) {
+            return null;
+        }
+        Calendar date = new GregorianCalendar();
+        date.setTimeInMillis(millis);
+        return date;
+    }
+}
@@ -0,0 +1,310 @@
+package rubberduck.storage;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+//@author A0119416H
+/**
+ * A storage engine for instances, such as the tasks of the application.
+ * Instances are never changed in place: a modification marks the old instance
+ * as invalid or deleted and adds the new one under a new ID, so it can be
+ * undone. Implementations must be thread-safe, as tasks are archived on a
+ * background thread.
+ * <p/>
+ * DatabaseManager keeps instances in a file on the disk and reads them from
+ * there, MemoryTaskStore keeps them in memory only, and HeapTaskStore keeps
+ * them in memory and makes them durable with a write-ahead log. The engine of
+ * the application is chosen by the rubberduck.storage.engine system property.
+ *
+ * @param <T> The data type stored in the engine.
+ */
+public interface TaskStore<T extends Serializable & Comparable<T>> {
+
+    /**
+     * Make modification to the store.
+     *
+     * @param previousId  the ID of instance to be removed, or null if no
+     *                    removal is needed.
+     * @param newInstance the new instance to be put into the store, or null if
+     *                    no inserting is needed.
+     * @param description the description of the action, which will be
+     *                    returned when undo/redo.
+     * @return the ID of the new instance, or null if no new instance is
+     *         created.
+     * @throws IOException
+     */
+    public Long modify(Long previousId, T newInstance, String description)
+        throws IOException;
+
+    /**
+     * Make a batch of modifications to the store, recorded as one action
+     * which is undone and redone as a whole.
+     *
+     * @param changes     the modifications to be made in order
+     * @param description the description of the batch
+     * @return the IDs of the new instances in the order of the changes, with
+     *         null for changes that create no instance.
+     * @throws IOException
+     * @throws IndexOutOfBoundsException if an instance to be removed is not
+     *                                   valid or is removed twice. Nothing is
+     *                                   modified then.
+     */
+    public ArrayList<Long> modifyAll(List<Change<T>> changes,
+                                     String description) throws IOException;
+
+    /**
+     * Add instances without recording an action, so that undo never removes
+     * them. This moves instances in from another store.
+     *
+     * @param newInstances the instances to be added
+     * @return the IDs of the new instances in the same order
+     * @throws IOException
+     */
+    public ArrayList<Long> insertUnrecorded(List<T> newInstances)
+        throws IOException;
+
+    /**
+     * Mark valid instances as invalid without recording an action. Instances
+     * that are no longer valid, or that undo or redo may change, are left
+     * alone. This moves instances out to another store.
+     *
+     * @param instanceIds the IDs of the instances to be removed
+     * @return the IDs of the instances removed
+     * @throws IOException
+     */
+    public Set<Long> removeUnrecorded(Collection<Long> instanceIds)
+        throws IOException;
+
+    /**
+     * Get the instance with the given ID. Changing the instance returned does
+     * not change the store.
+     *
+     * @param instanceId the ID of instance to be fetched
+     * @return the instance
+     * @throws IOException
+     * @throws IndexOutOfBoundsException if the instance is invalid or does not
+     *                                   exist.
+     */
+    public T getInstance(long instanceId) throws IOException;
+
+    /**
+     * Get the IDs of all valid instances in increasing order.
+     *
+     * @return an unmodifiable list of all valid IDs, which does not change
+     *         with later modifications
+     */
+    public List<Long> getValidIdList();
+
+    /**
+     * Get an ArrayList of IDs of all deleted instances.
+     *
+     * @return the list of all deleted IDs
+     */
+    public ArrayList<Long> getDeletedIdList();
+
+    /**
+     * Undo the last action.
+     *
+     * @return the description of the undone action as in modify().
+     * @throws IOException
+     * @throws UnsupportedOperationException if there is nothing to undo.
+     */
+    public String undo() throws IOException, UnsupportedOperationException;
+
+    /**
+     * Redo the last undo action.
+     *
+     * @return the description of the redone action as in modify().
+     * @throws IOException
+     * @throws UnsupportedOperationException if there is nothing to redo.
+     */
+    public String redo() throws IOException, UnsupportedOperationException;
+
+    /**
+     * Discard all invalid instances, so that they cannot be restored by undo
+     * any more. IDs of the remaining instances do not change.
+     *
+     * @param removeDeleted whether instances marked as deleted should really
+     *                      be removed
+     * @throws IOException
+     */
+    public void rewriteFile(boolean removeDeleted) throws IOException;
+
+    /**
+     * Delete all instances and reset the store.
+     *
+     * @throws IOException
+     */
+    public void resetDatabase() throws IOException;
+
+    /**
+     * Release the resources of the store, after writing whatever is needed to
+     * open it again.
+     *
+     * @throws IOException
+     */
+    public void closeFile() throws IOException;
+
+    /**
+     * Add a secondary index over the instances, which is kept up to date by
+     * every modification.
+     *
+     * @param name      the name of the index, which must not be in use
+     * @param extractor extracts the key of each instance
+     * @throws IOException
+     * @throws IllegalArgumentException if an index with the name exists
+     */
+    public void addIndex(String name, IndexKeyExtractor<T, ?> extractor)
+        throws IOException;
+
+    /**
+     * Add an interval index over the instances, which finds the valid
+     * instances with an interval overlapping a given one.
+     *
+     * @param name      the name of the index, which must not be in use
+     * @param extractor extracts the intervals of each instance
+     * @throws IOException
+     * @throws IllegalArgumentException if an index with the name exists
+     */
+    public void addIntervalIndex(String name, IntervalExtractor<T> extractor)
+        throws IOException;
+
+    /**
+     * Add a text index over the instances, which finds the valid instances by
+     * the words of their text.
+     *
+     * @param name      the name of the index, which must not be in use
+     * @param extractor extracts the text of each instance
+     * @throws IOException
+     * @throws IllegalArgumentException if an index with the name exists
+     */
+    public void addTextIndex(String name,
+                             IndexKeyExtractor<T, String> extractor)
+        throws IOException;
+
+    /**
+     * Add a sort index over the instances, which keeps the sort key of every
+     * instance to sort IDs without reading instances.
+     *
+     * @param name      the name of the index, which must not be in use
+     * @param extractor extracts the sort key of each instance
+     * @throws IOException
+     * @throws IllegalArgumentException if an index with the name exists
+     */
+    public void addSortIndex(String name, SortKeyExtractor<T> extractor)
+        throws IOException;
+
+    /**
+     * Check whether an index with the given name exists.
+     *
+     * @param name the name of the index
+     * @return true if the index exists
+     */
+    public boolean hasIndex(String name);
+
+    /**
+     * Get the IDs of valid instances with the given key in a secondary index.
+     *
+     * @param name the name of the index
+     * @param key  the key, as returned by the extractor of the index
+     * @return a new list of the IDs in increasing order
+     * @throws IllegalArgumentException if there is no index with the name
+     */
+    public ArrayList<Long> getValidIdsByKey(String name, Object key);
+
+    /**
+     * Count the valid instances with the given key in a secondary index.
+     *
+     * @param name the name of the index
+     * @param key  the key, as returned by the extractor of the index
+     * @return the number of valid instances
+     * @throws IllegalArgumentException if there is no index with the name
+     */
+    public int countValidIdsByKey(String name, Object key);
+
+    /**
+     * Get the key of a tracked instance in a secondary index.
+     *
+     * @param name       the name of the index
+     * @param instanceId the ID of the instance
+     * @return the key, or null if the instance is not tracked
+     * @throws IllegalArgumentException if there is no index with the name
+     */
+    public Object getKey(String name, long instanceId);
+
+    /**
+     * Get the IDs of valid instances with an interval overlapping the given
+     * closed interval in an interval index.
+     *
+     * @param name  the name of the index
+     * @param start the start of the interval
+     * @param end   the end of the interval
+     * @return a new list of the IDs in increasing order
+     * @throws IllegalArgumentException if there is no interval index with the
+     *                                  name
+     */
+    public ArrayList<Long> getValidIdsOverlapping(String name, long start,
+                                                  long end);
+
+    /**
+     * Get the IDs of valid instances whose text has the given word in a text
+     * index.
+     *
+     * @param name  the name of the index
+     * @param token the word
+     * @return a new list of the IDs in increasing order
+     * @throws IllegalArgumentException if there is no text index with the name
+     */
+    public ArrayList<Long> getValidIdsWithToken(String name, String token);
+
+    /**
+     * Get the IDs of valid instances whose text has a word containing the
+     * given part in a text index.
+     *
+     * @param name the name of the index
+     * @param part the part of a word
+     * @return a new list of the IDs in increasing order
+     * @throws IllegalArgumentException if there is no text index with the name
+     */
+    public ArrayList<Long> getValidIdsWithTokenContaining(String name,
+                                                          String part);
+
+    /**
+     * Get the IDs of valid instances whose text has the given words one after
+     * another in a text index.
+     *
+     * @param name   the name of the index
+     * @param tokens the words of the phrase
+     * @return a new list of the IDs in increasing order, which is empty if
+     *         there are no words
+     * @throws IllegalArgumentException if there is no text index with the name
+     */
+    public ArrayList<Long> getValidIdsWithPhrase(String name,
+                                                 List<String> tokens);
+
+    /**
+     * Sort IDs by the keys of their instances in a sort index. The sort is
+     * stable.
+     *
+     * @param name the name of the index
+     * @param ids  the IDs to be sorted, which must all be tracked
+     * @throws IllegalArgumentException  if there is no sort index with the name
+     * @throws IndexOutOfBoundsException if an ID is not tracked
+     */
+    public void sortIds(String name, List<Long> ids);
+
+    /**
+     * Find the valid instances matching all criteria of a query. Instances are
+     * looked up in the indexes the criteria can use, and only the remaining
+     * candidates are read.
+     *
+     * @param query the query
+     * @return a new list of the IDs in increasing order
+     * @throws IOException
+     */
+    public ArrayList<Long> query(Query<T> query) throws IOException;
+}
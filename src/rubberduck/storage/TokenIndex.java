@@ -0,0 +1,234 @@
+package rubberduck.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+//@author A0119416H
+/**
+ * An inverted index from the words in the text of valid instances to the
+ * positions where they occur, which finds instances by word or by phrase.
+ * <p/>
+ * Words are the whitespace separated tokens of the text in lower case. As in
+ * SecondaryIndex, the words of every tracked instance are remembered whatever
+ * its state, in an array indexed by ID, but only valid instances have
+ * postings.
+ *
+ * @param <T> The data type stored in the database.
+ */
+class TokenIndex<T> implements InstanceIndex<T> {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private IndexKeyExtractor<T, String> extractor;
+
+    /**
+     * The words of each tracked instance, indexed by ID. Slots of IDs that are
+     * not tracked hold null.
+     */
+    private String[][] instanceTokens = new String[INITIAL_CAPACITY][];
+
+    /**
+     * The postings of each word, which map the IDs of valid instances having
+     * the word to its positions in their text, in increasing order.
+     */
+    private HashMap<String, TreeMap<Long, int[]>> postings =
+        new HashMap<String, TreeMap<Long, int[]>>();
+
+    public TokenIndex(IndexKeyExtractor<T, String> extractor) {
+        this.extractor = extractor;
+    }
+
+    /**
+     * Split a text into words the way the index does.
+     *
+     * @param text the text, or null for no words
+     * @return the words of the text in order
+     */
+    public static String[] tokenize(String text) {
+        if (text == null) {
+            return new String[0];
+        }
+        StringTokenizer tokenizer = new StringTokenizer(text.toLowerCase());
+        String[] tokens = new String[tokenizer.countTokens()];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = tokenizer.nextToken();
+        }
+        return tokens;
+    }
+
+    @Override
+    public void add(long instanceId, T instance, boolean isValid) {
+        if (instanceId >= instanceTokens.length) {
+            int capacity = instanceTokens.length;
+            while (instanceId >= capacity) {
+                capacity *= 2;
+            }
+            instanceTokens = Arrays.copyOf(instanceTokens, capacity);
+        }
+        instanceTokens[(int) instanceId] = tokenize(extractor.getKey(instance));
+        if (isValid) {
+            markAsValid(instanceId);
+        }
+    }
+
+    @Override
+    public void markAsValid(long instanceId) {
+        String[] tokens = getTokens(instanceId);
+        assert tokens != null;
+        HashMap<String, int[]> positions = new HashMap<String, int[]>();
+        for (int i = 0; i < tokens.length; i++) {
+            int[] tokenPositions = positions.get(tokens[i]);
+            if (tokenPositions == null) {
+                tokenPositions = new int[] {i};
+            } else {
+                tokenPositions = Arrays.copyOf(tokenPositions,
+                                               tokenPositions.length + 1);
+                tokenPositions[tokenPositions.length - 1] = i;
+            }
+            positions.put(tokens[i], tokenPositions);
+        }
+        for (Map.Entry<String, int[]> entry : positions.entrySet()) {
+            TreeMap<Long, int[]> tokenPostings = postings.get(entry.getKey());
+            if (tokenPostings == null) {
+                tokenPostings = new TreeMap<Long, int[]>();
+                postings.put(entry.getKey(), tokenPostings);
+            }
+            tokenPostings.put(instanceId, entry.getValue());
+        }
+    }
+
+    @Override
+    public void markAsNotValid(long instanceId) {
+        String[] tokens = getTokens(instanceId);
+        if (tokens == null) {
+            return;
+        }
+        for (String token : tokens) {
+            TreeMap<Long, int[]> tokenPostings = postings.get(token);
+            if (tokenPostings != null) {
+                tokenPostings.remove(instanceId);
+                if (tokenPostings.isEmpty()) {
+                    postings.remove(token);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void remove(long instanceId) {
+        markAsNotValid(instanceId);
+        if (instanceId < instanceTokens.length) {
+            instanceTokens[(int) instanceId] = null;
+        }
+    }
+
+    @Override
+    public void clear() {
+        instanceTokens = new String[INITIAL_CAPACITY][];
+        postings.clear();
+    }
+
+    /**
+     * Get the IDs of valid instances having the given word.
+     *
+     * @param token the word, which is compared in lower case
+     * @return a new list of the IDs in increasing order
+     */
+    public ArrayList<Long> getValidIdsWithToken(String token) {
+        TreeMap<Long, int[]> tokenPostings = postings.get(token.toLowerCase());
+        if (tokenPostings == null) {
+            return new ArrayList<Long>();
+        }
+        return new ArrayList<Long>(tokenPostings.keySet());
+    }
+
+    /**
+     * Get the IDs of valid instances having a word which contains the given
+     * part. Every distinct word is checked, but no instance is.
+     *
+     * @param part the part of a word, which is compared in lower case
+     * @return a new list of the IDs in increasing order
+     */
+    public ArrayList<Long> getValidIdsWithTokenContaining(String part) {
+        part = part.toLowerCase();
+        TreeSet<Long> ids = new TreeSet<Long>();
+        for (Map.Entry<String, TreeMap<Long, int[]>> entry :
+            postings.entrySet()) {
+            if (entry.getKey().contains(part)) {
+                ids.addAll(entry.getValue().keySet());
+            }
+        }
+        return new ArrayList<Long>(ids);
+    }
+
+    /**
+     * Get the IDs of valid instances having the given words one after another.
+     * The postings of the rarest word are intersected with the others before
+     * positions are compared.
+     *
+     * @param tokens the words of the phrase, which are compared in lower case
+     * @return a new list of the IDs in increasing order
+     */
+    public ArrayList<Long> getValidIdsWithPhrase(List<String> tokens) {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        if (tokens.isEmpty()) {
+            return ids;
+        }
+        List<TreeMap<Long, int[]>> phrasePostings =
+            new ArrayList<TreeMap<Long, int[]>>();
+        TreeMap<Long, int[]> rarestPostings = null;
+        for (String token : tokens) {
+            TreeMap<Long, int[]> tokenPostings =
+                postings.get(token.toLowerCase());
+            if (tokenPostings == null) {
+                return ids;
+            }
+            phrasePostings.add(tokenPostings);
+            if (rarestPostings == null
+                || tokenPostings.size() < rarestPostings.size()) {
+                rarestPostings = tokenPostings;
+            }
+        }
+        for (Long instanceId : rarestPostings.keySet()) {
+            if (hasPhrase(phrasePostings, instanceId)) {
+                ids.add(instanceId);
+            }
+        }
+        return ids;
+    }
+
+    private String[] getTokens(long instanceId) {
+        if (instanceId >= instanceTokens.length) {
+            return null;
+        }
+        return instanceTokens[(int) instanceId];
+    }
+
+    private boolean hasPhrase(List<TreeMap<Long, int[]>> phrasePostings,
+                              Long instanceId) {
+        List<int[]> positions = new ArrayList<int[]>();
+        for (TreeMap<Long, int[]> tokenPostings : phrasePostings) {
+            int[] tokenPositions = tokenPostings.get(instanceId);
+            if (tokenPositions == null) {
+                return false;
+            }
+            positions.add(tokenPositions);
+        }
+        for (int start : positions.get(0)) {
+            boolean isFound = true;
+            for (int i = 1; i < positions.size() && isFound; i++) {
+                isFound = Arrays.binarySearch(positions.get(i), start + i) >= 0;
+            }
+            if (isFound) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
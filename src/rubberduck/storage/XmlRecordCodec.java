@@ -0,0 +1,69 @@
+package rubberduck.storage;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+
+import rubberduck.common.formatter.CalendarConverter;
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.XStreamException;
+
+//@author A0119416H
+/**
+ * A generic record codec that stores instances as XStream XML. It works with
+ * any Java Bean class, but is slow and verbose compared to a dedicated binary
+ * codec.
+ *
+ * @param <T> The data type, which has to be a Java Bean class.
+ */
+public class XmlRecordCodec<T extends Serializable> implements RecordCodec<T> {
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static XStream xstream = new XStream();
+
+    static {
+        xstream.registerConverter(new CalendarConverter());
+    }
+
+    @Override
+    public byte[] encode(T instance) throws IOException {
+        return xstream.toXML(instance).getBytes(CHARSET);
+    }
+
+    @Override
+    public T decode(byte[] record) throws IOException {
+        return fromXml(new String(record, CHARSET));
+    }
+
+    /**
+     * Make a deep copy of an instance by encoding and decoding it. This costs
+     * as much as decoding a record, but XStream offers nothing cheaper that
+     * works with any class, and Java serialization is slower still.
+     *
+     * @param instance the instance to be copied
+     * @return a deep copy of the instance
+     * @throws IOException if the instance cannot be encoded
+     */
+    @Override
+    public T copy(T instance) throws IOException {
+        return fromXml(xstream.toXML(instance));
+    }
+
+    /**
+     * Decode an XML string back into an instance.
+     *
+     * @param xmlString the XML string
+     * @return the reconstructed instance
+     * @throws IOException if the XML string is malformed
+     */
+    public T fromXml(String xmlString) throws IOException {
+        try {
+            @SuppressWarnings("unchecked")
+            T instance = (T) xstream.fromXML(xmlString);
+            return instance;
+        } catch (XStreamException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+}
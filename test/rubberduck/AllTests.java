@@ -7,6 +7,7 @@ import org.junit.runners.Suite.SuiteClasses;
 import rubberduck.common.datatransfer.DatePairTest;
 import rubberduck.logic.command.CommandTest;
 import rubberduck.logic.parser.ParserTest;
+import rubberduck.storage.DatabaseManagerTest;
 import rubberduck.storage.JournalControllerTest;
 
 //@author A0111736M
@@ -15,8 +16,9 @@ import rubberduck.storage.JournalControllerTest;
  * modify something to tackle regression.
  */
 @RunWith(Suite.class)
-@SuiteClasses({DatePairTest.class, JournalControllerTest.class,
-               CommandTest.class, ParserTest.class})
+@SuiteClasses({DatePairTest.class, DatabaseManagerTest.class,
+               JournalControllerTest.class, CommandTest.class,
+               ParserTest.class})
 public class AllTests {
 
 }
@@ -22,6 +22,7 @@ public class CommandTest {
 
     @Before
     public void setUp() throws IOException {
+        System.setProperty("rubberduck.storage.engine", "memory");
         Command.startDatabase();
         Command.getDbManager().resetDatabase();
     }
@@ -29,6 +30,7 @@ public class CommandTest {
     @After
     public void tearDown() throws IOException {
         Command.getDbManager().closeFile();
+        System.clearProperty("rubberduck.storage.engine");
     }
 
     /**
@@ -790,6 +792,45 @@ public class CommandTest {
         assertEquals(actual, expected);
     }
 
+    /**
+     * Mark a completed task as incomplete after it has been archived in the
+     * background since it was displayed.
+     */
+    //@author A0119416H
+    @Test
+    public void markTaskArchivedAfterView() throws IOException {
+        System.setProperty("rubberduck.archive.days", "-1");
+        Command.startDatabase();
+        System.clearProperty("rubberduck.archive.days");
+
+        ArrayList<DatePair> dpList = new ArrayList<DatePair>();
+        ArrayList<ViewCommand.ViewFilter> viewChoice =
+            new ArrayList<ViewCommand.ViewFilter>();
+        viewChoice.add(ViewCommand.ViewFilter.FLOATING);
+        ViewCommand viewCommand =
+            new ViewCommand(ViewCommand.ViewType.ALL, false, null, viewChoice);
+        viewCommand.execute();
+        AddCommand addCommand = new AddCommand("Archived later", dpList);
+        addCommand.execute();
+        new MarkCommand(1).execute();
+        Command.getDbManager().rewriteFile(false);
+
+        ViewCommand viewCommandComplete =
+            new ViewCommand(ViewCommand.ViewType.ALL, true, null, viewChoice);
+        viewCommandComplete.execute();
+        Command.getTaskArchive().archiveOldTasks();
+        assertEquals(0, Command.getDbManager().getValidIdList().size());
+
+        Response r = new MarkCommand(1).execute();
+        assertTrue(r.getMessages()[0].contains("marked to incomplete"));
+        assertEquals(0, Command.getTaskArchive().getArchiveDbManager()
+            .getValidIdList().size());
+        boolean actual = Command.getDbManager()
+            .getInstance(Command.getDbManager().getValidIdList().get(0))
+            .getIsDone();
+        assertEquals(false, actual);
+    }
+
     /**
      * mark task as completed
      */
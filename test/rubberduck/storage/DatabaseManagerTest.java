@@ -0,0 +1,1173 @@
+package rubberduck.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import rubberduck.common.datatransfer.DatePair;
+import rubberduck.common.datatransfer.Task;
+import rubberduck.storage.TaskIndexes.Kind;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+//@author A0119416H
+public class DatabaseManagerTest {
+
+    DatabaseManager<String> dbManager;
+
+    @Before
+    public void setUp() throws Exception {
+        dbManager = new DatabaseManager<String>(File.createTempFile(
+            "rubberduck.storage.DatabaseManagerTest", ".tmp").getPath());
+    }
+
+    @Test
+    public void testInstanceCache() throws Exception {
+        Long firstId = dbManager.modify(null, "Test 0", "create instance");
+        Long secondId = dbManager.modify(null, "Test 1", "create instance");
+
+        assertEquals("Test 0", dbManager.getInstance(firstId));
+        assertEquals("Test 0", dbManager.getInstance(firstId));
+        assertEquals("Test 1", dbManager.getInstance(secondId));
+        assertEquals(1, dbManager.getCacheHitCount());
+        assertEquals(2, dbManager.getCacheMissCount());
+
+        Long modifiedId =
+            dbManager.modify(secondId, "Modified test 1", "modify instance");
+        assertEquals("Modified test 1", dbManager.getInstance(modifiedId));
+        dbManager.undo();
+        assertEquals("Test 1", dbManager.getInstance(secondId));
+        assertEquals(1, dbManager.getCacheHitCount());
+        assertEquals(4, dbManager.getCacheMissCount());
+    }
+
+    @Test
+    public void testCachedTaskCopies() throws Exception {
+        DatabaseManager<Task> taskDbManager = new DatabaseManager<Task>(
+            File.createTempFile("rubberduck.storage.DatabaseManagerTest",
+                                ".tmp").getPath(), new TaskRecordCodec());
+        Task task = new Task("Test 0");
+        task.addDatePair(new DatePair(new GregorianCalendar(2014, 9, 1)));
+        Long id = taskDbManager.modify(null, task, "create instance");
+
+        Task firstCopy = taskDbManager.getInstance(id);
+        firstCopy.getDateList().get(0).getEndDate().add(Calendar.YEAR, 1);
+        firstCopy.getDateList().clear();
+        Task secondCopy = taskDbManager.getInstance(id);
+        assertEquals(1, taskDbManager.getCacheHitCount());
+        assertEquals(task.getUuid(), secondCopy.getUuid());
+        assertEquals(task.getLastUpdate(), secondCopy.getLastUpdate());
+        assertEquals(new GregorianCalendar(2014, 9, 1),
+                     secondCopy.getDateList().get(0).getEndDate());
+        taskDbManager.closeFile();
+    }
+
+    @Test
+    public void testValidIdList() throws Exception {
+        Long firstId = dbManager.modify(null, "Test 0", "create instance");
+        Long secondId = dbManager.modify(null, "Test 1", "create instance");
+        List<Long> validIds = dbManager.getValidIdList();
+        assertEquals(2, validIds.size());
+        assertEquals(firstId, validIds.get(0));
+        assertEquals(secondId, validIds.get(1));
+        assertTrue(validIds == dbManager.getValidIdList());
+
+        Long thirdId = dbManager.modify(null, "Test 2", "create instance");
+        dbManager.modify(firstId, null, "delete instance");
+        assertEquals(2, validIds.size());
+        assertEquals(firstId, validIds.get(0));
+        assertEquals(2, dbManager.getValidIdList().size());
+        assertEquals(secondId, dbManager.getValidIdList().get(0));
+        assertEquals(thirdId, dbManager.getValidIdList().get(1));
+
+        dbManager.undo();
+        assertEquals(3, dbManager.getValidIdList().size());
+        assertEquals(firstId, dbManager.getValidIdList().get(0));
+    }
+
+    @Test
+    public void testConcurrentReaders() throws Exception {
+        final Long firstId =
+            dbManager.modify(null, "Test 0", "create instance");
+        dbManager.setCacheCapacity(0);
+        final List<Throwable> failures =
+            Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 0; round < 50; round++) {
+                            for (Long id : dbManager.getValidIdList()) {
+                                assertEquals("Test " + (id - firstId),
+                                             dbManager.getInstance(id));
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        for (int i = 1; i <= 200; i++) {
+            dbManager.modify(null, "Test " + i, "create instance");
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(201, dbManager.getValidIdList().size());
+    }
+
+    @Test
+    public void testConcurrentXmlTaskReaders() throws Exception {
+        final DatabaseManager<Task> taskDbManager =
+            new DatabaseManager<Task>(File.createTempFile(
+                "rubberduck.storage.DatabaseManagerTest", ".tmp").getPath());
+        taskDbManager.setCacheCapacity(0);
+        final ArrayList<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 50; i++) {
+            Calendar deadline = new GregorianCalendar(2014, 0, 1, 0, 0, 0);
+            deadline.add(Calendar.DAY_OF_MONTH, i);
+            deadline.add(Calendar.SECOND, i);
+            ArrayList<DatePair> dates = new ArrayList<DatePair>();
+            dates.add(new DatePair(deadline));
+            ids.add(taskDbManager.modify(null, new Task("Task " + i, dates),
+                                         "create instance"));
+        }
+        final List<Throwable> failures =
+            Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int round = 0; round < 20; round++) {
+                            for (int j = 0; j < ids.size(); j++) {
+                                Calendar expected = new GregorianCalendar(
+                                    2014, 0, 1 + j, 0, 0, j);
+                                Task task = taskDbManager.getInstance(
+                                    ids.get(j));
+                                assertEquals(expected.getTimeInMillis(),
+                                             task.getDateList().get(0)
+                                                 .getEndDate()
+                                                 .getTimeInMillis());
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        taskDbManager.closeFile();
+    }
+
+    @Test
+    public void testModifyAsync() throws Exception {
+        String filePath = File.createTempFile(
+            "rubberduck.storage.DatabaseManagerTest", ".tmp").getPath();
+        DatabaseManager<String> asyncDbManager =
+            new DatabaseManager<String>(filePath);
+        asyncDbManager.setCacheCapacity(0);
+        ArrayList<CompletableFuture<Long>> futures =
+            new ArrayList<CompletableFuture<Long>>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(asyncDbManager.modifyAsync(null, "Test " + i,
+                                                   "create instance"));
+            List<Long> validIds = asyncDbManager.getValidIdList();
+            assertEquals(i + 1, validIds.size());
+            assertEquals("Test " + i,
+                         asyncDbManager.getInstance(validIds.get(i)));
+        }
+        Long firstId = futures.get(0).get();
+        assertEquals("Test 99",
+                     asyncDbManager.getInstance(futures.get(99).get()));
+
+        asyncDbManager.modifyAsync(firstId, null, "delete instance");
+        assertFalse(asyncDbManager.isValidId(firstId));
+        asyncDbManager.undo();
+        assertTrue(asyncDbManager.isValidId(firstId));
+        CompletableFuture<Long> lastFuture =
+            asyncDbManager.modifyAsync(null, "Test 100", "create instance");
+        asyncDbManager.closeFile();
+        assertTrue(lastFuture.isDone());
+        assertFalse(lastFuture.isCompletedExceptionally());
+
+        asyncDbManager = new DatabaseManager<String>(filePath);
+        assertEquals(101, asyncDbManager.getValidIdList().size());
+        assertEquals("Test 100", asyncDbManager.getInstance(lastFuture.get()));
+        asyncDbManager.closeFile();
+    }
+
+    @Test
+    public void testSecondaryIndex() throws Exception {
+        Long firstId = dbManager.modify(null, "Apple", "create instance");
+        dbManager.modify(null, "Banana", "create instance");
+        dbManager.addIndex("initial",
+                           new IndexKeyExtractor<String, Character>() {
+                               @Override
+                               public Character getKey(String instance) {
+                                   return instance.charAt(0);
+                               }
+                           });
+        assertTrue(dbManager.hasIndex("initial"));
+        assertEquals(1, dbManager.getValidIdsByKey("initial", 'A').size());
+
+        Long secondId = dbManager.modify(null, "Avocado", "create instance");
+        ArrayList<Long> ids = dbManager.getValidIdsByKey("initial", 'A');
+        assertEquals(2, ids.size());
+        assertEquals(firstId, ids.get(0));
+        assertEquals(secondId, ids.get(1));
+
+        Long modifiedId =
+            dbManager.modify(firstId, "Cherry", "modify instance");
+        assertEquals(1, dbManager.getValidIdsByKey("initial", 'A').size());
+        assertEquals(modifiedId,
+                     dbManager.getValidIdsByKey("initial", 'C').get(0));
+        dbManager.undo();
+        assertEquals(Arrays.asList(firstId, secondId),
+                     dbManager.getValidIdsByKey("initial", 'A'));
+        assertEquals(0, dbManager.getValidIdsByKey("initial", 'C').size());
+        dbManager.modify(secondId, null, "delete instance");
+        dbManager.rewriteFile(true);
+        assertEquals(1, dbManager.getValidIdsByKey("initial", 'A').size());
+    }
+
+    @Test
+    public void testIntervalIndex() throws Exception {
+        Long firstId = dbManager.modify(null, "10 20", "create instance");
+        dbManager.modify(null, "30 40 50 60", "create instance");
+        dbManager.addIntervalIndex("time", new IntervalExtractor<String>() {
+            @Override
+            public List<Interval> getIntervals(String instance) {
+                List<Interval> intervals = new ArrayList<Interval>();
+                String[] times = instance.split(" ");
+                for (int i = 0; i + 1 < times.length; i += 2) {
+                    intervals.add(new Interval(Long.parseLong(times[i]),
+                                               Long.parseLong(times[i + 1])));
+                }
+                return intervals;
+            }
+        });
+        assertTrue(dbManager.hasIndex("time"));
+        assertEquals(0,
+                     dbManager.getValidIdsOverlapping("time", 0, 9).size());
+        assertEquals(1,
+                     dbManager.getValidIdsOverlapping("time", 0, 10).size());
+        assertEquals(0,
+                     dbManager.getValidIdsOverlapping("time", 41, 49).size());
+        assertEquals(2,
+                     dbManager.getValidIdsOverlapping("time", 20, 30).size());
+        assertEquals(1,
+                     dbManager.getValidIdsOverlapping("time", 35, 55).size());
+
+        Long secondId = dbManager.modify(null, "15 35", "create instance");
+        Long modifiedId =
+            dbManager.modify(firstId, "100 200", "modify instance");
+        ArrayList<Long> ids = dbManager.getValidIdsOverlapping("time", 0, 16);
+        assertEquals(1, ids.size());
+        assertEquals(secondId, ids.get(0));
+        assertEquals(modifiedId,
+                     dbManager.getValidIdsOverlapping("time", 150, 150).get(0));
+        dbManager.undo();
+        assertEquals(2, dbManager.getValidIdsOverlapping("time", 0, 16).size());
+        dbManager.modify(secondId, null, "delete instance");
+        dbManager.rewriteFile(true);
+        assertEquals(firstId,
+                     dbManager.getValidIdsOverlapping("time", 0, 16).get(0));
+        assertEquals(0,
+                     dbManager.getValidIdsOverlapping("time", 150, 150).size());
+    }
+
+    @Test
+    public void testTextIndex() throws Exception {
+        Long firstId = dbManager.modify(null, "Buy milk and bread",
+                                        "create instance");
+        Long secondId = dbManager.modify(null, "Bread and butter and milk",
+                                         "create instance");
+        dbManager.addTextIndex("text", new IndexKeyExtractor<String, String>() {
+            @Override
+            public String getKey(String instance) {
+                return instance;
+            }
+        });
+        assertTrue(dbManager.hasIndex("text"));
+        assertEquals(2, dbManager.getValidIdsWithToken("text", "MILK").size());
+        assertEquals(0, dbManager.getValidIdsWithToken("text", "mil").size());
+        assertEquals(2, dbManager.getValidIdsWithTokenContaining("text", "rea")
+            .size());
+        ArrayList<Long> ids = dbManager.getValidIdsWithPhrase(
+            "text", Arrays.asList("and", "milk"));
+        assertEquals(1, ids.size());
+        assertEquals(secondId, ids.get(0));
+        assertEquals(0, dbManager.getValidIdsWithPhrase(
+            "text", Arrays.asList("butter", "milk")).size());
+
+        Long modifiedId =
+            dbManager.modify(firstId, "Buy eggs", "modify instance");
+        assertEquals(1, dbManager.getValidIdsWithToken("text", "milk").size());
+        assertEquals(modifiedId,
+                     dbManager.getValidIdsWithToken("text", "buy").get(0));
+        dbManager.undo();
+        assertEquals(0, dbManager.getValidIdsWithToken("text", "eggs").size());
+        assertEquals(firstId, dbManager.getValidIdsWithPhrase(
+            "text", Arrays.asList("buy", "milk")).get(0));
+    }
+
+    @Test
+    public void testSortIndex() throws Exception {
+        Long firstId = dbManager.modify(null, "Cherry", "create instance");
+        Long secondId = dbManager.modify(null, "Apple", "create instance");
+        dbManager.addSortIndex("length", new SortKeyExtractor<String>() {
+            @Override
+            public int getKeyLength() {
+                return 2;
+            }
+
+            @Override
+            public void getKey(String instance, long[] key) {
+                key[0] = instance.length();
+                key[1] = instance.charAt(0);
+            }
+        });
+        Long thirdId = dbManager.modify(null, "Banana", "create instance");
+        Long fourthId = dbManager.modify(null, "Fig", "create instance");
+        List<Long> ids = new ArrayList<Long>(dbManager.getValidIdList());
+        dbManager.sortIds("length", ids);
+        assertEquals(Arrays.asList(fourthId, secondId, thirdId, firstId), ids);
+
+        Long modifiedId = dbManager.modify(fourthId, "Kiwifruit",
+                                           "modify instance");
+        ids = new ArrayList<Long>(dbManager.getValidIdList());
+        dbManager.sortIds("length", ids);
+        assertEquals(Arrays.asList(secondId, thirdId, firstId, modifiedId),
+                     ids);
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        char[] padding = new char[4096];
+        Arrays.fill(padding, '.');
+        List<Long> keptIds = new ArrayList<Long>();
+        for (int i = 0; i < 200; i++) {
+            String instance = (i % 3 == 0 ? "Keep " : "Skip ") + i
+                              + new String(padding);
+            Long id = dbManager.modify(null, instance, "create instance");
+            if (i % 3 == 0) {
+                keptIds.add(id);
+            }
+        }
+        char[] longPadding = new char[300 * 1024];
+        Arrays.fill(longPadding, '.');
+        keptIds.add(dbManager.modify(null, "Keep " + new String(longPadding),
+                                     "create instance"));
+        dbManager.modify(keptIds.remove(1), null, "delete instance");
+
+        List<Long> scannedIds = new ArrayList<Long>();
+        ScanIterator<String> iterator = dbManager.scan(new RecordFilter() {
+            @Override
+            public boolean accept(byte[] payload) {
+                return new String(payload, StandardCharsets.UTF_8)
+                    .contains("Keep ");
+            }
+        });
+        while (iterator.hasNext()) {
+            assertTrue(iterator.next().startsWith("Keep "));
+            scannedIds.add(iterator.getId());
+        }
+        assertEquals(keptIds, scannedIds);
+
+        int count = 0;
+        for (String instance : dbManager) {
+            assertTrue(instance.endsWith("."));
+            count++;
+        }
+        assertEquals(200, count);
+    }
+
+    @Test
+    public void testMemoryMappedRead() throws Exception {
+        String filePath = File.createTempFile(
+            "rubberduck.storage.DatabaseManagerTest", ".tmp").getPath();
+        DatabaseManager<String> mappedDbManager =
+            new DatabaseManager<String>(filePath, new XmlRecordCodec<String>(),
+                                        DatabaseManager.ReadMode.MEMORY_MAPPED);
+        Long firstId = mappedDbManager.modify(null, "Test 0", "create instance");
+        mappedDbManager.setCacheCapacity(0);
+        for (int i = 1; i <= 100; i++) {
+            mappedDbManager.modify(null, "Test " + i, "create instance");
+        }
+        assertEquals("Test 0", mappedDbManager.getInstance(firstId));
+        assertEquals("Test 100", mappedDbManager.getInstance(firstId + 100));
+
+        mappedDbManager.modify(firstId, null, "delete instance");
+        mappedDbManager.rewriteFile(true);
+        assertEquals(100, mappedDbManager.getValidIdList().size());
+        assertFalse(mappedDbManager.contains(firstId));
+        assertEquals("Test 1", mappedDbManager.getInstance(firstId + 1));
+
+        mappedDbManager.resetDatabase();
+        assertEquals(0, mappedDbManager.getValidIdList().size());
+        mappedDbManager.closeFile();
+    }
+
+    @Test
+    public void testBufferedDurability() throws Exception {
+        String filePath = File.createTempFile(
+            "rubberduck.storage.DatabaseManagerTest", ".tmp").getPath();
+        DatabaseManager<String> bufferedDbManager =
+            new DatabaseManager<String>(filePath);
+        bufferedDbManager.setDurability(DatabaseManager.Durability.OS_BUFFERED);
+        Long firstId =
+            bufferedDbManager.modify(null, "Test 0", "create instance");
+        Long secondId =
+            bufferedDbManager.modify(null, "Test 1", "create instance");
+        bufferedDbManager.modify(firstId, "Modified test 0", "modify instance");
+        assertEquals("Test 1", bufferedDbManager.getInstance(secondId));
+        bufferedDbManager.closeFile();
+
+        bufferedDbManager = new DatabaseManager<String>(filePath);
+        assertEquals(2, bufferedDbManager.getValidIdList().size());
+        bufferedDbManager.closeFile();
+    }
+
+    @Test
+    public void testOffsetIndexFile() throws Exception {
+        String filePath = File.createTempFile(
+            "rubberduck.storage.DatabaseManagerTest", ".tmp").getPath();
+        File indexFile = new File(filePath + ".idx");
+        indexFile.deleteOnExit();
+        DatabaseManager<String> indexedDbManager =
+            new DatabaseManager<String>(filePath);
+        Long firstId = indexedDbManager.modify(null, "Test 0", "create instance");
+        indexedDbManager.modify(null, "Test 1", "create instance");
+        indexedDbManager.modify(firstId, null, "delete instance");
+        indexedDbManager.closeFile();
+        assertTrue(indexFile.exists());
+
+        indexedDbManager = new DatabaseManager<String>(filePath);
+        assertEquals(1, indexedDbManager.getValidIdList().size());
+        assertEquals(1, indexedDbManager.getDeletedIdList().size());
+        Long newId = indexedDbManager.modify(null, "Test 2", "create instance");
+        assertTrue(indexFile.exists());
+
+        // Reopen without closing, so the appended instance is only found by
+        // scanning the tail after the index.
+        indexedDbManager = new DatabaseManager<String>(filePath);
+        assertEquals(2, indexedDbManager.getValidIdList().size());
+        assertEquals("Test 2", indexedDbManager.getInstance(newId));
+
+        indexedDbManager.modify(newId, null, "delete instance");
+        assertFalse(indexFile.exists());
+        indexedDbManager = new DatabaseManager<String>(filePath);
+        assertEquals(2, indexedDbManager.getDeletedIdList().size());
+    }
+
+    @Test
+    public void testRewriteFileWithoutClosing() throws Exception {
+        String filePath = File.createTempFile(
+            "rubberduck.storage.DatabaseManagerTest", ".tmp").getPath();
+        DatabaseManager<String> rewrittenDbManager =
+            new DatabaseManager<String>(filePath);
+        Long firstId =
+            rewrittenDbManager.modify(null, "Test 0", "create instance");
+        Long secondId =
+            rewrittenDbManager.modify(null, "Test 1", "create instance");
+        rewrittenDbManager.modify(firstId, null, "delete instance");
+        rewrittenDbManager.modify(secondId, "Modified test 1",
+                                  "modify instance");
+        rewrittenDbManager.closeFile();
+        rewrittenDbManager = new DatabaseManager<String>(filePath);
+        assertEquals(1, rewrittenDbManager.getDeletedIdList().size());
+        rewrittenDbManager.rewriteFile(true);
+        assertEquals(0, rewrittenDbManager.getDeletedIdList().size());
+
+        // Reopen without closing, as after a crash.
+        rewrittenDbManager = new DatabaseManager<String>(filePath);
+        assertEquals(0, rewrittenDbManager.getDeletedIdList().size());
+        assertEquals(1, rewrittenDbManager.getValidIdList().size());
+        rewrittenDbManager.closeFile();
+    }
+
+    @Test
+    public void testBackgroundCompaction() throws Exception {
+        String filePath = File.createTempFile(
+            "rubberduck.storage.DatabaseManagerTest", ".tmp").getPath();
+        DatabaseManager<String> compactedDbManager =
+            new DatabaseManager<String>(filePath);
+        compactedDbManager.setDurability(DatabaseManager.Durability.NONE);
+        compactedDbManager.setCacheCapacity(0);
+        ArrayList<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 100; i++) {
+            ids.add(compactedDbManager.modify(null, "Test " + i,
+                                              "create instance"));
+        }
+        for (int i = 0; i < 60; i++) {
+            compactedDbManager.modify(ids.get(i), null, "delete instance");
+        }
+        long uncompactedLength = new File(filePath).length();
+
+        compactedDbManager.rewriteFile(true);
+        Long modifiedId = compactedDbManager.modify(ids.get(60),
+                                                    "Modified test 60",
+                                                    "modify instance");
+        compactedDbManager.waitForCompaction();
+        assertTrue(new File(filePath).length() < uncompactedLength);
+        assertEquals(40, compactedDbManager.getValidIdList().size());
+        assertEquals("Test 99", compactedDbManager.getInstance(ids.get(99)));
+        assertEquals("Modified test 60",
+                     compactedDbManager.getInstance(modifiedId));
+        compactedDbManager.undo();
+        assertEquals("Test 60", compactedDbManager.getInstance(ids.get(60)));
+        compactedDbManager.closeFile();
+
+        compactedDbManager = new DatabaseManager<String>(filePath);
+        assertEquals(40, compactedDbManager.getValidIdList().size());
+        assertEquals(0, compactedDbManager.getDeletedIdList().size());
+        compactedDbManager.closeFile();
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        String filePath = File.createTempFile(
+            "rubberduck.storage.DatabaseManagerTest", ".tmp").getPath();
+        DatabaseManager<String> tornDbManager =
+            new DatabaseManager<String>(filePath);
+        tornDbManager.modify(null, "Test 0", "create instance");
+        tornDbManager.modify(null, "Test 1", "create instance");
+        tornDbManager.closeFile();
+        new File(filePath + ".idx").delete();
+
+        RandomAccessFile file = new RandomAccessFile(filePath, "rw");
+        file.setLength(file.length() - 2);
+        file.close();
+        tornDbManager = new DatabaseManager<String>(filePath);
+        assertEquals(1, tornDbManager.getValidIdList().size());
+        Long newId = tornDbManager.modify(null, "Test 2", "create instance");
+        tornDbManager.closeFile();
+
+        tornDbManager = new DatabaseManager<String>(filePath);
+        assertEquals(2, tornDbManager.getValidIdList().size());
+        assertEquals("Test 2", tornDbManager.getInstance(newId));
+        tornDbManager.closeFile();
+    }
+
+    @Test
+    public void testRecoveryReport() throws Exception {
+        String filePath = File.createTempFile(
+            "rubberduck.storage.DatabaseManagerTest", ".tmp").getPath();
+        DatabaseManager<String> damagedDbManager =
+            new DatabaseManager<String>(filePath);
+        damagedDbManager.modify(null, "Test 0", "create instance");
+        damagedDbManager.modify(null, "Test 1", "create instance");
+        damagedDbManager.modify(null, "Test 2", "create instance");
+        damagedDbManager.closeFile();
+        assertTrue(damagedDbManager.getRecoveryReport().isClean());
+        new File(filePath + ".idx").delete();
+
+        RandomAccessFile file = new RandomAccessFile(filePath, "rw");
+        byte[] bytes = new byte[(int) file.length()];
+        file.readFully(bytes);
+        String content = new String(bytes, StandardCharsets.ISO_8859_1);
+        file.seek(content.indexOf("Test 1") + 3);
+        file.write('s');
+        file.setLength(file.length() - 2);
+        long fileLength = file.length();
+        file.close();
+
+        damagedDbManager = new DatabaseManager<String>(filePath);
+        RecoveryReport report = damagedDbManager.getRecoveryReport();
+        assertFalse(report.isClean());
+        assertEquals(1, report.getCorruptedOffsets().size());
+        assertEquals(fileLength - report.getTruncatedOffset(),
+                     report.getTruncatedLength());
+        List<Long> validIds = damagedDbManager.getValidIdList();
+        assertEquals(1, validIds.size());
+        assertEquals("Test 0", damagedDbManager.getInstance(validIds.get(0)));
+        damagedDbManager.closeFile();
+
+        damagedDbManager = new DatabaseManager<String>(filePath);
+        assertTrue(damagedDbManager.getRecoveryReport().isClean());
+        assertEquals(1, damagedDbManager.getValidIdList().size());
+        damagedDbManager.closeFile();
+    }
+
+    @Test
+    public void testCorruptedRecordLength() throws Exception {
+        String filePath = File.createTempFile(
+            "rubberduck.storage.DatabaseManagerTest", ".tmp").getPath();
+        DatabaseManager<String> damagedDbManager =
+            new DatabaseManager<String>(filePath);
+        damagedDbManager.modify(null, "Test 0", "create instance");
+        damagedDbManager.modify(null, "Test 1", "create instance");
+        damagedDbManager.modify(null, "Test 2", "create instance");
+        damagedDbManager.closeFile();
+        new File(filePath + ".idx").delete();
+
+        // The records are of the same length, so the second one is found by
+        // dividing the file. Its length field is made to point into itself.
+        RandomAccessFile file = new RandomAccessFile(filePath, "rw");
+        long recordLength = (file.length() - 6) / 3;
+        long middleOffset = 6 + recordLength;
+        long fileLength = file.length();
+        file.seek(middleOffset + 1);
+        file.writeInt(3);
+        file.close();
+
+        damagedDbManager = new DatabaseManager<String>(filePath);
+        RecoveryReport report = damagedDbManager.getRecoveryReport();
+        assertEquals(Arrays.asList(middleOffset), report.getCorruptedOffsets());
+        assertEquals(RecoveryReport.NO_OFFSET, report.getTruncatedOffset());
+        assertEquals(fileLength, new File(filePath).length());
+        List<Long> validIds = damagedDbManager.getValidIdList();
+        assertEquals(2, validIds.size());
+        assertEquals("Test 0", damagedDbManager.getInstance(validIds.get(0)));
+        assertEquals("Test 2", damagedDbManager.getInstance(validIds.get(1)));
+        Long newId = damagedDbManager.modify(null, "Test 3", "create instance");
+        damagedDbManager.closeFile();
+
+        damagedDbManager = new DatabaseManager<String>(filePath);
+        assertEquals(3, damagedDbManager.getValidIdList().size());
+        assertEquals("Test 3", damagedDbManager.getInstance(newId));
+        damagedDbManager.closeFile();
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        String rawPath = File.createTempFile(
+            "rubberduck.storage.DatabaseManagerTest", ".tmp").getPath();
+        String deflatedPath = File.createTempFile(
+            "rubberduck.storage.DatabaseManagerTest", ".tmp").getPath();
+        DatabaseManager<Task> rawDbManager = new DatabaseManager<Task>(
+            rawPath, new XmlRecordCodec<Task>());
+        DatabaseManager<Task> deflatedDbManager = new DatabaseManager<Task>(
+            deflatedPath, new XmlRecordCodec<Task>(),
+            DatabaseManager.ReadMode.RANDOM_ACCESS,
+            DatabaseManager.Compression.DEFLATE);
+        rawDbManager.setDurability(DatabaseManager.Durability.NONE);
+        deflatedDbManager.setDurability(DatabaseManager.Durability.NONE);
+        for (int i = 0; i < 200; i++) {
+            Task task = new Task("Task " + i);
+            task.addDatePair(new DatePair(
+                new GregorianCalendar(2014, 9, i % 28 + 1, 9, 0),
+                new GregorianCalendar(2014, 9, i % 28 + 1, 11, 0)));
+            task.updateLastUpdate();
+            rawDbManager.modify(null, task, "create instance");
+            deflatedDbManager.modify(null, task, "create instance");
+        }
+        rawDbManager.closeFile();
+        deflatedDbManager.closeFile();
+        assertTrue(new File(rawPath).length()
+                   >= 4 * new File(deflatedPath).length());
+
+        deflatedDbManager = new DatabaseManager<Task>(
+            deflatedPath, new XmlRecordCodec<Task>());
+        List<Long> validIds = deflatedDbManager.getValidIdList();
+        assertEquals(200, validIds.size());
+        Task task = deflatedDbManager.getInstance(validIds.get(199));
+        assertEquals("Task 199", task.getDescription());
+        assertEquals(1, task.getDateList().size());
+        Long newId = deflatedDbManager.modify(null, new Task("Short"),
+                                              "create instance");
+        assertEquals("Short",
+                     deflatedDbManager.getInstance(newId).getDescription());
+        deflatedDbManager.closeFile();
+    }
+
+    @Test
+    public void testTaskArchive() throws Exception {
+        String filePath = File.createTempFile(
+            "rubberduck.storage.DatabaseManagerTest", ".tmp").getPath();
+        DatabaseManager<Task> taskDbManager =
+            new DatabaseManager<Task>(filePath, new TaskRecordCodec());
+        DatabaseManager<Task> archiveDbManager = new DatabaseManager<Task>(
+            TaskArchive.getArchiveFilePath(filePath), new TaskRecordCodec());
+        TaskArchive archive = new TaskArchive(taskDbManager, archiveDbManager,
+                                              TaskArchive.DEFAULT_MAX_AGE);
+        Calendar longAgo = Calendar.getInstance();
+        longAgo.add(Calendar.DAY_OF_MONTH, -60);
+        for (int i = 0; i < 3; i++) {
+            Task task = new Task("Task " + i);
+            task.setIsDone(i < 2);
+            if (i == 0) {
+                task.setUuid("uuid-0");
+                task.setLastUpdate(longAgo);
+            }
+            taskDbManager.modify(null, task, "create instance");
+        }
+        taskDbManager.rewriteFile(false);
+        Task referencedTask = new Task("Task 3");
+        referencedTask.setIsDone(true);
+        referencedTask.setLastUpdate(longAgo);
+        taskDbManager.modify(null, referencedTask, "create instance");
+
+        assertEquals(1, archive.archiveOldTasks());
+        assertEquals(3, taskDbManager.getValidIdList().size());
+        List<Long> archivedIds =
+            archive.toArchivedIds(archiveDbManager.getValidIdList());
+        assertEquals(1, archivedIds.size());
+        assertTrue(TaskArchive.isArchivedId(archivedIds.get(0)));
+        assertEquals("Task 0",
+                     archive.getTask(archivedIds.get(0)).getDescription());
+        archive.hold();
+        assertEquals(0, archive.archiveOldTasks());
+        assertEquals(1, archiveDbManager.getValidIdList().size());
+        assertEquals(4, archive.getValidIds().size());
+        assertEquals(archivedIds.get(0), archive.getValidId("uuid-0"));
+        archive.release();
+        assertEquals("create instance", taskDbManager.undo());
+        assertEquals(2, taskDbManager.getValidIdList().size());
+
+        long restoredId = archive.getIdToChange(archivedIds.get(0));
+        assertFalse(TaskArchive.isArchivedId(restoredId));
+        assertEquals("Task 0",
+                     taskDbManager.getInstance(restoredId).getDescription());
+        assertEquals(3, taskDbManager.getValidIdList().size());
+        assertEquals(0, archiveDbManager.getValidIdList().size());
+        assertEquals(0, archive.archiveOldTasks());
+        archive.close();
+        taskDbManager.closeFile();
+    }
+
+    @Test
+    public void testTaskArchiveRecovery() throws Exception {
+        String filePath = File.createTempFile(
+            "rubberduck.storage.DatabaseManagerTest", ".tmp").getPath();
+        String archiveFilePath = TaskArchive.getArchiveFilePath(filePath);
+        DatabaseManager<Task> taskDbManager =
+            new DatabaseManager<Task>(filePath, new TaskRecordCodec()) {
+                @Override
+                public Set<Long> removeUnrecorded(
+                    Collection<Long> instanceIds) throws IOException {
+                    throw new IOException("Crash while moving");
+                }
+            };
+        DatabaseManager<Task> archiveDbManager = new DatabaseManager<Task>(
+            archiveFilePath, new TaskRecordCodec());
+        Calendar longAgo = Calendar.getInstance();
+        longAgo.add(Calendar.DAY_OF_MONTH, -60);
+        for (int i = 0; i < 2; i++) {
+            Task task = new Task("Task " + i);
+            task.setIsDone(true);
+            task.setLastUpdate(longAgo);
+            if (i == 1) {
+                archiveDbManager.insertUnrecorded(
+                    Collections.singletonList(task));
+            } else {
+                taskDbManager.modify(null, task, "create instance");
+            }
+        }
+        taskDbManager.rewriteFile(false);
+        TaskArchive archive = new TaskArchive(taskDbManager, archiveDbManager,
+                                              TaskArchive.DEFAULT_MAX_AGE);
+        try {
+            archive.archiveOldTasks();
+            fail();
+        } catch (IOException e) {
+            assertEquals("Crash while moving", e.getMessage());
+        }
+        assertEquals(1, taskDbManager.getValidIdList().size());
+        assertEquals(2, archiveDbManager.getValidIdList().size());
+        archive.close();
+        taskDbManager.closeFile();
+
+        taskDbManager =
+            new DatabaseManager<Task>(filePath, new TaskRecordCodec());
+        archiveDbManager = new DatabaseManager<Task>(archiveFilePath,
+                                                     new TaskRecordCodec());
+        archive = new TaskArchive(taskDbManager, archiveDbManager,
+                                  TaskArchive.DEFAULT_MAX_AGE);
+        assertEquals(1, taskDbManager.getValidIdList().size());
+        List<Long> archiveIds = archiveDbManager.getValidIdList();
+        assertEquals(1, archiveIds.size());
+        assertEquals("Task 1", archiveDbManager.getInstance(archiveIds.get(0))
+            .getDescription());
+        assertEquals(1, archive.archiveOldTasks());
+        assertEquals(0, taskDbManager.getValidIdList().size());
+        assertEquals(2, archiveDbManager.getValidIdList().size());
+        archive.close();
+        taskDbManager.closeFile();
+    }
+
+    @Test
+    public void testTaskArchiveBatches() throws Exception {
+        String filePath = File.createTempFile(
+            "rubberduck.storage.DatabaseManagerTest", ".tmp").getPath();
+        final ArrayList<Task> tasks = new ArrayList<Task>();
+        Calendar longAgo = Calendar.getInstance();
+        longAgo.add(Calendar.DAY_OF_MONTH, -60);
+        for (int i = 0; i < 2 * TaskArchive.ARCHIVING_BATCH_SIZE + 1; i++) {
+            Task task = new Task("Task " + i);
+            task.setIsDone(true);
+            task.setLastUpdate(longAgo);
+            tasks.add(task);
+        }
+        final TaskArchive[] archive = new TaskArchive[1];
+        final List<Long> ids = new ArrayList<Long>();
+        final CountDownLatch changed = new CountDownLatch(1);
+        DatabaseManager<Task> taskDbManager =
+            new DatabaseManager<Task>(filePath, new TaskRecordCodec()) {
+                @Override
+                public Task getInstance(long instanceId) throws IOException {
+                    /*
+                     * While the second batch is being read, change a task
+                     * of the first batch and one of the last batch from
+                     * another thread, as commands would.
+                     */
+                    if (archive[0] != null && changed.getCount() > 0
+                        && instanceId == ids.get(
+                            TaskArchive.ARCHIVING_BATCH_SIZE)) {
+                        Thread command = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    archive[0].getIdToChange(ids.get(0));
+                                    archive[0].getIdToChange(
+                                        ids.get(ids.size() - 1));
+                                    changed.countDown();
+                                } catch (IOException e) {
+                                    e.printStackTrace();
+                                }
+                            }
+                        });
+                        command.start();
+                        try {
+                            assertTrue(changed.await(10, TimeUnit.SECONDS));
+                        } catch (InterruptedException e) {
+                            fail();
+                        }
+                    }
+                    return super.getInstance(instanceId);
+                }
+            };
+        DatabaseManager<Task> archiveDbManager = new DatabaseManager<Task>(
+            TaskArchive.getArchiveFilePath(filePath), new TaskRecordCodec());
+        ids.addAll(taskDbManager.insertUnrecorded(tasks));
+        archive[0] = new TaskArchive(taskDbManager, archiveDbManager,
+                                     TaskArchive.DEFAULT_MAX_AGE);
+
+        assertEquals(tasks.size() - 1, archive[0].archiveOldTasks());
+        assertEquals(0, changed.getCount());
+        List<Long> currentIds = taskDbManager.getValidIdList();
+        assertEquals(2, currentIds.size());
+        assertEquals("Task " + (tasks.size() - 1),
+                     taskDbManager.getInstance(currentIds.get(0))
+                         .getDescription());
+        assertEquals("Task 0", taskDbManager.getInstance(currentIds.get(1))
+            .getDescription());
+        assertEquals(tasks.size() - 2,
+                     archiveDbManager.getValidIdList().size());
+        archive[0].close();
+        taskDbManager.closeFile();
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        String filePath = File.createTempFile(
+            "rubberduck.storage.DatabaseManagerTest", ".tmp").getPath();
+        DatabaseManager<String> segmentedDbManager =
+            new DatabaseManager<String>(filePath);
+        segmentedDbManager.setDurability(DatabaseManager.Durability.NONE);
+        segmentedDbManager.setSegmentLength(1024);
+        ArrayList<Long> ids = new ArrayList<Long>();
+        for (int i = 0; i < 100; i++) {
+            ids.add(segmentedDbManager.modify(null, "Test " + i,
+                                              "create instance"));
+        }
+        assertTrue(Segment.getSegmentFile(filePath, 1).isFile());
+        assertTrue(Segment.getSegmentFile(filePath, 2).isFile());
+
+        for (int i = 0; i < 60; i++) {
+            segmentedDbManager.modify(ids.get(i), null, "delete instance");
+        }
+        segmentedDbManager.rewriteFile(true);
+        segmentedDbManager.waitForCompaction();
+        assertFalse(Segment.getSegmentFile(filePath, 1).isFile());
+        assertEquals(40, segmentedDbManager.getValidIdList().size());
+        assertEquals("Test 99", segmentedDbManager.getInstance(ids.get(99)));
+        segmentedDbManager.modify(ids.get(60), "Modified test 60",
+                                  "modify instance");
+        segmentedDbManager.closeFile();
+
+        segmentedDbManager = new DatabaseManager<String>(filePath);
+        List<Long> validIds = segmentedDbManager.getValidIdList();
+        assertEquals(40, validIds.size());
+        assertEquals("Modified test 60", segmentedDbManager.getInstance(
+            validIds.get(validIds.size() - 1)));
+        segmentedDbManager.undo();
+        segmentedDbManager.closeFile();
+
+        new File(filePath + ".idx").delete();
+        segmentedDbManager = new DatabaseManager<String>(filePath);
+        ArrayList<String> instances = new ArrayList<String>();
+        for (String instance : segmentedDbManager) {
+            instances.add(instance);
+        }
+        assertEquals(40, instances.size());
+        assertTrue(instances.contains("Test 60"));
+        assertFalse(instances.contains("Modified test 60"));
+        segmentedDbManager.closeFile();
+    }
+
+    @Test
+    public void testMemoryTaskStore() throws Exception {
+        MemoryTaskStore<String> memoryStore = new MemoryTaskStore<String>();
+        assertEquals(runWorkload(dbManager), runWorkload(memoryStore));
+
+        memoryStore.rewriteFile(true);
+        assertEquals(0, memoryStore.getUndoStackSize());
+        assertEquals(0, memoryStore.getRedoStackSize());
+        memoryStore.resetDatabase();
+        assertEquals(0, memoryStore.getValidIdList().size());
+        assertEquals(0, memoryStore.getValidIdsWithToken("words", "test")
+            .size());
+    }
+
+    @Test
+    public void testHeapTaskStore() throws Exception {
+        String filePath = File.createTempFile(
+            "rubberduck.storage.DatabaseManagerTest", ".tmp").getPath();
+        HeapTaskStore<String> heapStore =
+            new HeapTaskStore<String>(filePath, new XmlRecordCodec<String>());
+        heapStore.setDurability(DatabaseManager.Durability.NONE);
+        List<String> results = runWorkload(heapStore);
+        assertEquals(runWorkload(dbManager), results);
+        Long id = heapStore.modify(null, "Logged test", "create instance");
+
+        HeapTaskStore<String> recoveredStore =
+            new HeapTaskStore<String>(filePath, new XmlRecordCodec<String>());
+        assertTrue(recoveredStore.getRecoveryReport().isClean());
+        assertEquals(heapStore.getValidIdList(),
+                     recoveredStore.getValidIdList());
+        for (Long validId : heapStore.getValidIdList()) {
+            assertEquals(heapStore.getInstance(validId),
+                         recoveredStore.getInstance(validId));
+        }
+        assertEquals("Logged test", recoveredStore.getInstance(id));
+        assertEquals("create instance", recoveredStore.undo());
+        recoveredStore.setSnapshotEntries(2);
+        recoveredStore.redo();
+        assertEquals(0, recoveredStore.getLogEntryCount());
+        assertTrue(new File(filePath + ".snapshot").isFile());
+
+        RandomAccessFile log = new RandomAccessFile(filePath + ".wal", "rw");
+        log.seek(log.length());
+        log.write(new byte[] {0, 0, 0, 100, 1, 2});
+        log.close();
+        heapStore = new HeapTaskStore<String>(filePath,
+                                              new XmlRecordCodec<String>());
+        assertEquals(6, heapStore.getRecoveryReport().getTruncatedLength());
+        assertEquals(recoveredStore.getValidIdList(),
+                     heapStore.getValidIdList());
+        assertEquals("create instance", heapStore.undo());
+
+        Long syncedId = heapStore.modifyAll(Arrays.asList(
+            new Change<String>(null, "Synced test")), null).get(0);
+        heapStore = new HeapTaskStore<String>(filePath,
+                                              new XmlRecordCodec<String>());
+        assertEquals("Synced test", heapStore.getInstance(syncedId));
+        heapStore.writeSnapshot();
+        assertEquals(null, heapStore.undo());
+        heapStore.closeFile();
+        recoveredStore.closeFile();
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        DatabaseManager<Task> taskDbManager = new DatabaseManager<Task>(
+            File.createTempFile("rubberduck.storage.DatabaseManagerTest",
+                                ".tmp").getPath(), new TaskRecordCodec());
+        taskDbManager.setDurability(DatabaseManager.Durability.NONE);
+        for (int i = 0; i < 60; i++) {
+            Task task = new Task((i % 3 == 0 ? "Meet " : "Write ")
+                                 + "report " + i);
+            task.setIsDone(i % 4 == 0);
+            task.setUuid("task" + i);
+            if (i % 5 == 1) {
+                task.addDatePair(new DatePair(
+                    new GregorianCalendar(2014, 9, i % 28 + 1, 23, 59)));
+            } else if (i % 5 != 0) {
+                task.addDatePair(new DatePair(
+                    new GregorianCalendar(2014, 9, i % 28 + 1, 9, 0),
+                    new GregorianCalendar(2014, 9, i % 28 + 1, 11, 0)));
+            }
+            taskDbManager.modify(null, task, "create instance");
+        }
+        TaskIndexes.addTo(taskDbManager);
+        DatePair period = new DatePair(
+            new GregorianCalendar(2014, 9, 5, 0, 0),
+            new GregorianCalendar(2014, 9, 12, 23, 59));
+
+        long cacheMissCount = taskDbManager.getCacheMissCount();
+        Query<Task> query = new Query<Task>()
+            .where(TaskIndexes.isDone(false))
+            .where(TaskIndexes.ofKinds(Arrays.asList(Kind.SCHEDULE)))
+            .where(TaskIndexes.withWord("meet"));
+        ArrayList<Long> ids = taskDbManager.query(query);
+        assertEquals(cacheMissCount, taskDbManager.getCacheMissCount());
+        assertFalse(ids.isEmpty());
+        assertEquals(findMatching(taskDbManager, query), ids);
+
+        query = new Query<Task>()
+            .where(TaskIndexes.isDone(false))
+            .where(TaskIndexes.withinPeriod(period))
+            .where(TaskIndexes.withPhrase(Arrays.asList("Write", "report")));
+        ids = taskDbManager.query(query);
+        assertFalse(ids.isEmpty());
+        assertEquals(findMatching(taskDbManager, query), ids);
+        for (Long id : ids) {
+            assertTrue(taskDbManager.getInstance(id).isWithinPeriod(period));
+        }
+
+        query = new Query<Task>()
+            .where(TaskIndexes.withWordContaining("eet"))
+            .where(TaskIndexes.withinPeriod(new DatePair()));
+        ids = taskDbManager.query(query);
+        assertEquals(findMatching(taskDbManager, query), ids);
+
+        Task task = taskDbManager.getInstance(ids.get(0));
+        assertEquals(Arrays.asList(ids.get(0)), taskDbManager.query(
+            new Query<Task>().where(TaskIndexes.withUuid(task.getUuid()))));
+        assertEquals(0, taskDbManager.query(new Query<Task>()
+            .where(TaskIndexes.isDone(true))
+            .where(TaskIndexes.withWord("nothing"))).size());
+
+        final Criterion<Task> notDone = TaskIndexes.isDone(false);
+        final ArrayList<String> listedCriteria = new ArrayList<String>();
+        Criterion<Task> listedNotDone = new Criterion<Task>() {
+            @Override
+            public List<Long> getCandidateIds(TaskStore<Task> store)
+                throws IOException {
+                listedCriteria.add("not done");
+                return notDone.getCandidateIds(store);
+            }
+
+            @Override
+            public boolean isExact() {
+                return true;
+            }
+
+            @Override
+            public int estimateCandidateCount(TaskStore<Task> store)
+                throws IOException {
+                return notDone.estimateCandidateCount(store);
+            }
+
+            @Override
+            public boolean canCheckCandidate() {
+                return true;
+            }
+
+            @Override
+            public boolean isCandidate(TaskStore<Task> store, long instanceId)
+                throws IOException {
+                return notDone.isCandidate(store, instanceId);
+            }
+
+            @Override
+            public boolean matches(Task task) {
+                return notDone.matches(task);
+            }
+        };
+        query = new Query<Task>().where(listedNotDone)
+            .where(TaskIndexes.withUuid("task1"));
+        assertEquals(1, taskDbManager.query(query).size());
+        query = new Query<Task>().where(listedNotDone)
+            .where(TaskIndexes.withWord("meet"));
+        ids = taskDbManager.query(query);
+        assertFalse(ids.isEmpty());
+        assertEquals(findMatching(taskDbManager, query), ids);
+        assertTrue(listedCriteria.isEmpty());
+        taskDbManager.closeFile();
+    }
+
+    /**
+     * Find the valid instances matching all criteria of a query by checking
+     * every one of them.
+     */
+    private static ArrayList<Long> findMatching(TaskStore<Task> store,
+                                                Query<Task> query)
+        throws Exception {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        for (Long id : store.getValidIdList()) {
+            boolean isMatching = true;
+            for (Criterion<Task> criterion : query.getCriteria()) {
+                isMatching &= criterion.matches(store.getInstance(id));
+            }
+            if (isMatching) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Apply the same modifications, undos and index lookups to a store.
+     *
+     * @param store an empty store
+     * @return what was seen after each step
+     */
+    private static List<String> runWorkload(TaskStore<String> store)
+        throws Exception {
+        ArrayList<String> results = new ArrayList<String>();
+        store.addTextIndex("words", new IndexKeyExtractor<String, String>() {
+            @Override
+            public String getKey(String instance) {
+                return instance;
+            }
+        });
+        Long firstId = store.modify(null, "first test", "create instance");
+        Long secondId = store.modify(null, "second test", "create instance");
+        store.modify(firstId, "first change", "modify instance");
+        store.modify(secondId, null, "delete instance");
+        results.add(store.getValidIdList().toString());
+        results.add(store.getDeletedIdList().toString());
+        results.add(store.getValidIdsWithToken("words", "test").toString());
+        results.add(store.undo());
+        results.add(store.undo());
+        results.add(store.getValidIdsWithToken("words", "test").toString());
+        results.add(store.redo());
+        store.modifyAll(Arrays.asList(new Change<String>(null, "third test"),
+                                      new Change<String>(secondId, null)),
+                        "batch");
+        results.add(store.getValidIdList().toString());
+        results.add(store.undo());
+        results.add(store.getValidIdList().toString());
+        results.add(store.removeUnrecorded(store.getValidIdList()).toString());
+        store.rewriteFile(false);
+        results.add(store.removeUnrecorded(store.getValidIdList()).toString());
+        results.add(store.insertUnrecorded(Arrays.asList("fourth test"))
+            .toString());
+        for (Long id : store.getValidIdList()) {
+            results.add(store.getInstance(id));
+        }
+        return results;
+    }
+}
@@ -4,8 +4,11 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 //@author A0119416H
 public class JournalControllerTest {
@@ -81,4 +84,92 @@ public class JournalControllerTest {
         newId = dbManager.modify(null, "Test clear redo", "create instance");
         assertEquals(dbManager.getJournal().getRedoStackSize(), 0);
     }
+
+    @Test
+    public void testBatchAction() throws Exception {
+        Long firstId = dbManager.modify(null, "Test 0", "create instance");
+        Long secondId = dbManager.modify(null, "Test 1", "create instance");
+
+        ArrayList<Change<String>> changes = new ArrayList<Change<String>>();
+        changes.add(new Change<String>(firstId, "Modified test 0"));
+        changes.add(new Change<String>(secondId, null));
+        changes.add(new Change<String>(null, "Test 2"));
+        ArrayList<Long> newIds = dbManager.modifyAll(changes, "batch");
+        assertEquals(dbManager.getValidIdList().size(), 2);
+        assertEquals(dbManager.getInstance(newIds.get(0)), "Modified test 0");
+        assertEquals(newIds.get(1), null);
+        assertEquals(dbManager.getJournal().getUndoStackSize(), 3);
+
+        assertEquals(dbManager.undo(), "batch");
+        assertEquals(dbManager.getValidIdList().size(), 2);
+        assertEquals(dbManager.getInstance(firstId), "Test 0");
+        assertEquals(dbManager.getInstance(secondId), "Test 1");
+
+        dbManager.redo();
+        assertEquals(dbManager.getValidIdList().size(), 2);
+        assertEquals(dbManager.getInstance(newIds.get(2)), "Test 2");
+        assertTrue(dbManager.isDeletedId(secondId));
+    }
+
+    @Test
+    public void testSpillToJournalFile() throws Exception {
+        dbManager.setJournalMemoryDepth(2);
+        for (int i = 0; i < 5; i++) {
+            dbManager.modify(null, "Test " + i, "create instance " + i);
+        }
+        assertEquals(dbManager.getJournal().getUndoStackSize(), 5);
+
+        for (int i = 4; i >= 1; i--) {
+            assertEquals(dbManager.undo(), "create instance " + i);
+        }
+        assertEquals(dbManager.getValidIdList().size(), 1);
+        assertEquals(dbManager.redo(), "create instance 1");
+        assertEquals(dbManager.redo(), "create instance 2");
+        assertEquals(dbManager.getJournal().getRedoStackSize(), 2);
+
+        dbManager.modify(null, "Test 5", "create instance 5");
+        assertEquals(dbManager.getJournal().getUndoStackSize(), 4);
+        assertEquals(dbManager.getJournal().getRedoStackSize(), 0);
+        for (int i = 0; i < 4; i++) {
+            dbManager.undo();
+        }
+        assertEquals(dbManager.getValidIdList().size(), 0);
+    }
+
+    @Test
+    public void testUndoAfterReopen() throws Exception {
+        String filePath = File.createTempFile(
+            "rubberduck.storage.JournalControllerTest", ".tmp").getPath();
+        DatabaseManager<String> reopenedDbManager =
+            new DatabaseManager<String>(filePath);
+        reopenedDbManager.modify(null, "Test 0", "create instance");
+        Long newId =
+            reopenedDbManager.modify(null, "Test 1", "create instance");
+        Long modifiedId = reopenedDbManager.modify(newId, "Modified test 1",
+                                                   "modify instance");
+        reopenedDbManager.modify(modifiedId, null, "delete instance");
+        reopenedDbManager.undo();
+        reopenedDbManager.closeFile();
+
+        reopenedDbManager = new DatabaseManager<String>(filePath);
+        assertEquals(reopenedDbManager.getJournal().getUndoStackSize(), 3);
+        assertEquals(reopenedDbManager.getJournal().getRedoStackSize(), 1);
+        assertEquals(reopenedDbManager.redo(), "delete instance");
+        assertEquals(reopenedDbManager.getValidIdList().size(), 1);
+        assertEquals(reopenedDbManager.undo(), "delete instance");
+        assertEquals(reopenedDbManager.undo(), "modify instance");
+        List<Long> validIds = reopenedDbManager.getValidIdList();
+        assertEquals(reopenedDbManager.getInstance(validIds.get(1)), "Test 1");
+        reopenedDbManager.closeFile();
+
+        reopenedDbManager = new DatabaseManager<String>(filePath);
+        assertEquals(reopenedDbManager.getJournal().getUndoStackSize(), 2);
+        assertEquals(reopenedDbManager.undo(), "create instance");
+        assertEquals(reopenedDbManager.getValidIdList().size(), 1);
+        reopenedDbManager.modify(null, "Test 2", "create instance");
+
+        reopenedDbManager = new DatabaseManager<String>(filePath);
+        assertEquals(reopenedDbManager.getJournal().getUndoStackSize(), 0);
+        assertEquals(reopenedDbManager.getValidIdList().size(), 2);
+    }
 }